@@ -0,0 +1,465 @@
+/*
+ * Copyright (C) 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.gapid.loadtest;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import com.google.gapid.image.Images;
+import com.google.gapid.proto.core.pod.Pod;
+import com.google.gapid.proto.image.Image;
+import com.google.gapid.proto.perfetto.Perfetto;
+import com.google.gapid.proto.service.GapidGrpc;
+import com.google.gapid.proto.service.Service;
+import com.google.gapid.proto.service.api.API;
+import com.google.gapid.proto.service.box.Box;
+import com.google.gapid.proto.service.path.Path;
+import com.google.gapid.proto.stringtable.Stringtable;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.MessageLite;
+
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+
+/**
+ * An in-process fake of the gapis gRPC service, serving synthetic command trees, commands,
+ * constant sets, memory, images and Perfetto query results. Responses are delayed according to
+ * the configured latency distribution and link bandwidth, and errors are injected at the
+ * configured rates, which allows the client side caching, batching and concurrency to be
+ * exercised without a real server.
+ */
+public class FakeGapis extends GapidGrpc.GapidImplBase {
+  private static final String[] COMMAND_NAMES = {
+      "vkCmdBindPipeline", "vkCmdBindDescriptorSets", "vkCmdBindVertexBuffers", "vkCmdDraw",
+      "vkCmdDrawIndexed", "vkCmdPipelineBarrier", "vkCmdCopyBuffer", "vkQueueSubmit",
+  };
+  private static final int PARAM_CONSTANTS_EVERY = 2;
+  private static final long MAX_MEMORY_SIZE = 16 << 20;
+  private static final ByteString TREE_ID = ByteString.copyFromUtf8("fake-tree");
+
+  private final Config config;
+  private final ScheduledExecutorService scheduler;
+  private final ByteString imageData;
+  private final Object linkLock = new Object();
+  private long linkFreeAt = 0;
+
+  public FakeGapis(Config config) {
+    this.config = config;
+    this.scheduler = Executors.newScheduledThreadPool(config.serverThreads);
+    this.imageData = pattern(0, config.imageWidth * config.imageHeight * 4);
+  }
+
+  public Config getConfig() {
+    return config;
+  }
+
+  public void shutdown() {
+    scheduler.shutdownNow();
+  }
+
+  @Override
+  public void ping(Service.PingRequest request, StreamObserver<Service.PingResponse> out) {
+    respond(out, Service.PingResponse.getDefaultInstance());
+  }
+
+  @Override
+  public void getServerInfo(Service.GetServerInfoRequest request,
+      StreamObserver<Service.GetServerInfoResponse> out) {
+    respond(out, Service.GetServerInfoResponse.newBuilder()
+        .setInfo(Service.ServerInfo.newBuilder()
+            .setName("fake-gapis")
+            .setVersionMajor(1))
+        .build());
+  }
+
+  @Override
+  public void get(Service.GetRequest request, StreamObserver<Service.GetResponse> out) {
+    Service.GetResponse.Builder response = Service.GetResponse.newBuilder();
+    Service.Error error = injectedError();
+    if (error != null) {
+      response.setError(error);
+    } else {
+      try {
+        response.setValue(resolve(request.getPath()));
+      } catch (FakeException e) {
+        response.setError(e.error);
+      }
+    }
+    respond(out, response.build());
+  }
+
+  @Override
+  public void follow(Service.FollowRequest request, StreamObserver<Service.FollowResponse> out) {
+    Service.Error error = injectedError();
+    if (error == null) {
+      error = Service.Error.newBuilder()
+          .setErrPathNotFollowable(Service.ErrPathNotFollowable.newBuilder()
+              .setPath(request.getPath()))
+          .build();
+    }
+    respond(out, Service.FollowResponse.newBuilder().setError(error).build());
+  }
+
+  @Override
+  public void perfettoQuery(Service.PerfettoQueryRequest request,
+      StreamObserver<Service.PerfettoQueryResponse> out) {
+    Service.PerfettoQueryResponse.Builder response = Service.PerfettoQueryResponse.newBuilder();
+    Service.Error error = injectedError();
+    if (error != null) {
+      response.setError(error);
+    } else {
+      response.setResult(queryResult(request.getQuery().hashCode()));
+    }
+    respond(out, response.build());
+  }
+
+  private Service.Value resolve(Path.Any path) throws FakeException {
+    switch (path.getPathCase()) {
+      case COMMAND_TREE:
+        return Service.Value.newBuilder()
+            .setCommandTree(Service.CommandTree.newBuilder()
+                .setRoot(Path.CommandTreeNode.newBuilder()
+                    .setTree(Path.ID.newBuilder().setData(TREE_ID))))
+            .build();
+      case COMMAND_TREE_NODE:
+        return Service.Value.newBuilder()
+            .setCommandTreeNode(treeNode(path.getCommandTreeNode()))
+            .build();
+      case COMMAND_TREE_NODE_FOR_COMMAND:
+        return Service.Value.newBuilder()
+            .setPath(Path.Any.newBuilder()
+                .setCommandTreeNode(nodeForCommand(path.getCommandTreeNodeForCommand())))
+            .build();
+      case COMMAND:
+        return Service.Value.newBuilder()
+            .setCommand(command(path.getCommand()))
+            .build();
+      case CONSTANT_SET:
+        return Service.Value.newBuilder()
+            .setConstantSet(constantSet(path.getConstantSet().getIndex()))
+            .build();
+      case MEMORY:
+        return Service.Value.newBuilder()
+            .setMemory(memory(path.getMemory()))
+            .build();
+      case IMAGE_INFO:
+        return Service.Value.newBuilder()
+            .setImageInfo(Image.Info.newBuilder()
+                .setFormat(Images.FMT_RGBA_U8_NORM)
+                .setWidth(config.imageWidth)
+                .setHeight(config.imageHeight)
+                .setDepth(1)
+                .setBytes(Image.ID.newBuilder().setData(path.getImageInfo().getID().getData())))
+            .build();
+      case BLOB:
+        return Service.Value.newBuilder()
+            .setBox(Box.Value.newBuilder()
+                .setPod(Pod.Value.newBuilder()
+                    .setUint8Array(imageData)))
+            .build();
+      default:
+        throw new FakeException(internalError("Path not supported by the fake server: " +
+            path.getPathCase()));
+    }
+  }
+
+  /**
+   * The synthetic command tree groups the commands into nodes of at most
+   * {@link Config#fanout} children. The leaves are the individual commands.
+   */
+  private Service.CommandTreeNode treeNode(Path.CommandTreeNode path) throws FakeException {
+    Path.Capture capture = Path.Capture.getDefaultInstance();
+    long from = 0, count = config.commands;
+    for (long index : path.getIndicesList()) {
+      long childSize = childSize(count);
+      if (index >= childCount(count, childSize)) {
+        throw new FakeException(invalidPath("Tree node index out of bounds"));
+      }
+      from += index * childSize;
+      count = Math.min(childSize, count - index * childSize);
+    }
+
+    Service.CommandTreeNode.Builder node = Service.CommandTreeNode.newBuilder()
+        .setRepresentation(commandPath(capture, from + count - 1))
+        .setCommands(Path.Commands.newBuilder()
+            .setCapture(capture)
+            .addFrom(from)
+            .addTo(from + count - 1))
+        .setNumCommands(count);
+    if (count > 1 || path.getIndicesCount() == 0) {
+      node.setNumChildren(childCount(count, childSize(count)))
+          .setGroup("Group " + from + " - " + (from + count - 1));
+    }
+    return node.build();
+  }
+
+  private Path.CommandTreeNode nodeForCommand(Path.CommandTreeNodeForCommand path)
+      throws FakeException {
+    if (path.getCommand().getIndicesCount() == 0) {
+      throw new FakeException(invalidPath("Missing command index"));
+    }
+    long command = path.getCommand().getIndices(0);
+    if (command < 0 || command >= config.commands) {
+      throw new FakeException(invalidPath("Command index out of bounds"));
+    }
+
+    Path.CommandTreeNode.Builder node = Path.CommandTreeNode.newBuilder().setTree(path.getTree());
+    for (long from = 0, count = config.commands; count > 1; ) {
+      long childSize = childSize(count), index = (command - from) / childSize;
+      node.addIndices(index);
+      from += index * childSize;
+      count = Math.min(childSize, count - index * childSize);
+    }
+    return node.build();
+  }
+
+  private long childSize(long count) {
+    return (count <= config.fanout) ? 1 : (count + config.fanout - 1) / config.fanout;
+  }
+
+  private static long childCount(long count, long childSize) {
+    return (count + childSize - 1) / childSize;
+  }
+
+  private API.Command command(Path.Command path) throws FakeException {
+    if (path.getIndicesCount() == 0 || path.getIndices(0) >= config.commands) {
+      throw new FakeException(invalidPath("Command index out of bounds"));
+    }
+    long index = path.getIndices(0);
+    API.Command.Builder command = API.Command.newBuilder()
+        .setName(COMMAND_NAMES[(int)(index % COMMAND_NAMES.length)])
+        .setThread(1);
+    for (int i = 0; i < config.parameters; i++) {
+      API.Parameter.Builder param = command.addParametersBuilder()
+          .setName("param" + i)
+          .setValue(Box.Value.newBuilder()
+              .setPod(Pod.Value.newBuilder().setUint32((int)(index * 31 + i))));
+      if (config.constantSets > 0 && i % PARAM_CONSTANTS_EVERY == 0) {
+        param.setConstants(Path.ConstantSet.newBuilder()
+            .setIndex((int)((index + i) % config.constantSets)));
+      }
+    }
+    return command.build();
+  }
+
+  private Service.ConstantSet constantSet(int index) throws FakeException {
+    if (index < 0 || index >= config.constantSets) {
+      throw new FakeException(invalidPath("Constant set index out of bounds"));
+    }
+    Service.ConstantSet.Builder set = Service.ConstantSet.newBuilder()
+        .setIsBitfield(index % 4 == 0);
+    for (int i = 0; i < config.constantsPerSet; i++) {
+      set.addConstants(Service.Constant.newBuilder()
+          .setName("CONSTANT_" + index + "_" + i)
+          .setValue(set.getIsBitfield() ? (1L << (i % 64)) : i));
+    }
+    return set.build();
+  }
+
+  private Service.Memory memory(Path.Memory path) {
+    long size = Math.min(path.getSize(), MAX_MEMORY_SIZE);
+    Service.Memory.Builder memory = Service.Memory.newBuilder()
+        .addObserved(Service.MemoryRange.newBuilder().setBase(0).setSize(size / 2))
+        .addReads(Service.MemoryRange.newBuilder().setBase(0).setSize(Math.min(size, 256)));
+    if (!path.getExcludeData()) {
+      memory.setData(pattern(path.getAddress(), (int)size));
+    }
+    return memory.build();
+  }
+
+  private Perfetto.QueryResult queryResult(int seed) {
+    Random random = new Random(seed);
+    Perfetto.QueryResult.Builder result = Perfetto.QueryResult.newBuilder()
+        .setNumRecords(config.queryRows)
+        .addColumnDescriptors(column("ts", Perfetto.QueryResult.ColumnDesc.Type.LONG))
+        .addColumnDescriptors(column("dur", Perfetto.QueryResult.ColumnDesc.Type.LONG))
+        .addColumnDescriptors(column("name", Perfetto.QueryResult.ColumnDesc.Type.STRING))
+        .addColumnDescriptors(column("value", Perfetto.QueryResult.ColumnDesc.Type.DOUBLE));
+    Perfetto.QueryResult.ColumnValues.Builder ts = Perfetto.QueryResult.ColumnValues.newBuilder();
+    Perfetto.QueryResult.ColumnValues.Builder dur = Perfetto.QueryResult.ColumnValues.newBuilder();
+    Perfetto.QueryResult.ColumnValues.Builder name = Perfetto.QueryResult.ColumnValues.newBuilder();
+    Perfetto.QueryResult.ColumnValues.Builder value =
+        Perfetto.QueryResult.ColumnValues.newBuilder();
+    for (int i = 0; i < config.queryRows; i++) {
+      ts.addLongValues(i * 1000L).addIsNulls(false);
+      dur.addLongValues(random.nextInt(1000)).addIsNulls(false);
+      name.addStringValues(COMMAND_NAMES[i % COMMAND_NAMES.length]).addIsNulls(false);
+      value.addDoubleValues(random.nextDouble()).addIsNulls(false);
+    }
+    return result.addColumns(ts).addColumns(dur).addColumns(name).addColumns(value).build();
+  }
+
+  private static Perfetto.QueryResult.ColumnDesc column(
+      String name, Perfetto.QueryResult.ColumnDesc.Type type) {
+    return Perfetto.QueryResult.ColumnDesc.newBuilder().setName(name).setType(type).build();
+  }
+
+  private static Path.Command commandPath(Path.Capture capture, long index) {
+    return Path.Command.newBuilder().setCapture(capture).addIndices(index).build();
+  }
+
+  private static ByteString pattern(long seed, int size) {
+    byte[] data = new byte[size];
+    for (int i = 0; i < size; i++) {
+      data[i] = (byte)((seed + i) * 0x9E3779B1L >>> 24);
+    }
+    return ByteString.copyFrom(data);
+  }
+
+  /**
+   * @return an error to return in place of the result, according to the configured error rate,
+   *     or {@code null}.
+   */
+  private Service.Error injectedError() {
+    if (ThreadLocalRandom.current().nextDouble() >= config.errorRate) {
+      return null;
+    }
+    return Service.Error.newBuilder()
+        .setErrDataUnavailable(Service.ErrDataUnavailable.newBuilder()
+            .setReason(Stringtable.Msg.newBuilder().setIdentifier("ERR_INJECTED"))
+            .setTransient(true))
+        .build();
+  }
+
+  private static Service.Error internalError(String message) {
+    return Service.Error.newBuilder()
+        .setErrInternal(Service.ErrInternal.newBuilder().setMessage(message))
+        .build();
+  }
+
+  private static Service.Error invalidPath(String message) {
+    return Service.Error.newBuilder()
+        .setErrInvalidPath(Service.ErrInvalidPath.newBuilder()
+            .setReason(Stringtable.Msg.newBuilder().setIdentifier(message)))
+        .build();
+  }
+
+  /**
+   * Sends the response after the simulated latency and transfer time. The transfers of all calls
+   * share a single simulated link of the configured bandwidth, so large responses delay the ones
+   * that follow them.
+   */
+  private <T extends MessageLite> void respond(StreamObserver<T> out, T response) {
+    long now = System.nanoTime();
+    long arrival = now + sampleLatencyNs();
+    long done = arrival;
+    if (config.bandwidth > 0) {
+      long transferNs = response.getSerializedSize() * 1000000000L / config.bandwidth;
+      synchronized (linkLock) {
+        done = Math.max(arrival, linkFreeAt) + transferNs;
+        linkFreeAt = done;
+      }
+    }
+
+    boolean fail = ThreadLocalRandom.current().nextDouble() < config.failureRate;
+    Runnable send = () -> {
+      if (fail) {
+        out.onError(Status.UNAVAILABLE.withDescription("Injected failure").asRuntimeException());
+      } else {
+        out.onNext(response);
+        out.onCompleted();
+      }
+    };
+    if (done <= now) {
+      send.run();
+    } else {
+      scheduler.schedule(send, done - now, NANOSECONDS);
+    }
+  }
+
+  /**
+   * Samples the latency as a fixed minimum plus an exponentially distributed tail, giving the
+   * long tail typically seen with a real server.
+   */
+  private long sampleLatencyNs() {
+    double tail = (config.latencyTailMs <= 0) ? 0 :
+        -Math.log(1 - ThreadLocalRandom.current().nextDouble()) * config.latencyTailMs;
+    return (long)((config.latencyMs + tail) * 1000000);
+  }
+
+  /**
+   * Configuration of the synthetic data sizes and the injected latency and failures.
+   */
+  public static class Config {
+    public long commands = 100000;
+    public int fanout = 100;
+    public int parameters = 4;
+    public int constantSets = 64;
+    public int constantsPerSet = 200;
+    public int imageWidth = 1024;
+    public int imageHeight = 1024;
+    public int queryRows = 10000;
+
+    public double latencyMs = 2; // Minimum latency of each call.
+    public double latencyTailMs = 3; // Mean of the exponential latency tail.
+    public long bandwidth = 0; // In bytes per second, 0 for unlimited.
+    public double errorRate = 0; // Rate of calls returning a gapis error.
+    public double failureRate = 0; // Rate of calls failing with a gRPC status.
+    public int serverThreads = 4;
+
+    /**
+     * Applies the given "--name=value" argument to this config.
+     * @return whether the argument was recognized.
+     */
+    public boolean parse(String arg) {
+      int eq = arg.indexOf('=');
+      if (!arg.startsWith("--") || eq < 0) {
+        return false;
+      }
+      String name = arg.substring(2, eq), value = arg.substring(eq + 1);
+      switch (name) {
+        case "commands": commands = Long.parseLong(value); break;
+        case "fanout": fanout = Math.max(2, Integer.parseInt(value)); break;
+        case "parameters": parameters = Integer.parseInt(value); break;
+        case "constant-sets": constantSets = Integer.parseInt(value); break;
+        case "constants-per-set": constantsPerSet = Integer.parseInt(value); break;
+        case "image-width": imageWidth = Integer.parseInt(value); break;
+        case "image-height": imageHeight = Integer.parseInt(value); break;
+        case "query-rows": queryRows = Integer.parseInt(value); break;
+        case "latency-ms": latencyMs = Double.parseDouble(value); break;
+        case "latency-tail-ms": latencyTailMs = Double.parseDouble(value); break;
+        case "bandwidth": bandwidth = Long.parseLong(value); break;
+        case "error-rate": errorRate = Double.parseDouble(value); break;
+        case "failure-rate": failureRate = Double.parseDouble(value); break;
+        case "server-threads": serverThreads = Integer.parseInt(value); break;
+        default: return false;
+      }
+      return true;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("commands=%d fanout=%d parameters=%d constantSets=%d " +
+          "constantsPerSet=%d image=%dx%d queryRows=%d latency=%.1fms+exp(%.1fms) " +
+          "bandwidth=%d errorRate=%.3f failureRate=%.3f", commands, fanout, parameters,
+          constantSets, constantsPerSet, imageWidth, imageHeight, queryRows, latencyMs,
+          latencyTailMs, bandwidth, errorRate, failureRate);
+    }
+  }
+
+  private static class FakeException extends Exception {
+    public final Service.Error error;
+
+    public FakeException(Service.Error error) {
+      super(error.toString());
+      this.error = error;
+    }
+  }
+}
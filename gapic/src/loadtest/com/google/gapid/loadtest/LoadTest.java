@@ -0,0 +1,601 @@
+/*
+ * Copyright (C) 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.gapid.loadtest;
+
+import static com.google.gapid.util.Paths.blob;
+import static com.google.gapid.util.Paths.commandTree;
+import static com.google.gapid.util.Paths.constantSet;
+import static com.google.gapid.util.Paths.imageInfo;
+import static com.google.gapid.util.Paths.observationsAfter;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.logging.Level.WARNING;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.gapid.models.CommandStream.CommandIndex;
+import com.google.gapid.models.Memory;
+import com.google.gapid.models.MemoryPageCache;
+import com.google.gapid.proto.image.Image;
+import com.google.gapid.proto.service.GapidGrpc;
+import com.google.gapid.proto.service.Service;
+import com.google.gapid.proto.service.api.API;
+import com.google.gapid.proto.service.path.Path;
+import com.google.gapid.server.Client;
+import com.google.gapid.server.GapidClientCache;
+import com.google.gapid.server.RpcStats;
+import com.google.gapid.util.MoreFutures;
+import com.google.gapid.util.Paths;
+import com.google.protobuf.ByteString;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+
+/**
+ * Load test driver, that replays a UI interaction script against a {@link FakeGapis} served over
+ * the gRPC in-process transport. The requests are issued through the real {@link Client}, the
+ * caching {@link GapidClientCache} and, where they can be used without a display, the model
+ * classes. Each simulated user replays the script concurrently and the throughput and latency
+ * percentiles of both the script steps and the individual RPCs are reported.
+ *
+ * <p>Usage: {@code loadtest [--users=N] [--iterations=N] [--json=file] [fake options] script}
+ * <p>The script contains one step per line, {@code #} starts a comment:
+ * <pre>
+ *   tree                      load the command tree
+ *   expand DEPTH [CHILDREN]   expand the tree, loading at most CHILDREN children per node
+ *   select COMMAND            select a command: load it, its constants, tree node and memory
+ *   select-random COUNT       select COUNT random commands
+ *   memory ADDRESS SIZE       load the given memory range using the memory model
+ *   image COUNT               load the info and data of COUNT images
+ *   query COUNT               run COUNT Perfetto queries
+ *   sleep MS                  simulate user think time
+ *   repeat N ... end          repeat the enclosed steps N times
+ * </pre>
+ */
+public class LoadTest {
+  private static final Logger LOG = Logger.getLogger(LoadTest.class.getName());
+  private static final Path.Capture CAPTURE = Path.Capture.newBuilder()
+      .setID(Path.ID.newBuilder().setData(ByteString.copyFromUtf8("fake-capture")))
+      .build();
+  private static final Path.Device DEVICE = Path.Device.getDefaultInstance();
+
+  private final FakeGapis.Config config;
+  private final List<Step> script;
+  private final int users;
+  private final int iterations;
+  private final Map<String, RpcStats.Histogram> stepTimes = Maps.newConcurrentMap();
+  private final AtomicLong steps = new AtomicLong();
+  private final AtomicLong failedSteps = new AtomicLong();
+
+  private LoadTest(FakeGapis.Config config, List<Step> script, int users, int iterations) {
+    this.config = config;
+    this.script = script;
+    this.users = users;
+    this.iterations = iterations;
+  }
+
+  public static void main(String[] args) throws Exception {
+    FakeGapis.Config config = new FakeGapis.Config();
+    int users = 4, iterations = 1;
+    String json = null, scriptFile = null;
+    for (String arg : args) {
+      if (arg.startsWith("--users=")) {
+        users = Integer.parseInt(arg.substring("--users=".length()));
+      } else if (arg.startsWith("--iterations=")) {
+        iterations = Integer.parseInt(arg.substring("--iterations=".length()));
+      } else if (arg.startsWith("--json=")) {
+        json = arg.substring("--json=".length());
+      } else if (config.parse(arg)) {
+        // Handled by the config.
+      } else if (!arg.startsWith("--") && scriptFile == null) {
+        scriptFile = arg;
+      } else {
+        System.err.println("Unknown argument: " + arg);
+        System.exit(1);
+      }
+    }
+    if (scriptFile == null) {
+      System.err.println(
+          "Usage: loadtest [--users=N] [--iterations=N] [--json=file] [fake options] script");
+      System.exit(1);
+    }
+
+    List<Step> script = parse(Files.readAllLines(new File(scriptFile).toPath(), UTF_8));
+    LoadTest test = new LoadTest(config, script, users, iterations);
+    RpcStats stats = test.run();
+    if (json != null) {
+      try (Writer out = new OutputStreamWriter(new FileOutputStream(json), UTF_8)) {
+        out.write(stats.toJson());
+      }
+    }
+    System.exit(0);
+  }
+
+  /**
+   * Runs the load test, printing a report to stdout.
+   * @return the RPC statistics collected by the client.
+   */
+  public RpcStats run() throws IOException, InterruptedException {
+    String name = "gapis-loadtest-" + System.nanoTime();
+    FakeGapis fake = new FakeGapis(config);
+    Server server = InProcessServerBuilder.forName(name).addService(fake).build().start();
+    ManagedChannel channel = InProcessChannelBuilder.forName(name).build();
+    Client client = new Client(
+        new GapidClientCache(GapidGrpc.newFutureStub(channel), GapidGrpc.newStub(channel)));
+
+    ExecutorService executor = Executors.newFixedThreadPool(users);
+    List<Future<?>> results = Lists.newArrayList();
+    long start = System.nanoTime();
+    for (int i = 0; i < users; i++) {
+      Session session = new Session(client, config.commands, new Random(i));
+      results.add(executor.submit(() -> {
+        for (int it = 0; it < iterations; it++) {
+          run(session, script);
+        }
+        return null;
+      }));
+    }
+    for (Future<?> result : results) {
+      try {
+        result.get();
+      } catch (ExecutionException e) {
+        LOG.log(WARNING, "User aborted", e.getCause());
+      }
+    }
+    long elapsed = System.nanoTime() - start;
+
+    executor.shutdown();
+    channel.shutdownNow();
+    server.shutdownNow();
+    fake.shutdown();
+
+    report(client.getStats(), elapsed);
+    return client.getStats();
+  }
+
+  private void run(Session session, List<Step> steps) throws InterruptedException {
+    for (Step step : steps) {
+      if (step instanceof Repeat) {
+        for (int i = 0; i < ((Repeat)step).count; i++) {
+          run(session, ((Repeat)step).body);
+        }
+        continue;
+      }
+
+      long start = System.nanoTime();
+      boolean failed = false;
+      try {
+        step.run(session);
+      } catch (ExecutionException e) {
+        failed = true;
+      }
+      this.steps.incrementAndGet();
+      if (failed) {
+        failedSteps.incrementAndGet();
+      }
+      if (!(step instanceof Sleep)) {
+        stepTimes.computeIfAbsent(step.name(), k -> new RpcStats.Histogram())
+            .record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+      }
+    }
+  }
+
+  private void report(RpcStats stats, long elapsedNs) {
+    double seconds = elapsedNs / 1e9;
+    long calls = 0;
+    for (RpcStats.Method method : stats.getMethods()) {
+      calls += method.calls.get();
+    }
+
+    System.out.println("Config: " + config);
+    System.out.println(String.format("Users: %d, iterations: %d, elapsed: %.2fs", users,
+        iterations, seconds));
+    System.out.println(String.format("Steps: %d (%d failed), %.1f steps/s, %d RPCs, %.1f RPCs/s",
+        steps.get(), failedSteps.get(), steps.get() / seconds, calls, calls / seconds));
+    System.out.println();
+
+    System.out.println(String.format("%-24s %8s %10s %10s %10s %10s", "Step", "Count",
+        "p50 ms", "p90 ms", "p99 ms", "max ms"));
+    List<String> names = Lists.newArrayList(stepTimes.keySet());
+    Collections.sort(names);
+    for (String name : names) {
+      RpcStats.Histogram h = stepTimes.get(name);
+      System.out.println(String.format("%-24s %8d %10.1f %10.1f %10.1f %10.1f", name,
+          h.getCount(), h.getPercentile(50) / 1000.0, h.getPercentile(90) / 1000.0,
+          h.getPercentile(99) / 1000.0, h.getMax() / 1000.0));
+    }
+    System.out.println();
+
+    System.out.println(String.format("%-40s %8s %6s %10s %10s %10s %12s", "RPC", "Calls", "Err%",
+        "p50 ms", "p90 ms", "p99 ms", "Bytes p50"));
+    for (RpcStats.Method method : stats.getMethods()) {
+      report(method.name, method);
+      for (RpcStats.Method type : method.getPathTypes()) {
+        report("  " + type.name, type);
+      }
+    }
+  }
+
+  private static void report(String label, RpcStats.Method method) {
+    // Report the wire latency, excluding the time spent queued and processing on the client.
+    RpcStats.Histogram wire = method.wireTime;
+    System.out.println(String.format("%-40s %8d %6.2f %10.1f %10.1f %10.1f %12d", label,
+        method.calls.get(), 100 * method.getErrorRate(), wire.getPercentile(50) / 1000.0,
+        wire.getPercentile(90) / 1000.0, wire.getPercentile(99) / 1000.0,
+        method.responseSize.getPercentile(50)));
+  }
+
+  /**
+   * Parses the given script lines into a list of steps.
+   */
+  private static List<Step> parse(List<String> lines) {
+    Iterator<String> it = lines.iterator();
+    List<Step> result = parse(it, 0);
+    if (it.hasNext()) {
+      throw new IllegalArgumentException("Unexpected 'end' in script");
+    }
+    return result;
+  }
+
+  private static List<Step> parse(Iterator<String> lines, int depth) {
+    List<Step> steps = Lists.newArrayList();
+    while (lines.hasNext()) {
+      String line = lines.next();
+      int comment = line.indexOf('#');
+      if (comment >= 0) {
+        line = line.substring(0, comment);
+      }
+      String[] words = line.trim().split("\\s+");
+      switch (words[0]) {
+        case "":
+          break;
+        case "tree":
+          steps.add(new LoadTree());
+          break;
+        case "expand":
+          steps.add(new Expand(intArg(words, 1, 1), intArg(words, 2, Integer.MAX_VALUE)));
+          break;
+        case "select":
+          steps.add(new Select(longArg(words, 1, -1)));
+          break;
+        case "select-random":
+          steps.add(new Repeat(intArg(words, 1, 1), Collections.singletonList(new Select(-1))));
+          break;
+        case "memory":
+          steps.add(new LoadMemory(longArg(words, 1, 0), intArg(words, 2, 0x10000)));
+          break;
+        case "image":
+          steps.add(new LoadImages(intArg(words, 1, 1)));
+          break;
+        case "query":
+          steps.add(new Query(intArg(words, 1, 1)));
+          break;
+        case "sleep":
+          steps.add(new Sleep(intArg(words, 1, 0)));
+          break;
+        case "repeat":
+          steps.add(new Repeat(intArg(words, 1, 1), parse(lines, depth + 1)));
+          break;
+        case "end":
+          if (depth == 0) {
+            throw new IllegalArgumentException("Unexpected 'end' in script");
+          }
+          return steps;
+        default:
+          throw new IllegalArgumentException("Unknown script step: " + words[0]);
+      }
+    }
+    if (depth != 0) {
+      throw new IllegalArgumentException("Missing 'end' in script");
+    }
+    return steps;
+  }
+
+  private static int intArg(String[] words, int idx, int dflt) {
+    return (int)longArg(words, idx, dflt);
+  }
+
+  private static long longArg(String[] words, int idx, long dflt) {
+    return (words.length <= idx) ? dflt : Long.decode(words[idx]);
+  }
+
+  /**
+   * The state of a single simulated user.
+   */
+  private static class Session {
+    public final Client client;
+    public final long commands;
+    public final Random random;
+    public final MemoryPageCache pages;
+    public Path.CommandTreeNode root;
+    private Memory.Data memory;
+
+    public Session(Client client, long commands, Random random) {
+      this.client = client;
+      this.commands = commands;
+      this.random = random;
+      this.pages = new MemoryPageCache(client);
+    }
+
+    public Path.CommandTreeNode getRoot() throws ExecutionException, InterruptedException {
+      if (root == null) {
+        root = client.get(Path.Any.newBuilder()
+            .setCommandTree(Path.CommandTree.newBuilder().setCapture(CAPTURE))
+            .build(), DEVICE).get().getCommandTree().getRoot();
+      }
+      return root;
+    }
+
+    public Memory.Data getMemory() {
+      if (memory == null) {
+        Memory.Source src = new Memory.Source(
+            CommandIndex.forCommand(Paths.command(CAPTURE, 0)), 0);
+        memory = new Memory.Data(DEVICE, pages, src, new Memory.Observation[0],
+            new Memory.StructObservation[0]);
+      }
+      return memory;
+    }
+  }
+
+  /**
+   * A single step of a load test script.
+   */
+  private static interface Step {
+    public String name();
+    public void run(Session session) throws ExecutionException, InterruptedException;
+  }
+
+  private static class LoadTree implements Step {
+    public LoadTree() {
+    }
+
+    @Override
+    public String name() {
+      return "tree";
+    }
+
+    @Override
+    public void run(Session session) throws ExecutionException, InterruptedException {
+      session.root = null;
+      session.getRoot();
+    }
+  }
+
+  /**
+   * Expands the command tree breadth first, like a user expanding every visible node, loading
+   * each node and the command used to label it.
+   */
+  private static class Expand implements Step {
+    private final int depth;
+    private final int maxChildren;
+
+    public Expand(int depth, int maxChildren) {
+      this.depth = depth;
+      this.maxChildren = maxChildren;
+    }
+
+    @Override
+    public String name() {
+      return "expand";
+    }
+
+    @Override
+    public void run(Session session) throws ExecutionException, InterruptedException {
+      List<Path.CommandTreeNode> level = Collections.singletonList(session.getRoot());
+      for (int d = 0; d <= depth && !level.isEmpty(); d++) {
+        List<ListenableFuture<Service.CommandTreeNode>> nodes = Lists.newArrayList();
+        for (Path.CommandTreeNode path : level) {
+          nodes.add(MoreFutures.transformAsync(
+              session.client.get(commandTree(path), DEVICE), value -> {
+                Service.CommandTreeNode node = value.getCommandTreeNode();
+                return MoreFutures.transform(
+                    session.client.get(Paths.command(node.getRepresentation()), DEVICE),
+                    ignored -> node);
+              }));
+        }
+        List<Service.CommandTreeNode> loaded = Futures.allAsList(nodes).get();
+
+        List<Path.CommandTreeNode> next = Lists.newArrayList();
+        for (int i = 0; i < loaded.size(); i++) {
+          long children = Math.min(loaded.get(i).getNumChildren(), maxChildren);
+          for (long c = 0; c < children; c++) {
+            next.add(level.get(i).toBuilder().addIndices(c).build());
+          }
+        }
+        level = next;
+      }
+    }
+  }
+
+  /**
+   * Selects a command, loading everything the command, memory and tree views request.
+   */
+  private static class Select implements Step {
+    private final long command;
+
+    public Select(long command) {
+      this.command = command;
+    }
+
+    @Override
+    public String name() {
+      return (command < 0) ? "select-random" : "select";
+    }
+
+    @Override
+    public void run(Session session) throws ExecutionException, InterruptedException {
+      long index = (command < 0) ? (long)(session.random.nextDouble() * session.commands)
+          : command;
+      Path.Command path = Paths.command(CAPTURE, index);
+      Client client = session.client;
+
+      ListenableFuture<List<Service.ConstantSet>> constants = MoreFutures.transformAsync(
+          client.get(Paths.command(path), DEVICE), value -> {
+            List<ListenableFuture<Service.ConstantSet>> sets = Lists.newArrayList();
+            for (API.Parameter param : value.getCommand().getParametersList()) {
+              if (param.hasConstants()) {
+                sets.add(MoreFutures.transform(
+                    client.get(constantSet(param.getConstants()), DEVICE),
+                    Service.Value::getConstantSet));
+              }
+            }
+            return Futures.allAsList(sets);
+          });
+      ListenableFuture<Service.Value> node = client.get(
+          Paths.commandTree(session.getRoot().getTree(), path), DEVICE);
+      ListenableFuture<Service.Value> observations = client.get(
+          observationsAfter(CommandIndex.forCommand(path), 0), DEVICE);
+      Futures.allAsList(constants, node, observations).get();
+    }
+  }
+
+  /**
+   * Loads a memory range through the {@link Memory.Data} model, which splits it into pages.
+   */
+  private static class LoadMemory implements Step {
+    private final long address;
+    private final int size;
+
+    public LoadMemory(long address, int size) {
+      this.address = address;
+      this.size = size;
+    }
+
+    @Override
+    public String name() {
+      return "memory";
+    }
+
+    @Override
+    public void run(Session session) throws ExecutionException, InterruptedException {
+      session.getMemory().load(address, size).get();
+    }
+  }
+
+  private static class LoadImages implements Step {
+    private final int count;
+
+    public LoadImages(int count) {
+      this.count = count;
+    }
+
+    @Override
+    public String name() {
+      return "image";
+    }
+
+    @Override
+    public void run(Session session) throws ExecutionException, InterruptedException {
+      List<ListenableFuture<Service.Value>> images = Lists.newArrayList();
+      for (int i = 0; i < count; i++) {
+        Path.ImageInfo path = Path.ImageInfo.newBuilder()
+            .setID(Image.ID.newBuilder().setData(ByteString.copyFromUtf8("image-" + i)))
+            .build();
+        images.add(MoreFutures.transformAsync(session.client.get(imageInfo(path), DEVICE),
+            info -> session.client.get(blob(info.getImageInfo().getBytes()), DEVICE)));
+      }
+      Futures.allAsList(images).get();
+    }
+  }
+
+  private static class Query implements Step {
+    private final int count;
+
+    public Query(int count) {
+      this.count = count;
+    }
+
+    @Override
+    public String name() {
+      return "query";
+    }
+
+    @Override
+    public void run(Session session) throws ExecutionException, InterruptedException {
+      List<ListenableFuture<?>> queries = Lists.newArrayList();
+      for (int i = 0; i < count; i++) {
+        queries.add(session.client.perfettoQuery(CAPTURE,
+            "select * from slice where id > " + session.random.nextInt(1000)));
+      }
+      Futures.allAsList(queries).get();
+    }
+  }
+
+  private static class Sleep implements Step {
+    private final int ms;
+
+    public Sleep(int ms) {
+      this.ms = ms;
+    }
+
+    @Override
+    public String name() {
+      return "sleep";
+    }
+
+    @Override
+    public void run(Session session) throws InterruptedException {
+      Thread.sleep(ms);
+    }
+  }
+
+  private static class Repeat implements Step {
+    public final int count;
+    public final List<Step> body;
+
+    public Repeat(int count, List<Step> body) {
+      this.count = count;
+      this.body = body;
+    }
+
+    @Override
+    public String name() {
+      return "repeat";
+    }
+
+    // The driver expands repeats itself to time the steps of the body individually.
+    @Override
+    public void run(Session session) throws ExecutionException, InterruptedException {
+      for (int i = 0; i < count; i++) {
+        for (Step step : body) {
+          step.run(session);
+        }
+      }
+    }
+  }
+}
@@ -23,7 +23,11 @@ import static com.google.gapid.widgets.Widgets.scheduleIfNotDisposed;
 import com.google.common.base.Throwables;
 import com.google.gapid.Server.GapisInitException;
 import com.google.gapid.models.Analytics;
+import com.google.gapid.models.ApiState;
+import com.google.gapid.models.Capture;
+import com.google.gapid.models.CommandStream;
 import com.google.gapid.models.Follower;
+import com.google.gapid.models.MemoryPageCache;
 import com.google.gapid.models.Models;
 import com.google.gapid.models.Settings;
 import com.google.gapid.perfetto.PerfettoConfig;
@@ -208,6 +212,10 @@ public class Main {
     Logging.gapirLogLevel,
     Logging.logDir,
     Follower.logFollowRequests,
+    CommandStream.indexCommands,
+    ApiState.incrementalState,
+    MemoryPageCache.memoryCacheSize,
+    Capture.importCaptures,
     Server.useCache,
     PerfettoConfig.perfettoConfig,
     PanelCanvas.showRedraws,
@@ -18,6 +18,7 @@ package com.google.gapid;
 import static com.google.gapid.views.AboutDialog.showAbout;
 import static com.google.gapid.views.AboutDialog.showHelp;
 import static com.google.gapid.views.AboutDialog.showLogDir;
+import static com.google.gapid.views.DiagnosticsDialog.showDiagnosticsDialog;
 import static com.google.gapid.views.GotoCommand.showGotoCommandDialog;
 import static com.google.gapid.views.GotoMemory.showGotoMemoryDialog;
 import static com.google.gapid.views.Licenses.showLicensesDialog;
@@ -130,6 +131,12 @@ public class MainWindow extends ApplicationWindow {
           mainUi.stopLoading();
         }
       }
+
+      @Override
+      public void onCaptureTransferProgress(String what, long done, long total) {
+        statusBar.setServerStatusPrefix(
+            what.isEmpty() ? "" : String.format("%s: %d%%", what, 100 * done / Math.max(1, total)));
+      }
     });
 
     if (OS.isMac) {
@@ -255,7 +262,7 @@ public class MainWindow extends ApplicationWindow {
     manager.add(createEditMenu(models, widgets));
     manager.add(createGotoMenu(models));
     manager.add(createViewMenu());
-    manager.add(createHelpMenu(models, widgets));
+    manager.add(createHelpMenu(client, models, widgets));
     manager.updateAll(true);
   }
 
@@ -369,12 +376,14 @@ public class MainWindow extends ApplicationWindow {
     return manager;
   }
 
-  private MenuManager createHelpMenu(Models models, Widgets widgets) {
+  private MenuManager createHelpMenu(Client client, Models models, Widgets widgets) {
     MenuManager manager = new MenuManager("&Help");
     manager.add(MenuItems.HelpOnlineHelp.create(() -> showHelp(models.analytics)));
     manager.add(MenuItems.HelpAbout.create(
         () -> showAbout(getShell(), models.analytics, widgets)));
     manager.add(MenuItems.HelpShowLogs.create(() -> showLogDir(models.analytics)));
+    manager.add(MenuItems.HelpDiagnostics.create(
+        () -> showDiagnosticsDialog(getShell(), models.analytics, client, widgets.theme)));
     manager.add(MenuItems.HelpLicenses.create(
         () -> showLicensesDialog(getShell(), models.analytics, widgets.theme)));
     manager.add(MenuItems.HelpFileBug.create(
@@ -442,6 +451,7 @@ public class MainWindow extends ApplicationWindow {
     HelpOnlineHelp("&Online Help\tF1", SWT.F1),
     HelpAbout("&About"),
     HelpShowLogs("Open &Log Directory"),
+    HelpDiagnostics("RPC &Diagnostics"),
     HelpLicenses("&Licenses"),
     HelpFileBug("File a &Bug");
 
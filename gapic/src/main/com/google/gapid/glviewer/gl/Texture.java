@@ -15,7 +15,11 @@
  */
 package com.google.gapid.glviewer.gl;
 
+import static com.google.gapid.util.Buffers.flip;
+import static com.google.gapid.util.Buffers.nativeBuffer;
+
 import org.eclipse.swt.graphics.Color;
+import org.lwjgl.BufferUtils;
 import org.lwjgl.opengl.GL11;
 import org.lwjgl.opengl.GL13;
 import org.lwjgl.opengl.GL33;
@@ -26,6 +30,9 @@ import java.nio.ByteBuffer;
  * An OpenGL texture.
  */
 public class Texture extends GlObject {
+  // The maximum number of bytes copied to native memory at once when uploading large images.
+  private static final int UPLOAD_BAND_SIZE = 16 << 20;
+
   private final int target;
   private final int handle;
 
@@ -75,6 +82,30 @@ public class Texture extends GlObject {
     return this;
   }
 
+  /**
+   * Loads the tightly packed rows of pixels starting at the given offset of the given array. Large
+   * images are uploaded in bands of rows, so only a band at a time is copied to native memory.
+   */
+  public Texture loadData(int width, int height, int internalFormat, int format, int type,
+      byte[] data, int offset, int bytesPerPixel) {
+    int rowSize = width * bytesPerPixel;
+    if ((long)rowSize * height <= UPLOAD_BAND_SIZE) {
+      return loadData(width, height, internalFormat, format, type,
+          nativeBuffer(data, offset, rowSize * height));
+    }
+
+    loadData(width, height, internalFormat, format, type, null);
+    int rows = Math.max(1, UPLOAD_BAND_SIZE / rowSize);
+    ByteBuffer band = BufferUtils.createByteBuffer(rows * rowSize);
+    for (int y = 0; y < height; y += rows) {
+      int count = Math.min(rows, height - y);
+      band.clear();
+      flip(band.put(data, offset + y * rowSize, count * rowSize));
+      GL11.glTexSubImage2D(target, 0, 0, y, width, count, format, type, band);
+    }
+    return this;
+  }
+
   static void activate(int unit) {
     GL13.glActiveTexture(GL13.GL_TEXTURE0 + unit);
   }
@@ -15,7 +15,6 @@
  */
 package com.google.gapid.image;
 
-import static com.google.gapid.util.Buffers.nativeBuffer;
 import static com.google.gapid.util.Caches.getUnchecked;
 import static com.google.gapid.util.Caches.softCache;
 import static com.google.gapid.util.Colors.DARK_LUMINANCE8_THRESHOLD;
@@ -40,22 +39,26 @@ import java.util.Arrays;
 import java.util.Set;
 
 /**
- * An {@link Image} backed by a byte array.
+ * An {@link Image} backed by a byte array. The image's pixels start at an offset into the array,
+ * so that an image can be a read-only view of a slice of another image's array.
  */
 public abstract class ArrayImage implements com.google.gapid.image.Image {
   protected static final Cache<Image.Key, PixelInfo> PIXEL_INFO_CACHE = softCache();
 
   public final int width, height, depth, bytesPerPixel;
   protected final byte[] data;
+  // The index of the first byte of this image's pixels in the data array.
+  protected final int offset;
   private final int internalFormat, format, type;
 
-  public ArrayImage(int width, int height, int depth, int bytesPerPixel, byte[] data,
+  public ArrayImage(int width, int height, int depth, int bytesPerPixel, byte[] data, int offset,
       int internalFormat, int format, int type) {
     this.width = width;
     this.height = height;
     this.depth = depth;
     this.bytesPerPixel = bytesPerPixel;
     this.data = data;
+    this.offset = offset;
     this.internalFormat = internalFormat;
     this.format = format;
     this.type = type;
@@ -76,22 +79,41 @@ public abstract class ArrayImage implements com.google.gapid.image.Image {
     return depth;
   }
 
+  /**
+   * Returns a view of the given slice of this image, sharing this image's data.
+   */
   @Override
   public Image getSlice(int z) {
-    int sliceSize = width * height * bytesPerPixel;
-    byte[] sliceData = Arrays.copyOfRange(data, sliceSize * z, sliceSize * (z + 1));
-    return create(width, height, 1, sliceData);
+    if (z < 0 || z >= depth) {
+      throw new IndexOutOfBoundsException("Slice " + z + " of an image of depth " + depth);
+    }
+    return create(width, height, 1, data, offset + getSliceSize() * z);
   }
 
   /**
    * Constructs and returns a new {@link Image} of the same format with the given
-   * dimensions and data.
+   * dimensions and data, starting at the given offset.
+   */
+  protected abstract Image create(int w, int h, int d, byte[] pixels, int pixelsOffset);
+
+  /**
+   * @return the number of bytes of each slice of this image.
    */
-  protected abstract Image create(int w, int h, int d, byte[] pixels);
+  protected int getSliceSize() {
+    return width * height * bytesPerPixel;
+  }
+
+  /**
+   * @return the number of bytes of this image.
+   */
+  protected int getSize() {
+    return getSliceSize() * depth;
+  }
 
   @Override
   public void uploadToTexture(Texture texture) {
-    texture.loadData(width, height, internalFormat, format, type, nativeBuffer(data));
+    texture.loadData(
+        width, height, internalFormat, format, type, data, offset, bytesPerPixel);
   }
 
   @Override
@@ -103,6 +125,23 @@ public abstract class ArrayImage implements com.google.gapid.image.Image {
 
   protected abstract void convert2D(byte[] src, byte[] dst, byte[] alpha, int stride);
 
+  /**
+   * Converts single byte per pixel data into opaque grey RGB data.
+   */
+  protected void convertLuminance2D(byte[] src, byte[] dst, byte[] alpha, int stride) {
+    Arrays.fill(alpha, (byte)-1);
+    Bands.forEach(height, Bands.rowsPerBand(width), (start, end) -> {
+      for (int row = start; row < end; row++) {
+        int s = offset + (height - 1 - row) * width, d = row * stride;
+        for (int col = 0; col < width; col++, s++, d += 3) {
+          dst[d + 0] = src[s];
+          dst[d + 1] = src[s];
+          dst[d + 2] = src[s];
+        }
+      }
+    });
+  }
+
   @Override
   public PixelValue getPixel(int x, int y, int z) {
     if (x < 0 || y < 0 || z < 0 || x >= width || y >= height || z > depth) {
@@ -113,8 +152,27 @@ public abstract class ArrayImage implements com.google.gapid.image.Image {
 
   protected abstract PixelValue getPixel(int x, int y);
 
-  protected static ByteBuffer buffer(byte[] data) {
-    return ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+  /**
+   * Bins the given counts of the 256 possible 8bit values of each of the given channels. The
+   * counts of the first channel come first.
+   */
+  protected static void binByteCounts(Binner binner, int[] counts, Stream.Channel... channels) {
+    for (int c = 0, i = 0; c < channels.length; c++) {
+      int channelIdx = Histogram.getChannelIdx(channels[c]);
+      for (int value = 0; value < 256; value++, i++) {
+        if (counts[i] != 0) {
+          binner.bin(value / 255f, channelIdx, counts[i]);
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns a little endian buffer of the given range of the given data, indexed from the start
+   * of the range.
+   */
+  protected static ByteBuffer buffer(byte[] data, int offset, int length) {
+    return ByteBuffer.wrap(data, offset, length).slice().order(ByteOrder.LITTLE_ENDIAN);
   }
 
   /**
@@ -177,36 +235,40 @@ public abstract class ArrayImage implements com.google.gapid.image.Image {
     private final PixelInfo info;
 
     public RGBA8Image(Image.Key key, int width, int height, int depth, byte[] data) {
-      this(width, height, depth, data,
+      this(width, height, depth, data, 0,
           getUnchecked(PIXEL_INFO_CACHE, key, () -> IntPixelInfo.compute(data, true)));
     }
 
-    private RGBA8Image(int width, int height, int depth, byte[] data, PixelInfo info) {
-      super(width, height, depth, 4, data, GL11.GL_RGBA8, GL11.GL_RGBA, GL11.GL_UNSIGNED_BYTE);
+    private RGBA8Image(
+        int width, int height, int depth, byte[] data, int offset, PixelInfo info) {
+      super(width, height, depth, 4, data, offset,
+          GL11.GL_RGBA8, GL11.GL_RGBA, GL11.GL_UNSIGNED_BYTE);
       this.info = info;
     }
 
     @Override
-    protected Image create(int w, int h, int d, byte[] pixels) {
-      return new RGBA8Image(w, h, d, pixels, info);
+    protected Image create(int w, int h, int d, byte[] pixels, int pixelsOffset) {
+      return new RGBA8Image(w, h, d, pixels, pixelsOffset, info);
     }
 
     @Override
     protected void convert2D(byte[] src, byte[] dst, byte[] alpha, int stride) {
-      for (int row = 0, di = 0, si = 4 * (height - 1) * width, ai = 0; row < height;
-          row++, si -= 4 * width, di += stride) {
-        for (int col = 0, s = si, d = di; col < width; col++, s += 4, d += 3, ai++) {
-          dst[d + 0] = src[s + 0];
-          dst[d + 1] = src[s + 1];
-          dst[d + 2] = src[s + 2];
-          alpha[ai] = src[s + 3];
+      Bands.forEach(height, Bands.rowsPerBand(width), (start, end) -> {
+        for (int row = start; row < end; row++) {
+          int s = offset + 4 * (height - 1 - row) * width, d = row * stride, a = row * width;
+          for (int col = 0; col < width; col++, s += 4, d += 3, a++) {
+            dst[d + 0] = src[s + 0];
+            dst[d + 1] = src[s + 1];
+            dst[d + 2] = src[s + 2];
+            alpha[a] = src[s + 3];
+          }
         }
-      }
+      });
     }
 
     @Override
     protected PixelValue getPixel(int x, int y) {
-      int i = 4 * (y * width + x);
+      int i = offset + 4 * (y * width + x);
       return new Pixel(
           ((data[i + 3] & 0xFF) << 24) |
           ((data[i + 0] & 0xFF) << 16) |
@@ -225,13 +287,16 @@ public abstract class ArrayImage implements com.google.gapid.image.Image {
     }
 
     @Override
-    public void bin(Binner binner) {
-      for (int i = 0, end = data.length - 3; i < end; ) {
-        binner.bin(UnsignedBytes.toInt(data[i++]) / 255f, Stream.Channel.Red);
-        binner.bin(UnsignedBytes.toInt(data[i++]) / 255f, Stream.Channel.Green);
-        binner.bin(UnsignedBytes.toInt(data[i++]) / 255f, Stream.Channel.Blue);
-        i++; // skip alpha
+    public void bin(Binner binner, int start, int end, int step) {
+      // Count the values first, so each distinct value is only binned once per channel.
+      int[] counts = new int[3 * 256];
+      for (int p = start, i = offset + 4 * start; p < end; p += step, i += 4 * step) {
+        counts[UnsignedBytes.toInt(data[i + 0])]++;
+        counts[256 + UnsignedBytes.toInt(data[i + 1])]++;
+        counts[512 + UnsignedBytes.toInt(data[i + 2])]++;
+        // skip alpha
       }
+      binByteCounts(binner, counts, Stream.Channel.Red, Stream.Channel.Green, Stream.Channel.Blue);
     }
 
     @Override
@@ -266,33 +331,42 @@ public abstract class ArrayImage implements com.google.gapid.image.Image {
     private final PixelInfo info;
 
     public RGBAFloatImage(Image.Key key, int width, int height, int depth, byte[] data) {
-      super(width, height, depth, 16, data, GL30.GL_RGBA32F, GL11.GL_RGBA, GL11.GL_FLOAT);
-      this.buffer = buffer(data).asFloatBuffer();
+      super(width, height, depth, 16, data, 0, GL30.GL_RGBA32F, GL11.GL_RGBA, GL11.GL_FLOAT);
+      this.buffer = buffer(data, 0, getSize()).asFloatBuffer();
       this.info = getUnchecked(PIXEL_INFO_CACHE, key, () -> FloatPixelInfo.compute(buffer, true));
     }
 
-    private RGBAFloatImage(int width, int height, int depth, byte[] data, PixelInfo info) {
-      super(width, height, depth, 16, data, GL30.GL_RGBA32F, GL11.GL_RGBA, GL11.GL_FLOAT);
-      this.buffer = buffer(data).asFloatBuffer();
+    private RGBAFloatImage(
+        int width, int height, int depth, byte[] data, int offset, PixelInfo info) {
+      super(width, height, depth, 16, data, offset,
+          GL30.GL_RGBA32F, GL11.GL_RGBA, GL11.GL_FLOAT);
+      this.buffer = buffer(data, offset, getSize()).asFloatBuffer();
       this.info = info;
     }
 
     @Override
-    protected Image create(int w, int h, int d, byte[] pixels) {
-      return new RGBAFloatImage(w, h, d, pixels, info);
+    protected Image create(int w, int h, int d, byte[] pixels, int pixelsOffset) {
+      return new RGBAFloatImage(w, h, d, pixels, pixelsOffset, info);
     }
 
     @Override
     protected void convert2D(byte[] src, byte[] dst, byte[] alpha, int stride) {
-      for (int row = 0, di = 0, si = 4 * (height - 1) * width, ai = 0; row < height;
-          row++, si -= 4 * width, di += stride) {
-        for (int col = 0, s = si, d = di; col < width; col++, s += 4, d += 3, ai++) {
-          dst[d + 0] = clamp(buffer.get(s + 0));
-          dst[d + 1] = clamp(buffer.get(s + 1));
-          dst[d + 2] = clamp(buffer.get(s + 2));
-          alpha[ai] = clamp(buffer.get(s + 3));
+      Bands.forEach(height, Bands.rowsPerBand(width), (start, end) -> {
+        // Bulk read each row, rather than reading the buffer one float at a time.
+        float[] values = new float[4 * width];
+        FloatBuffer view = buffer.duplicate();
+        for (int row = start; row < end; row++) {
+          view.position(4 * (height - 1 - row) * width);
+          view.get(values);
+          for (int col = 0, s = 0, d = row * stride, a = row * width; col < width;
+              col++, s += 4, d += 3, a++) {
+            dst[d + 0] = clamp(values[s + 0]);
+            dst[d + 1] = clamp(values[s + 1]);
+            dst[d + 2] = clamp(values[s + 2]);
+            alpha[a] = clamp(values[s + 3]);
+          }
         }
-      }
+      });
     }
 
     @Override
@@ -312,21 +386,24 @@ public abstract class ArrayImage implements com.google.gapid.image.Image {
     }
 
     @Override
-    public void bin(Histogram.Binner binner) {
-      for (int i = 0, end = buffer.remaining() - 3; i <= end; ) {
-        float value = buffer.get(i++);
+    public void bin(Histogram.Binner binner, int start, int end, int step) {
+      int red = Histogram.getChannelIdx(Stream.Channel.Red);
+      int green = Histogram.getChannelIdx(Stream.Channel.Green);
+      int blue = Histogram.getChannelIdx(Stream.Channel.Blue);
+      for (int p = start, i = 4 * start; p < end; p += step, i += 4 * step) {
+        float value = buffer.get(i + 0);
         if (!Float.isNaN(value) && !Float.isInfinite(value)) {
-          binner.bin(value, Stream.Channel.Red);
+          binner.bin(value, red);
         }
-        value = buffer.get(i++);
+        value = buffer.get(i + 1);
         if (!Float.isNaN(value) && !Float.isInfinite(value)) {
-          binner.bin(value, Stream.Channel.Green);
+          binner.bin(value, green);
         }
-        value = buffer.get(i++);
+        value = buffer.get(i + 2);
         if (!Float.isNaN(value) && !Float.isInfinite(value)) {
-          binner.bin(value, Stream.Channel.Blue);
+          binner.bin(value, blue);
         }
-        i++; // Skip alpha.
+        // Skip alpha.
       }
     }
 
@@ -365,18 +442,20 @@ public abstract class ArrayImage implements com.google.gapid.image.Image {
     private final PixelInfo info;
 
     public Luminance8Image(Image.Key key, int width, int height, int depth, byte[] data) {
-      this(width, height, depth, data,
+      this(width, height, depth, data, 0,
           getUnchecked(PIXEL_INFO_CACHE, key, () -> IntPixelInfo.compute(data, false)));
     }
 
-    private Luminance8Image(int width, int height, int depth, byte[] data, PixelInfo info) {
-      super(width, height, depth, 1, data, GL11.GL_RGB8, GL11.GL_RED, GL11.GL_UNSIGNED_BYTE);
+    private Luminance8Image(
+        int width, int height, int depth, byte[] data, int offset, PixelInfo info) {
+      super(width, height, depth, 1, data, offset,
+          GL11.GL_RGB8, GL11.GL_RED, GL11.GL_UNSIGNED_BYTE);
       this.info = info;
     }
 
     @Override
-    protected Image create(int w, int h, int d, byte[] pixels) {
-      return new Luminance8Image(w, h, d, pixels, info);
+    protected Image create(int w, int h, int d, byte[] pixels, int pixelsOffset) {
+      return new Luminance8Image(w, h, d, pixels, pixelsOffset, info);
     }
 
     @Override
@@ -396,28 +475,22 @@ public abstract class ArrayImage implements com.google.gapid.image.Image {
     }
 
     @Override
-    public void bin(Binner binner) {
-      for (int i = 0; i < data.length; i++) {
-        binner.bin(UnsignedBytes.toInt(data[i]) / 255.0f, Stream.Channel.Luminance);
+    public void bin(Binner binner, int start, int end, int step) {
+      int[] counts = new int[256];
+      for (int i = offset + start, last = offset + end; i < last; i += step) {
+        counts[UnsignedBytes.toInt(data[i])]++;
       }
+      binByteCounts(binner, counts, Stream.Channel.Luminance);
     }
 
     @Override
     protected void convert2D(byte[] src, byte[] dst, byte[] alpha, int stride) {
-      for (int row = 0, di = 0, si = (height - 1) * width, ai = 0; row < height;
-          row++, si -= width, di += stride) {
-        for (int col = 0, s = si, d = di; col < width; col++, s++, d += 3, ai++) {
-          dst[d + 0] = src[s];
-          dst[d + 1] = src[s];
-          dst[d + 2] = src[s];
-          alpha[ai] = -1;
-        }
-      }
+      convertLuminance2D(src, dst, alpha, stride);
     }
 
     @Override
     protected PixelValue getPixel(int x, int y) {
-      return new Pixel(data[y * width + x]);
+      return new Pixel(data[offset + y * width + x]);
     }
 
     @Override
@@ -453,20 +526,21 @@ public abstract class ArrayImage implements com.google.gapid.image.Image {
     private final PixelInfo info;
 
     public LuminanceFloatImage(Image.Key key, int width, int height, int depth, byte[] data) {
-      super(width, height, depth, 4, data, GL30.GL_RGB32F, GL11.GL_RED, GL11.GL_FLOAT);
-      this.buffer = buffer(data).asFloatBuffer();
+      super(width, height, depth, 4, data, 0, GL30.GL_RGB32F, GL11.GL_RED, GL11.GL_FLOAT);
+      this.buffer = buffer(data, 0, getSize()).asFloatBuffer();
       this.info = getUnchecked(PIXEL_INFO_CACHE, key, () -> FloatPixelInfo.compute(buffer, false));
     }
 
-    private LuminanceFloatImage(int width, int height, int depth, byte[] data, PixelInfo info) {
-      super(width, height, depth, 4, data, GL30.GL_RGB32F, GL11.GL_RED, GL11.GL_FLOAT);
-      this.buffer = buffer(data).asFloatBuffer();
+    private LuminanceFloatImage(
+        int width, int height, int depth, byte[] data, int offset, PixelInfo info) {
+      super(width, height, depth, 4, data, offset, GL30.GL_RGB32F, GL11.GL_RED, GL11.GL_FLOAT);
+      this.buffer = buffer(data, offset, getSize()).asFloatBuffer();
       this.info = info;
     }
 
     @Override
-    protected Image create(int w, int h, int d, byte[] pixels) {
-      return new LuminanceFloatImage(w, h, d, pixels, info);
+    protected Image create(int w, int h, int d, byte[] pixels, int pixelsOffset) {
+      return new LuminanceFloatImage(w, h, d, pixels, pixelsOffset, info);
     }
 
     @Override
@@ -486,27 +560,34 @@ public abstract class ArrayImage implements com.google.gapid.image.Image {
     }
 
     @Override
-    public void bin(Binner binner) {
-      for (int i = 0; i < buffer.remaining(); i++) {
+    public void bin(Binner binner, int start, int end, int step) {
+      int luminance = Histogram.getChannelIdx(Stream.Channel.Luminance);
+      for (int i = start; i < end; i += step) {
         float value = buffer.get(i);
         if (!Float.isNaN(value) && !Float.isInfinite(value)) {
-          binner.bin(value, Stream.Channel.Luminance);
+          binner.bin(value, luminance);
         }
       }
     }
 
     @Override
     protected void convert2D(byte[] src, byte[] dst, byte[] alpha, int stride) {
-      for (int row = 0, di = 0, si = (height - 1) * width, ai = 0; row < height;
-          row++, si -= width, di += stride) {
-        for (int col = 0, s = si, d = di; col < width; col++, s++, d += 3, ai++) {
-          byte value = clamp(buffer.get(s));
-          dst[d + 0] = value;
-          dst[d + 1] = value;
-          dst[d + 2] = value;
-          alpha[ai] = -1;
+      Arrays.fill(alpha, (byte)-1);
+      Bands.forEach(height, Bands.rowsPerBand(width), (start, end) -> {
+        // Bulk read each row, rather than reading the buffer one float at a time.
+        float[] values = new float[width];
+        FloatBuffer view = buffer.duplicate();
+        for (int row = start; row < end; row++) {
+          view.position((height - 1 - row) * width);
+          view.get(values);
+          for (int col = 0, d = row * stride; col < width; col++, d += 3) {
+            byte value = clamp(values[col]);
+            dst[d + 0] = value;
+            dst[d + 1] = value;
+            dst[d + 2] = value;
+          }
         }
-      }
+      });
     }
 
     @Override
@@ -545,18 +626,20 @@ public abstract class ArrayImage implements com.google.gapid.image.Image {
     private final PixelInfo info;
 
     public Count8Image(Image.Key key, int width, int height, int depth, byte[] data) {
-      this(width, height, depth, data,
+      this(width, height, depth, data, 0,
           getUnchecked(PIXEL_INFO_CACHE, key, () -> IntPixelInfo.compute(data, false)));
     }
 
-    private Count8Image(int width, int height, int depth, byte[] data, PixelInfo info) {
-      super(width, height, depth, 1, data, GL11.GL_RGB8, GL11.GL_RED, GL11.GL_UNSIGNED_BYTE);
+    private Count8Image(
+        int width, int height, int depth, byte[] data, int offset, PixelInfo info) {
+      super(width, height, depth, 1, data, offset,
+          GL11.GL_RGB8, GL11.GL_RED, GL11.GL_UNSIGNED_BYTE);
       this.info = info;
     }
 
     @Override
-    protected Image create(int w, int h, int d, byte[] pixels) {
-      return new Count8Image(w, h, d, pixels, getInfo());
+    protected Image create(int w, int h, int d, byte[] pixels, int pixelsOffset) {
+      return new Count8Image(w, h, d, pixels, pixelsOffset, getInfo());
     }
 
     @Override
@@ -575,28 +658,22 @@ public abstract class ArrayImage implements com.google.gapid.image.Image {
     }
 
     @Override
-    public void bin(Binner binner) {
-      for (int i = 0; i < data.length; i++) {
-        binner.bin(UnsignedBytes.toInt(data[i]) / 255.0f, Stream.Channel.Count);
+    public void bin(Binner binner, int start, int end, int step) {
+      int[] counts = new int[256];
+      for (int i = offset + start, last = offset + end; i < last; i += step) {
+        counts[UnsignedBytes.toInt(data[i])]++;
       }
+      binByteCounts(binner, counts, Stream.Channel.Count);
     }
 
     @Override
     protected void convert2D(byte[] src, byte[] dst, byte[] alpha, int stride) {
-      for (int row = 0, di = 0, si = (height - 1) * width, ai = 0; row < height;
-          row++, si -= width, di += stride) {
-        for (int col = 0, s = si, d = di; col < width; col++, s++, d += 3, ai++) {
-          dst[d + 0] = src[s];
-          dst[d + 1] = src[s];
-          dst[d + 2] = src[s];
-          alpha[ai] = -1;
-        }
-      }
+      convertLuminance2D(src, dst, alpha, stride);
     }
 
     @Override
     protected PixelValue getPixel(int x, int y) {
-      return new Pixel(data[y * width + x]);
+      return new Pixel(data[offset + y * width + x]);
     }
 
     @Override
@@ -624,6 +701,9 @@ public abstract class ArrayImage implements com.google.gapid.image.Image {
   }
 
   private static class FloatPixelInfo implements PixelInfo {
+    // The number of floats read from the buffer at a time.
+    private static final int READ_SIZE = 4096;
+
     private final double min, max, average;
     private final double alphaMin, alphaMax;
 
@@ -641,54 +721,50 @@ public abstract class ArrayImage implements com.google.gapid.image.Image {
         return PixelInfo.NULL_INFO;
       }
 
-      double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY, alphaMin, alphaMax;
-      double average = 0;
-      long count = 0;
+      FloatStats stats;
       if (isRGBA) {
-        alphaMin = Float.POSITIVE_INFINITY;
-        alphaMax = Float.NEGATIVE_INFINITY;
-        for (int i = 0, end = buffer.remaining() - 3; i <= end; ) {
-          float value = buffer.get(i++);
-          if (!Float.isNaN(value) && !Float.isInfinite(value)) {
-            min = Math.min(min, value);
-            max = Math.max(max, value);
-            average += value;
-            count++;
-          }
-          value = buffer.get(i++);
-          if (!Float.isNaN(value) && !Float.isInfinite(value)) {
-            min = Math.min(min, value);
-            max = Math.max(max, value);
-            average += value;
-            count++;
-          }
-          value = buffer.get(i++);
-          if (!Float.isNaN(value) && !Float.isInfinite(value)) {
-            min = Math.min(min, value);
-            max = Math.max(max, value);
-            average += value;
-            count++;
-          }
-          value = buffer.get(i++);
-          if (!Float.isNaN(value) && !Float.isInfinite(value)) {
-            alphaMin = Math.min(alphaMin, value);
-            alphaMax = Math.max(alphaMax, value);
-          }
-        }
+        stats = Bands.reduce(buffer.remaining() / 4, Bands.BAND_PIXELS,
+            (start, end) -> computeRGBA(buffer, start, end), FloatStats::merge);
       } else {
-        alphaMin = alphaMax = 1;
-        for (int i = 0; i < buffer.remaining(); i++) {
-          float value = buffer.get(i);
-          if (!Float.isNaN(value) && !Float.isInfinite(value)) {
-            min = Math.min(min, value);
-            max = Math.max(max, value);
-            average += value;
-            count++;
-          }
+        stats = Bands.reduce(buffer.remaining(), Bands.BAND_PIXELS,
+            (start, end) -> computeLuminance(buffer, start, end), FloatStats::merge);
+        stats.alphaMin = stats.alphaMax = 1;
+      }
+      return new FloatPixelInfo(stats.min, stats.max,
+          (stats.count == 0) ? 0.5 : (stats.sum / stats.count), stats.alphaMin, stats.alphaMax);
+    }
+
+    private static FloatStats computeRGBA(FloatBuffer buffer, int start, int end) {
+      FloatStats stats = new FloatStats();
+      float[] values = new float[READ_SIZE];
+      FloatBuffer view = buffer.duplicate();
+      view.position(4 * start);
+      for (int left = 4 * (end - start); left > 0; left -= values.length) {
+        int count = Math.min(left, values.length);
+        view.get(values, 0, count);
+        for (int i = 0; i < count; i += 4) {
+          stats.add(values[i + 0]);
+          stats.add(values[i + 1]);
+          stats.add(values[i + 2]);
+          stats.addAlpha(values[i + 3]);
         }
       }
-      return new FloatPixelInfo(
-          min, max, (count == 0) ? 0.5 : (average / count), alphaMin, alphaMax);
+      return stats;
+    }
+
+    private static FloatStats computeLuminance(FloatBuffer buffer, int start, int end) {
+      FloatStats stats = new FloatStats();
+      float[] values = new float[READ_SIZE];
+      FloatBuffer view = buffer.duplicate();
+      view.position(start);
+      for (int left = end - start; left > 0; left -= values.length) {
+        int count = Math.min(left, values.length);
+        view.get(values, 0, count);
+        for (int i = 0; i < count; i++) {
+          stats.add(values[i]);
+        }
+      }
+      return stats;
     }
 
     @Override
@@ -717,6 +793,45 @@ public abstract class ArrayImage implements com.google.gapid.image.Image {
     }
   }
 
+  /**
+   * The statistics of a band of float pixels. Infinite and NaN values are ignored.
+   */
+  private static class FloatStats {
+    public double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+    public double alphaMin = Float.POSITIVE_INFINITY, alphaMax = Float.NEGATIVE_INFINITY;
+    public double sum = 0;
+    public long count = 0;
+
+    public FloatStats() {
+    }
+
+    public void add(float value) {
+      if (Float.isFinite(value)) {
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+        sum += value;
+        count++;
+      }
+    }
+
+    public void addAlpha(float value) {
+      if (Float.isFinite(value)) {
+        alphaMin = Math.min(alphaMin, value);
+        alphaMax = Math.max(alphaMax, value);
+      }
+    }
+
+    public FloatStats merge(FloatStats other) {
+      min = Math.min(min, other.min);
+      max = Math.max(max, other.max);
+      alphaMin = Math.min(alphaMin, other.alphaMin);
+      alphaMax = Math.max(alphaMax, other.alphaMax);
+      sum += other.sum;
+      count += other.count;
+      return this;
+    }
+  }
+
   private static class IntPixelInfo implements PixelInfo {
     private final double min, max, average;
     private final double alphaMin, alphaMax;
@@ -734,43 +849,50 @@ public abstract class ArrayImage implements com.google.gapid.image.Image {
         return PixelInfo.NULL_INFO;
       }
 
-      int min = 255, max = 0, alphaMin, alphaMax;
-      double average = 0;
+      IntStats stats;
+      double average;
       if (isRGBA) {
-        alphaMin = 255; alphaMax = 0;
-        for (int i = 0, end = data.length - 3; i < end; ) {
-          int value = UnsignedBytes.toInt(data[i++]);
-          min = Math.min(min, value);
-          max = Math.max(max, value);
-          average += value;
-
-          value = UnsignedBytes.toInt(data[i++]);
-          min = Math.min(min, value);
-          max = Math.max(max, value);
-          average += value;
-
-          value = UnsignedBytes.toInt(data[i++]);
-          min = Math.min(min, value);
-          max = Math.max(max, value);
-          average += value;
-
-          value = UnsignedBytes.toInt(data[i++]);
-          alphaMin = Math.min(alphaMin, value);
-          alphaMax = Math.max(alphaMax, value);
-        }
-        average /= ((data.length / 4) * 3); // Truncate-divide first on purpose.
+        int pixels = data.length / 4;
+        stats = Bands.reduce(pixels, Bands.BAND_PIXELS,
+            (start, end) -> computeRGBA(data, start, end), IntStats::merge);
+        average = stats.sum / (double)(pixels * 3L);
       } else {
-        alphaMin = alphaMax = 255;
-        for (int i = 0; i < data.length; i++) {
-          int value = UnsignedBytes.toInt(data[i]);
-          min = Math.min(min, value);
-          max = Math.max(max, value);
-          average += value;
-        }
-        average /= data.length;
+        stats = Bands.reduce(data.length, Bands.BAND_PIXELS,
+            (start, end) -> computeLuminance(data, start, end), IntStats::merge);
+        average = stats.sum / (double)data.length;
+      }
+      return new IntPixelInfo(stats.min / 255.0, stats.max / 255.0, average / 255.0,
+          stats.alphaMin / 255.0, stats.alphaMax / 255.0);
+    }
+
+    // The loops below only use primitive locals, so the JIT can unroll and vectorize them.
+    private static IntStats computeRGBA(byte[] data, int start, int end) {
+      int min = 255, max = 0, alphaMin = 255, alphaMax = 0;
+      long sum = 0;
+      for (int i = 4 * start, last = 4 * end; i < last; i += 4) {
+        int r = UnsignedBytes.toInt(data[i + 0]);
+        int g = UnsignedBytes.toInt(data[i + 1]);
+        int b = UnsignedBytes.toInt(data[i + 2]);
+        int a = UnsignedBytes.toInt(data[i + 3]);
+        min = Math.min(min, Math.min(r, Math.min(g, b)));
+        max = Math.max(max, Math.max(r, Math.max(g, b)));
+        sum += r + g + b;
+        alphaMin = Math.min(alphaMin, a);
+        alphaMax = Math.max(alphaMax, a);
+      }
+      return new IntStats(min, max, sum, alphaMin, alphaMax);
+    }
+
+    private static IntStats computeLuminance(byte[] data, int start, int end) {
+      int min = 255, max = 0;
+      long sum = 0;
+      for (int i = start; i < end; i++) {
+        int value = UnsignedBytes.toInt(data[i]);
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+        sum += value;
       }
-      return new IntPixelInfo(
-          min / 255.0, max / 255.0, average / 255.0, alphaMin / 255.0, alphaMax / 255.0);
+      return new IntStats(min, max, sum, 255, 255);
     }
 
     @Override
@@ -798,4 +920,30 @@ public abstract class ArrayImage implements com.google.gapid.image.Image {
       return alphaMax;
     }
   }
+
+  /**
+   * The statistics of a band of 8bit pixels.
+   */
+  private static class IntStats {
+    public int min, max;
+    public long sum;
+    public int alphaMin, alphaMax;
+
+    public IntStats(int min, int max, long sum, int alphaMin, int alphaMax) {
+      this.min = min;
+      this.max = max;
+      this.sum = sum;
+      this.alphaMin = alphaMin;
+      this.alphaMax = alphaMax;
+    }
+
+    public IntStats merge(IntStats other) {
+      min = Math.min(min, other.min);
+      max = Math.max(max, other.max);
+      sum += other.sum;
+      alphaMin = Math.min(alphaMin, other.alphaMin);
+      alphaMax = Math.max(alphaMax, other.alphaMax);
+      return this;
+    }
+  }
 }
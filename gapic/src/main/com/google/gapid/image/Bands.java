@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.gapid.image;
+
+import java.util.function.BinaryOperator;
+import java.util.stream.IntStream;
+
+/**
+ * Splits the processing of image data into bands of pixels, or rows of pixels, that are processed
+ * in parallel. Small images are processed as a single band on the calling thread.
+ */
+class Bands {
+  // The number of pixels processed by each parallel band.
+  public static final int BAND_PIXELS = 1 << 16;
+
+  private Bands() {
+  }
+
+  /**
+   * @return the number of rows of the given width to process in each band.
+   */
+  public static int rowsPerBand(int width) {
+    return Math.max(1, BAND_PIXELS / Math.max(1, width));
+  }
+
+  /**
+   * Calls the given band for each band of bandSize items of the [0, count) range, in parallel.
+   */
+  public static void forEach(int count, int bandSize, Band band) {
+    int bands = getBandCount(count, bandSize);
+    if (bands <= 1) {
+      band.run(0, count);
+    } else {
+      IntStream.range(0, bands).parallel().forEach(
+          b -> band.run(b * bandSize, (int)Math.min(count, (long)(b + 1) * bandSize)));
+    }
+  }
+
+  /**
+   * Computes the given function for each band of bandSize items of the [0, count) range, in
+   * parallel, and merges the results. The count must be positive.
+   */
+  public static <T> T reduce(
+      int count, int bandSize, BandFunction<T> band, BinaryOperator<T> merge) {
+    int bands = getBandCount(count, bandSize);
+    if (bands <= 1) {
+      return band.apply(0, count);
+    }
+    return IntStream.range(0, bands).parallel()
+        .mapToObj(b -> band.apply(b * bandSize, (int)Math.min(count, (long)(b + 1) * bandSize)))
+        .reduce(merge)
+        .get();
+  }
+
+  private static int getBandCount(int count, int bandSize) {
+    return (int)((count + (long)bandSize - 1) / bandSize);
+  }
+
+  /**
+   * A band of items to process.
+   */
+  public static interface Band {
+    public void run(int start, int end);
+  }
+
+  /**
+   * A band of items to compute a result from.
+   */
+  public static interface BandFunction<T> {
+    public T apply(int start, int end);
+  }
+}
@@ -44,6 +44,9 @@ import java.util.function.Consumer;
  * A {@link MultiLayerAndLevelImage} fetched from the RPC server.
  */
 public class FetchedImage implements MultiLayerAndLevelImage {
+  // Levels with more pixels than this get the largest smaller level as a placeholder.
+  private static final int PLACEHOLDER_PIXELS = 512 * 512;
+
   private final Layer[] layers;
 
   public static ListenableFuture<FetchedImage> load(
@@ -258,6 +261,12 @@ public class FetchedImage implements MultiLayerAndLevelImage {
         layers[layerIdx].getImage(levelIdx);
   }
 
+  @Override
+  public ListenableFuture<Image> getPlaceholder(int layerIdx, int levelIdx) {
+    return (layerIdx < 0 || layerIdx >= layers.length) ? null :
+        layers[layerIdx].getPlaceholder(levelIdx);
+  }
+
   @Override
   public Image.Key getLevelKey(int level) {
     Key.Builder builder = new Key.Builder();
@@ -283,6 +292,31 @@ public class FetchedImage implements MultiLayerAndLevelImage {
           levels[level].get();
     }
 
+    /**
+     * Returns the largest level, smaller than the given 2D level, that is small enough to load
+     * quickly, scaled to the given level's size. Returns {@code null} if the given level is
+     * already loaded, is small, or has no such level.
+     */
+    public ListenableFuture<Image> getPlaceholder(int level) {
+      Info info = (level < 0 || level >= levels.length) ? null : levels[level].get2DInfo();
+      if (info == null || levels[level].isLoaded() || getPixels(info) <= PLACEHOLDER_PIXELS) {
+        return null;
+      }
+
+      for (int i = level + 1; i < levels.length; i++) {
+        Info placeholder = levels[i].get2DInfo();
+        if (placeholder != null && getPixels(placeholder) <= PLACEHOLDER_PIXELS) {
+          return MoreFutures.transform(levels[i].get(),
+              image -> new PlaceholderImage(image, info.getWidth(), info.getHeight()));
+        }
+      }
+      return null;
+    }
+
+    private static long getPixels(Info info) {
+      return (long)info.getWidth() * info.getHeight();
+    }
+
     public void appendLevelTo(int level, Image.Key.Builder keyBuilder) {
       levels[level].appendTo(keyBuilder);
     }
@@ -324,6 +358,17 @@ public class FetchedImage implements MultiLayerAndLevelImage {
       return (result == null) ? MoreFutures.transform(doLoad(), this) : immediateFuture(result);
     }
 
+    public synchronized boolean isLoaded() {
+      return image != null;
+    }
+
+    /**
+     * @return the info of this level, if it is a single 2D image, otherwise {@code null}.
+     */
+    public Info get2DInfo() {
+      return null;
+    }
+
     @Override
     public Image apply(Image input) {
       synchronized (this) {
@@ -390,6 +435,11 @@ public class FetchedImage implements MultiLayerAndLevelImage {
       this.imageInfo = imageInfo;
     }
 
+    @Override
+    public Info get2DInfo() {
+      return (imageInfo.getDepth() <= 1) ? imageInfo : null;
+    }
+
     @Override
     protected ListenableFuture<Image> doLoad() {
       return MoreFutures.transform(client.get(blob(imageInfo.getBytes()), device), data ->
@@ -15,16 +15,22 @@
  */
 package com.google.gapid.image;
 
+import static com.google.gapid.util.Scheduler.EXECUTOR;
 import static java.util.Arrays.stream;
 import static java.util.stream.Collectors.toSet;
 
+import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
 import com.google.gapid.image.Image.PixelInfo;
 import com.google.gapid.proto.stream.Stream;
 import com.google.gapid.proto.stream.Stream.Channel;
 import com.google.gapid.util.Range;
 
+import java.util.List;
 import java.util.Set;
+import java.util.function.BooleanSupplier;
 import java.util.stream.DoubleStream;
 import java.util.stream.IntStream;
 
@@ -35,21 +41,69 @@ import java.util.stream.IntStream;
  *
  * As many high-dynamic-range images are typically non-linear and have bright 'speckles' orders of
  * magnitude higher than the average value, the histogram supports non-linear bin ranges.
+ *
+ * The pixels are binned in chunks, in parallel, and the chunks' bins are merged at the end. For
+ * large images, an approximate histogram of a sample of the pixels can be computed first, see
+ * {@link #sample(Image[], int)}.
  */
 public class Histogram {
+  // The number of pixels binned by each parallel task.
+  private static final int CHUNK_PIXELS = 1 << 16;
+  // The approximate number of pixels binned by a sampled histogram.
+  private static final int SAMPLE_PIXELS = 1 << 16;
+  private static final int CHANNEL_COUNT = Stream.Channel.values().length;
+
   private final Set<Channel> channels;
   private final Mapper mapper;
   private final Bins bins;
 
   private final boolean isCount;
+  private final boolean isApproximate;
 
   public Histogram(Image[] images, int numBins) {
+    this(images, numBins, 1, () -> false);
+  }
+
+  private Histogram(Image[] images, int numBins, int step, BooleanSupplier cancelled) {
     boolean logFit = stream(images).anyMatch(i -> i.getType() == Image.ImageType.HDR);
     this.isCount = stream(images).allMatch(i -> i.getType() == Image.ImageType.COUNT);
+    this.isApproximate = step > 1;
 
     this.channels = getChannels(images);
     this.mapper = Mapper.get(images, logFit);
-    this.bins = Bins.get(images, mapper, numBins);
+    this.bins = Bins.get(images, mapper, numBins, step, cancelled);
+  }
+
+  /**
+   * Returns an approximate histogram of the given images, binning only a sample of their pixels.
+   * The returned histogram is exact if the images are small.
+   */
+  public static Histogram sample(Image[] images, int numBins) {
+    long pixels = stream(images).mapToLong(Histogram::getPixelCount).sum();
+    // An odd step avoids sampling the same few columns of images with power of two widths.
+    int step = (int)Math.min(Integer.MAX_VALUE, pixels / SAMPLE_PIXELS) | 1;
+    return new Histogram(images, numBins, step, () -> false);
+  }
+
+  /**
+   * Computes the exact histogram of the given images in the background. Cancelling the returned
+   * future stops the computation.
+   */
+  public static ListenableFuture<Histogram> computeAsync(Image[] images, int numBins) {
+    SettableFuture<Histogram> result = SettableFuture.create();
+    EXECUTOR.execute(() -> {
+      try {
+        // If the future has been cancelled, the incomplete histogram is simply dropped.
+        result.set(new Histogram(images, numBins, 1, result::isCancelled));
+      } catch (RuntimeException e) {
+        result.setException(e);
+      }
+    });
+    return result;
+  }
+
+  private static int getPixelCount(Image image) {
+    return image.getWidth() * image.getHeight() * image.getDepth();
   }
 
   private static Set<Stream.Channel> getChannels(Image[] images) {
@@ -132,6 +186,13 @@ public class Histogram {
     return bins.count();
   }
 
+  /**
+   * @return whether this histogram was computed from only a sample of the pixels.
+   */
+  public boolean isApproximate() {
+    return isApproximate;
+  }
+
   public boolean isLinear() {
     return !(mapper instanceof ExpMapper);
   }
@@ -146,33 +207,104 @@ public class Histogram {
   }
 
   /**
-   * Helper to build {@link Bins} instances with a given {@link Mapper}.
+   * Helper to build {@link Bins} instances with a given {@link Mapper}. A binner is not thread
+   * safe, parallel binning uses one binner per task and {@link #merge merges} them.
    */
   public static class Binner {
-    private Mapper mapper;
+    private final Mapper mapper;
     private final int numBins;
-    private final int[][] bins;
+    // The counts, indexed by bin * CHANNEL_COUNT + channel.
+    private final int[] bins;
+    // For non-linear mappers, the smallest value of each bin but the first, so values can be
+    // binned with a binary search, rather than an exponentiation.
+    private final double[] thresholds;
 
     public Binner(Mapper mapper, int numBins) {
+      this(mapper, numBins, getThresholds(mapper, numBins));
+    }
+
+    private Binner(Mapper mapper, int numBins, double[] thresholds) {
       this.mapper = mapper;
       this.numBins = numBins;
-      this.bins = new int[numBins][Stream.Channel.values().length];
+      this.bins = new int[numBins * CHANNEL_COUNT];
+      this.thresholds = thresholds;
+    }
+
+    private static double[] getThresholds(Mapper mapper, int numBins) {
+      if (!(mapper instanceof ExpMapper)) {
+        return null;
+      }
+      double[] result = new double[numBins - 1];
+      for (int i = 0; i < result.length; i++) {
+        result[i] = mapper.unmap((i + 1) / (double)(numBins - 1));
+      }
+      return result;
+    }
+
+    /**
+     * Returns a new, empty binner using the same mapping as this binner.
+     */
+    public Binner newBinner() {
+      return new Binner(mapper, numBins, thresholds);
     }
 
     /**
      * Adds the given value as a data point for the given channel, incrementing it's bin count.
      */
     public void bin(float value, Stream.Channel channel) {
-      int binIdx = (int)(mapper.map(value) * (numBins - 1));
-      binIdx = Math.max(0, Math.min(numBins - 1, binIdx));
-      bins[binIdx][getChannelIdx(channel)]++;
+      bin(value, getChannelIdx(channel));
+    }
+
+    /**
+     * Adds the given value as a data point for the channel with the given
+     * {@link Histogram#getChannelIdx index}, incrementing it's bin count.
+     */
+    public void bin(float value, int channelIdx) {
+      bins[getBin(value) * CHANNEL_COUNT + channelIdx]++;
+    }
+
+    /**
+     * Adds the given value as count data points for the channel with the given
+     * {@link Histogram#getChannelIdx index}.
+     */
+    public void bin(float value, int channelIdx, int count) {
+      bins[getBin(value) * CHANNEL_COUNT + channelIdx] += count;
+    }
+
+    private int getBin(float value) {
+      if (thresholds == null) {
+        int binIdx = (int)(mapper.map(value) * (numBins - 1));
+        return Math.max(0, Math.min(numBins - 1, binIdx));
+      }
+
+      // Find the number of thresholds not larger than the value.
+      int lo = 0, hi = thresholds.length;
+      while (lo < hi) {
+        int mid = (lo + hi) >>> 1;
+        if (thresholds[mid] <= value) {
+          lo = mid + 1;
+        } else {
+          hi = mid;
+        }
+      }
+      return lo;
+    }
+
+    /**
+     * Adds the counts of the given binner, which must use the same mapping, to this binner.
+     */
+    public Binner merge(Binner other) {
+      for (int i = 0; i < bins.length; i++) {
+        bins[i] += other.bins[i];
+      }
+      return this;
     }
 
     /**
      * Returns a new {@link Bins} instance with the binned counts computed so far.
      */
     public Bins getBins() {
-      return new Bins(bins);
+      return new Bins(bins.clone(), numBins);
     }
   }
 
@@ -305,35 +437,53 @@ public class Histogram {
    * Holds the histogram's binned data, created with the {@link Binner} class.
    */
   private static class Bins {
-    private final int[][] bins;
+    // The counts, indexed by bin * CHANNEL_COUNT + channel.
+    private final int[] bins;
+    private final int count;
     private final int[] max, total;
 
-    public Bins(int[][] bins) {
+    public Bins(int[] bins, int count) {
       this.bins = bins;
-      this.max = new int[Stream.Channel.values().length];
-      this.total = new int[Stream.Channel.values().length];
+      this.count = count;
+      this.max = new int[CHANNEL_COUNT];
+      this.total = new int[CHANNEL_COUNT];
       computeMaxAndTotals();
     }
 
     private void computeMaxAndTotals() {
-      for (int channel = 0; channel < max.length; channel++) {
-        int curMax = 0;
-        for (int bin = 0; bin < bins.length; bin++) {
-          int value = bins[bin][channel];
-          total[channel] += value;
-          curMax = Math.max(curMax, value);
+      for (int bin = 0, i = 0; bin < count; bin++) {
+        for (int channel = 0; channel < CHANNEL_COUNT; channel++, i++) {
+          total[channel] += bins[i];
+          max[channel] = Math.max(max[channel], bins[i]);
         }
-        max[channel] = curMax;
       }
     }
 
     /**
-     * Returns the binned data for the given images using the given mapper.
+     * Returns the binned data of every step-th pixel of the given images using the given mapper.
+     * The images are split into chunks which are binned in parallel. Chunks that have not been
+     * started when the computation is cancelled are skipped.
      */
-    public static Bins get(Image[] images, Mapper mapper, int numBins) {
-      Binner binner = new Binner(mapper, numBins);
+    public static Bins get(
+        Image[] images, Mapper mapper, int numBins, int step, BooleanSupplier cancelled) {
+      List<Chunk> chunks = Lists.newArrayList();
+      long chunkSize = (long)CHUNK_PIXELS * step;
       for (Image image : images) {
-        image.bin(binner);
+        int pixels = getPixelCount(image);
+        for (long start = 0; start < pixels; start += chunkSize) {
+          chunks.add(new Chunk(image, (int)start, (int)Math.min(pixels, start + chunkSize)));
+        }
+      }
+
+      Binner binner = new Binner(mapper, numBins);
+      if (chunks.size() == 1) {
+        chunks.get(0).bin(binner, step);
+      } else if (!chunks.isEmpty()) {
+        binner = chunks.parallelStream().collect(binner::newBinner, (b, chunk) -> {
+          if (!cancelled.getAsBoolean()) {
+            chunk.bin(b, step);
+          }
+        }, Binner::merge);
       }
       return binner.getBins();
     }
@@ -343,11 +493,11 @@ public class Histogram {
      */
     public float getNormalized(Stream.Channel channel, int bin) {
       int cIdx = getChannelIdx(channel);
-      return (float)bins[bin][cIdx] / max[cIdx];
+      return (float)bins[bin * CHANNEL_COUNT + cIdx] / max[cIdx];
     }
 
     public int count() {
-      return bins.length;
+      return count;
     }
 
     /**
@@ -359,12 +509,12 @@ public class Histogram {
         highestCount = Math.max(highestCount, total[getChannelIdx(c)]);
       }
 
-      int threshold = percentile * highestCount / 100;
-      int[] sum = new int[Stream.Channel.values().length];
-      for (int b = 0; b < bins.length; b++) {
+      int threshold = (int)((long)percentile * highestCount / 100);
+      int[] sum = new int[CHANNEL_COUNT];
+      for (int b = 0; b < count; b++) {
         for (Stream.Channel c : channels) {
           int cIdx = getChannelIdx(c);
-          int s = sum[cIdx] += bins[b][cIdx];
+          int s = sum[cIdx] += bins[b * CHANNEL_COUNT + cIdx];
           if (s >= threshold) {
             return b;
           }
@@ -374,6 +524,24 @@ public class Histogram {
     }
   }
 
+  /**
+   * A range of pixels of an image, binned by a single parallel task.
+   */
+  private static class Chunk {
+    private final Image image;
+    private final int start, end;
+
+    public Chunk(Image image, int start, int end) {
+      this.image = image;
+      this.start = start;
+      this.end = end;
+    }
+
+    public void bin(Binner binner, int step) {
+      image.bin(binner, start, end, step);
+    }
+  }
+
   @SuppressWarnings("ProtocolBufferOrdinal")
   public static int getChannelIdx(Stream.Channel channel) {
     return channel.ordinal();
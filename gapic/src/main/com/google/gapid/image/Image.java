@@ -87,9 +87,11 @@ public interface Image {
   public ImageType getType();
 
   /**
-   * Bins this image's channel data with the given {@link Histogram.Binner}.
+   * Bins the channel data of every step-th pixel in the [start, end) range with the given
+   * {@link Histogram.Binner}. Pixels are indexed in row major order, slice after slice. This
+   * method may be called concurrently with different binners.
    */
-  public void bin(Histogram.Binner binner);
+  public void bin(Histogram.Binner binner, int start, int end, int step);
 
   /**
    * @return the {@link PixelInfo} for this buffer.
@@ -146,7 +148,7 @@ public interface Image {
     }
 
     @Override
-    public void bin(Binner binner) {
+    public void bin(Binner binner, int start, int end, int step) {
       // Do nothing.
     }
 
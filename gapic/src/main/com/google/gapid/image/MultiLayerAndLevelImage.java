@@ -42,6 +42,14 @@ public interface MultiLayerAndLevelImage {
    */
   public ListenableFuture<Image> getImage(int layer, int level);
 
+  /**
+   * @return a future low resolution {@link PlaceholderImage} of the given level, which loads much
+   * faster than the level itself, or {@code null} if there is none.
+   */
+  public default ListenableFuture<Image> getPlaceholder(int layer, int level) {
+    return null;
+  }
+
   public static final MultiLayerAndLevelImage EMPTY = new MultiLayerAndLevelImage() {
     @Override
     public int getLayerCount() {
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.gapid.image;
+
+import com.google.gapid.glviewer.gl.Texture;
+import com.google.gapid.proto.stream.Stream;
+
+import org.eclipse.swt.graphics.ImageData;
+
+import java.util.Set;
+
+/**
+ * A low resolution {@link Image}, such as a smaller mipmap level, standing in for a larger 2D
+ * image while the larger image loads. The placeholder has the size of the larger image, and its
+ * pixels are looked up in the low resolution image.
+ */
+public class PlaceholderImage implements Image {
+  private final Image source;
+  private final int width, height;
+
+  public PlaceholderImage(Image source, int width, int height) {
+    this.source = source;
+    this.width = width;
+    this.height = height;
+  }
+
+  /**
+   * @return the low resolution image of this placeholder.
+   */
+  public Image getSource() {
+    return source;
+  }
+
+  @Override
+  public int getWidth() {
+    return width;
+  }
+
+  @Override
+  public int getHeight() {
+    return height;
+  }
+
+  @Override
+  public int getDepth() {
+    return 1;
+  }
+
+  @Override
+  public Image getSlice(int z) {
+    return this;
+  }
+
+  @Override
+  public void uploadToTexture(Texture texture) {
+    // The texture is drawn stretched to the image's size, so the low resolution data suffices.
+    source.uploadToTexture(texture);
+  }
+
+  @Override
+  public ImageData getImageData() {
+    return source.getImageData().scaledTo(width, height);
+  }
+
+  @Override
+  public PixelValue getPixel(int x, int y, int z) {
+    if (x < 0 || y < 0 || x >= width || y >= height) {
+      return PixelValue.NULL_PIXEL;
+    }
+    return source.getPixel((int)((long)x * source.getWidth() / width),
+        (int)((long)y * source.getHeight() / height), z);
+  }
+
+  @Override
+  public Set<Stream.Channel> getChannels() {
+    return source.getChannels();
+  }
+
+  @Override
+  public ImageType getType() {
+    return source.getType();
+  }
+
+  @Override
+  public void bin(Histogram.Binner binner, int start, int end, int step) {
+    // Bins the proportional range of the source's pixels.
+    long pixels = (long)width * height;
+    long sourcePixels = (long)source.getWidth() * source.getHeight();
+    source.bin(binner, (int)(start * sourcePixels / pixels), (int)(end * sourcePixels / pixels),
+        (int)Math.max(1, step * sourcePixels / pixels));
+  }
+
+  @Override
+  public PixelInfo getInfo() {
+    return source.getInfo();
+  }
+}
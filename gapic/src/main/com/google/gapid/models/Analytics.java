@@ -32,7 +32,7 @@ public class Analytics implements ExceptionHandler {
 
   public static enum View {
     Main, FilmStrip, LeftTabs, RightTabs,
-    About, GotoCommand, GotoMemory, Licenses, Settings, Trace, Welcome,
+    About, Diagnostics, GotoCommand, GotoMemory, Licenses, Settings, Trace, Welcome,
     // See MainWindow.MainTab.Type
     Commands, Framebuffer, Pipeline, Textures, Geometry, Shaders, Report, Log, State, Memory,
     ContextSelector, ReplayDeviceSelector;
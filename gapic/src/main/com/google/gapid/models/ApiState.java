@@ -23,8 +23,11 @@ import static com.google.gapid.widgets.Widgets.submitIfNotDisposed;
 import static java.util.logging.Level.WARNING;
 
 import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
 import com.google.gapid.models.CommandStream.CommandIndex;
 import com.google.gapid.proto.service.Service;
 import com.google.gapid.proto.service.box.Box;
@@ -36,6 +39,8 @@ import com.google.gapid.rpc.UiErrorCallback.ResultOrError;
 import com.google.gapid.server.Client;
 import com.google.gapid.server.Client.DataUnavailableException;
 import com.google.gapid.util.Events;
+import com.google.gapid.util.Flags;
+import com.google.gapid.util.Flags.Flag;
 import com.google.gapid.util.Loadable;
 import com.google.gapid.util.MoreFutures;
 import com.google.gapid.util.ObjectStore;
@@ -43,6 +48,9 @@ import com.google.gapid.util.Paths;
 
 import org.eclipse.swt.widgets.Shell;
 
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
 import java.util.concurrent.ExecutionException;
 import java.util.function.Supplier;
 import java.util.logging.Logger;
@@ -53,9 +61,20 @@ import java.util.logging.Logger;
 public class ApiState
     extends DeviceDependentModel.ForPath<ApiState.Node, Loadable.Message, ApiState.Listener> {
   protected static final Logger LOG = Logger.getLogger(ApiState.class.getName());
+  // Above this many loaded nodes, the state is reloaded rather than updated in place.
+  private static final int MAX_INCREMENTAL_NODES = 5000;
+
+  public static final Flag<Boolean> incrementalState = Flags.value("incremental-state", true,
+      "Whether to update the loaded state in place, rather than reloading it, when the " +
+      "selected command changes.", true);
 
   private final ConstantSets constants;
   private final ObjectStore<Path.Any> selection = ObjectStore.create();
+  // Whether an in-place update is in flight, during which the loaded tree is stale. Selections
+  // made during an update are only announced once it has been applied. Only accessed on the UI
+  // thread.
+  private boolean updating = false;
+  private boolean selectionPending = false;
 
   public ApiState(Shell shell, Analytics analytics, Client client, Devices devices,
       Follower follower, CommandStream commands, ApiContext contexts, ConstantSets constants) {
@@ -83,6 +102,195 @@ public class ApiState
             val -> new RootNode(device, tree.getStateTree().getRoot().getTree(), val.getStateTreeNode())));
   }
 
+  @Override
+  protected boolean updateInPlace(Source<Path.Any> source, Node current) {
+    if (!incrementalState.get() || !(current instanceof RootNode) ||
+        !current.device.equals(source.device)) {
+      return false;
+    }
+
+    List<Node> nodes = Lists.newArrayList();
+    if (!current.collectLoaded(nodes, MAX_INCREMENTAL_NODES)) {
+      return false;
+    }
+    List<Path.StateTreeNode> paths = Lists.newArrayList();
+    for (Node node : nodes) {
+      paths.add(node.getPath(Path.StateTreeNode.newBuilder()).build());
+    }
+
+    RootNode root = (RootNode)current;
+    updating = true;
+    rpcController.start().listen(fetchUpdate(source, paths),
+        new UiCallback<StateUpdate, StateUpdate>(shell, LOG) {
+      @Override
+      protected StateUpdate onRpcThread(Rpc.Result<StateUpdate> result) {
+        try {
+          return result.get();
+        } catch (RpcException | ExecutionException e) {
+          // Reload the state from scratch, which will also handle and report the error.
+          return null;
+        }
+      }
+
+      @Override
+      protected void onUiThread(StateUpdate result) {
+        if (getData() != root) {
+          return; // The state has been (re-)loaded since.
+        } else if (result == null) {
+          load(getSource(), true);
+        } else {
+          updating = false;
+          applyUpdate(root, nodes, result);
+          if (selectionPending) {
+            selectionPending = false;
+            listeners.fire().onStateSelected(selection.get());
+          }
+        }
+      }
+    });
+    return true;
+  }
+
+  /**
+   * Fetches the new state tree of the given source, as well as the nodes at the given paths in
+   * the new tree, i.e. the nodes that are currently loaded.
+   */
+  private ListenableFuture<StateUpdate> fetchUpdate(
+      Source<Path.Any> source, List<Path.StateTreeNode> paths) {
+    Path.Device device = source.device;
+    return MoreFutures.transformAsync(client.get(source.source, device), tree -> {
+      Path.StateTreeNode rootPath = tree.getStateTree().getRoot();
+      ListenableFuture<Service.Value> root = client.get(stateTree(rootPath), device);
+      ListenableFuture<List<Service.StateTreeNode>> all =
+          fetchNodes(device, rootPath.getTree(), paths);
+      return MoreFutures.transformAsync(root, rootValue -> MoreFutures.transform(all,
+          data -> new StateUpdate(rootPath.getTree(), rootValue.getStateTreeNode(), data)));
+    });
+  }
+
+  /**
+   * Fetches the nodes at the given paths in the given tree. Nodes that fail to load, e.g. because
+   * they no longer exist, are reported as null.
+   */
+  private ListenableFuture<List<Service.StateTreeNode>> fetchNodes(
+      Path.Device device, Path.ID tree, List<Path.StateTreeNode> paths) {
+    List<ListenableFuture<Service.StateTreeNode>> nodes = Lists.newArrayList();
+    for (Path.StateTreeNode path : paths) {
+      nodes.add(MoreFutures.transformAsync(
+          client.get(stateTree(path.toBuilder().setTree(tree).build()), device),
+          value -> MoreFutures.transform(constants.loadConstants(value.getStateTreeNode()),
+              ignore -> value.getStateTreeNode())));
+    }
+    client.flush();
+    return Futures.successfulAsList(nodes);
+  }
+
+  /**
+   * Applies the fetched update to the loaded tree. Nodes, whose content is unchanged, are kept as
+   * they are, while the children of nodes, whose number of children has changed, are discarded.
+   */
+  private void applyUpdate(RootNode root, List<Node> nodes, StateUpdate update) {
+    List<Node> changed = Lists.newArrayList(), restructured = Lists.newArrayList();
+    Set<Node> discarded = Sets.newIdentityHashSet();
+
+    root.tree = update.tree;
+    update(root, update.root, changed, restructured, discarded);
+    update(nodes, update.nodes, changed, restructured, discarded);
+    listeners.fire().onStateUpdated(changed, restructured);
+
+    // Nodes that finished loading after the loaded nodes were collected, but before the tree was
+    // swapped above, hold the data of the previous tree. Fetch them again from the new tree.
+    Set<Node> updated = Sets.newIdentityHashSet();
+    updated.addAll(nodes);
+    List<Node> loaded = Lists.newArrayList();
+    root.collectLoaded(loaded, Integer.MAX_VALUE);
+    loaded.removeIf(updated::contains);
+    if (!loaded.isEmpty()) {
+      refresh(root, update.tree, loaded);
+    }
+  }
+
+  private void refresh(RootNode root, Path.ID tree, List<Node> nodes) {
+    List<Path.StateTreeNode> paths = Lists.newArrayList();
+    for (Node node : nodes) {
+      paths.add(node.getPath(Path.StateTreeNode.newBuilder()).build());
+    }
+    Rpc.listen(fetchNodes(root.device, tree, paths),
+        new UiCallback<List<Service.StateTreeNode>, List<Service.StateTreeNode>>(shell, LOG) {
+      @Override
+      protected List<Service.StateTreeNode> onRpcThread(
+          Rpc.Result<List<Service.StateTreeNode>> result) {
+        try {
+          return result.get();
+        } catch (RpcException | ExecutionException e) {
+          return null;
+        }
+      }
+
+      @Override
+      protected void onUiThread(List<Service.StateTreeNode> result) {
+        if (getData() != root || !root.tree.equals(tree)) {
+          return; // The state has been (re-)loaded or updated since, which covers these nodes.
+        } else if (result == null) {
+          load(getSource(), true);
+        } else {
+          List<Node> changed = Lists.newArrayList(), restructured = Lists.newArrayList();
+          update(nodes, result, changed, restructured, Sets.newIdentityHashSet());
+          listeners.fire().onStateUpdated(changed, restructured);
+        }
+      }
+    });
+  }
+
+  private static void update(List<Node> nodes, List<Service.StateTreeNode> data,
+      List<Node> changed, List<Node> restructured, Set<Node> discarded) {
+    for (int i = 0; i < nodes.size(); i++) {
+      Node node = nodes.get(i);
+      if (node.hasAncestorIn(discarded)) {
+        continue;
+      }
+
+      if (data.get(i) == null) {
+        node.parent.discardChildren();
+        discarded.add(node.parent);
+        restructured.add(node.parent);
+      } else {
+        update(node, data.get(i), changed, restructured, discarded);
+      }
+    }
+  }
+
+  private static void update(Node node, Service.StateTreeNode data, List<Node> changed,
+      List<Node> restructured, Set<Node> discarded) {
+    Service.StateTreeNode old = node.getData();
+    node.setData(data);
+    if (old.getNumChildren() != data.getNumChildren()) {
+      node.discardChildren();
+      discarded.add(node);
+      restructured.add(node);
+    } else if (!hasSameContent(old, data)) {
+      changed.add(node);
+    }
+  }
+
+  /**
+   * Returns whether the two nodes would be displayed the same. The value path is ignored, as it
+   * refers to the selected command, and so differs for every command.
+   */
+  private static boolean hasSameContent(Service.StateTreeNode a, Service.StateTreeNode b) {
+    return contentHash(a) == contentHash(b) &&
+        a.getNumChildren() == b.getNumChildren() &&
+        a.getName().equals(b.getName()) &&
+        a.getPreviewIsValue() == b.getPreviewIsValue() &&
+        a.getPreview().equals(b.getPreview()) &&
+        a.getConstants().equals(b.getConstants());
+  }
+
+  private static int contentHash(Service.StateTreeNode node) {
+    return Objects.hash(node.getNumChildren(), node.getName(), node.getPreviewIsValue(),
+        node.getPreview(), node.getConstants());
+  }
+
   @Override
   protected ResultOrError<Node, Loadable.Message> processResult(Rpc.Result<Node> r) {
     try {
@@ -107,6 +315,9 @@ public class ApiState
 
   @Override
   protected void fireLoadStartEvent() {
+    // A full load replaces any in-flight update and resolves the selection once loaded.
+    updating = false;
+    selectionPending = false;
     listeners.fire().onStateLoadingStart();
   }
 
@@ -116,10 +327,20 @@ public class ApiState
   }
 
   public ListenableFuture<Node> load(Node node) {
-    return node.load(shell, () -> MoreFutures.transformAsync(
-        client.get(Paths.stateTree(node.getPath(Path.StateTreeNode.newBuilder())), node.device),
-        value -> MoreFutures.transform(constants.loadConstants(value.getStateTreeNode()),
-            ignore -> new NodeData(value.getStateTreeNode()))));
+    return node.load(shell, () -> {
+      Path.StateTreeNode path = node.getPath(Path.StateTreeNode.newBuilder()).build();
+      return MoreFutures.transformAsync(client.get(Paths.stateTree(path), node.device),
+          value -> MoreFutures.transform(constants.loadConstants(value.getStateTreeNode()),
+              ignore -> new NodeData(path.getTree(), value.getStateTreeNode())));
+    });
+  }
+
+  /**
+   * Withdraws a request of the pending load of the given node. The load is cancelled once all
+   * its requests have been withdrawn.
+   */
+  public void cancelLoad(Node node) {
+    node.release();
   }
 
   public void load(Node node, Runnable callback) {
@@ -150,7 +371,12 @@ public class ApiState
 
   public void selectPath(Path.Any path, boolean force) {
     if (selection.update(path) || force) {
-      listeners.fire().onStateSelected(path);
+      if (updating) {
+        // The path would be resolved against the tree of the previous command.
+        selectionPending = true;
+      } else {
+        listeners.fire().onStateSelected(path);
+      }
     }
   }
 
@@ -162,7 +388,7 @@ public class ApiState
     }
 
     RootNode root = (RootNode)getData();
-    return MoreFutures.transform(client.get(stateTree(root.tree, path), root.device),
+    return MoreFutures.transform(client.get(stateTree(root.getTree(), path), root.device),
         value -> value.getPath().getStateTreeNode());
   }
 
@@ -177,6 +403,7 @@ public class ApiState
     private Node[] children;
     private Service.StateTreeNode data;
     private ListenableFuture<Node> loadFuture;
+    private int loadRequests;
 
     public Node(Path.Device device, Service.StateTreeNode data) {
       super(device);
@@ -222,24 +449,117 @@ public class ApiState
       return data;
     }
 
+    protected synchronized void setData(Service.StateTreeNode data) {
+      this.data = data;
+    }
+
+    protected synchronized void discardChildren() {
+      children = null;
+    }
+
+    private RootNode getRoot() {
+      Node node = this;
+      while (node.parent != null) {
+        node = node.parent;
+      }
+      return (RootNode)node;
+    }
+
+    protected boolean hasAncestorIn(Set<Node> nodes) {
+      for (Node node = parent; node != null; node = node.parent) {
+        if (nodes.contains(node)) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    /**
+     * Adds all the loaded descendants of this node, in depth first order, to the given list.
+     * Returns {@code false} if there are more than {@code max} of them.
+     */
+    protected boolean collectLoaded(List<Node> out, int max) {
+      if (children != null) {
+        for (Node child : children) {
+          if (child.data != null) {
+            if (out.size() >= max) {
+              return false;
+            }
+            out.add(child);
+            if (!child.collectLoaded(out, max)) {
+              return false;
+            }
+          }
+        }
+      }
+      return true;
+    }
+
     public Path.StateTreeNode.Builder getPath(Path.StateTreeNode.Builder path) {
       return parent.getPath(path).addIndices(index);
     }
 
     public ListenableFuture<Node> load(Shell shell, Supplier<ListenableFuture<NodeData>> loader) {
-      if (data != null) {
-        // Already loaded.
-        return null;
-      } else if (loadFuture != null && !loadFuture.isCancelled()) {
-        return loadFuture;
+      // The pending load is registered before the fetch is started, so that concurrent loads of
+      // this node, e.g. from the UI and while resolving a tree path, share a single request.
+      SettableFuture<Node> future = SettableFuture.create();
+      synchronized (this) {
+        if (data != null) {
+          // Already loaded.
+          return null;
+        } else if (loadFuture != null && !loadFuture.isCancelled()) {
+          loadRequests++;
+          return loadFuture;
+        }
+        loadFuture = future;
+        loadRequests = 1;
+      }
+
+      try {
+        future.setFuture(fetch(shell, loader));
+      } catch (RuntimeException e) {
+        synchronized (this) {
+          if (loadFuture == future) {
+            loadFuture = null;
+          }
+        }
+        future.setException(e);
       }
+      return future;
+    }
 
-      return loadFuture = MoreFutures.transformAsync(loader.get(), newData ->
-          submitIfNotDisposed(shell, () -> {
-            data = newData.data;
-            loadFuture = null; // Don't hang on to listeners.
-            return Node.this;
-          }));
+    private ListenableFuture<Node> fetch(
+        Shell shell, Supplier<ListenableFuture<NodeData>> loader) {
+      return MoreFutures.transformAsync(loader.get(), newData ->
+          MoreFutures.transformAsync(submitIfNotDisposed(shell, () -> {
+            synchronized (this) {
+              if (!newData.tree.equals(getRoot().getTree())) {
+                // The tree has been updated in place while loading, fetch the data again.
+                return false;
+              } else if (data == null) {
+                data = newData.data;
+              }
+              loadFuture = null; // Don't hang on to listeners.
+            }
+            return true;
+          }), current -> current ? Futures.immediateFuture(Node.this) : fetch(shell, loader)));
+    }
+
+    /**
+     * Withdraws one request of the pending load of this node, cancelling the load if it was the
+     * last one.
+     */
+    public void release() {
+      ListenableFuture<Node> toCancel = null;
+      synchronized (this) {
+        if (loadFuture != null && --loadRequests <= 0) {
+          toCancel = loadFuture;
+          loadFuture = null;
+        }
+      }
+      if (toCancel != null) {
+        toCancel.cancel(true);
+      }
     }
 
     @Override
@@ -265,13 +585,18 @@ public class ApiState
   }
 
   private static class RootNode extends Node {
-    public final Path.ID tree;
+    // Updated in place, when the state is updated incrementally.
+    protected volatile Path.ID tree;
 
     public RootNode(Path.Device device, Path.ID tree, Service.StateTreeNode data) {
       super(device, data);
       this.tree = tree;
     }
 
+    public Path.ID getTree() {
+      return tree;
+    }
+
     @Override
     public Path.StateTreeNode.Builder getPath(Path.StateTreeNode.Builder path) {
       return path.setTree(tree);
@@ -284,29 +609,39 @@ public class ApiState
 
     @Override
     public boolean equals(Object obj) {
-      if (obj == this) {
-        return true;
-      } else if (!(obj instanceof RootNode)) {
-        return false;
-      }
-      RootNode n = (RootNode)obj;
-      return device.equals(n.device) && tree.equals(n.tree);
+      // The tree of a root is updated in place, so roots are only ever equal to themselves.
+      return obj == this;
     }
 
     @Override
     public int hashCode() {
-      return device.hashCode() * 31 + tree.hashCode();
+      return System.identityHashCode(this);
     }
   }
 
   private static class NodeData {
+    public final Path.ID tree;
     public final Service.StateTreeNode data;
 
-    public NodeData(Service.StateTreeNode data) {
+    public NodeData(Path.ID tree, Service.StateTreeNode data) {
+      this.tree = tree;
       this.data = data;
     }
   }
 
+  private static class StateUpdate {
+    public final Path.ID tree;
+    public final Service.StateTreeNode root;
+    public final List<Service.StateTreeNode> nodes;
+
+    public StateUpdate(
+        Path.ID tree, Service.StateTreeNode root, List<Service.StateTreeNode> nodes) {
+      this.tree = tree;
+      this.root = root;
+      this.nodes = nodes;
+    }
+  }
+
   @SuppressWarnings("unused")
   public static interface Listener extends Events.Listener {
     /**
@@ -321,6 +656,15 @@ public class ApiState
      */
     public default void onStateLoaded(Loadable.Message error) { /* empty */ }
 
+    /**
+     * Event indicating that the loaded state has been updated in place for a newly selected
+     * command, rather than reloaded.
+     *
+     * @param changed the nodes whose data has changed.
+     * @param restructured the nodes whose children have been discarded.
+     */
+    public default void onStateUpdated(List<Node> changed, List<Node> restructured) { /* empty */ }
+
     /**
      * Event indicating that the portion of the state that is selected has changed.
      */
@@ -15,15 +15,19 @@
  */
 package com.google.gapid.models;
 
+import static com.google.common.util.concurrent.MoreExecutors.directExecutor;
 import static com.google.gapid.rpc.UiErrorCallback.error;
 import static com.google.gapid.rpc.UiErrorCallback.success;
 import static com.google.gapid.util.Logging.throttleLogRpcError;
 import static com.google.gapid.util.Paths.capture;
 import static com.google.gapid.views.ErrorDialog.showErrorDialog;
+import static com.google.gapid.widgets.Widgets.scheduleIfNotDisposed;
 import static java.util.logging.Level.INFO;
 
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.gapid.proto.service.Service;
 import com.google.gapid.proto.service.path.Path;
 import com.google.gapid.rpc.Rpc;
@@ -33,14 +37,27 @@ import com.google.gapid.rpc.UiErrorCallback.ResultOrError;
 import com.google.gapid.server.Client;
 import com.google.gapid.server.Client.UnsupportedVersionException;
 import com.google.gapid.util.Events;
+import com.google.gapid.util.Flags;
+import com.google.gapid.util.Flags.Flag;
 import com.google.gapid.util.Loadable;
 import com.google.gapid.util.MoreFutures;
 
 import org.eclipse.swt.widgets.Shell;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.function.LongConsumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -53,6 +70,11 @@ public class Capture extends ModelBase<Capture.Data, File, Loadable.Message, Cap
   // Don't try to open files with 16 or less bytes. An empty graphics trace, without the
   // capture header is already 16 bytes.
   private static final int MIN_FILE_SIZE = 16;
+  // The maximum number of exported chunks waiting to be written to disk.
+  private static final int MAX_PENDING_EXPORT_CHUNKS = 8;
+
+  public static final Flag<Boolean> importCaptures = Flags.value("import-captures", false,
+      "Stream capture files to the server, rather than having it read them from disk.", true);
 
   private final Settings settings;
   private String name = "";
@@ -110,12 +132,41 @@ public class Capture extends ModelBase<Capture.Data, File, Loadable.Message, Cap
     }
 
     settings.addToRecent(canonicalPath);
-    return MoreFutures.transformAsync(client.loadCapture(canonicalPath), path ->
+    ListenableFuture<Path.Capture> loaded;
+    if (importCaptures.get()) {
+      try {
+        loaded = importCapture(file);
+      } catch (IOException e) {
+        return Futures.immediateFailedFuture(
+            new BadCaptureException("Failed to read trace file: " + e.getMessage(), e));
+      }
+    } else {
+      loaded = client.loadCapture(canonicalPath);
+    }
+    return MoreFutures.transformAsync(loaded, path ->
       MoreFutures.transform(client.get(
           capture(path.getID(), true), Path.Device.getDefaultInstance()),
           val -> new Data(path, val.getCapture())));
   }
 
+  private ListenableFuture<Path.Capture> importCapture(File file) throws IOException {
+    long total = file.length();
+    int[] lastPercent = { -1 };
+    ListenableFuture<Path.Capture> result =
+        client.importCapture(file.getName(), new FileInputStream(file), done -> {
+          int percent = (int)(100 * done / total);
+          if (percent != lastPercent[0]) {
+            lastPercent[0] = percent;
+            scheduleIfNotDisposed(shell, () -> listeners.fire().onCaptureTransferProgress(
+                "Uploading capture", done, total));
+          }
+        });
+    result.addListener(() -> scheduleIfNotDisposed(
+        shell, () -> listeners.fire().onCaptureTransferProgress("", total, total)),
+        directExecutor());
+    return result;
+  }
+
   @Override
   protected ResultOrError<Data, Loadable.Message> processResult(Rpc.Result<Data> result) {
     try {
@@ -150,14 +201,21 @@ public class Capture extends ModelBase<Capture.Data, File, Loadable.Message, Cap
     listeners.fire().onCaptureLoaded(null);
   }
 
-  public void saveCapture(File file) {
+  /**
+   * Saves the capture to the given file. The capture is streamed from the server and written to
+   * disk incrementally. Cancelling the returned future cancels the save.
+   *
+   * @param onProgress called with the number of bytes written so far.
+   */
+  public ListenableFuture<Void> saveCapture(File file, LongConsumer onProgress) {
     LOG.log(INFO, "Saving capture " + file + "...");
     name = file.getName();
 
     // TODO: refactor out duplicate code from loadCapture.
+    File canonicalFile;
     String canonicalPath;
     try {
-      File canonicalFile = file.getCanonicalFile();
+      canonicalFile = file.getCanonicalFile();
       canonicalPath = canonicalFile.getAbsolutePath();
       if (canonicalFile.getParentFile() != null) {
         settings.writeFiles().setLastOpenDir(canonicalFile.getParentFile().getAbsolutePath());
@@ -169,12 +227,13 @@ public class Capture extends ModelBase<Capture.Data, File, Loadable.Message, Cap
 
       LOG.log(Level.WARNING, "Failed to save trace", e);
       showErrorDialog(shell, analytics, "Failed to save trace:\n  " + e.getMessage(), e);
-      return;
+      return Futures.immediateFailedFuture(e);
     }
 
     settings.addToRecent(canonicalPath);
 
-    rpcController.start().listen(client.saveCapture(getData().path, canonicalPath),
+    ListenableFuture<Void> result = exportCapture(getData().path, canonicalFile, onProgress);
+    rpcController.start().listen(result,
         new UiErrorCallback<Void, Boolean, Exception>(shell, LOG) {
       @Override
       protected ResultOrError<Boolean, Exception> onRpcThread(Rpc.Result<Void> result)
@@ -199,6 +258,80 @@ public class Capture extends ModelBase<Capture.Data, File, Loadable.Message, Cap
         showErrorDialog(shell, analytics, "Failed to save trace:\n  " + error.getMessage(), error);
       }
     });
+    return result;
+  }
+
+  /**
+   * Streams the capture from the server into a temporary file next to the given file, which
+   * replaces the file once the export has completed successfully. The chunks are written to the
+   * file on a dedicated I/O thread, with a bounded number of chunks waiting to be written.
+   */
+  private ListenableFuture<Void> exportCapture(
+      Path.Capture capture, File file, LongConsumer onProgress) {
+    File tmp;
+    OutputStream out;
+    try {
+      tmp = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+      out = new BufferedOutputStream(new FileOutputStream(tmp));
+    } catch (IOException e) {
+      return Futures.immediateFailedFuture(e);
+    }
+
+    ExecutorService io = Executors.newSingleThreadExecutor(
+        new ThreadFactoryBuilder().setNameFormat("capture-export-%d").setDaemon(true).build());
+    Semaphore pending = new Semaphore(MAX_PENDING_EXPORT_CHUNKS);
+    SettableFuture<Void> result = SettableFuture.create();
+    long[] written = { 0 }; // Only accessed on the I/O thread.
+
+    ListenableFuture<Void> stream = client.exportCapture(capture, data -> {
+      // Blocks the stream while too many chunks are waiting to be written.
+      pending.acquireUninterruptibly();
+      io.execute(() -> {
+        try {
+          if (!result.isDone()) {
+            data.writeTo(out);
+            written[0] += data.size();
+            onProgress.accept(written[0]);
+          }
+        } catch (IOException e) {
+          result.setException(e);
+        } finally {
+          pending.release();
+        }
+      });
+    });
+    // A failed write, or cancelling the export, stops the stream.
+    result.addListener(() -> stream.cancel(true), directExecutor());
+
+    // The I/O thread runs tasks in order, so this runs after the last write.
+    stream.addListener(() -> io.execute(() -> {
+      try {
+        Futures.getDone(stream);
+        if (!result.isDone()) {
+          out.close();
+          Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+          result.set(null);
+        }
+      } catch (ExecutionException e) {
+        result.setException(e.getCause());
+      } catch (CancellationException e) {
+        result.cancel(false);
+      } catch (IOException e) {
+        result.setException(e);
+      } finally {
+        if (tmp.exists()) {
+          // The export failed or was cancelled.
+          try {
+            out.close();
+          } catch (IOException e) {
+            LOG.log(Level.FINE, "Failed to close the partially saved trace", e);
+          }
+          tmp.delete();
+        }
+        io.shutdown();
+      }
+    }), directExecutor());
+    return result;
   }
 
   @Override
@@ -251,6 +384,17 @@ public class Capture extends ModelBase<Capture.Data, File, Loadable.Message, Cap
      * @param error the loading error or {@code null} if loading was successful.
      */
     public default void onCaptureLoaded(Loadable.Message error) { /* empty */ }
+
+    /**
+     * Event indicating the progress of a capture being transferred to or from the server.
+     *
+     * @param what a description of the transfer or the empty string once the transfer is done.
+     * @param done the number of bytes transferred so far.
+     * @param total the total number of bytes to transfer.
+     */
+    public default void onCaptureTransferProgress(String what, long done, long total) {
+      /* empty */
+    }
   }
 
   private static class BadCaptureException extends RpcException {
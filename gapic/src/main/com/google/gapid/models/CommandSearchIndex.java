@@ -0,0 +1,527 @@
+/*
+ * Copyright (C) 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.gapid.models;
+
+import static com.google.gapid.util.Paths.command;
+import static com.google.gapid.util.Paths.commandTree;
+import static com.google.gapid.util.Paths.lastCommand;
+import static com.google.gapid.util.Scheduler.EXECUTOR;
+import static java.util.logging.Level.INFO;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.primitives.Ints;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.gapid.proto.service.Service;
+import com.google.gapid.proto.service.api.API;
+import com.google.gapid.proto.service.path.Path;
+import com.google.gapid.server.Client;
+import com.google.gapid.util.MoreFutures;
+import com.google.gapid.views.Formatter;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Predicate;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Client side trigram index of the text of a command tree, used to answer command searches without
+ * a server round trip. The text of a node is its group name or its formatted command, the same text
+ * the server matches. The index finds all the matching nodes of a search at once, in tree order.
+ */
+public class CommandSearchIndex {
+  private static final Logger LOG = Logger.getLogger(CommandSearchIndex.class.getName());
+
+  private static final int MAX_IN_FLIGHT = 16;
+  // Bounds the memory used by the index. No index is built for trees with more text than this.
+  private static final long MAX_INDEXED_CHARS = 16 << 20;
+  private static final int GRAM = 3;
+
+  public final Path.ID tree;
+  private final int[][] nodes; // The indices of the indexed nodes, in tree order.
+  private final String[] texts; // The lower case text of each node.
+  private final Map<Long, int[]> postings; // Trigram to the sorted list of nodes containing it.
+
+  private CommandSearchIndex(Path.ID tree, List<Entry> entries) {
+    this.tree = tree;
+    entries.sort(Comparator.comparing((Entry e) -> e.indices, Ints.lexicographicalComparator()));
+    this.nodes = new int[entries.size()][];
+    this.texts = new String[entries.size()];
+    Map<Long, IntList> lists = Maps.newHashMap();
+    for (int i = 0; i < texts.length; i++) {
+      Entry entry = entries.get(i);
+      nodes[i] = entry.indices;
+      texts[i] = entry.text;
+      for (int j = 0; j + GRAM <= entry.text.length(); j++) {
+        lists.computeIfAbsent(trigram(entry.text, j), k -> new IntList()).addIfNotLast(i);
+      }
+    }
+    this.postings = Maps.newHashMapWithExpectedSize(lists.size());
+    for (Map.Entry<Long, IntList> e : lists.entrySet()) {
+      postings.put(e.getKey(), e.getValue().toArray());
+    }
+  }
+
+  /**
+   * Builds the index of the tree of the given root node in the background. The nodes are fetched
+   * with bounded concurrency. The returned future is cancelled to stop the build, and resolves to
+   * {@code null} if the tree contains too much text to be indexed.
+   */
+  public static ListenableFuture<CommandSearchIndex> build(
+      Client client, ConstantSets constants, CommandStream.Node root) {
+    Builder builder = new Builder(client, constants, root.store.tree, root.device);
+    builder.start(root.getChildCount());
+    return builder.result;
+  }
+
+  public int getNodeCount() {
+    return nodes.length;
+  }
+
+  /**
+   * Finds all the nodes matching the given search. As in {@link Service.FindRequest}, the search is
+   * case insensitive and, if the text is not a valid regex, it is matched literally.
+   */
+  public Hits search(String text, boolean regex) {
+    Pattern pattern = null;
+    if (regex) {
+      try {
+        pattern = Pattern.compile(text, Pattern.CASE_INSENSITIVE);
+      } catch (PatternSyntaxException e) {
+        // Fall back to a literal search.
+      }
+    }
+
+    int[] candidates;
+    Predicate<String> matcher;
+    if (pattern == null) {
+      String lower = lower(text);
+      candidates = candidates(Arrays.asList(lower));
+      matcher = s -> s.contains(lower);
+    } else {
+      Pattern p = pattern;
+      candidates = candidates(requiredLiterals(text));
+      matcher = s -> p.matcher(s).find();
+    }
+
+    IntList result = new IntList();
+    if (candidates == null) {
+      for (int i = 0; i < texts.length; i++) {
+        if (matcher.test(texts[i])) {
+          result.add(i);
+        }
+      }
+    } else {
+      for (int candidate : candidates) {
+        if (matcher.test(texts[candidate])) {
+          result.add(candidate);
+        }
+      }
+    }
+    return new Hits(result.toArray());
+  }
+
+  /**
+   * @return the sorted nodes containing all the trigrams of the given literals, or {@code null} if
+   * the literals are too short to narrow down the search.
+   */
+  private int[] candidates(List<String> literals) {
+    int[] result = null;
+    for (String literal : literals) {
+      for (int i = 0; i + GRAM <= literal.length(); i++) {
+        int[] list = postings.get(trigram(literal, i));
+        if (list == null) {
+          return new int[0];
+        }
+        result = (result == null) ? list : intersect(result, list);
+        if (result.length == 0) {
+          return result;
+        }
+      }
+    }
+    return result;
+  }
+
+  private static int[] intersect(int[] a, int[] b) {
+    IntList result = new IntList();
+    for (int i = 0, j = 0; i < a.length && j < b.length; ) {
+      if (a[i] < b[j]) {
+        i++;
+      } else if (a[i] > b[j]) {
+        j++;
+      } else {
+        result.add(a[i]);
+        i++;
+        j++;
+      }
+    }
+    return result.toArray();
+  }
+
+  /**
+   * Extracts literal strings, that any string matching the given regex has to contain. This is
+   * conservative: alternations and groups are skipped, and only literal characters that are not
+   * quantified as optional are kept.
+   */
+  protected static List<String> requiredLiterals(String regex) {
+    List<String> result = Lists.newArrayList();
+    if (regex.indexOf('|') >= 0) {
+      return result;
+    }
+
+    StringBuilder run = new StringBuilder();
+    int depth = 0;
+    for (int i = 0; i < regex.length(); i++) {
+      char c = regex.charAt(i);
+      boolean literal = false;
+      switch (c) {
+        case '\\':
+          if (i + 1 < regex.length() && !Character.isLetterOrDigit(regex.charAt(i + 1))) {
+            c = regex.charAt(++i);
+            literal = true;
+          } else {
+            i = skipEscape(regex, i + 1);
+          }
+          break;
+        case '(': depth++; break;
+        case ')': depth--; break;
+        case '[':
+          i = skipTo(regex, i, ']');
+          break;
+        case '{':
+          i = skipTo(regex, i, '}');
+          // Fall through.
+        case '*': case '?':
+          // The previous character may be optional.
+          if (run.length() > 0) {
+            run.setLength(run.length() - 1);
+          }
+          break;
+        case '.': case '+': case '^': case '$': case ']': case '}':
+          break;
+        default:
+          literal = true;
+      }
+
+      if (literal && depth == 0) {
+        run.append(c);
+      } else {
+        flush(run, result);
+      }
+    }
+    flush(run, result);
+    return result;
+  }
+
+  /**
+   * @return the index of the last character of the character class, back reference or numeric
+   * escape at the given index.
+   */
+  private static int skipEscape(String regex, int at) {
+    if (at >= regex.length()) {
+      return at;
+    }
+    int digits;
+    switch (regex.charAt(at)) {
+      case 'x': digits = 2; break;
+      case 'u': digits = 4; break;
+      case 'c': digits = 1; break;
+      case '0': digits = 3; break;
+      default: digits = 0;
+    }
+    if (at + 1 < regex.length() && regex.charAt(at + 1) == '{') {
+      return skipTo(regex, at + 1, '}');
+    }
+    for (; digits > 0 && at + 1 < regex.length() &&
+        Character.isLetterOrDigit(regex.charAt(at + 1)); digits--) {
+      at++;
+    }
+    return at;
+  }
+
+  /**
+   * @return the index of the given closing character following the given start, skipping escaped
+   * characters.
+   */
+  private static int skipTo(String regex, int start, char close) {
+    int i = start + 1;
+    for (; i < regex.length() && regex.charAt(i) != close; i++) {
+      if (regex.charAt(i) == '\\') {
+        i++;
+      }
+    }
+    return i;
+  }
+
+  private static void flush(StringBuilder run, List<String> result) {
+    if (run.length() >= GRAM) {
+      result.add(lower(run.toString()));
+    }
+    run.setLength(0);
+  }
+
+  private static long trigram(String s, int offset) {
+    return ((long)s.charAt(offset) << 32) | ((long)s.charAt(offset + 1) << 16) |
+        s.charAt(offset + 2);
+  }
+
+  protected static String lower(String s) {
+    return s.toLowerCase(Locale.ROOT);
+  }
+
+  /**
+   * The result of a search: the matching nodes in tree order.
+   */
+  public class Hits {
+    private final int[] hits;
+
+    protected Hits(int[] hits) {
+      this.hits = hits;
+    }
+
+    public int size() {
+      return hits.length;
+    }
+
+    public Path.CommandTreeNode get(int index) {
+      Path.CommandTreeNode.Builder path = Path.CommandTreeNode.newBuilder().setTree(tree);
+      for (int i : nodes[hits[index]]) {
+        path.addIndices(i);
+      }
+      return path.build();
+    }
+
+    /**
+     * @return the index of the first hit after, or before if backwards, the given node, wrapping
+     * around at the end of the tree, or -1 if there are no hits.
+     */
+    public int next(Path.CommandTreeNode from, boolean backwards) {
+      if (hits.length == 0) {
+        return -1;
+      } else if (from == null || !from.getTree().equals(tree)) {
+        return backwards ? hits.length - 1 : 0;
+      }
+
+      int[] indices = Ints.toArray(from.getIndicesList());
+      Comparator<int[]> cmp = Ints.lexicographicalComparator();
+      // Binary search for the first hit greater than the given node.
+      int lo = 0, hi = hits.length;
+      while (lo < hi) {
+        int mid = (lo + hi) >>> 1;
+        if (cmp.compare(nodes[hits[mid]], indices) <= 0) {
+          lo = mid + 1;
+        } else {
+          hi = mid;
+        }
+      }
+      if (backwards) {
+        int at = (lo > 0 && cmp.compare(nodes[hits[lo - 1]], indices) == 0) ? lo - 2 : lo - 1;
+        return (at < 0) ? at + hits.length : at;
+      }
+      return (lo == hits.length) ? 0 : lo;
+    }
+  }
+
+  private static class Entry {
+    public final int[] indices;
+    public final String text;
+
+    public Entry(int[] indices, String text) {
+      this.indices = indices;
+      this.text = text;
+    }
+  }
+
+  /**
+   * Walks the command tree, fetching the text of each node.
+   */
+  private static class Builder {
+    private final Client client;
+    private final ConstantSets constants;
+    private final Path.ID tree;
+    private final Path.Device device;
+    protected final SettableFuture<CommandSearchIndex> result = SettableFuture.create();
+
+    private final Deque<int[]> queue = new ArrayDeque<int[]>();
+    private final Set<ListenableFuture<?>> inFlight = Sets.newHashSet();
+    private final List<Entry> entries = Lists.newArrayList();
+    private long chars = 0;
+    private boolean done = false;
+
+    public Builder(Client client, ConstantSets constants, Path.ID tree, Path.Device device) {
+      this.client = client;
+      this.constants = constants;
+      this.tree = tree;
+      this.device = device;
+
+      result.addListener(() -> {
+        if (result.isCancelled()) {
+          stop();
+        }
+      }, EXECUTOR);
+    }
+
+    public void start(int children) {
+      synchronized (this) {
+        for (int i = 0; i < children; i++) {
+          queue.add(new int[] { i });
+        }
+      }
+      pump();
+    }
+
+    private void pump() {
+      List<Runnable> toStart = Lists.newArrayList();
+      synchronized (this) {
+        while (!done && inFlight.size() < MAX_IN_FLIGHT && !queue.isEmpty()) {
+          int[] indices = queue.removeLast();
+          ListenableFuture<Entry> future = fetch(indices);
+          inFlight.add(future);
+          toStart.add(() -> future.addListener(() -> onFetched(future), EXECUTOR));
+        }
+        if (!done && inFlight.isEmpty() && queue.isEmpty()) {
+          done = true;
+          toStart.add(() -> EXECUTOR.execute(this::finish));
+        }
+      }
+      toStart.forEach(Runnable::run);
+    }
+
+    private ListenableFuture<Entry> fetch(int[] indices) {
+      Path.CommandTreeNode.Builder path = Path.CommandTreeNode.newBuilder().setTree(tree);
+      for (int i : indices) {
+        path.addIndices(i);
+      }
+      return MoreFutures.transformAsync(client.get(commandTree(path), device), value -> {
+        Service.CommandTreeNode data = value.getCommandTreeNode();
+        enqueueChildren(indices, (int)data.getNumChildren());
+        if (data.getGroup().isEmpty() && data.hasCommands()) {
+          return MoreFutures.transformAsync(
+              client.get(command(lastCommand(data.getCommands())), device), cmd -> {
+                API.Command c = cmd.getCommand();
+                return MoreFutures.transform(constants.loadConstants(c), ignored ->
+                    new Entry(indices, lower(Formatter.toString(c, constants::getConstants))));
+              });
+        }
+        return Futures.immediateFuture(new Entry(indices, lower(data.getGroup())));
+      });
+    }
+
+    private synchronized void enqueueChildren(int[] parent, int count) {
+      // Pushed in reverse, so the tree is walked depth first, keeping the queue short.
+      for (int i = count - 1; !done && i >= 0; i--) {
+        int[] child = Arrays.copyOf(parent, parent.length + 1);
+        child[parent.length] = i;
+        queue.add(child);
+      }
+    }
+
+    private void onFetched(ListenableFuture<Entry> future) {
+      Entry entry;
+      try {
+        entry = Futures.getDone(future);
+      } catch (ExecutionException | CancellationException e) {
+        stop();
+        result.setException((e instanceof ExecutionException) ? e.getCause() : e);
+        return;
+      }
+
+      synchronized (this) {
+        inFlight.remove(future);
+        if (done) {
+          return;
+        }
+        entries.add(entry);
+        chars += entry.text.length();
+        if (chars > MAX_INDEXED_CHARS) {
+          LOG.log(INFO, "Command tree contains too much text to be indexed, not indexing.");
+          done = true;
+          queue.clear();
+          entries.clear();
+          result.set(null);
+          return;
+        }
+      }
+      pump();
+    }
+
+    private void finish() {
+      List<Entry> all;
+      synchronized (this) {
+        all = Lists.newArrayList(entries);
+        entries.clear();
+      }
+      try {
+        result.set(new CommandSearchIndex(tree, all));
+      } catch (RuntimeException e) {
+        result.setException(e);
+      }
+    }
+
+    private void stop() {
+      List<ListenableFuture<?>> toCancel;
+      synchronized (this) {
+        done = true;
+        queue.clear();
+        entries.clear();
+        toCancel = Lists.newArrayList(inFlight);
+        inFlight.clear();
+      }
+      toCancel.forEach(f -> f.cancel(true));
+    }
+  }
+
+  /**
+   * A growable list of primitive ints.
+   */
+  private static class IntList {
+    private int[] values = new int[4];
+    private int size = 0;
+
+    public IntList() {
+    }
+
+    public void add(int value) {
+      if (size == values.length) {
+        values = Arrays.copyOf(values, size * 2);
+      }
+      values[size++] = value;
+    }
+
+    public void addIfNotLast(int value) {
+      if (size == 0 || values[size - 1] != value) {
+        add(value);
+      }
+    }
+
+    public int[] toArray() {
+      return Arrays.copyOf(values, size);
+    }
+  }
+}
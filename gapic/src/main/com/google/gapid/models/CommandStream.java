@@ -20,11 +20,16 @@ import static com.google.gapid.util.Paths.command;
 import static com.google.gapid.util.Paths.commandTree;
 import static com.google.gapid.util.Paths.lastCommand;
 import static com.google.gapid.util.Paths.observationsAfter;
+import static com.google.gapid.util.Scheduler.EXECUTOR;
 import static com.google.gapid.widgets.Widgets.submitIfNotDisposed;
 import static java.util.logging.Level.FINE;
+import static java.util.logging.Level.WARNING;
 
 import com.google.common.base.Objects;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.SettableFuture;
@@ -38,12 +43,19 @@ import com.google.gapid.rpc.RpcException;
 import com.google.gapid.rpc.UiCallback;
 import com.google.gapid.server.Client;
 import com.google.gapid.util.Events;
+import com.google.gapid.util.Flags;
+import com.google.gapid.util.Flags.Flag;
 import com.google.gapid.util.Loadable;
 import com.google.gapid.util.MoreFutures;
 import com.google.gapid.util.Paths;
 
 import org.eclipse.swt.widgets.Shell;
 
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
 import java.util.function.Consumer;
 import java.util.function.Supplier;
@@ -56,11 +68,16 @@ public class CommandStream
     extends DeviceDependentModel.ForPath<CommandStream.Node, Void, CommandStream.Listener>
     implements ApiContext.Listener, Capture.Listener, Devices.Listener {
   protected static final Logger LOG = Logger.getLogger(CommandStream.class.getName());
+  private static final int PREFETCH_PARALLELISM = 8;
+
+  public static final Flag<Boolean> indexCommands = Flags.value("index-commands", false,
+      "Whether to build a client side index of the commands, used to search them locally.");
 
   private final Capture capture;
   private final ApiContext context;
   private final ConstantSets constants;
   private CommandIndex selection;
+  private ListenableFuture<CommandSearchIndex> searchIndex;
 
   public CommandStream(Shell shell, Analytics analytics, Client client, Capture capture,
       Devices devices, ApiContext context, ConstantSets constants) {
@@ -118,27 +135,84 @@ public class CommandStream
   protected ListenableFuture<Node> doLoad(Path.Any path, Path.Device device) {
     return MoreFutures.transformAsync(client.get(path, device),
         tree -> MoreFutures.transform(client.get(commandTree(tree.getCommandTree().getRoot()), device),
-            val -> new RootNode(
-                device, tree.getCommandTree().getRoot().getTree(), val.getCommandTreeNode())));
+            val -> new TreeStore(device, tree.getCommandTree().getRoot().getTree(),
+                val.getCommandTreeNode()).getRoot()));
   }
 
+  /**
+   * Loads the given node. Each call that returns a pending load counts as a request of that load,
+   * which can be withdrawn with {@link #cancelLoad(Node)}.
+   */
   public ListenableFuture<Node> load(Node node) {
-    return node.load(shell, () -> MoreFutures.transformAsync(
+    return node.load(shell, () -> loadNodeData(node, constants::loadConstants));
+  }
+
+  /**
+   * Withdraws a request of the pending load of the given node. The load is cancelled once all
+   * its requests have been withdrawn.
+   */
+  public void cancelLoad(Node node) {
+    node.store.release(node.id);
+  }
+
+  /**
+   * Loads the tree node data and, for command nodes, the command. If the command of the node can
+   * be predicted from its parent, it is requested concurrently with the tree node, rather than
+   * once the tree node has been received.
+   */
+  private ListenableFuture<NodeData> loadNodeData(Node node, ConstantLoader constantLoader) {
+    Path.Command predicted = node.store.predictCommand(node.id);
+    ListenableFuture<API.Command> speculative = (predicted == null) ? null :
+        loadCommand(predicted, node.device, constantLoader);
+    return MoreFutures.transformAsync(
         client.get(commandTree(node.getPath(Path.CommandTreeNode.newBuilder())), node.device),
         v1 -> {
           Service.CommandTreeNode data = v1.getCommandTreeNode();
           if (data.getGroup().isEmpty() && data.hasCommands()) {
-            return MoreFutures.transform(loadCommand(lastCommand(data.getCommands()), node.device),
-                cmd -> new NodeData(data, cmd));
+            Path.Command cmd = lastCommand(data.getCommands());
+            if (speculative != null && cmd.equals(predicted)) {
+              return MoreFutures.transform(speculative, c -> new NodeData(data, c));
+            }
+            if (speculative != null) {
+              speculative.cancel(true);
+            }
+            return MoreFutures.transform(loadCommand(cmd, node.device, constantLoader),
+                c -> new NodeData(data, c));
+          }
+          if (speculative != null) {
+            speculative.cancel(true);
           }
           return Futures.immediateFuture(new NodeData(data, null));
-        }));
+        });
   }
 
   public ListenableFuture<API.Command> loadCommand(Path.Command path, Path.Device device) {
-    return MoreFutures.transformAsync(client.get(command(path), device), value ->
-        MoreFutures.transform(constants.loadConstants(value.getCommand()), ignore ->
-            value.getCommand()));
+    return loadCommand(path, device, constants::loadConstants);
+  }
+
+  private ListenableFuture<API.Command> loadCommand(
+      Path.Command path, Path.Device device, ConstantLoader constantLoader) {
+    return MoreFutures.transformAsync(client.get(command(path), device), value -> {
+      List<ListenableFuture<Service.ConstantSet>> sets = Lists.newArrayList();
+      for (API.Parameter param : value.getCommand().getParametersList()) {
+        if (param.hasConstants()) {
+          sets.add(constantLoader.load(param.getConstants()));
+        }
+      }
+      return MoreFutures.transform(Futures.allAsList(sets), ignore -> value.getCommand());
+    });
+  }
+
+  /**
+   * Prefetches the data and commands of the given range of children of the given, loaded, node.
+   * The children are requested with bounded concurrency, with the command of each child requested
+   * as soon as it is known, and the constant sets used by the children only loaded once.
+   * @return the prefetch, which should be cancelled once the children are no longer of interest.
+   */
+  public Prefetch prefetchChildren(Node parent, int from, int count) {
+    Prefetch prefetch = new Prefetch(parent, from, Math.min(parent.getChildCount(), from + count));
+    prefetch.pump();
+    return prefetch;
   }
 
   public void load(Node node, Runnable callback) {
@@ -160,32 +234,97 @@ public class CommandStream
   }
 
   public ListenableFuture<Service.FindResponse> search(
-      CommandStream.Node parent, String text, boolean regex) {
+      CommandStream.Node parent, String text, boolean regex, boolean backwards) {
     SettableFuture<Service.FindResponse> result = SettableFuture.create();
-    client.streamSearch(searchRequest(parent, text, regex), result::set);
+    client.streamSearch(searchRequest(parent, text, regex, backwards), result::set);
     return result;
   }
 
   private static Service.FindRequest searchRequest(
-      CommandStream.Node parent, String text, boolean regex) {
+      CommandStream.Node parent, String text, boolean regex, boolean backwards) {
     return Service.FindRequest.newBuilder()
         .setCommandTreeNode(parent.getPath(Path.CommandTreeNode.newBuilder()))
         .setText(text)
         .setIsRegex(regex)
         .setMaxItems(1)
+        .setBackwards(backwards)
         .setWrap(true)
         .setConfig(Path.ResolveConfig.newBuilder()
             .setReplayDevice(parent.device))
         .build();
   }
 
+  /**
+   * @return the search index of the current command tree, or {@code null} if indexing is disabled,
+   * or the index is not yet, or could not be, built.
+   */
+  public CommandSearchIndex getSearchIndex() {
+    ListenableFuture<CommandSearchIndex> index = searchIndex;
+    if (index == null || !index.isDone()) {
+      return null;
+    }
+    try {
+      return Futures.getDone(index);
+    } catch (ExecutionException | CancellationException e) {
+      return null;
+    }
+  }
+
+  private void buildSearchIndex() {
+    cancelSearchIndex();
+    if (!indexCommands.get()) {
+      return;
+    }
+
+    Node root = getData();
+    if (root == null) {
+      return;
+    }
+    ListenableFuture<CommandSearchIndex> index = CommandSearchIndex.build(client, constants, root);
+    searchIndex = index;
+    Rpc.listen(index, new UiCallback<CommandSearchIndex, CommandSearchIndex>(shell, LOG) {
+      @Override
+      protected CommandSearchIndex onRpcThread(Rpc.Result<CommandSearchIndex> result) {
+        try {
+          return result.get();
+        } catch (RpcException | ExecutionException e) {
+          LOG.log(WARNING, "Failed to index the commands", e);
+          return null;
+        }
+      }
+
+      @Override
+      protected void onUiThread(CommandSearchIndex result) {
+        if (result != null) {
+          LOG.log(FINE, "Indexed {0} command tree nodes", result.getNodeCount());
+        }
+      }
+    });
+  }
+
+  private void cancelSearchIndex() {
+    if (searchIndex != null) {
+      searchIndex.cancel(true);
+      searchIndex = null;
+    }
+  }
+
+  @Override
+  public void reset() {
+    super.reset();
+    cancelSearchIndex();
+  }
+
   @Override
   protected void fireLoadStartEvent() {
+    // The index is invalidated by any change of the tree, such as an edit of a command.
+    cancelSearchIndex();
     listeners.fire().onCommandsLoadingStart();
   }
 
   @Override
   protected void fireLoadedEvent() {
+    buildSearchIndex();
     listeners.fire().onCommandsLoaded();
     if (selection != null) {
       selectCommands(selection, true);
@@ -204,10 +343,10 @@ public class CommandStream
       return;
     }
 
-    RootNode root = (RootNode)getData();
+    Node root = getData();
     if (index.getNode() == null) {
       resolve(index.getCommand(), node -> selectCommands(index.withNode(node), force));
-    } else if (!index.getNode().getTree().equals(root.tree)) {
+    } else if (!index.getNode().getTree().equals(root.store.tree)) {
       // TODO
       throw new UnsupportedOperationException("This is not yet supported, needs API clarification");
     } else {
@@ -217,8 +356,8 @@ public class CommandStream
   }
 
   private void resolve(Path.Command command, Consumer<Path.CommandTreeNode> cb) {
-    RootNode root = (RootNode)getData();
-    Rpc.listen(client.get(commandTree(root.tree, command), root.device),
+    Node root = getData();
+    Rpc.listen(client.get(commandTree(root.store.tree, command), root.device),
         new UiCallback<Service.Value, Path.CommandTreeNode>(shell, LOG) {
       @Override
       protected Path.CommandTreeNode onRpcThread(Rpc.Result<Service.Value> result)
@@ -242,6 +381,92 @@ public class CommandStream
         });
   }
 
+  /**
+   * A prefetch of a range of children of a node. See {@link #prefetchChildren}.
+   */
+  public class Prefetch {
+    public final Node parent;
+    public final int from;
+    public final int to;
+    private final Map<Path.ConstantSet, ListenableFuture<Service.ConstantSet>> constantSets =
+        Maps.newHashMap();
+    private final Set<Node> inFlight = Sets.newHashSet();
+    private int next;
+    private boolean cancelled = false;
+
+    protected Prefetch(Node parent, int from, int to) {
+      this.parent = parent;
+      this.from = from;
+      this.to = to;
+      this.next = from;
+    }
+
+    /**
+     * @return whether the given child of the given node is part of this prefetch.
+     */
+    public boolean covers(Node node, int child) {
+      return child >= from && child < to && parent.equals(node);
+    }
+
+    /**
+     * Withdraws the requests of all pending loads of this prefetch. Loads that have also been
+     * requested by someone else are not cancelled.
+     */
+    public void cancel() {
+      List<Node> toRelease;
+      synchronized (this) {
+        cancelled = true;
+        toRelease = Lists.newArrayList(inFlight);
+        inFlight.clear();
+      }
+      toRelease.forEach(CommandStream.this::cancelLoad);
+    }
+
+    protected void pump() {
+      while (true) {
+        Node node;
+        synchronized (this) {
+          if (cancelled || next >= to || inFlight.size() >= PREFETCH_PARALLELISM) {
+            return;
+          }
+          node = parent.getChild(next++);
+        }
+
+        ListenableFuture<Node> future =
+            node.load(shell, () -> loadNodeData(node, this::loadConstants));
+        if (future == null) {
+          continue; // Already loaded.
+        }
+
+        synchronized (this) {
+          if (cancelled) {
+            cancelLoad(node);
+            return;
+          }
+          inFlight.add(node);
+        }
+        future.addListener(() -> {
+          synchronized (this) {
+            inFlight.remove(node);
+          }
+          pump();
+        }, EXECUTOR);
+      }
+    }
+
+    private synchronized ListenableFuture<Service.ConstantSet> loadConstants(
+        Path.ConstantSet path) {
+      return constantSets.computeIfAbsent(path, constants::loadConstants);
+    }
+  }
+
+  /**
+   * Loads the constant set for the given path.
+   */
+  private static interface ConstantLoader {
+    public ListenableFuture<Service.ConstantSet> load(Path.ConstantSet path);
+  }
+
   /**
    * An index into the command stream, representing a specific "point in time" in the trace.
    */
@@ -325,90 +550,90 @@ public class CommandStream
     }
   }
 
+  /**
+   * A node in the command tree. Nodes are light-weight views onto the data held by the
+   * {@link TreeStore} of the tree they belong to, so creating, hashing and comparing them is cheap.
+   */
   public static class Node extends DeviceDependentModel.Data {
-    private final Node parent;
-    private final int index;
-    private Node[] children;
-    private Service.CommandTreeNode data;
-    private API.Command command;
-    private ListenableFuture<Node> loadFuture;
-
-    public Node(Path.Device device, Service.CommandTreeNode data) {
-      super(device);
-      this.parent = null;
-      this.index = 0;
-      this.data = data;
-    }
+    protected final TreeStore store;
+    protected final int id;
 
-    public Node(Node parent, int index) {
-      super(parent.device);
-      this.parent = parent;
-      this.index = index;
+    protected Node(TreeStore store, int id) {
+      super(store.device);
+      this.store = store;
+      this.id = id;
     }
 
     public Node getParent() {
-      return parent;
+      return store.getParent(id);
     }
 
     public int getChildCount() {
-      return (data == null) ? 0 : (int)data.getNumChildren();
+      return store.getChildCount(id);
     }
 
     public Node getChild(int child) {
-      return getOrCreateChildren()[child];
+      return store.getChild(id, child);
     }
 
     public Node[] getChildren() {
-      return getOrCreateChildren().clone();
+      return store.getChildren(id);
     }
 
-    private Node[] getOrCreateChildren() {
-      if (children == null) {
-        Preconditions.checkState(data != null, "Querying children before loaded");
-        children = new Node[(int)data.getNumChildren()];
-        for (int i = 0; i < children.length; i++) {
-          children[i] = new Node(this, i);
-        }
-      }
-      return children;
+    public int getIndexInParent() {
+      return store.getIndexInParent(id);
     }
 
     public boolean isLastChild() {
-      return parent == null || (parent.getChildCount() - 1 == index);
+      return store.isLastChild(id);
     }
 
+    public boolean isLoaded() {
+      return store.isLoaded(id);
+    }
+
+    /**
+     * @return the data of this node, or {@code null} if not yet loaded. The returned proto is
+     *     re-created on each call, prefer the individual accessors where possible.
+     */
     public Service.CommandTreeNode getData() {
-      return data;
+      return store.getData(id);
+    }
+
+    /**
+     * @return whether this node represents a single command, rather than a group.
+     */
+    public boolean isCommand() {
+      return store.isLoaded(id) && store.getGroup(id).isEmpty() && store.hasCommands(id);
+    }
+
+    public String getGroup() {
+      return store.getGroup(id);
+    }
+
+    public long getNumCommands() {
+      return store.getNumCommands(id);
+    }
+
+    public Path.Commands getCommands() {
+      return store.getCommands(id);
     }
 
     public API.Command getCommand() {
-      return command;
+      return store.getCommand(id);
     }
 
     public Path.CommandTreeNode.Builder getPath(Path.CommandTreeNode.Builder path) {
-      return parent.getPath(path).addIndices(index);
+      return store.getPath(id, path);
     }
 
     public CommandIndex getIndex() {
-      return (data == null) ? null : CommandIndex.forNode(data.getRepresentation(),
+      return !store.isLoaded(id) ? null : CommandIndex.forNode(store.getRepresentation(id),
           getPath(Path.CommandTreeNode.newBuilder()).build());
     }
 
     public ListenableFuture<Node> load(Shell shell, Supplier<ListenableFuture<NodeData>> loader) {
-      if (data != null) {
-        // Already loaded.
-        return null;
-      } else if (loadFuture != null && !loadFuture.isCancelled()) {
-        return loadFuture;
-      }
-
-      return loadFuture = MoreFutures.transformAsync(loader.get(), newData ->
-        submitIfNotDisposed(shell, () -> {
-          data = newData.data;
-          command = newData.command;
-          loadFuture = null; // Don't hang on to listeners.
-          return Node.this;
-        }));
+      return store.load(id, shell, loader);
     }
 
     @Override
@@ -419,53 +644,334 @@ public class CommandStream
         return false;
       }
       Node n = (Node)obj;
-      return index == n.index && parent.equals(n.parent);
+      // Node ids are assigned in load order, so they are only meaningful within their own store.
+      return id == n.id && store == n.store;
     }
 
     @Override
     public int hashCode() {
-      return parent.hashCode() * 31 + index;
+      return System.identityHashCode(store) * 31 + id;
     }
 
     @Override
     public String toString() {
-      return parent + "/" + index +
-          (data == null ? "" : " " + data.getGroup() + data.getCommands().getToList());
+      return (id == TreeStore.ROOT) ? "Root" : getParent() + "/" + store.getIndexInParent(id) +
+          (isLoaded() ? " " + getGroup() + getCommands().getToList() : "");
     }
   }
 
-  private static class RootNode extends Node {
+  /**
+   * Compact storage of the loaded nodes of a command tree. The node data is held in parallel
+   * primitive arrays indexed by node id. The children of a node are assigned consecutive ids the
+   * first time they are requested, so a child is located with simple arithmetic. Group names are
+   * interned in a string table and nodes whose data does not fit the compact representation,
+   * such as sub-command ranges, keep their proto in a side table.
+   */
+  protected static class TreeStore {
+    protected static final int ROOT = 0;
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final int NOT_LOADED = -1;
+    private static final int NO_CHILDREN = -1;
+    private static final int NO_GROUP = -1;
+    private static final int OVERFLOW = -2;
+
+    public final Path.Device device;
     public final Path.ID tree;
-
-    public RootNode(Path.Device device, Path.ID tree, Service.CommandTreeNode data) {
-      super(device, data);
+    private final Path.Capture capture;
+
+    private int size = 0;
+    private int[] parents = new int[INITIAL_CAPACITY];
+    private int[] firstChildren = new int[INITIAL_CAPACITY];
+    private int[] childCounts = new int[INITIAL_CAPACITY];
+    private int[] groups = new int[INITIAL_CAPACITY];
+    private long[] firstCommands = new long[INITIAL_CAPACITY];
+    private long[] lastCommands = new long[INITIAL_CAPACITY];
+    private long[] commandCounts = new long[INITIAL_CAPACITY];
+    private API.Command[] commands = new API.Command[INITIAL_CAPACITY];
+
+    private final List<String> groupNames = Lists.newArrayList();
+    private final Map<String, Integer> groupIds = Maps.newHashMap();
+    private final Map<Integer, Service.CommandTreeNode> overflow = Maps.newHashMap();
+    private final Map<Integer, Loading> loading = Maps.newHashMap();
+
+    public TreeStore(Path.Device device, Path.ID tree, Service.CommandTreeNode root) {
+      this.device = device;
       this.tree = tree;
+      this.capture = root.getCommands().getCapture();
+      allocate(NO_CHILDREN, 1);
+      setData(ROOT, root, null);
     }
 
-    @Override
-    public Path.CommandTreeNode.Builder getPath(Path.CommandTreeNode.Builder path) {
-      return path.setTree(tree);
+    public Node getRoot() {
+      return new Node(this, ROOT);
     }
 
-    @Override
-    public String toString() {
-      return "Root";
+    public synchronized Node getParent(int id) {
+      return (id == ROOT) ? null : new Node(this, parents[id]);
     }
 
-    @Override
-    public boolean equals(Object obj) {
-      if (obj == this) {
-        return true;
-      } else if (!(obj instanceof RootNode)) {
-        return false;
+    public synchronized int getIndexInParent(int id) {
+      return (id == ROOT) ? 0 : id - firstChildren[parents[id]];
+    }
+
+    public synchronized int getChildCount(int id) {
+      return Math.max(0, childCounts[id]);
+    }
+
+    public synchronized Node getChild(int id, int child) {
+      Preconditions.checkElementIndex(child, getChildCount(id));
+      return new Node(this, getOrAllocateChildren(id) + child);
+    }
+
+    public synchronized Node[] getChildren(int id) {
+      Node[] result = new Node[getChildCount(id)];
+      int first = getOrAllocateChildren(id);
+      for (int i = 0; i < result.length; i++) {
+        result[i] = new Node(this, first + i);
       }
-      RootNode n = (RootNode)obj;
-      return device.equals(n.device) && tree.equals(n.tree);
+      return result;
     }
 
-    @Override
-    public int hashCode() {
-      return device.hashCode() * 31 + tree.hashCode();
+    private int getOrAllocateChildren(int id) {
+      Preconditions.checkState(childCounts[id] != NOT_LOADED, "Querying children before loaded");
+      if (firstChildren[id] == NO_CHILDREN) {
+        firstChildren[id] = allocate(id, childCounts[id]);
+      }
+      return firstChildren[id];
+    }
+
+    public synchronized boolean isLastChild(int id) {
+      return id == ROOT || id - firstChildren[parents[id]] == childCounts[parents[id]] - 1;
+    }
+
+    public synchronized boolean isLoaded(int id) {
+      return childCounts[id] != NOT_LOADED;
+    }
+
+    public synchronized String getGroup(int id) {
+      switch (groups[id]) {
+        case NO_GROUP: return "";
+        case OVERFLOW: return overflow.get(id).getGroup();
+        default: return groupNames.get(groups[id]);
+      }
+    }
+
+    public synchronized boolean hasCommands(int id) {
+      return groups[id] != OVERFLOW || overflow.get(id).hasCommands();
+    }
+
+    public synchronized long getNumCommands(int id) {
+      return commandCounts[id];
+    }
+
+    public synchronized Path.Commands getCommands(int id) {
+      if (!isLoaded(id)) {
+        return null;
+      } else if (groups[id] == OVERFLOW) {
+        return overflow.get(id).getCommands();
+      }
+      return Path.Commands.newBuilder()
+          .setCapture(capture)
+          .addFrom(firstCommands[id])
+          .addTo(lastCommands[id])
+          .build();
+    }
+
+    public synchronized Path.Command getRepresentation(int id) {
+      if (!isLoaded(id)) {
+        return null;
+      } else if (groups[id] == OVERFLOW) {
+        return overflow.get(id).getRepresentation();
+      }
+      return Path.Command.newBuilder()
+          .setCapture(capture)
+          .addIndices(lastCommands[id])
+          .build();
+    }
+
+    public synchronized API.Command getCommand(int id) {
+      return commands[id];
+    }
+
+    /**
+     * @return the command of the given, not yet loaded, node if it can be derived from its
+     *     parent, or {@code null}. This is the case when each child of the parent represents a
+     *     single command.
+     */
+    public synchronized Path.Command predictCommand(int id) {
+      if (id == ROOT) {
+        return null;
+      }
+      int parent = parents[id];
+      if (groups[parent] == OVERFLOW || childCounts[parent] != commandCounts[parent]) {
+        return null;
+      }
+      return Path.Command.newBuilder()
+          .setCapture(capture)
+          .addIndices(firstCommands[parent] + id - firstChildren[parent])
+          .build();
+    }
+
+    public synchronized Service.CommandTreeNode getData(int id) {
+      if (!isLoaded(id)) {
+        return null;
+      } else if (groups[id] == OVERFLOW) {
+        return overflow.get(id);
+      }
+      return Service.CommandTreeNode.newBuilder()
+          .setRepresentation(getRepresentation(id))
+          .setNumChildren(childCounts[id])
+          .setGroup(getGroup(id))
+          .setCommands(getCommands(id))
+          .setNumCommands(commandCounts[id])
+          .build();
+    }
+
+    /**
+     * Builds the path of the given node by walking up the parent array.
+     */
+    public synchronized Path.CommandTreeNode.Builder getPath(
+        int id, Path.CommandTreeNode.Builder path) {
+      path.setTree(tree);
+      int depth = 0;
+      for (int n = id; n != ROOT; n = parents[n]) {
+        depth++;
+      }
+      long[] indices = new long[depth];
+      for (int n = id; n != ROOT; n = parents[n]) {
+        indices[--depth] = n - firstChildren[parents[n]];
+      }
+      for (long index : indices) {
+        path.addIndices(index);
+      }
+      return path;
+    }
+
+    public ListenableFuture<Node> load(
+        int id, Shell shell, Supplier<ListenableFuture<NodeData>> loader) {
+      // The pending load is registered before the loader is invoked, so that concurrent loads of
+      // the same node, such as a prefetch and a load from the UI, share a single request.
+      SettableFuture<Node> future = SettableFuture.create();
+      synchronized (this) {
+        if (isLoaded(id)) {
+          return null;
+        }
+        Loading pending = loading.get(id);
+        if (pending != null && !pending.future.isCancelled()) {
+          pending.requests++;
+          return pending.future;
+        }
+        loading.put(id, new Loading(future));
+      }
+
+      try {
+        future.setFuture(MoreFutures.transformAsync(loader.get(), newData ->
+          submitIfNotDisposed(shell, () -> {
+            synchronized (this) {
+              setData(id, newData.data, newData.command);
+              loading.remove(id); // Don't hang on to listeners.
+            }
+            return new Node(this, id);
+          })));
+      } catch (RuntimeException e) {
+        synchronized (this) {
+          loading.remove(id);
+        }
+        future.setException(e);
+      }
+      return future;
+    }
+
+    /**
+     * Withdraws one request of the pending load of the given node, cancelling the load if it was
+     * the last one.
+     */
+    public void release(int id) {
+      ListenableFuture<Node> toCancel = null;
+      synchronized (this) {
+        Loading pending = loading.get(id);
+        if (pending != null && --pending.requests <= 0) {
+          loading.remove(id);
+          toCancel = pending.future;
+        }
+      }
+      if (toCancel != null) {
+        toCancel.cancel(true);
+      }
+    }
+
+    private void setData(int id, Service.CommandTreeNode data, API.Command command) {
+      Path.Commands cmds = data.getCommands();
+      boolean compact = cmds.getFromCount() == 1 && cmds.getToCount() == 1 &&
+          cmds.getCapture().equals(capture) && data.getNumChildren() <= Integer.MAX_VALUE &&
+          data.getRepresentation().getIndicesCount() == 1 &&
+          data.getRepresentation().getIndices(0) == cmds.getTo(0) &&
+          data.getRepresentation().getCapture().equals(capture);
+      childCounts[id] = (int)data.getNumChildren();
+      commandCounts[id] = data.getNumCommands();
+      commands[id] = command;
+      if (compact) {
+        firstCommands[id] = cmds.getFrom(0);
+        lastCommands[id] = cmds.getTo(0);
+        groups[id] = internGroup(data.getGroup());
+      } else {
+        groups[id] = OVERFLOW;
+        overflow.put(id, data);
+      }
+    }
+
+    private int internGroup(String group) {
+      if (group.isEmpty()) {
+        return NO_GROUP;
+      }
+      Integer result = groupIds.get(group);
+      if (result == null) {
+        result = groupNames.size();
+        groupNames.add(group);
+        groupIds.put(group, result);
+      }
+      return result;
+    }
+
+    /**
+     * Allocates the given number of consecutive, not yet loaded nodes with the given parent.
+     * @return the id of the first allocated node.
+     */
+    private int allocate(int parent, int count) {
+      int first = size;
+      ensureCapacity(size + count);
+      for (int i = first; i < first + count; i++) {
+        parents[i] = parent;
+        firstChildren[i] = NO_CHILDREN;
+        childCounts[i] = NOT_LOADED;
+        groups[i] = NO_GROUP;
+      }
+      size += count;
+      return first;
+    }
+
+    private void ensureCapacity(int capacity) {
+      if (capacity <= parents.length) {
+        return;
+      }
+      int newCapacity = Math.max(capacity, parents.length + (parents.length >> 1));
+      parents = Arrays.copyOf(parents, newCapacity);
+      firstChildren = Arrays.copyOf(firstChildren, newCapacity);
+      childCounts = Arrays.copyOf(childCounts, newCapacity);
+      groups = Arrays.copyOf(groups, newCapacity);
+      firstCommands = Arrays.copyOf(firstCommands, newCapacity);
+      lastCommands = Arrays.copyOf(lastCommands, newCapacity);
+      commandCounts = Arrays.copyOf(commandCounts, newCapacity);
+      commands = Arrays.copyOf(commands, newCapacity);
+    }
+  }
+
+  private static class Loading {
+    public final ListenableFuture<Node> future;
+    public int requests = 1;
+
+    public Loading(ListenableFuture<Node> future) {
+      this.future = future;
     }
   }
 
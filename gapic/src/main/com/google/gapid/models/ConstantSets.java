@@ -17,6 +17,8 @@ package com.google.gapid.models;
 
 import static com.google.gapid.util.Paths.constantSet;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.Lists;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
@@ -32,15 +34,28 @@ import com.google.gapid.util.FutureCache;
 import com.google.gapid.util.MoreFutures;
 import com.google.gapid.util.Pods;
 
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
 
 public class ConstantSets {
+  // Sets with at most this many constants are searched linearly rather than indexed.
+  private static final int MAX_UNINDEXED_SIZE = 8;
+  // The lookup indices of the constant sets. The sets are keyed by identity and the indices are
+  // kept for as long as their sets are.
+  private static final Cache<Service.ConstantSet, Index> INDICES =
+      CacheBuilder.newBuilder().weakKeys().build();
+
   protected final FutureCache<Path.ConstantSet, Service.ConstantSet> cache;
 
   public ConstantSets(Client client, Devices devices) {
     this.cache = FutureCache.hardCache(
         path -> MoreFutures.transform(client.get(constantSet(path), devices.getReplayDevicePath()),
-            Service.Value::getConstantSet),
+            value -> {
+              Service.ConstantSet set = value.getConstantSet();
+              index(set); // Build the index now, rather than while formatting.
+              return set;
+            }),
         result -> result.getConstantsCount() != 0);
 
     devices.addListener(new Devices.Listener() {
@@ -94,12 +109,167 @@ public class ConstantSets {
     if (!Pods.mayBeConstant(value)) {
       return Service.Constant.getDefaultInstance();
     }
-    long numValue = Pods.getConstant(value);
-    for (Service.Constant constant : constants.getConstantsList()) {
-      if (constant.getValue() == numValue) {
-        return constant;
+    Service.Constant result = index(constants).find(Pods.getConstant(value));
+    return (result == null) ? Service.Constant.getDefaultInstance() : result;
+  }
+
+  /**
+   * Returns the lookup index of the given constant set. The index is built on first use and then
+   * kept alongside the set.
+   */
+  public static Index index(Service.ConstantSet constants) {
+    if (constants.getConstantsCount() <= MAX_UNINDEXED_SIZE) {
+      return new Index(constants);
+    }
+    try {
+      return INDICES.get(constants, () -> new Index(constants).build());
+    } catch (ExecutionException e) {
+      throw new RuntimeException(e.getCause());
+    }
+  }
+
+  /**
+   * Lookup index of a {@link Service.ConstantSet}. Maps values to constants using a hash table and
+   * decomposes bitfield values using a table of the single bit constants, so neither needs to
+   * scan all the constants of the set. Small sets are not indexed and are simply scanned.
+   */
+  public static class Index {
+    private static final int[] NONE = new int[0];
+
+    private final Service.ConstantSet set;
+    // Open addressing hash table from value to the index of the first constant with that value.
+    private long[] keys;
+    private int[] values;
+    private int mask;
+    // For each bit, the indices of the constants that consist of only that bit.
+    private int[][] singleBits;
+    // The indices of the constants that are zero or consist of multiple bits.
+    private int[] otherBits;
+
+    protected Index(Service.ConstantSet set) {
+      this.set = set;
+    }
+
+    protected Index build() {
+      int count = set.getConstantsCount();
+      int capacity = Integer.highestOneBit(Math.max(2, count) * 2 - 1) * 2;
+      keys = new long[capacity];
+      values = new int[capacity];
+      Arrays.fill(values, -1);
+      mask = capacity - 1;
+
+      int[] bitCounts = new int[64];
+      int otherCount = 0;
+      for (int i = 0; i < count; i++) {
+        long value = set.getConstants(i).getValue();
+        int slot = slot(value);
+        if (values[slot] < 0) {
+          keys[slot] = value;
+          values[slot] = i;
+        }
+        if (Long.bitCount(value) == 1) {
+          bitCounts[Long.numberOfTrailingZeros(value)]++;
+        } else {
+          otherCount++;
+        }
+      }
+
+      singleBits = new int[64][];
+      for (int bit = 0; bit < 64; bit++) {
+        singleBits[bit] = (bitCounts[bit] == 0) ? NONE : new int[bitCounts[bit]];
+        bitCounts[bit] = 0;
+      }
+      otherBits = new int[otherCount];
+      otherCount = 0;
+      for (int i = 0; i < count; i++) {
+        long value = set.getConstants(i).getValue();
+        if (Long.bitCount(value) == 1) {
+          int bit = Long.numberOfTrailingZeros(value);
+          singleBits[bit][bitCounts[bit]++] = i;
+        } else {
+          otherBits[otherCount++] = i;
+        }
+      }
+      return this;
+    }
+
+    private int slot(long value) {
+      int slot = (int)(mix(value) & mask);
+      while (values[slot] >= 0 && keys[slot] != value) {
+        slot = (slot + 1) & mask;
+      }
+      return slot;
+    }
+
+    private static long mix(long value) {
+      value *= 0x9E3779B97F4A7C15L;
+      return value ^ (value >>> 32);
+    }
+
+    /**
+     * @return the first constant with the given value, or {@code null} if there is none.
+     */
+    public Service.Constant find(long value) {
+      if (keys == null) {
+        for (Service.Constant constant : set.getConstantsList()) {
+          if (constant.getValue() == value) {
+            return constant;
+          }
+        }
+        return null;
+      }
+
+      int index = values[slot(value)];
+      return (index < 0) ? null : set.getConstants(index);
+    }
+
+    /**
+     * Decomposes the given bitfield value into constants. The constants are considered in the
+     * order of the set and each one is picked if all its bits are set and haven't been claimed by
+     * a previously picked constant.
+     *
+     * @param out the list the picked constants are added to, in the order of the set.
+     * @return the remaining bits that are not covered by any of the picked constants.
+     */
+    public long decompose(long bits, List<Service.Constant> out) {
+      if (keys == null) {
+        for (Service.Constant constant : set.getConstantsList()) {
+          if ((bits & constant.getValue()) == constant.getValue()) {
+            out.add(constant);
+            bits &= ~constant.getValue();
+          }
+        }
+        return bits;
+      }
+
+      // Only constants whose bits are a subset of the value can be picked, gather those.
+      int singleCount = 0;
+      for (long rest = bits; rest != 0; rest &= rest - 1) {
+        singleCount += singleBits[Long.numberOfTrailingZeros(rest)].length;
+      }
+      int[] candidates = new int[singleCount + otherBits.length];
+      int count = 0;
+      for (long rest = bits; rest != 0; rest &= rest - 1) {
+        for (int index : singleBits[Long.numberOfTrailingZeros(rest)]) {
+          candidates[count++] = index;
+        }
+      }
+      for (int index : otherBits) {
+        long value = set.getConstants(index).getValue();
+        if ((bits & value) == value) {
+          candidates[count++] = index;
+        }
+      }
+      Arrays.sort(candidates, 0, count);
+
+      for (int i = 0; i < count; i++) {
+        Service.Constant constant = set.getConstants(candidates[i]);
+        if ((bits & constant.getValue()) == constant.getValue()) {
+          out.add(constant);
+          bits &= ~constant.getValue();
+        }
       }
+      return bits;
     }
-    return Service.Constant.getDefaultInstance();
   }
 }
@@ -15,13 +15,19 @@
  */
 package com.google.gapid.models;
 
+import static com.google.common.util.concurrent.MoreExecutors.directExecutor;
 import static com.google.gapid.util.Paths.lastCommand;
+import static com.google.gapid.util.Scheduler.EXECUTOR;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.logging.Level.FINE;
 import static java.util.logging.Level.WARNING;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.gapid.proto.service.api.API;
 import com.google.gapid.proto.service.path.Path;
@@ -40,9 +46,15 @@ import com.google.gapid.util.Paths;
 
 import org.eclipse.swt.widgets.Shell;
 
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
 import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -58,10 +70,19 @@ public class Follower {
 
   protected static final Logger LOG = Logger.getLogger(Follower.class.getName());
   private static final int FOLLOW_TIMEOUT_MS = 1000;
+  private static final int RESULT_CACHE_SIZE = 20000;
+  // How long the UI has to be idle before the follow paths of the shown nodes are prefetched.
+  private static final long IDLE_PREFETCH_DELAY_MS = 500;
+  private static final int IDLE_PREFETCH_MAX_NODES = 50;
 
   private final Shell shell;
   private final Client client;
   private final ListenerCollection<Listener> listeners = Events.listeners(Listener.class);
+  // Follow results by device and path. Paths that cannot be followed map to an empty result.
+  private final Cache<List<Object>, Optional<Path.Any>> results =
+      CacheBuilder.newBuilder().maximumSize(RESULT_CACHE_SIZE).build();
+  private final Deque<CommandStream.Node> idleQueue = new ArrayDeque<CommandStream.Node>();
+  private ScheduledFuture<?> idlePrefetch;
 
   public Follower(Shell shell, Client client) {
     this.shell = shell;
@@ -69,30 +90,39 @@ public class Follower {
   }
 
   /**
-   * Prefetches all the follow paths for the given command tree node.
+   * Prefetches all the follow paths for the given command tree node. The paths of all the
+   * parameters and the result are requested as one batch, which is sent right away. Paths with a
+   * known result are answered from the cache.
    */
   public Prefetcher<String> prepare(CommandStream.Node node, Runnable onResult) {
-    if (node.getData() == null || node.getCommand() == null) {
+    if (!node.isLoaded() || node.getCommand() == null) {
       return nullPrefetcher();
     }
 
-    Path.Command path = lastCommand(node.getData().getCommands());
-    API.Command command = node.getCommand();
-
     LazyMap<String, Path.Any> paths = new LazyMap<String, Path.Any>();
-    List<ListenableFuture<Path.Any>> futures = Lists.newArrayList();
-    for (API.Parameter p : command.getParametersList()) {
-      Path.Any follow = Paths.commandField(path, p.getName());
-      ListenableFuture<Path.Any> future = client.follow(follow, node.device);
-      MoreFutures.addCallback(future, callback(follow, v -> paths.put(p.getName(), v), onResult));
-      futures.add(future);
+    List<ListenableFuture<Optional<Path.Any>>> futures = Lists.newArrayList();
+    boolean known = false;
+    for (Candidate candidate : getCandidates(node)) {
+      ListenableFuture<Optional<Path.Any>> future =
+          follow(candidate.path, node.device);
+      if (future.isDone()) {
+        Path.Any result = getDone(future);
+        if (result != null) {
+          paths.put(candidate.name, result);
+          known = true;
+        }
+      } else {
+        MoreFutures.addCallback(future,
+            callback(candidate.path, v -> paths.put(candidate.name, v), onResult));
+        futures.add(future);
+      }
     }
-
-    if (command.hasResult()) {
-      Path.Any follow = Paths.commandResult(path);
-      ListenableFuture<Path.Any> future = client.follow(follow, node.device);
-      MoreFutures.addCallback(future, callback(follow, v -> paths.put(RESULT_NAME, v), onResult));
-      futures.add(future);
+    if (!futures.isEmpty()) {
+      // Don't wait for the coalescing window, the user is waiting for these.
+      client.flush();
+    }
+    if (known) {
+      onResult.run();
     }
 
     return new Prefetcher<String>() {
@@ -119,17 +149,28 @@ public class Follower {
     Path.Any path = node.getData().getValuePath();
 
     ObjectStore<Path.Any> result = ObjectStore.create();
-    ListenableFuture<Path.Any> future = client.follow(path, node.device);
-    MoreFutures.addCallback(future, callback(path, v -> {
-      synchronized(result) {
-        result.update(v);
+    ListenableFuture<Optional<Path.Any>> future = follow(path, node.device);
+    if (future.isDone()) {
+      Path.Any value = getDone(future);
+      if (value != null) {
+        result.update(value);
+        onResult.run();
       }
-    }, onResult));
+    } else {
+      MoreFutures.addCallback(future, callback(path, v -> {
+        synchronized(result) {
+          result.update(v);
+        }
+      }, onResult));
+      client.flush();
+    }
 
     return new Prefetcher<Void>() {
       @Override
       public Path.Any canFollow(Void ignored) {
-        return result.get();
+        synchronized (result) {
+          return result.get();
+        }
       }
 
       @Override
@@ -139,28 +180,124 @@ public class Follower {
     };
   }
 
-  private static FutureCallback<Path.Any> callback(
-      Path.Any follow, Consumer<Path.Any> store, Runnable onResult) {
-    return new FutureCallback<Path.Any>() {
-      @Override
-      public void onSuccess(Path.Any result) {
-        store.accept(result);
-        onResult.run();
+  /**
+   * Queues the given, shown, command tree node to have its follow paths prefetched once the UI
+   * has been idle for a while, so link highlighting is instant once the node is hovered. Only the
+   * most recently shown nodes are kept.
+   */
+  public void prefetchWhenIdle(CommandStream.Node node) {
+    synchronized (idleQueue) {
+      idleQueue.remove(node);
+      idleQueue.addFirst(node);
+      while (idleQueue.size() > IDLE_PREFETCH_MAX_NODES) {
+        idleQueue.removeLast();
+      }
+      if (idlePrefetch != null) {
+        idlePrefetch.cancel(false);
+      }
+      idlePrefetch = EXECUTOR.schedule(this::prefetchIdle, IDLE_PREFETCH_DELAY_MS, MILLISECONDS);
+    }
+  }
 
-        if (logFollowRequests.get()) {
-          LOG.log(FINE, "Follow result: {0} -> {1}", new Object[] { follow, result });
+  private void prefetchIdle() {
+    List<CommandStream.Node> nodes;
+    synchronized (idleQueue) {
+      nodes = Lists.newArrayList(idleQueue);
+      idleQueue.clear();
+      idlePrefetch = null;
+    }
+
+    int count = 0;
+    for (CommandStream.Node node : nodes) {
+      if (node.isLoaded() && node.getCommand() != null) {
+        for (Candidate candidate : getCandidates(node)) {
+          if (!follow(candidate.path, node.device).isDone()) {
+            count++;
+          }
         }
       }
+    }
+    if (count > 0 && logFollowRequests.get()) {
+      LOG.log(FINE, "Prefetching {0} follow paths of {1} idle nodes",
+          new Object[] { count, nodes.size() });
+    }
+  }
+
+  /**
+   * Follows the given path, using and updating the result cache. The returned future resolves to
+   * an empty result if the path cannot be followed. Cancelling it does not cancel the request, so
+   * its result is still cached.
+   */
+  private ListenableFuture<Optional<Path.Any>> follow(Path.Any path, Path.Device device) {
+    List<Object> key = Arrays.asList(device, path);
+    Optional<Path.Any> cached = results.getIfPresent(key);
+    if (cached != null) {
+      return Futures.immediateFuture(cached);
+    }
+
+    ListenableFuture<Optional<Path.Any>> found =
+        MoreFutures.transform(client.follow(path, device), Optional::of);
+    ListenableFuture<Optional<Path.Any>> result = Futures.catching(
+        found, PathNotFollowableException.class, e -> Optional.empty(), directExecutor());
+    MoreFutures.addCallback(result, new FutureCallback<Optional<Path.Any>>() {
+      @Override
+      public void onSuccess(Optional<Path.Any> value) {
+        results.put(key, value);
+      }
 
       @Override
       public void onFailure(Throwable t) {
-        if (t instanceof PathNotFollowableException) {
+        // Not cached, the follow will be retried.
+      }
+    });
+    return Futures.nonCancellationPropagating(result);
+  }
+
+  private static Path.Any getDone(ListenableFuture<Optional<Path.Any>> future) {
+    try {
+      return Futures.getDone(future).orElse(null);
+    } catch (ExecutionException | CancellationException e) {
+      return null;
+    }
+  }
+
+  private static List<Candidate> getCandidates(CommandStream.Node node) {
+    Path.Command path = lastCommand(node.getCommands());
+    API.Command command = node.getCommand();
+    List<Candidate> result = Lists.newArrayList();
+    for (API.Parameter p : command.getParametersList()) {
+      result.add(new Candidate(p.getName(), Paths.commandField(path, p.getName())));
+    }
+    if (command.hasResult()) {
+      result.add(new Candidate(RESULT_NAME, Paths.commandResult(path)));
+    }
+    return result;
+  }
+
+  private static FutureCallback<Optional<Path.Any>> callback(
+      Path.Any follow, Consumer<Path.Any> store, Runnable onResult) {
+    return new FutureCallback<Optional<Path.Any>>() {
+      @Override
+      public void onSuccess(Optional<Path.Any> result) {
+        if (result.isPresent()) {
+          store.accept(result.get());
+          onResult.run();
+
+          if (logFollowRequests.get()) {
+            LOG.log(FINE, "Follow result: {0} -> {1}", new Object[] { follow, result.get() });
+          }
+        } else {
           onResult.run();
 
           if (logFollowRequests.get()) {
             LOG.log(FINE, "Path {0} not followable", follow);
           }
-        } else if (logFollowRequests.get()) {
+        }
+      }
+
+      @Override
+      public void onFailure(Throwable t) {
+        if (logFollowRequests.get()) {
           LOG.log(FINE, "Follow failure:", t);
         }
       }
@@ -282,6 +419,19 @@ public class Follower {
     public void cancel();
   }
 
+  /**
+   * A command field that may be followable.
+   */
+  private static class Candidate {
+    public final String name;
+    public final Path.Any path;
+
+    public Candidate(String name, Path.Any path) {
+      this.name = name;
+      this.path = path;
+    }
+  }
+
   /**
    * Map that synchronizes access and only allocates backing storage once non-empty.
    */
@@ -17,18 +17,20 @@ package com.google.gapid.models;
 
 import static com.google.gapid.models.DeviceDependentModel.Source.withSource;
 import static com.google.gapid.proto.service.memory.Memory.PoolNames.Application_VALUE;
-import static com.google.gapid.util.Paths.memoryAfter;
 import static com.google.gapid.util.Paths.type;
 import static com.google.gapid.util.Ranges.memory;
 import static com.google.gapid.util.Ranges.merge;
 import static com.google.gapid.util.Ranges.relative;
 
 import com.google.common.collect.Lists;
-import com.google.common.collect.Maps;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 import com.google.common.primitives.UnsignedLongs;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.gapid.models.CommandStream.CommandIndex;
+import com.google.gapid.proto.device.Device;
 import com.google.gapid.proto.service.Service;
 import com.google.gapid.proto.service.memory_box.MemoryBox;
 import com.google.gapid.proto.service.path.Path;
@@ -42,17 +44,21 @@ import com.google.gapid.util.MoreFutures;
 import com.google.gapid.util.Paths;
 import com.google.gapid.util.Ranges;
 import com.google.gapid.util.TypeInfos;
+import com.google.protobuf.ByteString;
 
 import org.eclipse.swt.widgets.Shell;
 
-import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.BitSet;
+import java.util.Arrays;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.function.LongConsumer;
 import java.util.logging.Logger;
 
 /**
@@ -63,18 +69,36 @@ public class Memory extends DeviceDependentModel<Memory.Data, Memory.Source, Voi
   private static final Logger LOG = Logger.getLogger(Memory.class.getName());
 
   private final CommandStream commands;
+  private final MemoryPageCache pages;
 
   public Memory(
       Shell shell, Analytics analytics, Client client, Devices devices, CommandStream commands) {
     super(LOG, shell, analytics, client, Listener.class, devices);
     this.commands = commands;
+    this.pages = new MemoryPageCache(client);
 
     commands.addListener(new CommandStream.Listener() {
+      @Override
+      public void onCommandsLoaded() {
+        // A new capture has been loaded.
+        pages.clear();
+      }
+
       @Override
       public void onCommandsSelected(CommandIndex selection) {
         load(withSource(getSource(), new Source(selection, getPool())), false);
       }
     });
+    devices.addListener(new Devices.Listener() {
+      @Override
+      public void onReplayDeviceChanged(Device.Instance dev) {
+        pages.clear();
+      }
+    });
+  }
+
+  public MemoryPageCache getPageCache() {
+    return pages;
   }
 
   public int getPool() {
@@ -89,6 +113,7 @@ public class Memory extends DeviceDependentModel<Memory.Data, Memory.Source, Voi
   @Override
   protected ListenableFuture<Data> doLoad(Source source, Path.Device device) {
     return MoreFutures.transform(commands.getMemory(device, source.command), memory -> {
+      pages.addObservations(source.command, memory);
       List<Service.MemoryRange> reads = merge(memory.getReadsList());
       List<Service.MemoryRange> writes = merge(memory.getWritesList());
       List<Service.TypedMemoryRange> typeds = memory.getTypedRangesList();
@@ -107,7 +132,7 @@ public class Memory extends DeviceDependentModel<Memory.Data, Memory.Source, Voi
         structObs[idx++] = new StructObservation(typed, source, device);
       }
 
-      return new Data(device, client, source, obs, structObs);
+      return new Data(device, pages, source, obs, structObs);
     });
   }
 
@@ -157,23 +182,31 @@ public class Memory extends DeviceDependentModel<Memory.Data, Memory.Source, Voi
 
   public static class Data extends DeviceDependentModel.Data {
     private static final long MAX_ADDR = -1;
-    private static final int PAGE_SIZE = 0x10000;
+    private static final int PAGE_SIZE = MemoryPageCache.PAGE_SIZE;
+    // Number of pages to prefetch ahead of sequential loads.
+    private static final int READ_AHEAD_PAGES = 4;
 
-    private final Client client;
+    private final MemoryPageCache pages;
     private final Source src;
     private final Observation[] observations;
     private final StructObservation[] structObservations;
-    private final Map<Long, SoftReference<Segment>> cache = Maps.newHashMap();
+    // The pages of the last load and the direction of the loads, used to detect scrolling.
+    private long lastFirstPage = -1, lastLastPage = -1;
+    private int direction = 0;
 
-    public Data(Path.Device device, Client client, Source src, Observation[] observations,
+    public Data(Path.Device device, MemoryPageCache pages, Source src, Observation[] observations,
         StructObservation[] structObservations) {
       super(device);
-      this.client = client;
+      this.pages = pages;
       this.src = src;
       this.observations = observations;
       this.structObservations = structObservations;
     }
 
+    public CommandIndex getCommand() {
+      return src.command;
+    }
+
     public int getPool() {
       return src.pool;
     }
@@ -192,88 +225,102 @@ public class Memory extends DeviceDependentModel<Memory.Data, Memory.Source, Voi
 
     public ListenableFuture<Segment> load(long offset, int length) {
       length = (int)UnsignedLongs.min(MAX_ADDR - offset, length - 1) + 1;
+      ListenableFuture<Segment> result = loadPages(offset, length);
+      readAhead(getPageForOffset(offset), getPageForOffset(offset + length - 1));
+      return result;
+    }
+
+    /**
+     * Loads the given memory without reading ahead, for loads that are not part of the scrolling
+     * of the view, such as searches and exports.
+     */
+    public ListenableFuture<Segment> loadPages(long offset, int length) {
+      length = (int)UnsignedLongs.min(MAX_ADDR - offset, length - 1) + 1;
 
       long firstPage = getPageForOffset(offset);
       long lastPage = getPageForOffset(offset + length - 1);
+      ListenableFuture<Segment> result;
       if (firstPage == lastPage) {
-        return getPage(firstPage, getOffsetInPage(offset), length);
-      }
-      List<ListenableFuture<Segment>> futures = Lists.newArrayList();
-      futures.add(getPage(firstPage, getOffsetInPage(offset), PAGE_SIZE - getOffsetInPage(offset)));
-      for (long page = firstPage + 1, left = length - PAGE_SIZE + getOffsetInPage(offset);
-          page <= lastPage; page++, left -= PAGE_SIZE) {
-        futures.add(getPage(page, 0, (int)Math.min(left, PAGE_SIZE)));
-      }
-
-      final int totalLength = length;
-      return MoreFutures.transform(
-          Futures.allAsList(futures), segments -> Segment.combine(segments, totalLength));
-    }
+        result = getPage(firstPage, getOffsetInPage(offset), length);
+      } else {
+        List<ListenableFuture<Segment>> futures = Lists.newArrayList();
+        futures.add(
+            getPage(firstPage, getOffsetInPage(offset), PAGE_SIZE - getOffsetInPage(offset)));
+        for (long page = firstPage + 1, left = length - PAGE_SIZE + getOffsetInPage(offset);
+            page <= lastPage; page++, left -= PAGE_SIZE) {
+          futures.add(getPage(page, 0, (int)Math.min(left, PAGE_SIZE)));
+        }
 
-    private ListenableFuture<Segment> getPage(long page, int offset, int length) {
-      return MoreFutures.transform(getFromCacheOrServer(page),
-          memory -> memory.subSegment(offset, length));
+        final int totalLength = length;
+        result = MoreFutures.transform(
+            Futures.allAsList(futures), segments -> Segment.combine(segments, totalLength));
+      }
+      return result;
     }
 
-    private ListenableFuture<Segment> getFromCacheOrServer(long page) {
-      Segment cached = null;
-      synchronized (cache) {
-        SoftReference<Segment> reference = cache.get(page);
-        if (reference != null) {
-          cached = reference.get();
-          if (cached == null) {
-            cache.remove(page);
-          }
+    /**
+     * Prefetches the pages following the given pages, if the loads are moving sequentially through
+     * memory, e.g. because the view is being scrolled.
+     */
+    private void readAhead(long firstPage, long lastPage) {
+      // Page numbers are always positive, as they are at most MAX_ADDR / PAGE_SIZE.
+      long from, to;
+      synchronized (this) {
+        if (lastFirstPage >= 0 && lastPage > lastLastPage && firstPage >= lastFirstPage) {
+          direction = 1;
+        } else if (lastFirstPage >= 0 && firstPage < lastFirstPage && lastPage <= lastLastPage) {
+          direction = -1;
+        } else if (firstPage != lastFirstPage || lastPage != lastLastPage) {
+          direction = 0;
+        }
+        lastFirstPage = firstPage;
+        lastLastPage = lastPage;
+
+        if (direction > 0) {
+          from = lastPage + 1;
+          to = Math.min(lastPage + READ_AHEAD_PAGES, getPageForOffset(MAX_ADDR));
+        } else if (direction < 0) {
+          from = Math.max(firstPage - READ_AHEAD_PAGES, 0);
+          to = firstPage - 1;
+        } else {
+          return;
         }
-      }
-      if (cached != null) {
-        return Futures.immediateFuture(cached);
       }
 
-      return MoreFutures.transform(getFromServer(page), mem -> {
-        addToCache(page, mem);
-        return mem;
-      });
-    }
-
-    private void addToCache(long page, Segment data) {
-      synchronized (cache) {
-        cache.put(page, new SoftReference<Segment>(data));
+      for (long page = from; page <= to; page++) {
+        pages.get(device, src.command, src.pool, page);
       }
     }
 
-    private ListenableFuture<Segment> getFromServer(long page) {
-      return MoreFutures.transform(
-          client.get(memoryAfter(src.command, src.pool, getOffsetForPage(page), PAGE_SIZE), device),
-          Segment::new);
+    private ListenableFuture<Segment> getPage(long page, int offset, int length) {
+      return MoreFutures.transform(pages.get(device, src.command, src.pool, page),
+          memory -> memory.subSegment(offset, length));
     }
 
     private static long getPageForOffset(long offset) {
-      return Long.divideUnsigned(offset, PAGE_SIZE);
-    }
-
-    private static long getOffsetForPage(long page) {
-      return page * PAGE_SIZE;
+      return MemoryPageCache.getPageForOffset(offset);
     }
 
     private static int getOffsetInPage(long offset) {
-      return (int)Long.remainderUnsigned(offset, PAGE_SIZE);
+      return MemoryPageCache.getOffsetInPage(offset);
     }
   }
 
   /**
-   * A segment of memory data.
+   * A segment of memory data. Segments are views onto the data of the server's responses and
+   * segments spanning multiple pages are composed of the pages' data, so the bytes are only copied
+   * when explicitly requested, see {@link #toByteArray(int, int)}.
    */
   public static class Segment {
-    private final byte[] data;
-    private final BitSet known;
+    private final ByteString data;
+    private final Intervals known; // null if all bytes are known.
     private final int offset;
     private final int length;
 
     private final List<Service.MemoryRange> reads;
     private final List<Service.MemoryRange> writes;
 
-    private Segment(byte[] data, BitSet known, int offset, int length,
+    private Segment(ByteString data, Intervals known, int offset, int length,
         List<Service.MemoryRange> reads, List<Service.MemoryRange> writes) {
       this.data = data;
       this.offset = offset;
@@ -285,17 +332,17 @@ public class Memory extends DeviceDependentModel<Memory.Data, Memory.Source, Voi
 
     public Segment(Service.Value value) {
       Service.Memory mem = value.getMemory();
-      data = mem.getData().toByteArray();
+      data = mem.getData();
       offset = 0;
       known = computeKnown(mem);
-      length = data.length;
+      length = data.size();
       reads = merge(mem.getReadsList());
       writes = merge(mem.getWritesList());
     }
 
     public static Segment combine(List<Segment> segments, int length) {
-      byte[] data = new byte[length];
-      BitSet known = new BitSet(length);
+      List<ByteString> data = Lists.newArrayList();
+      Intervals.Builder known = new Intervals.Builder();
       int done = 0;
 
       List<Service.MemoryRange> reads = Lists.newArrayList();
@@ -304,9 +351,12 @@ public class Memory extends DeviceDependentModel<Memory.Data, Memory.Source, Voi
       for (Iterator<Segment> it = segments.iterator(); it.hasNext() && done < length; ) {
         Segment segment = it.next();
         int count = Math.min(length - done, segment.length);
-        System.arraycopy(segment.data, segment.offset, data, done, count);
-        for (int i = 0; i < count; ++i) {
-          known.set(done + i, segment.known.get(segment.offset + i));
+        data.add(segment.data.substring(segment.offset, segment.offset + count));
+        if (segment.known == null) {
+          known.add(done, done + count);
+        } else {
+          segment.known.copyTo(
+              known, segment.offset, segment.offset + count, done - segment.offset);
         }
 
         for (Service.MemoryRange range : segment.reads) {
@@ -320,7 +370,18 @@ public class Memory extends DeviceDependentModel<Memory.Data, Memory.Source, Voi
 
         done += count;
       }
-      return new Segment(data, known, 0, done, merge(reads), merge(writes));
+      // Concatenating the pieces creates a balanced rope over them, rather than copying them.
+      return new Segment(
+          ByteString.copyFrom(data), known.build(), 0, done, merge(reads), merge(writes));
+    }
+
+    /**
+     * Returns a copy of this segment with the given read and write observations, relative to the
+     * start of this segment, replacing the current ones.
+     */
+    public Segment withObservations(
+        List<Service.MemoryRange> newReads, List<Service.MemoryRange> newWrites) {
+      return new Segment(data, known, offset, length, newReads, newWrites);
     }
 
     public Segment subSegment(int start, int count) {
@@ -329,27 +390,47 @@ public class Memory extends DeviceDependentModel<Memory.Data, Memory.Source, Voi
     }
 
     public String asString(int start, int count) {
-      return new String(
-          data, offset + start, Math.min(count, length - start), Charset.forName("US-ASCII"));
+      return getBytes(start, count).toString(Charset.forName("US-ASCII"));
+    }
+
+    /**
+     * @return a view of the given range of this segment, without copying the data.
+     */
+    public ByteString getBytes(int start, int count) {
+      return data.substring(offset + start, offset + start + Math.min(count, length - start));
+    }
+
+    /**
+     * @return a copy of the given range of this segment as a contiguous array.
+     */
+    public byte[] toByteArray(int start, int count) {
+      return getBytes(start, count).toByteArray();
     }
 
     public int length() {
       return length;
     }
 
-    public boolean getByteKnown(int off, int size) {
-      if (off < 0 || size < 0 || offset + off + size > data.length) {
-        return false;
+    /**
+     * @return a hash of the bytes and the known ranges of this segment, used to compare segments
+     * without holding on to their data.
+     */
+    public HashCode hash() {
+      Hasher hasher = Hashing.murmur3_128().newHasher();
+      for (ByteBuffer buffer : getBytes(0, length).asReadOnlyByteBufferList()) {
+        hasher.putBytes(buffer);
       }
-      if (known == null) {
-        return true;
+      if (known != null) {
+        known.hashTo(hasher, offset, offset + length);
       }
-      for (int o = off; o < off + size; o++) {
-        if (!known.get(offset + o)) {
-          return false;
-        }
+      return hasher.hash();
+    }
+
+    public boolean getByteKnown(int off, int size) {
+      if (off < 0 || size < 0 || offset + off + size > data.size()) {
+        return false;
       }
-      return true;
+      return known == null || known.contains(offset + off, offset + off + size);
     }
 
     public boolean getByteKnown(int off) {
@@ -357,7 +438,7 @@ public class Memory extends DeviceDependentModel<Memory.Data, Memory.Source, Voi
     }
 
     public int getByte(int off) {
-      return data[offset + off] & 0xFF;
+      return data.byteAt(offset + off) & 0xFF;
     }
 
     public boolean getShortKnown(int off) {
@@ -371,17 +452,17 @@ public class Memory extends DeviceDependentModel<Memory.Data, Memory.Source, Voi
     public int getShort(int off) {
       off += offset;
       // TODO: figure out BigEndian vs LittleEndian.
-      return (data[off + 0] & 0xFF) |
-          ((data[off + 1] & 0xFF) << 8);
+      return (data.byteAt(off + 0) & 0xFF) |
+          ((data.byteAt(off + 1) & 0xFF) << 8);
     }
 
     public int getInt(int off) {
       off += offset;
       // TODO: figure out BigEndian vs LittleEndian.
-      return (data[off + 0] & 0xFF) |
-          ((data[off + 1] & 0xFF) << 8) |
-          ((data[off + 2] & 0xFF) << 16) |
-          (data[off + 3] << 24);
+      return (data.byteAt(off + 0) & 0xFF) |
+          ((data.byteAt(off + 1) & 0xFF) << 8) |
+          ((data.byteAt(off + 2) & 0xFF) << 16) |
+          (data.byteAt(off + 3) << 24);
     }
 
     public boolean getLongKnown(int off) {
@@ -416,12 +497,107 @@ public class Memory extends DeviceDependentModel<Memory.Data, Memory.Source, Voi
           .iterator();
     }
 
-    private static BitSet computeKnown(Service.Memory data) {
-      BitSet known = new BitSet(data.getData().size());
-      for (Service.MemoryRange rng : data.getObservedList()) {
-        known.set((int)rng.getBase(), (int)rng.getBase() + (int)rng.getSize());
+    private static Intervals computeKnown(Service.Memory data) {
+      int size = data.getData().size();
+      Intervals.Builder known = new Intervals.Builder();
+      for (Service.MemoryRange rng : merge(data.getObservedList())) {
+        long start = Math.min(rng.getBase(), size), end = Math.min(start + rng.getSize(), size);
+        known.add((int)start, (int)end);
+      }
+      return known.build();
+    }
+  }
+
+  /**
+   * Sorted list of disjoint, half-open intervals, used to track the known bytes of a segment. Range
+   * checks are done with a binary search and copying is done interval by interval, rather than
+   * byte by byte.
+   */
+  private static class Intervals {
+    private final int[] starts;
+    private final int[] ends;
+    private final int count;
+
+    private Intervals(int[] starts, int[] ends, int count) {
+      this.starts = starts;
+      this.ends = ends;
+      this.count = count;
+    }
+
+    /**
+     * @return whether the range [start, end) is entirely covered.
+     */
+    public boolean contains(int start, int end) {
+      if (start >= end) {
+        return true;
+      }
+      int idx = Arrays.binarySearch(starts, 0, count, start);
+      if (idx < 0) {
+        idx = -idx - 2; // The last interval starting before start.
+      }
+      return idx >= 0 && ends[idx] >= end;
+    }
+
+    /**
+     * Adds the parts of the intervals within [from, to) to the given builder, moved by shift.
+     */
+    public void copyTo(Builder out, int from, int to, int shift) {
+      int idx = Arrays.binarySearch(starts, 0, count, from);
+      if (idx < 0) {
+        idx = Math.max(0, -idx - 2);
+      }
+      for (; idx < count && starts[idx] < to; idx++) {
+        int start = Math.max(starts[idx], from), end = Math.min(ends[idx], to);
+        if (start < end) {
+          out.add(start + shift, end + shift);
+        }
+      }
+    }
+
+    /**
+     * Adds the parts of the intervals within [from, to), relative to from, to the given hasher.
+     */
+    public void hashTo(Hasher hasher, int from, int to) {
+      int idx = Arrays.binarySearch(starts, 0, count, from);
+      if (idx < 0) {
+        idx = Math.max(0, -idx - 2);
+      }
+      for (; idx < count && starts[idx] < to; idx++) {
+        int start = Math.max(starts[idx], from), end = Math.min(ends[idx], to);
+        if (start < end) {
+          hasher.putInt(start - from).putInt(end - from);
+        }
+      }
+    }
+
+    public static class Builder {
+      private int[] starts = new int[8];
+      private int[] ends = new int[8];
+      private int count = 0;
+
+      /**
+       * Adds the interval [start, end). Intervals have to be added in order of their start.
+       */
+      public void add(int start, int end) {
+        if (start >= end) {
+          return;
+        } else if (count > 0 && start <= ends[count - 1]) {
+          ends[count - 1] = Math.max(ends[count - 1], end);
+          return;
+        }
+
+        if (count == starts.length) {
+          starts = Arrays.copyOf(starts, count * 2);
+          ends = Arrays.copyOf(ends, count * 2);
+        }
+        starts[count] = start;
+        ends[count] = end;
+        count++;
+      }
+
+      public Intervals build() {
+        return new Intervals(starts, ends, count);
       }
-      return known;
     }
   }
 
@@ -455,6 +631,10 @@ public class Memory extends DeviceDependentModel<Memory.Data, Memory.Source, Voi
       return Paths.memoryAfter(index, Application_VALUE, range).getMemory();
     }
 
+    public Service.MemoryRange getRange() {
+      return range;
+    }
+
     public boolean contains(long address) {
       return Ranges.contains(range, address);
     }
@@ -488,19 +668,23 @@ public class Memory extends DeviceDependentModel<Memory.Data, Memory.Source, Voi
   }
 
   /**
-   * Structured memory node, containing decoded struct memory information.
+   * Structured memory node, containing decoded struct memory information. The children of a node
+   * are only created once requested. The elements of large arrays and slices are split into pages
+   * of at most {@link #PAGE_SIZE} nodes, nested as deep as needed, so that arrays of any size can
+   * be navigated, while only the nodes of the expanded pages are ever created.
    */
   public static class StructNode {
-    private static final int MAX_CHILDREN_SIZE = 100;
+    private static final int PAGE_SIZE = 100;
 
     private final Path.API api;
     private final TypeInfo.Type type;
     private final MemoryBox.Value value;
     private final long rootAddress;     // The root address of the observation this node belongs to.
     private final MemoryTypes typesModel;
-    private List<StructNode> children;
+    private List<StructNode> children;  // Lazily created, see getChildren().
+    // Trees pointed to by the pointers of the tree this node belongs to. See simplifyTrees().
+    private Map<Long, StructNode> pointees;
     private String structName = "";     // Name information for node of type TypeInfo.StructField.
-    private boolean isLargeArray = false;   // True if this node denotes a large array or slice.
 
     public StructNode(Path.API api, TypeInfo.Type type, MemoryBox.Value value, long rootAddress,
         MemoryTypes typesModel) {
@@ -509,18 +693,12 @@ public class Memory extends DeviceDependentModel<Memory.Data, Memory.Source, Voi
       this.value = value;
       this.rootAddress = rootAddress;
       this.typesModel = typesModel;
-      this.children = loadChildren();
     }
 
     public StructNode(Path.API api, TypeInfo.Type type, MemoryBox.Value value, long rootAddress,
         MemoryTypes typesModel, String name) {
-      this.api = api;
-      this.type = type;
-      this.value = value;
-      this.rootAddress = rootAddress;
-      this.typesModel = typesModel;
+      this(api, type, value, rootAddress, typesModel);
       this.structName = name;
-      this.children = loadChildren();
     }
 
     public TypeInfo.Type getType() {
@@ -557,10 +735,39 @@ public class Memory extends DeviceDependentModel<Memory.Data, Memory.Source, Voi
     }
 
     public boolean hasChildren() {
-      return children.size() > 0;
+      if (children != null) {
+        return !children.isEmpty();
+      }
+      switch (type.getTyCase()) {
+        case POINTER:
+          return pointees != null && pointees.containsKey(value.getPointer().getAddress());
+        case SLICE:
+        case ARRAY:
+          return getElementCount() > 0;
+        case STRUCT:
+          return value.getStruct().getFieldsCount() > 0;
+        case PSEUDONYM:
+          return true;
+        default:
+          return false;
+      }
     }
 
     public List<StructNode> getChildren() {
+      if (children == null) {
+        children = createChildren();
+        for (int i = 0; i < children.size(); i++) {
+          StructNode child = children.get(i);
+          child.pointees = pointees;
+          children.set(i, removeExtraLayers(child));
+        }
+        if (type.getTyCase() == TyCase.POINTER && pointees != null) {
+          StructNode pointee = pointees.remove(value.getPointer().getAddress());
+          if (pointee != null) {
+            children.add(pointee);
+          }
+        }
+      }
       return children;
     }
 
@@ -572,34 +779,45 @@ public class Memory extends DeviceDependentModel<Memory.Data, Memory.Source, Voi
       return structName;
     }
 
+    /**
+     * @return whether this node is an array or slice whose elements are split into pages.
+     */
     public boolean isLargeArray() {
-      return isLargeArray;
+      TypeInfo.Type.TyCase tyCase = type.getTyCase();
+      return (tyCase == TyCase.SLICE || tyCase == TyCase.ARRAY) && getElementCount() > PAGE_SIZE;
     }
 
-    private boolean mayHaveChildren() {
-      TypeInfo.Type.TyCase tyCase = type.getTyCase();
-      return tyCase == TypeInfo.Type.TyCase.SLICE || tyCase == TypeInfo.Type.TyCase.STRUCT ||
-          tyCase == TypeInfo.Type.TyCase.ARRAY || tyCase == TypeInfo.Type.TyCase.PSEUDONYM;
+    private int getElementCount() {
+      return (type.getTyCase() == TyCase.SLICE) ?
+          value.getSlice().getValuesCount() : value.getArray().getEntriesCount();
     }
 
-    private List<StructNode> loadChildren() {
-      children = new ArrayList<Memory.StructNode>();
-      if (!mayHaveChildren()) {
-        return children;
-      }
+    protected StructNode createElement(TypeInfo.Type elementType, int index, boolean named) {
+      MemoryBox.Value element = (type.getTyCase() == TyCase.SLICE) ?
+          value.getSlice().getValues(index) : value.getArray().getEntries(index);
+      return new StructNode(
+          api, elementType, element, rootAddress, typesModel, named ? "[" + index + "]" : "");
+    }
+
+    private TypeInfo.Type getElementType() {
+      long elementType = (type.getTyCase() == TyCase.SLICE) ?
+          type.getSlice().getUnderlying() : type.getArray().getElementType();
+      return typesModel.getType(type(elementType, api));
+    }
 
-      TypeInfo.Type childType;
+    protected List<StructNode> createChildren() {
+      List<StructNode> result = new ArrayList<Memory.StructNode>();
       switch (type.getTyCase()) {
         case SLICE:
-          // Don't create and append children nodes if it's a large slice.
-          if (value.getSlice().getValuesCount() < MAX_CHILDREN_SIZE) {
-            TypeInfo.SliceType slice = type.getSlice();
-            childType = typesModel.getType(type(slice.getUnderlying(), api));
-            for (MemoryBox.Value childValue : value.getSlice().getValuesList()) {
-              children.add(new StructNode(api, childType, childValue, rootAddress, typesModel));
-            }
+        case ARRAY:
+          int count = getElementCount();
+          if (count > PAGE_SIZE) {
+            addPages(result, getElementType(), 0, count);
           } else {
-            isLargeArray = true;
+            TypeInfo.Type elementType = getElementType();
+            for (int i = 0; i < count; i++) {
+              result.add(createElement(elementType, i, false));
+            }
           }
           break;
         case STRUCT:
@@ -610,32 +828,92 @@ public class Memory extends DeviceDependentModel<Memory.Data, Memory.Source, Voi
             StructNode childNode = new StructNode(api,
                 typesModel.getType(type(childrenTypes.get(i).getType(), api)), childrenValues.get(i),
                 rootAddress, typesModel, childrenTypes.get(i).getName());
-            children.add(childNode);
-          }
-          break;
-        case ARRAY:
-          // Don't create and append children nodes if it's a large array.
-          if (value.getArray().getEntriesCount() < MAX_CHILDREN_SIZE) {
-            TypeInfo.ArrayType array = type.getArray();
-            childType = typesModel.getType(type(array.getElementType(), api));
-            for (MemoryBox.Value childValue : value.getArray().getEntriesList()) {
-              children.add(new StructNode(api, childType, childValue, rootAddress, typesModel));
-            }
-          } else {
-            isLargeArray = true;
+            result.add(childNode);
           }
           break;
         case PSEUDONYM:
           TypeInfo.PseudonymType pseudonym = type.getPseudonym();
-          childType = typesModel.getType(type(pseudonym.getUnderlying(), api));
+          TypeInfo.Type childType = typesModel.getType(type(pseudonym.getUnderlying(), api));
           StructNode childNode = new StructNode(api, childType, value, rootAddress, typesModel);
-          children.add(childNode);
           childNode.setStructName(structName);
+          childNode.pointees = pointees;
+          // Remove the inner layer for PSEUDONYM type. E.g. {[()]} -> {()}.
+          if (childNode.hasChildren() && !childNode.isLargeArray()) {
+            result.addAll(childNode.getChildren());
+          } else {
+            result.add(childNode);
+          }
           break;
         default:
           break;
       }
-      return children;
+      return result;
+    }
+
+    /**
+     * Adds the pages covering the elements [start, end) to the given list. Each page covers a
+     * power of {@link #PAGE_SIZE} elements, chosen so that there are at most {@link #PAGE_SIZE}
+     * pages.
+     */
+    protected void addPages(List<StructNode> out, TypeInfo.Type elementType, int start, int end) {
+      long span = PAGE_SIZE;
+      while ((end - start + span - 1) / span > PAGE_SIZE) {
+        span *= PAGE_SIZE;
+      }
+      for (int first = start; first < end; first += span) {
+        out.add(new Page(this, elementType, first, (int)Math.min(end, first + span)));
+      }
+    }
+
+    /**
+     * A page of the elements of a large array or slice.
+     */
+    private static class Page extends StructNode {
+      private final StructNode array;
+      private final TypeInfo.Type elementType;
+      private final int start, end;
+
+      public Page(StructNode array, TypeInfo.Type elementType, int start, int end) {
+        super(array.api, array.type, array.value, array.rootAddress, array.typesModel,
+            "[" + start + " - " + (end - 1) + "]");
+        this.array = array;
+        this.elementType = elementType;
+        this.start = start;
+        this.end = end;
+      }
+
+      @Override
+      public String getTypeFormatted() {
+        return "";
+      }
+
+      @Override
+      public String getValueFormatted() {
+        return "";
+      }
+
+      @Override
+      public boolean hasChildren() {
+        return true;
+      }
+
+      @Override
+      public boolean isLargeArray() {
+        return false;
+      }
+
+      @Override
+      protected List<StructNode> createChildren() {
+        List<StructNode> result = new ArrayList<Memory.StructNode>();
+        if (end - start > PAGE_SIZE) {
+          array.addPages(result, elementType, start, end);
+        } else {
+          for (int i = start; i < end; i++) {
+            result.add(array.createElement(elementType, i, true));
+          }
+        }
+        return result;
+      }
     }
 
     /**
@@ -645,6 +923,9 @@ public class Memory extends DeviceDependentModel<Memory.Data, Memory.Source, Voi
      *    TypeInfo.StructType, they usually contain key info like VkPresentInfoKHR, VkSubmitInfo...)
      * 3. Combine trees together by appending some smaller trees to the main trees, if they are
      *    related through a pointer field.
+     * The trees are simplified without creating their nodes. Redundant layers are removed as the
+     * children of a node are created, and the appended trees are attached to their pointer nodes
+     * once those are created.
      */
     public static List<StructNode> simplifyTrees(List<StructNode> trees) {
       List<StructNode> simplified = new ArrayList<StructNode>();
@@ -657,15 +938,27 @@ public class Memory extends DeviceDependentModel<Memory.Data, Memory.Source, Voi
       // Find the main trees.
       for (Iterator<Map.Entry<Long, StructNode>> it = nodes.entrySet().iterator(); it.hasNext(); ) {
         Map.Entry<Long, StructNode> entry = it.next();
-        if (containsStructType(entry.getValue())) {
-          simplified.add(entry.getValue());
+        StructNode tree = entry.getValue();
+        if (tree.containsStructType(tree.type, tree.value)) {
+          simplified.add(tree);
           it.remove();
         }
       }
 
-      // Append other trees to the main trees if possible.
-      for (StructNode mainTree : simplified) {
-        appendPointedNodes(mainTree, nodes);
+      // Append other trees to the main trees if possible, including the trees pointed to by the
+      // appended trees.
+      Map<Long, StructNode> pointees = new HashMap<Long, StructNode>();
+      Deque<StructNode> toScan = new ArrayDeque<StructNode>(simplified);
+      while (!toScan.isEmpty()) {
+        StructNode tree = toScan.removeFirst();
+        tree.setPointees(pointees);
+        tree.forEachPointer(tree.type, tree.value, address -> {
+          StructNode pointee = nodes.remove(address);
+          if (pointee != null) {
+            pointees.put(address, pointee);
+            toScan.add(pointee);
+          }
+        });
       }
 
       // Add the remaining unappended nodes to the returning result.
@@ -675,62 +968,107 @@ public class Memory extends DeviceDependentModel<Memory.Data, Memory.Source, Voi
       return simplified;
     }
 
+    private void setPointees(Map<Long, StructNode> pointees) {
+      this.pointees = pointees;
+      if (children != null) {
+        for (StructNode child : children) {
+          child.setPointees(pointees);
+        }
+      }
+    }
+
     /**
-     * Remove redundant layers and return the new root.
+     * Remove the redundant outer layer of the given node and return the new node.
      */
-    private static StructNode removeExtraLayers(StructNode root) {
-      TypeInfo.Type.TyCase tyCase = root.getTypeCase();
+    private static StructNode removeExtraLayers(StructNode node) {
       // Remove the outer layer for SLICE type. E.g. {[()]} -> [()].
-      if ((tyCase == TyCase.SLICE) && root.hasChildren() && root.children.size() == 1
-          && root.children.get(0).hasChildren()) {
-        root = root.children.get(0);
-      }
-      // Remove the inner layer for PSEUDONYM type. E.g. {[()]} -> {()}.
-      if (tyCase == TyCase.PSEUDONYM && root.hasChildren() && root.children.size() == 1
-          && root.children.get(0).hasChildren()) {
-        root.children = root.children.get(0).children;
-      }
-      for (int i = 0; i < root.children.size(); i++) {
-        root.children.set(i, removeExtraLayers(root.children.get(i)));
+      if (node.getTypeCase() == TyCase.SLICE && node.getElementCount() == 1) {
+        StructNode element = node.getChildren().get(0);
+        if (element.hasChildren()) {
+          return element;
+        }
       }
-      return root;
+      return node;
     }
 
     /**
-     * Check whether the tree contains any node with type TypeInfo.StructType.
+     * Check whether the given value contains any value of type TypeInfo.StructType. The elements
+     * of large arrays are not checked.
      */
-    private static boolean containsStructType(StructNode root) {
-      if (root == null) {
+    private boolean containsStructType(TypeInfo.Type t, MemoryBox.Value v) {
+      if (t == null) {
         return false;
       }
-      if (root.getTypeCase() == TyCase.STRUCT) {
-        return true;
-      }
-      for (StructNode child : root.getChildren()) {
-        if (containsStructType(child)) {
+      switch (t.getTyCase()) {
+        case STRUCT:
           return true;
+        case SLICE:
+        case ARRAY: {
+          boolean slice = t.getTyCase() == TyCase.SLICE;
+          int count = slice ? v.getSlice().getValuesCount() : v.getArray().getEntriesCount();
+          if (count > PAGE_SIZE) {
+            return false;
+          }
+          TypeInfo.Type elementType = typesModel.getType(type(
+              slice ? t.getSlice().getUnderlying() : t.getArray().getElementType(), api));
+          for (int i = 0; i < count; i++) {
+            if (containsStructType(elementType,
+                slice ? v.getSlice().getValues(i) : v.getArray().getEntries(i))) {
+              return true;
+            }
+          }
+          return false;
         }
+        case PSEUDONYM:
+          return containsStructType(
+              typesModel.getType(type(t.getPseudonym().getUnderlying(), api)), v);
+        default:
+          return false;
       }
-      return false;
     }
 
     /**
-     * Find all the nodes with type TypeInfo.PointerType in this tree, append the pointed tree to
-     * these nodes if possible.
+     * Calls the given consumer with the addresses of all the pointers in the given value. The
+     * elements of large arrays are not visited.
      */
-    private static void appendPointedNodes(StructNode root, Map<Long, StructNode> nodes) {
-      if (root == null) {
+    private void forEachPointer(TypeInfo.Type t, MemoryBox.Value v, LongConsumer consumer) {
+      if (t == null) {
         return;
       }
-      if (root.getTypeCase() == TyCase.POINTER) {
-        long pointedAddress = root.getValue().getPointer().getAddress();
-        if (nodes.containsKey(pointedAddress)) {
-          root.getChildren().add(nodes.get(pointedAddress));
-          nodes.remove(pointedAddress);
+      switch (t.getTyCase()) {
+        case POINTER:
+          consumer.accept(v.getPointer().getAddress());
+          break;
+        case STRUCT: {
+          List<TypeInfo.StructField> fields = t.getStruct().getFieldsList();
+          List<MemoryBox.Value> values = v.getStruct().getFieldsList();
+          for (int i = 0; i < values.size(); i++) {
+            forEachPointer(typesModel.getType(type(fields.get(i).getType(), api)), values.get(i),
+                consumer);
+          }
+          break;
         }
-      }
-      for (StructNode child : root.getChildren()) {
-        appendPointedNodes(child, nodes);
+        case SLICE:
+        case ARRAY: {
+          boolean slice = t.getTyCase() == TyCase.SLICE;
+          int count = slice ? v.getSlice().getValuesCount() : v.getArray().getEntriesCount();
+          if (count > PAGE_SIZE) {
+            break;
+          }
+          TypeInfo.Type elementType = typesModel.getType(type(
+              slice ? t.getSlice().getUnderlying() : t.getArray().getElementType(), api));
+          for (int i = 0; i < count; i++) {
+            forEachPointer(elementType,
+                slice ? v.getSlice().getValues(i) : v.getArray().getEntries(i), consumer);
+          }
+          break;
+        }
+        case PSEUDONYM:
+          forEachPointer(typesModel.getType(type(t.getPseudonym().getUnderlying(), api)), v,
+              consumer);
+          break;
+        default:
+          break;
       }
     }
   }
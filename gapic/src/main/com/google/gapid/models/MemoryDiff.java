@@ -0,0 +1,314 @@
+/*
+ * Copyright (C) 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.gapid.models;
+
+import static com.google.gapid.models.MemoryPageCache.PAGE_SIZE;
+import static com.google.gapid.models.MemoryPageCache.getOffsetForPage;
+import static com.google.gapid.models.MemoryPageCache.getPageForOffset;
+import static com.google.gapid.proto.service.memory.Memory.PoolNames.Application_VALUE;
+import static com.google.gapid.util.Ranges.memory;
+import static com.google.gapid.util.Scheduler.EXECUTOR;
+
+import com.google.common.collect.Lists;
+import com.google.common.hash.HashCode;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.gapid.models.CommandStream.CommandIndex;
+import com.google.gapid.models.Memory.Segment;
+import com.google.gapid.proto.service.Service;
+import com.google.gapid.proto.service.path.Path;
+import com.google.gapid.util.MoreFutures;
+import com.google.gapid.util.Ranges;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Computes the bytes of memory that differ between two commands. The pages of the compared ranges
+ * are first compared by their hashes, which are cached by the {@link MemoryPageCache}, and only
+ * the pages with differing hashes are compared byte by byte. When one command directly follows
+ * the other, only the pages observed by the later command are compared. The changed ranges are
+ * reported in address order, as the pages complete.
+ */
+public class MemoryDiff {
+  public static final int MAX_CHANGES = 100000;
+
+  private static final int MAX_PAGES_IN_FLIGHT = 16;
+
+  private final MemoryPageCache pages;
+  private final Path.Device device;
+  private final CommandIndex from, to;
+  private final int pool;
+  private final Listener listener;
+  private final List<Service.MemoryRange> ranges;
+  private final long totalPages;
+  private final Deque<PageDiff> inFlight = new ArrayDeque<PageDiff>();
+  private int nextRange = 0;
+  private long lastPage = -1;
+  private long comparedPages = 0;
+  // The last changed range is held back, in case it continues on the next page.
+  private Service.MemoryRange pending;
+  private int changeCount = 0;
+  private boolean stopped = false;
+
+  private MemoryDiff(MemoryPageCache pages, Path.Device device, CommandIndex from,
+      CommandIndex to, int pool, List<Service.MemoryRange> ranges, Listener listener) {
+    this.pages = pages;
+    this.device = device;
+    this.from = from;
+    this.to = to;
+    this.pool = pool;
+    this.listener = listener;
+    this.ranges = restrictToTouched(ranges);
+    this.totalPages = countPages(this.ranges);
+  }
+
+  /**
+   * Starts comparing the given ranges of the given pool after the two given commands.
+   */
+  public static MemoryDiff start(MemoryPageCache pages, Path.Device device, CommandIndex from,
+      CommandIndex to, int pool, List<Service.MemoryRange> ranges, Listener listener) {
+    MemoryDiff diff = new MemoryDiff(
+        pages, device, from, to, pool, Ranges.merge(Lists.newArrayList(ranges)), listener);
+    diff.drain();
+    return diff;
+  }
+
+  /**
+   * Memory after a command only differs from the memory after the command preceding it in the
+   * ranges observed by the command, so if the observations are known, only they need to be
+   * compared. This includes the read observations, which gapis also applies to memory.
+   */
+  private List<Service.MemoryRange> restrictToTouched(List<Service.MemoryRange> candidates) {
+    CommandIndex later = to.equals(MemoryPageCache.getPrevious(from)) ? from :
+        from.equals(MemoryPageCache.getPrevious(to)) ? to : null;
+    List<Service.MemoryRange> touched = (later == null || pool != Application_VALUE) ? null :
+        pages.getTouched(later);
+    if (touched == null) {
+      return candidates;
+    }
+
+    // Both lists are sorted and merged.
+    List<Service.MemoryRange> result = Lists.newArrayList();
+    for (int i = 0, j = 0; i < candidates.size() && j < touched.size(); ) {
+      Service.MemoryRange a = candidates.get(i), b = touched.get(j);
+      long start = Math.max(a.getBase(), b.getBase());
+      long aEnd = a.getBase() + a.getSize(), bEnd = b.getBase() + b.getSize();
+      long end = Math.min(aEnd, bEnd);
+      if (start < end) {
+        result.add(memory(start, end - start));
+      }
+      if (aEnd < bEnd) {
+        i++;
+      } else {
+        j++;
+      }
+    }
+    return result;
+  }
+
+  private static long countPages(List<Service.MemoryRange> ranges) {
+    long count = 0, last = -1;
+    for (Service.MemoryRange range : ranges) {
+      if (range.getSize() == 0) {
+        continue;
+      }
+      long first = Math.max(getPageForOffset(range.getBase()), last + 1);
+      long end = getPageForOffset(range.getBase() + range.getSize() - 1);
+      count += Math.max(0, end - first + 1);
+      last = Math.max(last, end);
+    }
+    return count;
+  }
+
+  /**
+   * @return the number of pages this diff compares.
+   */
+  public long getTotalPages() {
+    return totalPages;
+  }
+
+  /**
+   * Stops this diff. No more listener calls are made once this method returns.
+   */
+  public synchronized void cancel() {
+    stopped = true;
+    for (PageDiff page : inFlight) {
+      page.changes.cancel(true);
+    }
+    inFlight.clear();
+  }
+
+  // Reports the compared pages at the head of the queue and starts comparing more pages.
+  private synchronized void drain() {
+    while (!stopped && !inFlight.isEmpty() && inFlight.getFirst().changes.isDone()) {
+      PageDiff page = inFlight.removeFirst();
+      List<Service.MemoryRange> changes;
+      try {
+        changes = Futures.getDone(page.changes);
+      } catch (ExecutionException e) {
+        cancel();
+        listener.onDiffFailed(e.getCause());
+        return;
+      } catch (CancellationException e) {
+        return;
+      }
+
+      comparedPages++;
+      List<Service.MemoryRange> done = Lists.newArrayList();
+      for (Service.MemoryRange change : changes) {
+        if (pending != null && pending.getBase() + pending.getSize() == change.getBase()) {
+          pending = memory(pending.getBase(), pending.getSize() + change.getSize());
+        } else {
+          if (pending != null) {
+            done.add(pending);
+          }
+          pending = change;
+        }
+      }
+
+      boolean truncated = changeCount + done.size() > MAX_CHANGES;
+      if (truncated) {
+        done = done.subList(0, MAX_CHANGES - changeCount);
+      }
+      changeCount += done.size();
+      listener.onChanges(done, comparedPages);
+      if (truncated) {
+        cancel();
+        listener.onDiffDone(changeCount, true);
+        return;
+      }
+    }
+
+    if (stopped) {
+      return;
+    }
+
+    while (inFlight.size() < MAX_PAGES_IN_FLIGHT && nextRange < ranges.size()) {
+      PageDiff page = nextPage();
+      if (page != null) {
+        inFlight.addLast(page);
+        page.changes.addListener(this::drain, EXECUTOR);
+      }
+    }
+
+    if (inFlight.isEmpty()) {
+      stopped = true;
+      if (pending != null) {
+        changeCount++;
+        listener.onChanges(Collections.singletonList(pending), comparedPages);
+      }
+      listener.onDiffDone(changeCount, false);
+    }
+  }
+
+  // Returns the next page to compare, with the parts of the ranges within it, or null if the
+  // current range has no more pages.
+  private PageDiff nextPage() {
+    Service.MemoryRange range = ranges.get(nextRange);
+    if (range.getSize() == 0 ||
+        getPageForOffset(range.getBase() + range.getSize() - 1) <= lastPage) {
+      nextRange++;
+      return null;
+    }
+
+    long page = Math.max(getPageForOffset(range.getBase()), lastPage + 1);
+    long base = getOffsetForPage(page);
+    List<Service.MemoryRange> parts = Lists.newArrayList();
+    for (int i = nextRange; i < ranges.size() && ranges.get(i).getBase() < base + PAGE_SIZE; i++) {
+      Service.MemoryRange r = ranges.get(i);
+      if (Ranges.overlap(r, base, PAGE_SIZE)) {
+        parts.add(Ranges.relative(base, PAGE_SIZE, r));
+      }
+    }
+    lastPage = page;
+    return new PageDiff(compare(page, base, parts));
+  }
+
+  private ListenableFuture<List<Service.MemoryRange>> compare(
+      long page, long base, List<Service.MemoryRange> parts) {
+    ListenableFuture<List<HashCode>> hashes = Futures.allAsList(
+        pages.getHash(device, from, pool, page), pages.getHash(device, to, pool, page));
+    return MoreFutures.transformAsync(hashes, h -> {
+      if (h.get(0).equals(h.get(1))) {
+        return Futures.immediateFuture(Collections.<Service.MemoryRange>emptyList());
+      }
+      return MoreFutures.transform(Futures.allAsList(
+          pages.get(device, from, pool, page), pages.get(device, to, pool, page)),
+          segments -> diff(segments.get(0), segments.get(1), base, parts));
+    });
+  }
+
+  private static List<Service.MemoryRange> diff(
+      Segment a, Segment b, long base, List<Service.MemoryRange> parts) {
+    List<Service.MemoryRange> result = Lists.newArrayList();
+    int length = Math.min(a.length(), b.length());
+    byte[] aBytes = a.toByteArray(0, length), bBytes = b.toByteArray(0, length);
+    for (Service.MemoryRange part : parts) {
+      int start = -1;
+      int end = (int)Math.min(part.getBase() + part.getSize(), length);
+      for (int i = (int)part.getBase(); i < end; i++) {
+        boolean known = a.getByteKnown(i);
+        boolean changed = known != b.getByteKnown(i) || (known && aBytes[i] != bBytes[i]);
+        if (changed && start < 0) {
+          start = i;
+        } else if (!changed && start >= 0) {
+          result.add(memory(base + start, i - start));
+          start = -1;
+        }
+      }
+      if (start >= 0) {
+        result.add(memory(base + start, end - start));
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Listener of diff progress. The listener is called from a background thread, one call at a
+   * time, and should not block.
+   */
+  public static interface Listener {
+    /**
+     * Called with the next changed ranges, in address order, and the number of pages compared
+     * so far.
+     */
+    public void onChanges(List<Service.MemoryRange> changes, long comparedPages);
+
+    /**
+     * Called once the diff has completed. Truncated is {@code true} if the diff stopped after
+     * finding {@link #MAX_CHANGES} changed ranges.
+     */
+    public void onDiffDone(int changeCount, boolean truncated);
+
+    /**
+     * Called if the diff failed to load the memory.
+     */
+    public void onDiffFailed(Throwable error);
+  }
+
+  private static class PageDiff {
+    public final ListenableFuture<List<Service.MemoryRange>> changes;
+
+    public PageDiff(ListenableFuture<List<Service.MemoryRange>> changes) {
+      this.changes = changes;
+    }
+  }
+}
@@ -0,0 +1,322 @@
+/*
+ * Copyright (C) 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.gapid.models;
+
+import static com.google.common.util.concurrent.MoreExecutors.directExecutor;
+import static com.google.gapid.proto.service.memory.Memory.PoolNames.Application_VALUE;
+import static com.google.gapid.util.Paths.memoryAfter;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.hash.HashCode;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.gapid.models.CommandStream.CommandIndex;
+import com.google.gapid.models.Memory.Segment;
+import com.google.gapid.proto.service.Service;
+import com.google.gapid.proto.service.path.Path;
+import com.google.gapid.server.Client;
+import com.google.gapid.util.Flags;
+import com.google.gapid.util.Flags.Flag;
+import com.google.gapid.util.MoreFutures;
+import com.google.gapid.util.Ranges;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of the memory pages of the current capture, shared by the {@link Memory.Data} of all
+ * commands. Pages are evicted in least recently used order once the cache exceeds its byte budget.
+ * A page of the application pool that is not in the cache for a command, but is for an adjacent
+ * command, is reused if the later of the two commands neither reads nor writes the page.
+ */
+public class MemoryPageCache {
+  public static final Flag<Integer> memoryCacheSize = Flags.value("memory-cache-size", 64,
+      "The size, in MB, of the cache of memory pages.", true);
+
+  public static final int PAGE_SIZE = 0x10000;
+  private static final int MAX_OBSERVATIONS = 256;
+  // Page hashes are small, so many more of them are kept than pages.
+  private static final int MAX_HASHES = 1 << 16;
+
+  private final Client client;
+  private final Cache<PageKey, Segment> pages = CacheBuilder.newBuilder()
+      .maximumWeight((long)memoryCacheSize.get() << 20)
+      .weigher((PageKey key, Segment page) -> page.length())
+      .recordStats()
+      .build();
+  // The read and write observations of the commands, used to decide whether a page can be reused.
+  private final Cache<CommandIndex, Observations> observations = CacheBuilder.newBuilder()
+      .maximumSize(MAX_OBSERVATIONS)
+      .build();
+  // The hashes of pages, used to compare pages without loading them again.
+  private final Cache<PageKey, HashCode> hashes = CacheBuilder.newBuilder()
+      .maximumSize(MAX_HASHES)
+      .build();
+  private final Map<PageKey, ListenableFuture<Segment>> loading =
+      new ConcurrentHashMap<PageKey, ListenableFuture<Segment>>();
+  private final AtomicLong reused = new AtomicLong();
+  // Incremented whenever the cache is cleared, so that stale loads are not added to the cache.
+  private final AtomicInteger generation = new AtomicInteger();
+
+  public MemoryPageCache(Client client) {
+    this.client = client;
+  }
+
+  /**
+   * Records the read and write observations of the given command.
+   */
+  public void addObservations(CommandIndex command, Service.Memory memory) {
+    observations.put(command, new Observations(
+        Ranges.merge(memory.getReadsList()), Ranges.merge(memory.getWritesList())));
+  }
+
+  /**
+   * Returns the given page of memory after the given command, from the cache if possible.
+   */
+  public ListenableFuture<Segment> get(
+      Path.Device device, CommandIndex command, int pool, long page) {
+    PageKey key = new PageKey(command, pool, page);
+    Segment result = pages.getIfPresent(key);
+    if (result == null) {
+      result = reuse(key);
+    }
+    if (result != null) {
+      return Futures.immediateFuture(result);
+    }
+
+    ListenableFuture<Segment> future = loading.get(key);
+    if (future == null) {
+      SettableFuture<Segment> load = SettableFuture.create();
+      future = loading.putIfAbsent(key, load);
+      if (future == null) {
+        int gen = generation.get();
+        load.setFuture(MoreFutures.transform(client.get(
+            memoryAfter(command, pool, getOffsetForPage(page), PAGE_SIZE), device), value -> {
+              Segment segment = new Segment(value);
+              if (gen == generation.get()) {
+                pages.put(key, segment);
+              }
+              return segment;
+            }));
+        load.addListener(() -> loading.remove(key, load), directExecutor());
+        future = load;
+      }
+    }
+    // The load is shared by all the requests of the same page.
+    return Futures.nonCancellationPropagating(future);
+  }
+
+  /**
+   * Returns the hash of the given page of memory after the given command, only loading the page if
+   * its hash is not known yet. See {@link Segment#hash()}.
+   */
+  public ListenableFuture<HashCode> getHash(
+      Path.Device device, CommandIndex command, int pool, long page) {
+    PageKey key = new PageKey(command, pool, page);
+    HashCode hash = hashes.getIfPresent(key);
+    if (hash != null) {
+      return Futures.immediateFuture(hash);
+    }
+
+    int gen = generation.get();
+    return MoreFutures.transform(get(device, command, pool, page), segment -> {
+      HashCode result = segment.hash();
+      if (gen == generation.get()) {
+        hashes.put(key, result);
+      }
+      return result;
+    });
+  }
+
+  /**
+   * @return the merged ranges of the application pool read or written by the given command, or
+   * {@code null} if the observations of the command are not known. Read observations are applied
+   * to memory too, so these are all the ranges the command may change.
+   */
+  public List<Service.MemoryRange> getTouched(CommandIndex command) {
+    Observations obs = observations.getIfPresent(command);
+    return (obs == null) ? null : obs.touched;
+  }
+
+  private Segment reuse(PageKey key) {
+    if (key.pool != Application_VALUE) {
+      return null; // The observations only cover the application pool.
+    }
+
+    for (CommandIndex other : getAdjacent(key.command)) {
+      Segment page = pages.getIfPresent(new PageKey(other, key.pool, key.page));
+      if (page == null) {
+        continue;
+      }
+
+      boolean isLater = key.command.compareTo(other) > 0;
+      Observations later = observations.getIfPresent(isLater ? key.command : other);
+      Observations mine = observations.getIfPresent(key.command);
+      long base = getOffsetForPage(key.page);
+      if (later == null || mine == null || later.touches(base, PAGE_SIZE)) {
+        continue;
+      }
+
+      Segment result = page.withObservations(
+          mine.relativeReads(base, PAGE_SIZE), mine.relativeWrites(base, PAGE_SIZE));
+      pages.put(key, result);
+      reused.incrementAndGet();
+      return result;
+    }
+    return null;
+  }
+
+  /**
+   * @return the command preceding the given command within its parent, or {@code null} if the
+   * given command is a group or the first command of its parent.
+   */
+  public static CommandIndex getPrevious(CommandIndex command) {
+    Path.Command path = command.getCommand();
+    int last = path.getIndicesCount() - 1;
+    if (command.isGroup() || last < 0 || path.getIndices(last) == 0) {
+      return null;
+    }
+    return CommandIndex.forCommand(
+        path.toBuilder().setIndices(last, path.getIndices(last) - 1).build());
+  }
+
+  private static List<CommandIndex> getAdjacent(CommandIndex command) {
+    Path.Command path = command.getCommand();
+    int last = path.getIndicesCount() - 1;
+    if (command.isGroup() || last < 0) {
+      return Collections.emptyList();
+    }
+
+    List<CommandIndex> result = Lists.newArrayListWithCapacity(2);
+    long index = path.getIndices(last);
+    if (index > 0) {
+      result.add(CommandIndex.forCommand(path.toBuilder().setIndices(last, index - 1).build()));
+    }
+    result.add(CommandIndex.forCommand(path.toBuilder().setIndices(last, index + 1).build()));
+    return result;
+  }
+
+  public CacheStats getStats() {
+    return pages.stats();
+  }
+
+  /**
+   * @return the number of pages that were reused from adjacent commands.
+   */
+  public long getReusedCount() {
+    return reused.get();
+  }
+
+  public void clear() {
+    generation.incrementAndGet();
+    pages.invalidateAll();
+    hashes.invalidateAll();
+    observations.invalidateAll();
+  }
+
+  public static long getPageForOffset(long offset) {
+    return Long.divideUnsigned(offset, PAGE_SIZE);
+  }
+
+  public static long getOffsetForPage(long page) {
+    return page * PAGE_SIZE;
+  }
+
+  public static int getOffsetInPage(long offset) {
+    return (int)Long.remainderUnsigned(offset, PAGE_SIZE);
+  }
+
+  private static class PageKey {
+    public final CommandIndex command;
+    public final int pool;
+    public final long page;
+
+    public PageKey(CommandIndex command, int pool, long page) {
+      this.command = command;
+      this.pool = pool;
+      this.page = page;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (obj == this) {
+        return true;
+      } else if (!(obj instanceof PageKey)) {
+        return false;
+      }
+      PageKey k = (PageKey)obj;
+      return page == k.page && pool == k.pool && command.equals(k.command);
+    }
+
+    @Override
+    public int hashCode() {
+      return (command.hashCode() * 31 + pool) * 31 + Long.hashCode(page);
+    }
+  }
+
+  private static class Observations {
+    public final List<Service.MemoryRange> reads;
+    public final List<Service.MemoryRange> writes;
+    public final List<Service.MemoryRange> touched;
+
+    public Observations(List<Service.MemoryRange> reads, List<Service.MemoryRange> writes) {
+      this.reads = reads;
+      this.writes = writes;
+      this.touched = Ranges.merge(Lists.newArrayList(Iterables.concat(reads, writes)));
+    }
+
+    public boolean touches(long base, long size) {
+      return overlaps(reads, base, size) || overlaps(writes, base, size);
+    }
+
+    public List<Service.MemoryRange> relativeReads(long base, long size) {
+      return relative(reads, base, size);
+    }
+
+    public List<Service.MemoryRange> relativeWrites(long base, long size) {
+      return relative(writes, base, size);
+    }
+
+    private static boolean overlaps(List<Service.MemoryRange> ranges, long base, long size) {
+      for (Service.MemoryRange range : ranges) {
+        if (Ranges.overlap(range, base, size)) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    private static List<Service.MemoryRange> relative(
+        List<Service.MemoryRange> ranges, long base, long size) {
+      List<Service.MemoryRange> result = Lists.newArrayList();
+      for (Service.MemoryRange range : ranges) {
+        if (Ranges.overlap(range, base, size)) {
+          result.add(Ranges.relative(base, size, range));
+        }
+      }
+      return result;
+    }
+  }
+}
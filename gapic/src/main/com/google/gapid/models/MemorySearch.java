@@ -0,0 +1,513 @@
+/*
+ * Copyright (C) 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.gapid.models;
+
+import static com.google.gapid.proto.service.memory.Memory.PoolNames.Application_VALUE;
+import static com.google.gapid.util.Scheduler.EXECUTOR;
+
+import com.google.common.collect.Lists;
+import com.google.common.primitives.Ints;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.gapid.models.Memory.Observation;
+import com.google.gapid.proto.service.Service;
+import com.google.gapid.util.MoreFutures;
+import com.google.gapid.util.Ranges;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * A search for byte patterns or typed values in the observed memory of a command. The observed
+ * ranges are searched in batches of pages, several batches at a time, and the hits are reported
+ * in address order as the batches complete.
+ */
+public class MemorySearch {
+  public static final int MAX_HITS = 10000;
+
+  private static final int BATCH_SIZE = 16 * MemoryPageCache.PAGE_SIZE;
+  private static final int MAX_BATCHES_IN_FLIGHT = 8;
+
+  private final Memory.Data data;
+  private final Matcher matcher;
+  private final Listener listener;
+  private final List<Service.MemoryRange> ranges;
+  private final long totalBytes;
+  private final Deque<Batch> inFlight = new ArrayDeque<Batch>();
+  private int nextRange = 0;
+  private long nextAddress;
+  private long searchedBytes = 0;
+  private int hitCount = 0;
+  private boolean stopped = false;
+
+  private MemorySearch(Memory.Data data, Matcher matcher, Listener listener) {
+    this.data = data;
+    this.matcher = matcher;
+    this.listener = listener;
+    this.ranges = getObservedRanges(data);
+
+    long total = 0;
+    for (Service.MemoryRange range : ranges) {
+      total += range.getSize();
+    }
+    this.totalBytes = total;
+    this.nextAddress = ranges.isEmpty() ? 0 : ranges.get(0).getBase();
+  }
+
+  /**
+   * Starts searching the observed memory of the given data for the given matcher.
+   */
+  public static MemorySearch start(Memory.Data data, Matcher matcher, Listener listener) {
+    MemorySearch search = new MemorySearch(data, matcher, listener);
+    search.drain();
+    return search;
+  }
+
+  private static List<Service.MemoryRange> getObservedRanges(Memory.Data data) {
+    if (data.getPool() != Application_VALUE) {
+      return Collections.emptyList(); // The observations only cover the application pool.
+    }
+
+    List<Service.MemoryRange> result = Lists.newArrayList();
+    for (Observation obs : data.getObservations()) {
+      if (obs.getRange().getSize() > 0) {
+        result.add(obs.getRange());
+      }
+    }
+    return Ranges.merge(result);
+  }
+
+  /**
+   * @return the number of observed bytes this search covers.
+   */
+  public long getTotalBytes() {
+    return totalBytes;
+  }
+
+  /**
+   * Stops this search. No more listener calls are made once this method returns.
+   */
+  public synchronized void cancel() {
+    stopped = true;
+    for (Batch batch : inFlight) {
+      batch.hits.cancel(true);
+    }
+    inFlight.clear();
+  }
+
+  // Reports the completed batches at the head of the queue and starts more batches.
+  private synchronized void drain() {
+    while (!stopped && !inFlight.isEmpty() && inFlight.getFirst().hits.isDone()) {
+      Batch batch = inFlight.removeFirst();
+      List<Hit> hits;
+      try {
+        hits = Futures.getDone(batch.hits);
+      } catch (ExecutionException e) {
+        cancel();
+        listener.onSearchFailed(e.getCause());
+        return;
+      } catch (CancellationException e) {
+        return;
+      }
+
+      searchedBytes += batch.size;
+      boolean truncated = hitCount + hits.size() > MAX_HITS;
+      if (truncated) {
+        hits = hits.subList(0, MAX_HITS - hitCount);
+      }
+      hitCount += hits.size();
+      listener.onHits(hits, searchedBytes);
+      if (truncated) {
+        cancel();
+        listener.onSearchDone(hitCount, true);
+        return;
+      }
+    }
+
+    if (stopped) {
+      return;
+    }
+
+    while (inFlight.size() < MAX_BATCHES_IN_FLIGHT && nextRange < ranges.size()) {
+      Batch batch = nextBatch();
+      inFlight.addLast(batch);
+      batch.hits.addListener(this::drain, EXECUTOR);
+    }
+
+    if (inFlight.isEmpty()) {
+      stopped = true;
+      listener.onSearchDone(hitCount, false);
+    }
+  }
+
+  private Batch nextBatch() {
+    Service.MemoryRange range = ranges.get(nextRange);
+    long start = nextAddress, rangeEnd = range.getBase() + range.getSize();
+    long end = Math.min(start + BATCH_SIZE, rangeEnd);
+    // Load enough of the following bytes to find the matches that start in this batch.
+    long loadEnd = Math.min(end + matcher.getMaxLength() - 1, rangeEnd);
+
+    if (end == rangeEnd && ++nextRange < ranges.size()) {
+      nextAddress = ranges.get(nextRange).getBase();
+    } else {
+      nextAddress = end;
+    }
+
+    ListenableFuture<List<Hit>> hits = MoreFutures.transform(
+        data.loadPages(start, (int)(loadEnd - start)), segment -> {
+          List<Hit> result = Lists.newArrayList();
+          matcher.scan(start, segment.toByteArray(0, segment.length()), (int)(end - start),
+              (offset, length) -> {
+                if (result.size() <= MAX_HITS && segment.getByteKnown(offset, length)) {
+                  result.add(new Hit(start + offset, length));
+                }
+              });
+          return result;
+        });
+    return new Batch(end - start, hits);
+  }
+
+  /**
+   * Parses the given query of the given type.
+   *
+   * @throws IllegalArgumentException if the query is not valid for the type.
+   */
+  public static Matcher parse(Type type, String query) {
+    query = query.trim();
+    if (query.isEmpty()) {
+      throw new IllegalArgumentException("Empty query");
+    }
+
+    switch (type) {
+      case Hex: {
+        List<byte[]> patterns = Lists.newArrayList();
+        for (String pattern : query.split(",")) {
+          patterns.add(parseHex(pattern));
+        }
+        return new BytesMatcher(patterns);
+      }
+      case Text:
+        // Match both the 8 bit and the UTF-16 encoding of the text.
+        return new BytesMatcher(Arrays.asList(
+            query.getBytes(StandardCharsets.UTF_8), query.getBytes(StandardCharsets.UTF_16LE)));
+      case Int32: {
+        long value = parseInt(query);
+        if (value < Integer.MIN_VALUE || value > 0xFFFFFFFFL) {
+          throw new IllegalArgumentException("Value does not fit in 32 bits: " + query);
+        }
+        return new IntMatcher(4, value);
+      }
+      case Int64:
+        return new IntMatcher(8, parseInt(query));
+      case Float32:
+      case Float64: {
+        // Floats are given as either "<value>" or "<value> +- <tolerance>".
+        String[] parts = query.split("\\+-", 2);
+        double value = Double.parseDouble(parts[0].trim());
+        double tolerance = (parts.length > 1) ? Math.abs(Double.parseDouble(parts[1].trim())) : 0;
+        return (type == Type.Float32) ?
+            new FloatMatcher(4, (float)value, tolerance) : new FloatMatcher(8, value, tolerance);
+      }
+      default:
+        throw new AssertionError();
+    }
+  }
+
+  private static byte[] parseHex(String pattern) {
+    ByteArrayOutputStream result = new ByteArrayOutputStream();
+    int high = -1;
+    for (char c : pattern.toCharArray()) {
+      if (Character.isWhitespace(c)) {
+        continue;
+      }
+      int digit = Character.digit(c, 16);
+      if (digit < 0) {
+        throw new IllegalArgumentException("Invalid hex digit: " + c);
+      } else if (high < 0) {
+        high = digit;
+      } else {
+        result.write((high << 4) | digit);
+        high = -1;
+      }
+    }
+    if (high >= 0) {
+      throw new IllegalArgumentException("Odd number of hex digits: " + pattern.trim());
+    } else if (result.size() == 0) {
+      throw new IllegalArgumentException("Empty hex pattern");
+    }
+    return result.toByteArray();
+  }
+
+  private static long parseInt(String value) {
+    if (value.startsWith("0x") || value.startsWith("0X")) {
+      return Long.parseUnsignedLong(value.substring(2), 16);
+    }
+    return Long.parseLong(value);
+  }
+
+  /**
+   * The types of values that can be searched for.
+   */
+  public static enum Type {
+    Hex("Hex Bytes"), Text("Text"),
+    Int32("Int32"), Int64("Int64"),
+    Float32("Float32"), Float64("Float64");
+
+    public final String label;
+
+    private Type(String label) {
+      this.label = label;
+    }
+  }
+
+  /**
+   * A match of the search.
+   */
+  public static class Hit {
+    public final long address;
+    public final int length;
+
+    public Hit(long address, int length) {
+      this.address = address;
+      this.length = length;
+    }
+  }
+
+  /**
+   * Listener of search progress. The listener is called from a background thread, one call at a
+   * time, and should not block.
+   */
+  public static interface Listener {
+    /**
+     * Called with the next hits of the search, in address order, and the number of bytes
+     * searched so far.
+     */
+    public void onHits(List<Hit> hits, long searchedBytes);
+
+    /**
+     * Called once the search has completed. Truncated is {@code true} if the search stopped after
+     * finding {@link #MAX_HITS} hits.
+     */
+    public void onSearchDone(int hitCount, boolean truncated);
+
+    /**
+     * Called if the search failed to load the memory.
+     */
+    public void onSearchFailed(Throwable error);
+  }
+
+  /**
+   * Finds the matches of a query in a buffer of memory.
+   */
+  public abstract static class Matcher {
+    /**
+     * @return the maximum length, in bytes, of a match.
+     */
+    protected abstract int getMaxLength();
+
+    /**
+     * Finds the matches in the given bytes, which start at the given address, reporting only the
+     * matches that start before the given limit.
+     */
+    protected abstract void scan(long address, byte[] bytes, int limit, HitCollector out);
+  }
+
+  protected static interface HitCollector {
+    public void hit(int offset, int length);
+  }
+
+  /**
+   * Aho-Corasick automaton matching any number of byte patterns in a single pass.
+   */
+  private static class BytesMatcher extends Matcher {
+    private final int[][] transitions; // per state, the next state for each byte.
+    private final int[][] matches; // per state, the lengths of the patterns ending there.
+    private final int maxLength;
+
+    public BytesMatcher(List<byte[]> patterns) {
+      List<int[]> next = Lists.newArrayList();
+      List<int[]> ends = Lists.newArrayList();
+      next.add(newState());
+      ends.add(new int[0]);
+
+      int max = 0;
+      for (byte[] pattern : patterns) {
+        int state = 0;
+        for (byte b : pattern) {
+          if (next.get(state)[b & 0xFF] < 0) {
+            next.get(state)[b & 0xFF] = next.size();
+            next.add(newState());
+            ends.add(new int[0]);
+          }
+          state = next.get(state)[b & 0xFF];
+        }
+        if (!Ints.contains(ends.get(state), pattern.length)) {
+          ends.set(state, append(ends.get(state), pattern.length));
+        }
+        max = Math.max(max, pattern.length);
+      }
+
+      // Turn the trie into a DFA, following the failure links breadth first.
+      int[] fail = new int[next.size()];
+      Deque<Integer> queue = new ArrayDeque<Integer>();
+      int[] root = next.get(0);
+      for (int b = 0; b < 256; b++) {
+        if (root[b] < 0) {
+          root[b] = 0;
+        } else {
+          fail[root[b]] = 0;
+          queue.add(root[b]);
+        }
+      }
+      while (!queue.isEmpty()) {
+        int state = queue.remove();
+        int[] transition = next.get(state);
+        ends.set(state, concat(ends.get(state), ends.get(fail[state])));
+        for (int b = 0; b < 256; b++) {
+          int child = transition[b];
+          if (child < 0) {
+            transition[b] = next.get(fail[state])[b];
+          } else {
+            fail[child] = next.get(fail[state])[b];
+            queue.add(child);
+          }
+        }
+      }
+
+      this.transitions = next.toArray(new int[next.size()][]);
+      this.matches = ends.toArray(new int[ends.size()][]);
+      this.maxLength = max;
+    }
+
+    private static int[] newState() {
+      int[] state = new int[256];
+      Arrays.fill(state, -1);
+      return state;
+    }
+
+    private static int[] append(int[] array, int value) {
+      int[] result = Arrays.copyOf(array, array.length + 1);
+      result[array.length] = value;
+      return result;
+    }
+
+    private static int[] concat(int[] a, int[] b) {
+      if (b.length == 0) {
+        return a;
+      }
+      int[] result = Arrays.copyOf(a, a.length + b.length);
+      System.arraycopy(b, 0, result, a.length, b.length);
+      return result;
+    }
+
+    @Override
+    protected int getMaxLength() {
+      return maxLength;
+    }
+
+    @Override
+    protected void scan(long address, byte[] bytes, int limit, HitCollector out) {
+      int state = 0;
+      for (int i = 0; i < bytes.length; i++) {
+        state = transitions[state][bytes[i] & 0xFF];
+        for (int length : matches[state]) {
+          int start = i - length + 1;
+          if (start < limit) {
+            out.hit(start, length);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Matches aligned little endian integers of the given size.
+   */
+  private static class IntMatcher extends Matcher {
+    private final int size;
+    private final long value;
+
+    public IntMatcher(int size, long value) {
+      this.size = size;
+      this.value = (size == 4) ? value & 0xFFFFFFFFL : value;
+    }
+
+    @Override
+    protected int getMaxLength() {
+      return size;
+    }
+
+    @Override
+    protected void scan(long address, byte[] bytes, int limit, HitCollector out) {
+      ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+      for (int i = (int)(-address & (size - 1)); i < limit && i + size <= bytes.length; i += size) {
+        long v = (size == 4) ? buffer.getInt(i) & 0xFFFFFFFFL : buffer.getLong(i);
+        if (v == value) {
+          out.hit(i, size);
+        }
+      }
+    }
+  }
+
+  /**
+   * Matches aligned little endian floating point values of the given size, within a tolerance.
+   */
+  private static class FloatMatcher extends Matcher {
+    private final int size;
+    private final double min, max;
+
+    public FloatMatcher(int size, double value, double tolerance) {
+      this.size = size;
+      this.min = value - tolerance;
+      this.max = value + tolerance;
+    }
+
+    @Override
+    protected int getMaxLength() {
+      return size;
+    }
+
+    @Override
+    protected void scan(long address, byte[] bytes, int limit, HitCollector out) {
+      ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+      for (int i = (int)(-address & (size - 1)); i < limit && i + size <= bytes.length; i += size) {
+        double v = (size == 4) ? buffer.getFloat(i) : buffer.getDouble(i);
+        if (v >= min && v <= max) {
+          out.hit(i, size);
+        }
+      }
+    }
+  }
+
+  private static class Batch {
+    public final long size;
+    public final ListenableFuture<List<Hit>> hits;
+
+    public Batch(long size, ListenableFuture<List<Hit>> hits) {
+      this.size = size;
+      this.hits = hits;
+    }
+  }
+}
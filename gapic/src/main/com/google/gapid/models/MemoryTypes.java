@@ -15,15 +15,18 @@
  */
 package com.google.gapid.models;
 
-import static com.google.gapid.util.MoreFutures.combine;
 import static com.google.gapid.util.MoreFutures.transform;
 import static com.google.gapid.util.MoreFutures.transformAsync;
 import static com.google.gapid.util.Paths.memoryAsType;
 import static com.google.gapid.util.Paths.type;
 
 import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
 import com.google.gapid.models.Memory.StructNode;
 import com.google.gapid.models.Memory.StructObservation;
 import com.google.gapid.proto.device.Device.Instance;
@@ -31,67 +34,54 @@ import com.google.gapid.proto.service.Service;
 import com.google.gapid.proto.service.path.Path;
 import com.google.gapid.proto.service.types.TypeInfo;
 import com.google.gapid.server.Client;
-import com.google.gapid.util.FutureCache;
+import com.google.gapid.util.MoreFutures;
 
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.List;
-import java.util.function.Function;
-import java.util.function.Predicate;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.logging.Logger;
 
 public class MemoryTypes {
   protected static final Logger LOG = Logger.getLogger(MemoryTypes.class.getName());
+  // Maximum number of concurrent type requests of a single type graph load.
+  private static final int MAX_IN_FLIGHT = 16;
 
-  protected final FutureCache<Path.Type, TypeInfo.Type> cache;
   protected final ConstantSets constants;
   private final Client client;
+  private final Devices devices;
+  private volatile TypeIndex index = new TypeIndex();
 
-  public MemoryTypes(Client client, Devices devices, ConstantSets constants) {
+  public MemoryTypes(Client client, Capture capture, Devices devices, ConstantSets constants) {
     this.constants = constants;
     this.client = client;
+    this.devices = devices;
 
-    Function<Path.Type, ListenableFuture<TypeInfo.Type>> fetcher = path -> {
-      return transform(client.get(type(path), devices.getReplayDevicePath()),
-          Service.Value::getType);
-    };
-    // TODO: Currently cache all. Please think about a good cache predicate condition.
-    Predicate<TypeInfo.Type> shouldCache = result -> {
-      return true;
-    };
-    this.cache = FutureCache.hardCache(fetcher, shouldCache);
-
+    capture.addListener(new Capture.Listener() {
+      @Override
+      public void onCaptureLoadingStart(boolean maintainState) {
+        index = new TypeIndex();
+      }
+    });
     devices.addListener(new Devices.Listener() {
       @Override
       public void onReplayDeviceChanged(Instance dev) {
-        cache.clear();
+        index = new TypeIndex();
       }
     });
   }
 
   /**
    * From a type path, Load the direct type and possible children types, save them to the cache.
-   * Make sure the whole type tree is loaded.
+   * Make sure the whole type tree is loaded. The type graph is resolved breadth first, with all
+   * the unresolved types of a level being requested concurrently.
    */
   public ListenableFuture<Void> loadTypes(Path.Type path) {
-    return transformAsync(cache.get(path), intermediate -> {
-      switch (intermediate.getTyCase()) {
-        case SLICE:
-          return loadTypes(type(intermediate.getSlice().getUnderlying(), path.getAPI()));
-        case STRUCT:
-          List<ListenableFuture<Void>> structChildrenTypes = Lists.newArrayList();
-          for (TypeInfo.StructField childField : intermediate.getStruct().getFieldsList()) {
-            structChildrenTypes.add(loadTypes(type(childField.getType(), path.getAPI())));
-          }
-          return combine(structChildrenTypes, $ -> null);
-        case ARRAY:
-          return loadTypes(type(intermediate.getArray().getElementType(), path.getAPI()));
-        case PSEUDONYM:
-          return loadTypes(type(intermediate.getPseudonym().getUnderlying(), path.getAPI()));
-        case ENUM:
-          return transform(constants.loadConstants(intermediate.getEnum()), $ -> null);
-        default:
-          return Futures.immediateFuture(null);
-      }
-    });
+    return index.loadGraph(path);
   }
 
   /**
@@ -99,7 +89,7 @@ public class MemoryTypes {
    * loaded into cache through method loadTypes.
    */
   public TypeInfo.Type getType(Path.Type path) {
-    return cache.getIfPresent(path);
+    return index.getType(path);
   }
 
   /**
@@ -125,4 +115,237 @@ public class MemoryTypes {
     }
     return Futures.allAsList(nodes);
   }
+
+  /**
+   * The types of the current capture and replay device. Both the fetched types and the in-flight
+   * type requests are kept, so each type is only ever requested once.
+   */
+  private class TypeIndex {
+    private final Map<Path.Type, ListenableFuture<TypeInfo.Type>> types =
+        new ConcurrentHashMap<Path.Type, ListenableFuture<TypeInfo.Type>>();
+    // Loads of entire type graphs, keyed by the root type.
+    private final Map<Path.Type, ListenableFuture<Void>> graphs =
+        new ConcurrentHashMap<Path.Type, ListenableFuture<Void>>();
+    // Types whose entire type graph has been loaded.
+    private final Set<Path.Type> complete = ConcurrentHashMap.newKeySet();
+
+    public TypeIndex() {
+    }
+
+    public TypeInfo.Type getType(Path.Type path) {
+      ListenableFuture<TypeInfo.Type> future = types.get(path);
+      if (future == null || !future.isDone()) {
+        return null;
+      }
+      try {
+        return Futures.getDone(future);
+      } catch (ExecutionException | CancellationException e) {
+        return null;
+      }
+    }
+
+    public ListenableFuture<Void> loadGraph(Path.Type path) {
+      if (complete.contains(path)) {
+        return Futures.immediateFuture(null);
+      }
+
+      ListenableFuture<Void> result = graphs.get(path);
+      if (result == null) {
+        SettableFuture<Void> future = SettableFuture.create();
+        result = graphs.putIfAbsent(path, future);
+        if (result == null) {
+          future.setFuture(new GraphLoader(this, path.getAPI()).load(path));
+          // Once done, either the graph is complete, or the load should be retried.
+          future.addListener(() -> graphs.remove(path, future), MoreExecutors.directExecutor());
+          result = future;
+        }
+      }
+      // The load is shared by all the callers for the same type.
+      return Futures.nonCancellationPropagating(result);
+    }
+
+    public ListenableFuture<TypeInfo.Type> fetch(Path.Type path) {
+      ListenableFuture<TypeInfo.Type> result = types.get(path);
+      if (result == null) {
+        SettableFuture<TypeInfo.Type> future = SettableFuture.create();
+        result = types.putIfAbsent(path, future);
+        if (result == null) {
+          future.setFuture(transform(client.get(type(path), devices.getReplayDevicePath()),
+              Service.Value::getType));
+          MoreFutures.addCallback(future, new FutureCallback<TypeInfo.Type>() {
+            @Override
+            public void onSuccess(TypeInfo.Type type) {
+              // Keep it.
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+              types.remove(path, future);
+            }
+          });
+          result = future;
+        }
+      }
+      return result;
+    }
+
+    public void markComplete(List<Path.Type> paths) {
+      complete.addAll(paths);
+    }
+
+    public boolean isComplete(Path.Type path) {
+      return complete.contains(path);
+    }
+  }
+
+  /**
+   * Loads all the types reachable from a root type. The types are requested in breadth first order
+   * with bounded concurrency. Types that have already been requested, either by this or any other
+   * load, are not requested again and types whose entire type graph has already been loaded are
+   * not traversed.
+   */
+  private class GraphLoader {
+    private final TypeIndex types;
+    private final Path.API api;
+    private final SettableFuture<Void> result = SettableFuture.create();
+    private final Set<Long> seen = Sets.newHashSet();
+    private final Deque<Path.Type> queue = new ArrayDeque<Path.Type>();
+    private final List<Path.Type> loaded = Lists.newArrayList();
+    private final List<ListenableFuture<Service.ConstantSet>> constantSets = Lists.newArrayList();
+    private int inFlight = 0;
+    private boolean failed = false;
+
+    public GraphLoader(TypeIndex types, Path.API api) {
+      this.types = types;
+      this.api = api;
+    }
+
+    public ListenableFuture<Void> load(Path.Type root) {
+      // The root type has to be loaded for the graph load to succeed.
+      MoreFutures.addCallback(types.fetch(root), new FutureCallback<TypeInfo.Type>() {
+        @Override
+        public void onSuccess(TypeInfo.Type type) {
+          synchronized (GraphLoader.this) {
+            seen.add(root.getTypeIndex());
+            inFlight++;
+          }
+          onLoaded(root, type);
+        }
+
+        @Override
+        public void onFailure(Throwable t) {
+          result.setException(t);
+        }
+      });
+      return result;
+    }
+
+    private void onLoaded(Path.Type path, TypeInfo.Type type) {
+      synchronized (this) {
+        inFlight--;
+        loaded.add(path);
+        switch (type.getTyCase()) {
+          case SLICE:
+            enqueue(type.getSlice().getUnderlying());
+            break;
+          case STRUCT:
+            for (TypeInfo.StructField field : type.getStruct().getFieldsList()) {
+              enqueue(field.getType());
+            }
+            break;
+          case ARRAY:
+            enqueue(type.getArray().getElementType());
+            break;
+          case PSEUDONYM:
+            enqueue(type.getPseudonym().getUnderlying());
+            break;
+          case ENUM:
+            constantSets.add(constants.loadConstants(type.getEnum()));
+            break;
+          default:
+            break;
+        }
+      }
+      dispatch();
+    }
+
+    private void onFailed() {
+      synchronized (this) {
+        inFlight--;
+        // Incomplete graphs are not marked as loaded, so they will be retried.
+        failed = true;
+      }
+      dispatch();
+    }
+
+    private void enqueue(long typeIndex) {
+      if (seen.add(typeIndex)) {
+        Path.Type path = type(typeIndex, api);
+        if (!types.isComplete(path)) {
+          queue.add(path);
+        }
+      }
+    }
+
+    private void dispatch() {
+      List<Path.Type> toFetch = Lists.newArrayList();
+      synchronized (this) {
+        if (result.isDone()) {
+          return;
+        } else if (inFlight == 0 && queue.isEmpty()) {
+          done();
+          return;
+        }
+
+        while (inFlight < MAX_IN_FLIGHT && !queue.isEmpty()) {
+          toFetch.add(queue.removeFirst());
+          inFlight++;
+        }
+      }
+
+      for (Path.Type path : toFetch) {
+        MoreFutures.addCallback(types.fetch(path), new FutureCallback<TypeInfo.Type>() {
+          @Override
+          public void onSuccess(TypeInfo.Type type) {
+            onLoaded(path, type);
+          }
+
+          @Override
+          public void onFailure(Throwable t) {
+            onFailed();
+          }
+        });
+      }
+      if (!toFetch.isEmpty()) {
+        client.flush();
+      }
+    }
+
+    private void done() {
+      // Like the types of a struct's fields, failing to load the constants is not fatal, but the
+      // graph is then not remembered as complete, so that the constants are loaded again.
+      result.setFuture(Futures.whenAllComplete(constantSets).call(() -> {
+        boolean complete;
+        synchronized (this) {
+          complete = !failed;
+        }
+        for (ListenableFuture<Service.ConstantSet> constantSet : constantSets) {
+          complete = complete && succeeded(constantSet);
+        }
+        if (complete) {
+          types.markComplete(loaded);
+        }
+        return null;
+      }, MoreExecutors.directExecutor()));
+    }
+
+    private static boolean succeeded(ListenableFuture<?> future) {
+      try {
+        Futures.getDone(future);
+        return true;
+      } catch (ExecutionException | CancellationException e) {
+        return false;
+      }
+    }
+  }
 }
@@ -65,6 +65,8 @@ abstract class ModelBase<T, S, E, L extends Events.Listener> {
     if (sourceStore.updateIfNotNull(source) || force) {
       if (!isSourceComplete(source)) {
         return;
+      } else if (!force && data != null && updateInPlace(source, data)) {
+        return;
       }
 
       data = null;
@@ -95,6 +97,19 @@ abstract class ModelBase<T, S, E, L extends Events.Listener> {
     return true;
   }
 
+  /**
+   * Called when the source changes while the data of the previous source is loaded. Models that
+   * can update their current data to the new source, rather than reloading it from scratch, start
+   * the update and return {@code true}. The update should be run using the {@link #rpcController}.
+   *
+   * @param source the new source.
+   * @param current the currently loaded data.
+   */
+  @SuppressWarnings("unused")
+  protected boolean updateInPlace(S source, T current) {
+    return false;
+  }
+
   protected ResultOrError<T, E> processResult(Rpc.Result<T> result) {
     try {
       return success(result.get());
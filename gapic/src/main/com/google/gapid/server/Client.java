@@ -16,19 +16,25 @@
 package com.google.gapid.server;
 
 import static com.google.common.util.concurrent.Futures.immediateFuture;
+import static com.google.common.util.concurrent.MoreExecutors.directExecutor;
 import static com.google.gapid.server.GapidClient.Result.error;
 import static com.google.gapid.util.ProtoDebugTextFormat.shortDebugString;
 import static java.util.logging.Level.FINE;
 
+import com.google.common.io.ByteStreams;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.gapid.models.Strings;
 import com.google.gapid.proto.log.Log;
 import com.google.gapid.proto.perfetto.Perfetto;
 import com.google.gapid.proto.service.Service;
 import com.google.gapid.proto.service.Service.CheckForUpdatesRequest;
 import com.google.gapid.proto.service.Service.ClientEventRequest;
+import com.google.gapid.proto.service.Service.ExportCaptureRequest;
 import com.google.gapid.proto.service.Service.FollowRequest;
 import com.google.gapid.proto.service.Service.GetAvailableStringTablesRequest;
 import com.google.gapid.proto.service.Service.GetDevicesForReplayRequest;
@@ -49,14 +55,21 @@ import com.google.gapid.proto.service.api.API;
 import com.google.gapid.proto.service.path.Path;
 import com.google.gapid.proto.stringtable.Stringtable;
 import com.google.gapid.rpc.RpcException;
+import com.google.gapid.util.Coalescer;
 import com.google.gapid.util.MoreFutures;
 import com.google.gapid.util.Paths;
 import com.google.gapid.util.Scheduler;
 import com.google.protobuf.ByteString;
+import com.google.protobuf.MessageLite;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.List;
+import java.util.concurrent.Executors;
 import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.LongConsumer;
 import java.util.function.Supplier;
 import java.util.logging.Logger;
 
@@ -66,21 +79,41 @@ import java.util.logging.Logger;
 public class Client {
   private static final Logger LOG = Logger.getLogger(Client.class.getName());
 
+  // Window in which get and follow requests are collected before they are sent to the server.
+  private static final long COALESCE_WINDOW_MS = 2;
+  private static final int COALESCE_MAX_BATCH = 64;
+  private static final int COALESCE_MAX_IN_FLIGHT = 32;
+
   private final GapidClient client;
+  private final RpcStats stats = new RpcStats();
+  private final Coalescer<GetRequest, Service.GetResponse> gets;
+  private final Coalescer<FollowRequest, Service.FollowResponse> follows;
 
   public Client(GapidClient client) {
     this.client = client;
+    this.gets = new Coalescer<GetRequest, Service.GetResponse>(
+        client::get, COALESCE_WINDOW_MS, COALESCE_MAX_BATCH, COALESCE_MAX_IN_FLIGHT);
+    this.follows = new Coalescer<FollowRequest, Service.FollowResponse>(
+        client::follow, COALESCE_WINDOW_MS, COALESCE_MAX_BATCH, COALESCE_MAX_IN_FLIGHT);
+  }
+
+  /**
+   * @return the latency, payload size and error statistics of the RPCs made by this client.
+   */
+  public RpcStats getStats() {
+    return stats;
   }
 
   public ListenableFuture<ServerInfo> getSeverInfo() {
-    return call(() -> "RPC->getServerInfo()",
+    return call("getServerInfo", () -> "RPC->getServerInfo()",
         stack -> MoreFutures.transformAsync(
             client.getServerInfo(GetServerInfoRequest.getDefaultInstance()),
             in -> immediateFuture(throwIfError(in.getInfo(), in.getError(), stack))));
   }
 
   public ListenableFuture<Release> checkForUpdates(boolean includeDevReleases) {
-    return call(() -> String.format("RPC->checkForUpdates(%b)", includeDevReleases),
+    return call("checkForUpdates",
+        () -> String.format("RPC->checkForUpdates(%b)", includeDevReleases),
         stack -> MoreFutures.transformAsync(
             client.checkForUpdates(CheckForUpdatesRequest.newBuilder()
                 .setIncludeDevReleases(includeDevReleases)
@@ -89,10 +122,10 @@ public class Client {
   }
 
   public ListenableFuture<Value> get(Path.Any path, Path.Device device) {
-    return call(
+    return call("get", path,
         () -> String.format("RPC->get(%s, %s)", shortDebugString(path), shortDebugString(device)),
         stack -> MoreFutures.transformAsync(
-            client.get(GetRequest.newBuilder()
+            gets.get(GetRequest.newBuilder()
                 .setPath(path)
                 .setConfig(Path.ResolveConfig.newBuilder()
                     .setReplayDevice(device))
@@ -100,8 +133,17 @@ public class Client {
             in -> immediateFuture(throwIfError(in.getValue(), in.getError(), stack))));
   }
 
+  /**
+   * Immediately sends all the get and follow requests that are currently being coalesced, rather
+   * than waiting for the coalescing window to expire.
+   */
+  public void flush() {
+    gets.flush();
+    follows.flush();
+  }
+
   public ListenableFuture<Path.Any> set(Path.Any path, Path.Device device, Service.Value value) {
-    return call(
+    return call("set", path,
         () -> String.format("RPC->set(%s, %s, %s)",
             shortDebugString(path), shortDebugString(device), shortDebugString(value)),
         stack -> MoreFutures.transformAsync(
@@ -115,11 +157,11 @@ public class Client {
   }
 
   public ListenableFuture<Path.Any> follow(Path.Any path, Path.Device device) {
-    return call(
+    return call("follow", path,
         () -> String.format("RPC->follow(%s, %s)",
             shortDebugString(path), shortDebugString(device)),
         stack -> MoreFutures.transformAsync(
-            client.follow(FollowRequest.newBuilder()
+            follows.get(FollowRequest.newBuilder()
                 .setPath(path)
                 .setConfig(Path.ResolveConfig.newBuilder()
                     .setReplayDevice(device))
@@ -128,14 +170,15 @@ public class Client {
   }
 
   public ListenableFuture<List<Stringtable.Info>> getAvailableStringTables() {
-    return call(() -> "RPC->getAvailableStringTables()",
+    return call("getAvailableStringTables", () -> "RPC->getAvailableStringTables()",
         stack -> MoreFutures.transformAsync(
           client.getAvailableStringTables(GetAvailableStringTablesRequest.getDefaultInstance()),
           in -> immediateFuture(throwIfError(in.getTables(), in.getError(), stack).getListList())));
   }
 
   public ListenableFuture<Stringtable.StringTable> getStringTable(Stringtable.Info info) {
-    return call(() -> String.format("RPC->getStringTable(%s)", shortDebugString(info)),
+    return call("getStringTable",
+        () -> String.format("RPC->getStringTable(%s)", shortDebugString(info)),
         stack -> MoreFutures.transformAsync(
             client.getStringTable(GetStringTableRequest.newBuilder()
                 .setTable(info)
@@ -144,16 +187,30 @@ public class Client {
   }
 
   public ListenableFuture<Path.Capture> importCapture(byte[] data) {
-    return call(() -> String.format("RPC->importCapture(<%d bytes>)", data.length),
-        stack -> MoreFutures.transformAsync(client.importCapture(
-            ImportCaptureRequest.newBuilder()
-                .setData(ByteString.copyFrom(data))
-                .build()),
+    return importCapture("", new ByteArrayInputStream(data), ignored -> { /* empty */ });
+  }
+
+  /**
+   * Imports the capture read from the given stream. The data is sent to the server in fixed size
+   * chunks, only reading more data from the stream as the server is ready to receive it, so the
+   * memory used is independent of the capture size. The stream is read on a dedicated thread, one
+   * chunk ahead of the sent data, and is closed once the import is done.
+   *
+   * @param onProgress called with the total number of bytes read so far.
+   */
+  public ListenableFuture<Path.Capture> importCapture(
+      String name, InputStream data, LongConsumer onProgress) {
+    ChunkedImport source = new ChunkedImport(name, data, onProgress);
+    ListenableFuture<Path.Capture> result = call("importCapture",
+        () -> String.format("RPC->importCapture(%s, <stream>)", name),
+        stack -> MoreFutures.transformAsync(client.importCaptureStream(source),
             in -> immediateFuture(throwIfError(in.getCapture(), in.getError(), stack))));
+    result.addListener(source::close, directExecutor());
+    return result;
   }
 
   public ListenableFuture<Path.Capture> loadCapture(String path) {
-    return call(() -> String.format("RPC->loadCapture(%s)", path),
+    return call("loadCapture", () -> String.format("RPC->loadCapture(%s)", path),
         stack -> MoreFutures.transformAsync(
             client.loadCapture(LoadCaptureRequest.newBuilder()
                 .setPath(path)
@@ -162,7 +219,8 @@ public class Client {
   }
 
   public ListenableFuture<Void> saveCapture(Path.Capture capture, String path) {
-    return call(() -> String.format("RPC->exportCapture(%s, %s)", shortDebugString(capture), path),
+    return call("saveCapture",
+        () -> String.format("RPC->exportCapture(%s, %s)", shortDebugString(capture), path),
         stack -> MoreFutures.transformAsync(
             client.saveCapture(SaveCaptureRequest.newBuilder()
                 .setCapture(capture)
@@ -171,8 +229,28 @@ public class Client {
             in -> immediateFuture(throwIfError(null, in.getError(), stack))));
   }
 
+  /**
+   * Exports the capture, passing its data to the given consumer in chunks, as they are streamed
+   * from the server. The consumer is invoked in order, on a background thread, and the next chunk
+   * is not received until the consumer returns. Cancelling the returned future cancels the export.
+   */
+  public ListenableFuture<Void> exportCapture(Path.Capture capture, DataConsumer onData) {
+    return call("exportCapture",
+        () -> String.format("RPC->exportCaptureStream(%s)", shortDebugString(capture)),
+        stack -> client.streamExportCapture(ExportCaptureRequest.newBuilder()
+            .setCapture(capture)
+            .build(), r -> {
+              try {
+                onData.accept(throwIfError(r.getData(), r.getError(), stack));
+                return GapidClient.Result.CONTINUE;
+              } catch (RpcException | IOException e) {
+                return error(e);
+              }
+            }));
+  }
+
   public ListenableFuture<List<Path.Device>> getDevices() {
-    return call(() -> "RPC->getDevices()",
+    return call("getDevices", () -> "RPC->getDevices()",
         stack -> MoreFutures.transformAsync(
             client.getDevices(GetDevicesRequest.getDefaultInstance()),
             in -> immediateFuture(throwIfError(in.getDevices(), in.getError(), stack)
@@ -180,7 +258,8 @@ public class Client {
   }
 
   public ListenableFuture<List<Path.Device>> getDevicesForReplay(Path.Capture capture) {
-    return call(() -> String.format("RPC->getDevicesForReplay(%s)", shortDebugString(capture)),
+    return call("getDevicesForReplay",
+        () -> String.format("RPC->getDevicesForReplay(%s)", shortDebugString(capture)),
         stack -> MoreFutures.transformAsync(
             client.getDevicesForReplay(GetDevicesForReplayRequest.newBuilder()
               .setCapture(capture)
@@ -192,7 +271,7 @@ public class Client {
   public ListenableFuture<Path.ImageInfo> getFramebufferAttachment(Path.Device device,
       Path.Command after, API.FramebufferAttachment attachment,
       Service.RenderSettings settings, Service.UsageHints hints, boolean disableReplayOptimization) {
-    return call(
+    return call("getFramebufferAttachment",
         () -> String.format("RPC->getFramebufferAttachment(%s, %s, %s, %s, %s)",
             shortDebugString(device), shortDebugString(after), attachment,
             shortDebugString(settings), shortDebugString(hints)),
@@ -211,7 +290,8 @@ public class Client {
   }
 
   public ListenableFuture<Void> postEvent(Service.ClientInteraction interaction) {
-    return call(() -> String.format("RPC->postClientEvent(%s)", shortDebugString(interaction)),
+    return call("postEvent",
+        () -> String.format("RPC->postClientEvent(%s)", shortDebugString(interaction)),
         stack -> MoreFutures.transform(
             client.postClientEvent(ClientEventRequest.newBuilder()
                 .setInteraction(interaction)
@@ -221,7 +301,7 @@ public class Client {
 
   public ListenableFuture<Service.TraceTargetTreeNode> getTraceTargetTreeNode(
       Path.Device device, String uri, float density) {
-    return call(() -> String.format(
+    return call("getTraceTargetTreeNode", () -> String.format(
         "RPC->traceTargetTreeNode(%s, %s, %g)", shortDebugString(device), uri, density),
         stack -> MoreFutures.transformAsync(
             client.getTraceTargetTreeNode(Service.TraceTargetTreeNodeRequest.newBuilder()
@@ -234,7 +314,7 @@ public class Client {
 
   public ListenableFuture<Void> updateSettings(
       boolean crashReporting, boolean analytics, String clientId, String adb) {
-    return call(() -> String.format(
+    return call("updateSettings", () -> String.format(
         "RPC->updateSettings(%b, %b, %s, %s)", crashReporting, analytics, clientId, adb),
         stack -> MoreFutures.transformAsync(
             client.updateSettings(Service.UpdateSettingsRequest.newBuilder()
@@ -248,7 +328,8 @@ public class Client {
   }
 
   public ListenableFuture<Perfetto.QueryResult> perfettoQuery(Path.Capture capture, String query) {
-    return call(() -> String.format("RPC->perfettoQuery(%s, %s)", shortDebugString(capture), query),
+    return call("perfettoQuery",
+        () -> String.format("RPC->perfettoQuery(%s, %s)", shortDebugString(capture), query),
         stack -> MoreFutures.transformAsync(
             client.perfettoQuery(Service.PerfettoQueryRequest.newBuilder()
                 .setCapture(capture)
@@ -290,11 +371,23 @@ public class Client {
     });
   }
 
-  private static <V> ListenableFuture<V> call(
+  private <V> ListenableFuture<V> call(String method,
+      Supplier<String> stackMessage, Function<Stack, ListenableFuture<V>> call) {
+    return call(stats.start(method), stackMessage, call);
+  }
+
+  private <V> ListenableFuture<V> call(String method, Path.Any path,
+      Supplier<String> stackMessage, Function<Stack, ListenableFuture<V>> call) {
+    return call(stats.start(method, path.getPathCase().name()), stackMessage, call);
+  }
+
+  private static <V> ListenableFuture<V> call(RpcStats.Sample sample,
       Supplier<String> stackMessage, Function<Stack, ListenableFuture<V>> call) {
     SettableFuture<V> result = SettableFuture.create();
-    Stack stack = new Stack(stackMessage);
+    Stack stack = new Stack(stackMessage, sample);
+    sample.track(result);
     Scheduler.EXECUTOR.execute(() -> {
+      sample.onSend();
       if (LOG.isLoggable(FINE)) {
         LOG.log(FINE, stackMessage.get());
       }
@@ -304,6 +397,16 @@ public class Client {
   }
 
   private static <V> V throwIfError(V value, Service.Error err, Stack stack) throws RpcException {
+    if (stack.sample != null) {
+      long size = err.getSerializedSize();
+      if (value instanceof MessageLite) {
+        size += ((MessageLite)value).getSerializedSize();
+      } else if (value instanceof ByteString) {
+        size += ((ByteString)value).size();
+      }
+      stack.sample.onReceive(size);
+    }
+
     switch (err.getErrCase()) {
       case ERR_NOT_SET:
         return value;
@@ -336,6 +439,90 @@ public class Client {
     }
   }
 
+  /**
+   * Consumer of streamed binary data.
+   */
+  public static interface DataConsumer {
+    public void accept(ByteString data) throws IOException;
+  }
+
+  /**
+   * Reads a capture from a stream in fixed size chunks, producing one import request per chunk.
+   * The stream is read on a dedicated I/O thread, so that the blocking reads don't stall the
+   * transport, and the next chunk is read while the current one is being sent.
+   */
+  private static class ChunkedImport implements GapidClient.StreamSource<ImportCaptureRequest> {
+    private static final int CHUNK_SIZE = 1 << 20;
+
+    private final String name;
+    private final InputStream in;
+    private final LongConsumer onProgress;
+    private final ListeningExecutorService io = MoreExecutors.listeningDecorator(
+        Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+            .setNameFormat("capture-import-%d").setDaemon(true).build()));
+    // Only accessed on the I/O thread.
+    private final byte[] buffer = new byte[CHUNK_SIZE];
+    private long read = 0;
+    private boolean first = true;
+    // Guarded by this.
+    private ListenableFuture<ImportCaptureRequest> ahead;
+    private boolean closed = false;
+
+    public ChunkedImport(String name, InputStream in, LongConsumer onProgress) {
+      this.name = name;
+      this.in = in;
+      this.onProgress = onProgress;
+    }
+
+    @Override
+    public synchronized ListenableFuture<ImportCaptureRequest> next() {
+      if (closed) {
+        return Futures.immediateCancelledFuture();
+      }
+      ListenableFuture<ImportCaptureRequest> result = (ahead == null) ? read() : ahead;
+      ahead = read();
+      return result;
+    }
+
+    // Reads are serialized by the single I/O thread.
+    private ListenableFuture<ImportCaptureRequest> read() {
+      return io.submit(() -> {
+        int count = ByteStreams.read(in, buffer, 0, buffer.length);
+        if (count == 0 && !first) {
+          return null;
+        }
+
+        ImportCaptureRequest.Builder request = ImportCaptureRequest.newBuilder()
+            .setData(ByteString.copyFrom(buffer, 0, count));
+        if (first) {
+          request.setName(name);
+          first = false;
+        }
+        read += count;
+        onProgress.accept(read);
+        return request.build();
+      });
+    }
+
+    /**
+     * Closes the stream once the pending read, if any, has completed.
+     */
+    public synchronized void close() {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      io.execute(() -> {
+        try {
+          in.close();
+        } catch (IOException e) {
+          LOG.log(FINE, "Failed to close the capture import stream", e);
+        }
+      });
+      io.shutdown();
+    }
+  }
+
   public static class InternalServerErrorException extends RpcException {
     public InternalServerErrorException (String message, Stack stack) {
       super(message, stack);
@@ -382,9 +569,15 @@ public class Client {
 
   public static class Stack extends Exception {
     private final Supplier<String> requestString;
+    protected final RpcStats.Sample sample;
 
     public Stack(Supplier<String> requestString) {
+      this(requestString, null);
+    }
+
+    public Stack(Supplier<String> requestString, RpcStats.Sample sample) {
       this.requestString = requestString;
+      this.sample = sample;
     }
 
     @Override
@@ -44,6 +44,8 @@ public interface GapidClient {
       Service.GetStringTableRequest request);
   public ListenableFuture<Service.ImportCaptureResponse> importCapture(
       Service.ImportCaptureRequest request);
+  public ListenableFuture<Service.ImportCaptureResponse> importCaptureStream(
+      StreamSource<Service.ImportCaptureRequest> requests);
   public ListenableFuture<Service.LoadCaptureResponse> loadCapture(
       Service.LoadCaptureRequest request);
   public ListenableFuture<Service.SaveCaptureResponse> saveCapture(
@@ -67,6 +69,8 @@ public interface GapidClient {
       Service.ServerStatusRequest request, Consumer<Service.ServerStatusResponse> onStatus);
   public ListenableFuture<Void> streamSearch(
       Service.FindRequest request, Consumer<Service.FindResponse> onResult);
+  public ListenableFuture<Void> streamExportCapture(Service.ExportCaptureRequest request,
+      StreamConsumer<Service.ExportCaptureResponse> onData);
   public StreamSender<Service.TraceRequest> streamTrace(
       StreamConsumer<Service.TraceResponse> onTraceResponse);
 
@@ -76,6 +80,18 @@ public interface GapidClient {
     public void finish();
   }
 
+  /**
+   * Source of the requests of a client streaming call. Requests are only pulled from the source
+   * when the stream is ready to send more data, applying back-pressure to the producer. Only one
+   * request is pulled at a time, so the source may produce them off the transport's threads.
+   */
+  public static interface StreamSource<T> {
+    /**
+     * @return the next request to send, resolving to {@code null} if there are no more requests.
+     */
+    public ListenableFuture<T> next();
+  }
+
   public static interface StreamConsumer<T> {
     public Result consume(T value);
   }
@@ -17,6 +17,7 @@ package com.google.gapid.server;
 
 import static com.google.common.util.concurrent.MoreExecutors.directExecutor;
 
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.SettableFuture;
 import com.google.gapid.proto.log.Log;
@@ -33,8 +34,11 @@ import com.google.gapid.proto.service.Service.UpdateSettingsRequest;
 import com.google.gapid.proto.service.Service.UpdateSettingsResponse;
 import com.google.gapid.util.MoreFutures;
 
+import java.util.concurrent.ExecutionException;
 import java.util.function.Consumer;
 
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
 import io.grpc.stub.StreamObserver;
 
 /**
@@ -118,6 +122,15 @@ public class GapidClientGrpc implements GapidClient {
     return client.importCapture(request);
   }
 
+  @Override
+  public ListenableFuture<Service.ImportCaptureResponse> importCaptureStream(
+      StreamSource<Service.ImportCaptureRequest> requests) {
+    Uploader<Service.ImportCaptureRequest, Service.ImportCaptureResponse> uploader =
+        new Uploader<Service.ImportCaptureRequest, Service.ImportCaptureResponse>(requests);
+    stub.importCaptureStream(uploader);
+    return uploader.future;
+  }
+
   @Override
   public ListenableFuture<Service.SaveCaptureResponse> saveCapture(
       Service.SaveCaptureRequest request) {
@@ -193,6 +206,15 @@ public class GapidClientGrpc implements GapidClient {
     return handler.future;
   }
 
+  @Override
+  public ListenableFuture<Void> streamExportCapture(Service.ExportCaptureRequest request,
+      StreamConsumer<Service.ExportCaptureResponse> onData) {
+    CancellableStreamHandler<Service.ExportCaptureResponse> handler =
+        new CancellableStreamHandler<Service.ExportCaptureResponse>(onData);
+    stub.exportCaptureStream(request, handler);
+    return handler.future;
+  }
+
   @Override
   public GapidClient.StreamSender<Service.TraceRequest> streamTrace(
       StreamConsumer<Service.TraceResponse> onTraceResponse) {
@@ -202,7 +224,7 @@ public class GapidClientGrpc implements GapidClient {
 
   private static class StreamHandler<T> implements StreamObserver<T> {
     public final SettableFuture<Void> future = SettableFuture.create();
-    private final GapidClient.StreamConsumer<T> consumer;
+    protected final GapidClient.StreamConsumer<T> consumer;
 
     private StreamHandler(GapidClient.StreamConsumer<T> consumer) {
       this.consumer = consumer;
@@ -240,6 +262,154 @@ public class GapidClientGrpc implements GapidClient {
     }
   }
 
+  /**
+   * A {@link StreamHandler} for server streaming calls, where the call is cancelled if the future
+   * is cancelled, or the consumer fails, while the server is still streaming.
+   */
+  private static class CancellableStreamHandler<T> extends StreamHandler<T>
+      implements ClientResponseObserver<Object, T> {
+    private volatile boolean closed = false;
+
+    public CancellableStreamHandler(GapidClient.StreamConsumer<T> consumer) {
+      super(consumer);
+    }
+
+    @Override
+    public void beforeStart(ClientCallStreamObserver<Object> stream) {
+      future.addListener(() -> {
+        if (!closed) {
+          stream.cancel("Cancelled by the client", null);
+        }
+      }, directExecutor());
+    }
+
+    @Override
+    public void onNext(T value) {
+      if (future.isDone()) {
+        return; // Cancelled, or the consumer failed, waiting for the cancellation to complete.
+      }
+      GapidClient.Result result = consumer.consume(value);
+      if (result.error != null) {
+        future.setException(result.error);
+      } else if (result.close) {
+        future.set(null);
+      }
+    }
+
+    @Override
+    public void onCompleted() {
+      closed = true;
+      super.onCompleted();
+    }
+
+    @Override
+    public void onError(Throwable t) {
+      closed = true;
+      super.onError(t);
+    }
+  }
+
+  /**
+   * Drives a client streaming call, pulling the requests from a {@link StreamSource} whenever the
+   * transport is ready for more data. Cancelling the future cancels the call.
+   */
+  private static class Uploader<Req, Resp> implements ClientResponseObserver<Req, Resp> {
+    public final SettableFuture<Resp> future = SettableFuture.create();
+    private final GapidClient.StreamSource<Req> source;
+    // Guarded by this, which also serializes the calls to the request stream.
+    private boolean done = false;
+    private boolean pulling = false;
+
+    public Uploader(GapidClient.StreamSource<Req> source) {
+      this.source = source;
+    }
+
+    @Override
+    public void beforeStart(ClientCallStreamObserver<Req> stream) {
+      stream.setOnReadyHandler(() -> pump(stream));
+      future.addListener(() -> {
+        if (future.isCancelled()) {
+          stream.cancel("Cancelled by the client", null);
+        }
+      }, directExecutor());
+    }
+
+    // Called by gRPC every time the stream transitions to ready, and once a pulled request that
+    // was not immediately available has been sent.
+    private void pump(ClientCallStreamObserver<Req> stream) {
+      while (true) {
+        ListenableFuture<Req> next;
+        synchronized (this) {
+          if (done || pulling || future.isDone() || !stream.isReady()) {
+            return;
+          }
+          try {
+            next = source.next();
+          } catch (RuntimeException e) {
+            fail(stream, e);
+            return;
+          }
+          if (!next.isDone()) {
+            // Don't block the transport's thread, send the request once it is available.
+            pulling = true;
+            next.addListener(() -> {
+              synchronized (this) {
+                pulling = false;
+                send(stream, next);
+              }
+              pump(stream);
+            }, directExecutor());
+            return;
+          }
+          send(stream, next);
+        }
+      }
+    }
+
+    private synchronized void send(
+        ClientCallStreamObserver<Req> stream, ListenableFuture<Req> next) {
+      if (done || future.isDone()) {
+        return;
+      }
+      try {
+        Req request = Futures.getDone(next);
+        if (request == null) {
+          done = true;
+          stream.onCompleted();
+        } else {
+          stream.onNext(request);
+        }
+      } catch (ExecutionException e) {
+        fail(stream, e.getCause());
+      } catch (RuntimeException e) { // Including CancellationException.
+        fail(stream, e);
+      }
+    }
+
+    private synchronized void fail(ClientCallStreamObserver<Req> stream, Throwable t) {
+      done = true;
+      future.setException(t);
+      stream.onError(t);
+    }
+
+    @Override
+    public void onNext(Resp value) {
+      future.set(value);
+    }
+
+    @Override
+    public void onCompleted() {
+      if (!future.isDone()) {
+        future.setException(new IllegalStateException("Stream completed without a response"));
+      }
+    }
+
+    @Override
+    public void onError(Throwable t) {
+      future.setException(t);
+    }
+  }
+
   private static class Sender<T> implements GapidClient.StreamSender<T> {
     private final ListenableFuture<Void> future;
     private final StreamObserver<T> observer;
@@ -0,0 +1,336 @@
+/*
+ * Copyright (C) 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.gapid.server;
+
+import static com.google.common.util.concurrent.MoreExecutors.directExecutor;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Per RPC method statistics collected by the {@link Client}. For each method, the time spent
+ * queued on the executor, the time spent waiting for the server (wire latency), the time spent
+ * on the client processing the response, the response size and the error rate are tracked.
+ * Path based methods are further broken down by the type of the requested path.
+ */
+public class RpcStats {
+  private final Map<String, Method> methods = new ConcurrentHashMap<String, Method>();
+
+  public RpcStats() {
+  }
+
+  /**
+   * Starts tracking a new call of the given method.
+   */
+  public Sample start(String method) {
+    return new Sample(getMethod(method), null);
+  }
+
+  /**
+   * Starts tracking a new call of the given method, which is also accounted to the given path
+   * type of the method.
+   */
+  public Sample start(String method, String pathType) {
+    Method m = getMethod(method);
+    return new Sample(m, m.getPathType(pathType));
+  }
+
+  private Method getMethod(String name) {
+    return methods.computeIfAbsent(name, Method::new);
+  }
+
+  /**
+   * @return the statistics of all methods called so far, sorted by name.
+   */
+  public List<Method> getMethods() {
+    List<Method> result = Lists.newArrayList(methods.values());
+    Collections.sort(result, (a, b) -> a.name.compareTo(b.name));
+    return result;
+  }
+
+  public void reset() {
+    methods.clear();
+  }
+
+  public String toJson() {
+    StringBuilder sb = new StringBuilder().append("{\"methods\":[");
+    String sep = "";
+    for (Method method : getMethods()) {
+      sb.append(sep);
+      method.toJson(sb);
+      sep = ",";
+    }
+    return sb.append("]}").toString();
+  }
+
+  /**
+   * Statistics of a single RPC method, or a single path type of a path based RPC method.
+   */
+  public static class Method {
+    public final String name;
+    public final AtomicLong calls = new AtomicLong();
+    public final AtomicLong errors = new AtomicLong();
+    public final AtomicLong cancellations = new AtomicLong();
+    public final Histogram queueTime = new Histogram(); // In micro seconds.
+    public final Histogram wireTime = new Histogram(); // In micro seconds.
+    public final Histogram clientTime = new Histogram(); // In micro seconds.
+    public final Histogram responseSize = new Histogram(); // In bytes.
+    private final Map<String, Method> pathTypes = new ConcurrentHashMap<String, Method>();
+
+    public Method(String name) {
+      this.name = name;
+    }
+
+    protected Method getPathType(String type) {
+      return pathTypes.computeIfAbsent(type, Method::new);
+    }
+
+    /**
+     * @return the statistics broken down by path type, sorted by name.
+     */
+    public List<Method> getPathTypes() {
+      List<Method> result = Lists.newArrayList(pathTypes.values());
+      Collections.sort(result, (a, b) -> a.name.compareTo(b.name));
+      return result;
+    }
+
+    public double getErrorRate() {
+      long count = calls.get();
+      return (count == 0) ? 0 : (double)errors.get() / count;
+    }
+
+    protected void record(long queueUs, long wireUs, long clientUs, long bytes, Outcome outcome) {
+      calls.incrementAndGet();
+      switch (outcome) {
+        case Error: errors.incrementAndGet(); break;
+        case Cancelled: cancellations.incrementAndGet(); break;
+        default: // Do nothing.
+      }
+      queueTime.record(queueUs);
+      wireTime.record(wireUs);
+      clientTime.record(clientUs);
+      if (outcome == Outcome.Success) {
+        responseSize.record(bytes);
+      }
+    }
+
+    protected void toJson(StringBuilder sb) {
+      sb.append("{\"name\":\"").append(escape(name)).append('"')
+          .append(",\"calls\":").append(calls.get())
+          .append(",\"errors\":").append(errors.get())
+          .append(",\"cancellations\":").append(cancellations.get())
+          .append(",\"queueTimeUs\":");
+      queueTime.toJson(sb);
+      sb.append(",\"wireTimeUs\":");
+      wireTime.toJson(sb);
+      sb.append(",\"clientTimeUs\":");
+      clientTime.toJson(sb);
+      sb.append(",\"responseSizeBytes\":");
+      responseSize.toJson(sb);
+      List<Method> types = getPathTypes();
+      if (!types.isEmpty()) {
+        sb.append(",\"pathTypes\":[");
+        String sep = "";
+        for (Method type : types) {
+          sb.append(sep);
+          type.toJson(sb);
+          sep = ",";
+        }
+        sb.append(']');
+      }
+      sb.append('}');
+    }
+
+    private static String escape(String s) {
+      return s.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+  }
+
+  private static enum Outcome {
+    Success, Error, Cancelled;
+  }
+
+  /**
+   * Timing of a single, in progress call.
+   */
+  public static class Sample {
+    private final Method method;
+    private final Method pathType;
+    private final long created = System.nanoTime();
+    private volatile long sent;
+    private volatile long received;
+    private volatile long bytes;
+
+    protected Sample(Method method, Method pathType) {
+      this.method = method;
+      this.pathType = pathType;
+    }
+
+    /**
+     * Called when the request leaves the executor queue and is sent to the server.
+     */
+    public void onSend() {
+      sent = System.nanoTime();
+    }
+
+    /**
+     * Called when a response of the given size has been received from the server. For streaming
+     * calls, this is called once per streamed response.
+     */
+    public void onReceive(long size) {
+      received = System.nanoTime();
+      bytes += size;
+    }
+
+    /**
+     * Records this sample once the given future, representing the entire call, completes.
+     */
+    public void track(ListenableFuture<?> future) {
+      future.addListener(() -> onDone(outcome(future)), directExecutor());
+    }
+
+    private void onDone(Outcome outcome) {
+      long done = System.nanoTime();
+      long s = (sent == 0) ? done : sent, r = (received == 0) ? done : received;
+      long queueUs = TimeUnit.NANOSECONDS.toMicros(s - created);
+      long wireUs = TimeUnit.NANOSECONDS.toMicros(r - s);
+      long clientUs = TimeUnit.NANOSECONDS.toMicros(done - r);
+      method.record(queueUs, wireUs, clientUs, bytes, outcome);
+      if (pathType != null) {
+        pathType.record(queueUs, wireUs, clientUs, bytes, outcome);
+      }
+    }
+
+    private static Outcome outcome(ListenableFuture<?> future) {
+      try {
+        future.get();
+        return Outcome.Success;
+      } catch (CancellationException e) {
+        return Outcome.Cancelled;
+      } catch (ExecutionException e) {
+        return Outcome.Error;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return Outcome.Error;
+      }
+    }
+  }
+
+  /**
+   * A bounded, log-linear histogram of non-negative values, similar to an HDR histogram. Each power
+   * of two range is split into {@link #SUB_BUCKETS} linear buckets, giving a relative precision of
+   * about 12.5% over the entire {@code long} range using a fixed amount of memory.
+   */
+  public static class Histogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long value) {
+      value = Math.max(0, value);
+      counts.incrementAndGet(bucket(value));
+      count.incrementAndGet();
+      sum.addAndGet(value);
+      max.accumulateAndGet(value, Math::max);
+    }
+
+    public long getCount() {
+      return count.get();
+    }
+
+    public long getMax() {
+      return max.get();
+    }
+
+    public double getMean() {
+      long n = count.get();
+      return (n == 0) ? 0 : (double)sum.get() / n;
+    }
+
+    /**
+     * @return an upper bound of the value at the given percentile (0 - 100).
+     */
+    public long getPercentile(double percentile) {
+      long n = count.get();
+      if (n == 0) {
+        return 0;
+      }
+      long target = Math.max(1, (long)Math.ceil(n * percentile / 100));
+      long seen = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+        seen += counts.get(i);
+        if (seen >= target) {
+          return Math.min(upperBound(i), max.get());
+        }
+      }
+      return max.get();
+    }
+
+    protected void toJson(StringBuilder sb) {
+      sb.append("{\"count\":").append(getCount())
+          .append(",\"mean\":").append(String.format("%.1f", getMean()))
+          .append(",\"p50\":").append(getPercentile(50))
+          .append(",\"p90\":").append(getPercentile(90))
+          .append(",\"p99\":").append(getPercentile(99))
+          .append(",\"max\":").append(getMax())
+          .append(",\"buckets\":[");
+      String sep = "";
+      for (int i = 0; i < BUCKETS; i++) {
+        long c = counts.get(i);
+        if (c != 0) {
+          sb.append(sep).append('[').append(lowerBound(i)).append(',').append(c).append(']');
+          sep = ",";
+        }
+      }
+      sb.append("]}");
+    }
+
+    private static int bucket(long value) {
+      if (value < SUB_BUCKETS) {
+        return (int)value;
+      }
+      int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+      return (shift + 1) * SUB_BUCKETS + (int)((value >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    private static long lowerBound(int bucket) {
+      if (bucket < SUB_BUCKETS) {
+        return bucket;
+      }
+      int shift = bucket / SUB_BUCKETS - 1;
+      return (long)(SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+    }
+
+    private static long upperBound(int bucket) {
+      return (bucket == BUCKETS - 1) ? Long.MAX_VALUE : lowerBound(bucket + 1) - 1;
+    }
+  }
+}
@@ -36,4 +36,8 @@ public class Buffers {
   public static ByteBuffer nativeBuffer(byte[] data) {
     return flip(BufferUtils.createByteBuffer(data.length).put(data));
   }
+
+  public static ByteBuffer nativeBuffer(byte[] data, int offset, int length) {
+    return flip(BufferUtils.createByteBuffer(length).put(data, offset, length));
+  }
 }
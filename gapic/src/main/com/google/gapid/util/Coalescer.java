@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.gapid.util;
+
+import static com.google.common.util.concurrent.MoreExecutors.directExecutor;
+import static com.google.gapid.util.Scheduler.EXECUTOR;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.function.Function;
+
+/**
+ * Coalesces requests issued within a short time window into a single batch, that is then
+ * dispatched with bounded concurrency. Identical requests, whether pending in the current batch or
+ * already in flight, share a single fetch. The results are fanned back out to the individual
+ * callers.
+ */
+public class Coalescer<K, V> {
+  private final Function<K, ListenableFuture<V>> fetcher;
+  private final long windowMs;
+  private final int maxBatchSize;
+  private final int maxInFlight;
+
+  private final Object lock = new Object();
+  // Requests collected in the current window.
+  private final Map<K, Entry<V>> pending = Maps.newLinkedHashMap();
+  // Requests of flushed batches that are either waiting for a free slot or are in flight.
+  private final Map<K, Entry<V>> flushed = Maps.newHashMap();
+  private final Deque<K> queue = new ArrayDeque<K>();
+  private int inFlight = 0;
+  private ScheduledFuture<?> scheduledFlush = null;
+
+  public Coalescer(Function<K, ListenableFuture<V>> fetcher,
+      long windowMs, int maxBatchSize, int maxInFlight) {
+    this.fetcher = fetcher;
+    this.windowMs = windowMs;
+    this.maxBatchSize = maxBatchSize;
+    this.maxInFlight = maxInFlight;
+  }
+
+  /**
+   * Queues the given request into the current batch. The batch is flushed once the window expires,
+   * it reaches the maximum batch size, or {@link #flush()} is called. If no other requests are
+   * pending or in flight, the request is dispatched right away. Cancelling the returned future
+   * only cancels the request once all of its callers have cancelled.
+   */
+  public ListenableFuture<V> get(K key) {
+    boolean flush = false;
+    Entry<V> entry;
+    synchronized (lock) {
+      entry = flushed.get(key);
+      if (entry == null) {
+        entry = pending.get(key);
+        if (entry == null) {
+          entry = new Entry<V>();
+          flush = pending.isEmpty() && queue.isEmpty() && inFlight == 0;
+          pending.put(key, entry);
+          if (pending.size() >= maxBatchSize) {
+            flush = true;
+          } else if (!flush && scheduledFlush == null) {
+            scheduledFlush = EXECUTOR.schedule(this::flush, windowMs, MILLISECONDS);
+          }
+        }
+      }
+      entry.waiters++;
+    }
+    if (flush) {
+      flush();
+    }
+
+    // The result is shared by all the callers of the same request, so one of them cancelling
+    // should not cancel it for everyone.
+    Entry<V> shared = entry;
+    ListenableFuture<V> result = Futures.nonCancellationPropagating(entry.result);
+    result.addListener(() -> {
+      if (result.isCancelled()) {
+        release(key, shared);
+      }
+    }, directExecutor());
+    return result;
+  }
+
+  /**
+   * Immediately dispatches all the requests collected in the current window.
+   */
+  public void flush() {
+    synchronized (lock) {
+      if (scheduledFlush != null) {
+        scheduledFlush.cancel(false);
+        scheduledFlush = null;
+      }
+      for (Map.Entry<K, Entry<V>> e : pending.entrySet()) {
+        flushed.put(e.getKey(), e.getValue());
+        queue.add(e.getKey());
+      }
+      pending.clear();
+    }
+    dispatch();
+  }
+
+  /**
+   * Removes a caller of the given request. Once no callers remain, the request is dropped if it
+   * has not been dispatched yet, or cancelled if it is in flight.
+   */
+  private void release(K key, Entry<V> entry) {
+    synchronized (lock) {
+      if (entry.result.isDone() || --entry.waiters > 0) {
+        return;
+      }
+      if (pending.get(key) == entry) {
+        pending.remove(key);
+        if (pending.isEmpty() && scheduledFlush != null) {
+          scheduledFlush.cancel(false);
+          scheduledFlush = null;
+        }
+      } else if (flushed.get(key) == entry) {
+        // Later callers of the same request should issue a new fetch, not share the cancellation.
+        flushed.remove(key);
+        if (!entry.dispatched) {
+          queue.remove(key);
+        }
+      }
+    }
+    // Cancelling an in flight request cancels its fetch, which frees up its slot.
+    entry.result.cancel(true);
+  }
+
+  private void dispatch() {
+    List<K> toSend = Lists.newArrayList();
+    List<Entry<V>> entries = Lists.newArrayList();
+    synchronized (lock) {
+      while (inFlight < maxInFlight && !queue.isEmpty()) {
+        K key = queue.removeFirst();
+        Entry<V> entry = flushed.get(key);
+        entry.dispatched = true;
+        toSend.add(key);
+        entries.add(entry);
+        inFlight++;
+      }
+    }
+
+    for (int i = 0; i < toSend.size(); i++) {
+      K key = toSend.get(i);
+      Entry<V> entry = entries.get(i);
+      ListenableFuture<V> future;
+      try {
+        future = fetcher.apply(key);
+      } catch (RuntimeException e) {
+        future = Futures.immediateFailedFuture(e);
+      }
+      // If all the callers cancelled while the fetch was being issued, this cancels the fetch.
+      entry.result.setFuture(future);
+      future.addListener(() -> {
+        synchronized (lock) {
+          inFlight--;
+          if (flushed.get(key) == entry) {
+            flushed.remove(key);
+          }
+        }
+        dispatch();
+      }, EXECUTOR);
+    }
+  }
+
+  /**
+   * A request shared by all of its callers.
+   */
+  private static class Entry<V> {
+    public final SettableFuture<V> result = SettableFuture.create();
+    // Guarded by the lock of the coalescer.
+    public int waiters = 0;
+    public boolean dispatched = false;
+  }
+}
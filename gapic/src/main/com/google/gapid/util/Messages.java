@@ -35,6 +35,7 @@ public interface Messages {
   public static final String NO_TEXTURES = "No textures have been created by this point.";
   public static final String VIEW_DETAILS = "View Details";
   public static final String LICENSES = "Licenses";
+  public static final String DIAGNOSTICS_TITLE = "RPC Diagnostics";
   public static final String ABOUT_TITLE = "About " + WINDOW_TITLE;
   public static final String ABOUT_COPY = "Copyright © 2017 Google Inc.";
   public static final String GOTO = "Goto...";
@@ -15,15 +15,16 @@
  */
 package com.google.gapid.util;
 
-import static com.google.gapid.util.GeoUtils.bottom;
-import static java.util.Collections.emptySet;
+import static java.util.Collections.emptyList;
 
-import com.google.common.collect.Sets;
+import com.google.common.collect.Lists;
 
 import org.eclipse.swt.widgets.Tree;
 import org.eclipse.swt.widgets.TreeItem;
 
-import java.util.Set;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
 
 /**
  * Utilities for dealing with {@link Tree Trees} and {@link TreeItem TreeItems}.
@@ -33,62 +34,73 @@ public class Trees {
   }
 
   /**
-   * @return the {@link TreeItem TreeItems} that are currently visible in the tree.
+   * @return the {@link TreeItem TreeItems} that are currently visible in the tree, from top to
+   *     bottom, or {@code null} if the tree cannot currently provide reliable data. Rather than
+   *     checking the bounds of each item, the expanded items are walked from the top item for as
+   *     many rows as fit into the client area, so only the visible items are ever touched.
    */
-  public static Set<TreeItem> getVisibleItems(Tree tree) {
+  public static List<TreeItem> getVisibleItems(Tree tree) {
     TreeItem top = tree.getTopItem();
     if (top == null) {
       // Work around bug where getTopItem() returns null when scrolling
       // up past the top item (elastic scroll).
-      return (tree.getItemCount() != 0) ? null : emptySet();
+      return (tree.getItemCount() != 0) ? null : emptyList();
     }
 
-    int treeBottom = bottom(tree.getClientArea());
-    Set<TreeItem> visible = Sets.newIdentityHashSet();
-    if (!getVisibleItems(top, treeBottom, visible)) {
-      do {
-        top = getVisibleSiblings(top, treeBottom, visible);
-      } while (top != null);
+    int rows = tree.getClientArea().height / Math.max(1, tree.getItemHeight()) + 1;
+    List<TreeItem> visible = Lists.newArrayListWithCapacity(rows);
+    Deque<Position> stack = positionOf(tree, top);
+    for (TreeItem item = top; item != null && visible.size() < rows; ) {
+      visible.add(item);
+      if (item.getExpanded() && item.getItemCount() > 0) {
+        stack.push(new Position(item, 0, item.getItemCount()));
+        item = item.getItem(0);
+      } else {
+        item = next(tree, stack);
+      }
     }
     return visible;
   }
 
   /**
-   * Adds the given item and all visible descendants into the given set.
-   * @return whether the bottom has been reached.
+   * @return the stack of positions of the given item and its ancestors within their parents,
+   *     with the position of the item itself on top.
    */
-  private static boolean getVisibleItems(TreeItem item, int treeBottom, Set<TreeItem> visible) {
-    visible.add(item);
-    if (bottom(item.getBounds()) > treeBottom) {
-      return true;
+  private static Deque<Position> positionOf(Tree tree, TreeItem item) {
+    Deque<Position> stack = new ArrayDeque<Position>();
+    for (; item != null; item = item.getParentItem()) {
+      TreeItem parent = item.getParentItem();
+      stack.addLast((parent == null) ?
+          new Position(null, tree.indexOf(item), tree.getItemCount()) :
+          new Position(parent, parent.indexOf(item), parent.getItemCount()));
     }
-
-    if (item.getExpanded()) {
-      for (TreeItem child : item.getItems()) {
-        if (getVisibleItems(child, treeBottom, visible)) {
-          return true;
-        }
-      }
-    }
-    return false;
+    return stack;
   }
 
   /**
-   * Adds all visible siblings (and their visible descendants) into the given set.
-   * @return the next parent or {@code null} if the bottom has been reached.
+   * @return the next item in display order, after the item at the top of the stack, whose
+   *     children are not visible, or {@code null} if there is none.
    */
-  private static TreeItem getVisibleSiblings(TreeItem item, int treeBottom, Set<TreeItem> visible) {
-    TreeItem parent = item.getParentItem();
-    TreeItem[] siblings = (parent == null) ? item.getParent().getItems() : parent.getItems();
-    int idx = 0;
-    for (; idx < siblings.length && siblings[idx] != item; idx++) {
-      // Do nothing.
-    }
-    for (idx++; idx < siblings.length; idx++) {
-      if (getVisibleItems(siblings[idx], treeBottom, visible)) {
-        return null;
+  private static TreeItem next(Tree tree, Deque<Position> stack) {
+    while (!stack.isEmpty()) {
+      Position pos = stack.peek();
+      if (++pos.index < pos.count) {
+        return (pos.parent == null) ? tree.getItem(pos.index) : pos.parent.getItem(pos.index);
       }
+      stack.pop();
+    }
+    return null;
+  }
+
+  private static class Position {
+    public final TreeItem parent;
+    public int index;
+    public final int count;
+
+    public Position(TreeItem parent, int index, int count) {
+      this.parent = parent;
+      this.index = index;
+      this.count = count;
     }
-    return parent;
   }
 }
@@ -21,6 +21,10 @@ import static com.google.gapid.util.Colors.getRandomColor;
 import static com.google.gapid.util.Colors.lerp;
 import static com.google.gapid.util.Loadable.MessageType.Error;
 import static com.google.gapid.util.Paths.lastCommand;
+import static com.google.gapid.widgets.Widgets.createComposite;
+import static com.google.gapid.widgets.Widgets.createLabel;
+import static com.google.gapid.widgets.Widgets.createToolItem;
+import static com.google.gapid.widgets.Widgets.withMargin;
 
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
@@ -30,12 +34,12 @@ import com.google.gapid.models.Analytics.View;
 import com.google.gapid.models.ApiContext;
 import com.google.gapid.models.ApiContext.FilteringContext;
 import com.google.gapid.models.Capture;
+import com.google.gapid.models.CommandSearchIndex;
 import com.google.gapid.models.CommandStream;
 import com.google.gapid.models.CommandStream.CommandIndex;
 import com.google.gapid.models.CommandStream.Node;
 import com.google.gapid.models.Follower;
 import com.google.gapid.models.Models;
-import com.google.gapid.proto.service.Service;
 import com.google.gapid.proto.service.Service.ClientAction;
 import com.google.gapid.proto.service.api.API;
 import com.google.gapid.proto.service.path.Path;
@@ -47,6 +51,7 @@ import com.google.gapid.util.Events;
 import com.google.gapid.util.Loadable;
 import com.google.gapid.util.Messages;
 import com.google.gapid.util.MoreFutures;
+import com.google.gapid.util.Scheduler;
 import com.google.gapid.util.SelectionHandler;
 import com.google.gapid.views.Formatter.StylingString;
 import com.google.gapid.widgets.LinkifiedTreeWithImages;
@@ -54,8 +59,11 @@ import com.google.gapid.widgets.LoadableImage;
 import com.google.gapid.widgets.LoadableImageWidget;
 import com.google.gapid.widgets.LoadablePanel;
 import com.google.gapid.widgets.SearchBox;
+import com.google.gapid.widgets.VisibilityTrackingTreeViewer;
 import com.google.gapid.widgets.Widgets;
 
+import org.eclipse.jface.viewers.ITreeViewerListener;
+import org.eclipse.jface.viewers.TreeExpansionEvent;
 import org.eclipse.jface.viewers.TreePath;
 import org.eclipse.swt.SWT;
 import org.eclipse.swt.graphics.Color;
@@ -67,10 +75,14 @@ import org.eclipse.swt.layout.GridLayout;
 import org.eclipse.swt.widgets.Composite;
 import org.eclipse.swt.widgets.Control;
 import org.eclipse.swt.widgets.Event;
+import org.eclipse.swt.widgets.Label;
 import org.eclipse.swt.widgets.Menu;
 import org.eclipse.swt.widgets.Shell;
+import org.eclipse.swt.widgets.ToolBar;
+import org.eclipse.swt.widgets.TreeItem;
 
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutionException;
@@ -88,6 +100,14 @@ public class CommandTree extends Composite
   protected final Tree tree;
   private final SelectionHandler<Control> selectionHandler;
   private final SingleInFlight searchController = new SingleInFlight();
+  private final Label searchStatus;
+  private String searchText = "";
+  private boolean searchRegex;
+  // The hits of the last search of the client side index.
+  private CommandSearchIndex.Hits hits;
+  private CommandSearchIndex hitsIndex;
+  private String hitsText;
+  private boolean hitsRegex;
 
   public CommandTree(Composite parent, Models models, Widgets widgets) {
     super(parent, SWT.NONE);
@@ -95,11 +115,20 @@ public class CommandTree extends Composite
 
     setLayout(new GridLayout(1, false));
 
-    SearchBox search = new SearchBox(this, false);
+    Composite searchBar = createComposite(this, withMargin(new GridLayout(3, false), 0, 0));
+    SearchBox search = new SearchBox(searchBar, false);
+    searchStatus = createLabel(searchBar, "");
+    ToolBar searchNav = new ToolBar(searchBar, SWT.FLAT);
+    createToolItem(searchNav, widgets.theme.expandLess(),
+        e -> search(searchText, searchRegex, true), "Find previous");
+    createToolItem(searchNav, widgets.theme.expandMore(),
+        e -> search(searchText, searchRegex, false), "Find next");
     loading = LoadablePanel.create(this, widgets, p -> new Tree(p, models, widgets));
     tree = loading.getContents();
 
+    searchBar.setLayoutData(new GridData(SWT.FILL, SWT.TOP, true, false));
     search.setLayoutData(new GridData(SWT.FILL, SWT.TOP, true, false));
+    searchStatus.setLayoutData(new GridData(SWT.RIGHT, SWT.CENTER, false, false));
     loading.setLayoutData(new GridData(SWT.FILL, SWT.FILL, true, true));
 
     models.capture.addListener(this);
@@ -111,7 +140,11 @@ public class CommandTree extends Composite
       models.contexts.removeListener(this);
     });
 
-    search.addListener(Events.Search, e -> search(e.text, (e.detail & Events.REGEX) != 0));
+    search.addListener(Events.Search, e -> {
+      searchText = e.text;
+      searchRegex = (e.detail & Events.REGEX) != 0;
+      search(searchText, searchRegex, false);
+    });
 
     selectionHandler = new SelectionHandler<Control>(LOG, tree.getControl()) {
       @Override
@@ -132,26 +165,25 @@ public class CommandTree extends Composite
     Menu popup = new Menu(tree.getControl());
     Widgets.createMenuItem(popup, "&Edit", SWT.MOD1 + 'E', e -> {
       CommandStream.Node node = tree.getSelection();
-      if (node != null && node.getData() != null && node.getCommand() != null) {
-        widgets.editor.showEditPopup(getShell(), lastCommand(node.getData().getCommands()),
+      if (node != null && node.isLoaded() && node.getCommand() != null) {
+        widgets.editor.showEditPopup(getShell(), lastCommand(node.getCommands()),
             node.getCommand(), node.device);
       }
     });
     tree.setPopupMenu(popup, node ->
-        node.getData() != null && node.getCommand() != null &&
+        node.isLoaded() && node.getCommand() != null &&
         CommandEditor.shouldShowEditPopup(node.getCommand()));
 
     tree.registerAsCopySource(widgets.copypaste, node -> {
       models.analytics.postInteraction(View.Commands, ClientAction.Copy);
-      Service.CommandTreeNode data = node.getData();
-      if (data == null) {
+      if (!node.isLoaded()) {
         // Copy before loaded. Not ideal, but this is unlikely.
         return new String[] { "Loading..." };
       }
 
       StringBuilder result = new StringBuilder();
-      if (data.getGroup().isEmpty() && data.hasCommands()) {
-        result.append(data.getCommands().getTo(0)).append(": ");
+      if (node.isCommand()) {
+        result.append(node.getCommands().getTo(0)).append(": ");
         API.Command cmd = node.getCommand();
         if (cmd == null) {
           // Copy before loaded. Not ideal, but this is unlikely.
@@ -160,37 +192,100 @@ public class CommandTree extends Composite
           result.append(Formatter.toString(cmd, models.constants::getConstants));
         }
       } else {
-        result.append(data.getCommands().getFrom(0)).append(": ").append(data.getGroup());
+        result.append(node.getCommands().getFrom(0)).append(": ").append(node.getGroup());
       }
       return new String[] { result.toString() };
     }, true);
   }
 
-  private void search(String text, boolean regex) {
+  private void search(String text, boolean regex, boolean backwards) {
     models.analytics.postInteraction(View.Commands, ClientAction.Search);
     CommandStream.Node parent = models.commands.getData();
-    if (parent != null && !text.isEmpty()) {
-      CommandStream.Node selection = tree.getSelection();
-      if (selection != null) {
-        parent = selection;
+    if (parent == null || text.isEmpty()) {
+      setSearchStatus("");
+      return;
+    }
+
+    CommandStream.Node selection = tree.getSelection();
+    CommandSearchIndex index = models.commands.getSearchIndex();
+    if (index != null) {
+      searchIndex(index, text, regex, backwards, selection);
+      return;
+    }
+
+    setSearchStatus("");
+    if (selection != null) {
+      parent = selection;
+    }
+    selectSearchResult(MoreFutures.transform(
+        models.commands.search(parent, text, regex, backwards),
+        r -> r.getCommandTreeNode()));
+  }
+
+  /**
+   * Searches the client side index, which finds all the hits at once. The hits are kept, so
+   * moving to the next or previous hit is immediate.
+   */
+  private void searchIndex(CommandSearchIndex index, String text, boolean regex,
+      boolean backwards, CommandStream.Node selection) {
+    Path.CommandTreeNode from = (selection == null) ? null :
+        selection.getPath(Path.CommandTreeNode.newBuilder()).build();
+    if (hits != null && hitsIndex == index && text.equals(hitsText) && regex == hitsRegex) {
+      showSearchHit(hits.next(from, backwards));
+      return;
+    }
+
+    setSearchStatus("Searching...");
+    hits = null;
+    searchController.start().listen(Scheduler.EXECUTOR.submit(() -> index.search(text, regex)),
+        new UiCallback<CommandSearchIndex.Hits, CommandSearchIndex.Hits>(tree, LOG) {
+      @Override
+      protected CommandSearchIndex.Hits onRpcThread(Rpc.Result<CommandSearchIndex.Hits> result)
+          throws RpcException, ExecutionException {
+        return result.get();
       }
-      searchController.start().listen(
-          MoreFutures.transformAsync(models.commands.search(parent, text, regex),
-              r -> getTreePath(models.commands.getData(), Lists.newArrayList(),
-                  r.getCommandTreeNode().getIndicesList().iterator())),
-          new UiCallback<TreePath, TreePath>(tree, LOG) {
-        @Override
-        protected TreePath onRpcThread(Rpc.Result<TreePath> result)
-            throws RpcException, ExecutionException {
-          return result.get();
-        }
 
-        @Override
-        protected void onUiThread(TreePath result) {
-          select(result);
-        }
-      });
+      @Override
+      protected void onUiThread(CommandSearchIndex.Hits result) {
+        hits = result;
+        hitsIndex = index;
+        hitsText = text;
+        hitsRegex = regex;
+        showSearchHit(result.next(from, backwards));
+      }
+    });
+  }
+
+  private void showSearchHit(int hit) {
+    if (hit < 0) {
+      setSearchStatus("No matches");
+      return;
     }
+    setSearchStatus((hit + 1) + " of " + hits.size());
+    selectSearchResult(Futures.immediateFuture(hits.get(hit)));
+  }
+
+  private void selectSearchResult(ListenableFuture<Path.CommandTreeNode> node) {
+    searchController.start().listen(
+        MoreFutures.transformAsync(node, n -> getTreePath(models.commands.getData(),
+            Lists.newArrayList(), n.getIndicesList().iterator())),
+        new UiCallback<TreePath, TreePath>(tree, LOG) {
+      @Override
+      protected TreePath onRpcThread(Rpc.Result<TreePath> result)
+          throws RpcException, ExecutionException {
+        return result.get();
+      }
+
+      @Override
+      protected void onUiThread(TreePath result) {
+        select(result);
+      }
+    });
+  }
+
+  private void setSearchStatus(String status) {
+    searchStatus.setText(status);
+    searchStatus.requestLayout();
   }
 
   protected void select(TreePath path) {
@@ -240,6 +335,8 @@ public class CommandTree extends Composite
   }
 
   private void updateTree(boolean assumeLoading) {
+    hits = null;
+    hitsIndex = null;
     if (assumeLoading || !models.commands.isLoaded()) {
       loading.startLoading();
       tree.setInput(null);
@@ -297,56 +394,93 @@ public class CommandTree extends Composite
 
   private static class Tree extends LinkifiedTreeWithImages<CommandStream.Node, String> {
     private static final float COLOR_INTENSITY = 0.15f;
+    // Number of children to prefetch past the first visible one.
+    private static final int PREFETCH_AHEAD = 100;
+    // Number of parents whose children are prefetched at the same time.
+    private static final int MAX_PREFETCH_WINDOWS = 4;
 
     protected final Models models;
     private final Widgets widgets;
     private final Map<Long, Color> threadBackgroundColors = Maps.newHashMap();
+    // The prefetch windows by parent, in the order their children were last shown.
+    private final Map<CommandStream.Node, CommandStream.Prefetch> prefetches =
+        new LinkedHashMap<CommandStream.Node, CommandStream.Prefetch>(16, 0.75f, true);
 
     public Tree(Composite parent, Models models, Widgets widgets) {
       super(parent, SWT.H_SCROLL | SWT.V_SCROLL | SWT.MULTI, widgets);
       this.models = models;
       this.widgets = widgets;
-    }
 
-    @Override
-    protected ContentProvider<Node> createContentProvider() {
-      return new ContentProvider<CommandStream.Node>() {
+      addTreeListener(new ITreeViewerListener() {
         @Override
-        protected boolean hasChildNodes(CommandStream.Node element) {
-          return element.getChildCount() > 0;
+        public void treeExpanded(TreeExpansionEvent event) {
+          prefetch((CommandStream.Node)event.getElement(), 0);
         }
 
         @Override
-        protected CommandStream.Node[] getChildNodes(CommandStream.Node node) {
-          return node.getChildren();
+        public void treeCollapsed(TreeExpansionEvent event) {
+          cancelPrefetches((CommandStream.Node)event.getElement());
         }
+      });
+    }
 
-        @Override
-        protected CommandStream.Node getParentNode(CommandStream.Node child) {
-          return child.getParent();
-        }
+    @Override
+    protected ContentProvider<Node> createContentProvider() {
+      return new CommandContentProvider();
+    }
 
-        @Override
-        protected boolean isLoaded(CommandStream.Node element) {
-          return element.getData() != null;
+    /**
+     * Prefetches the children of the given node, starting at the given child, cancelling the
+     * previous prefetch of the node's children. Each parent has its own prefetch window, so that
+     * the children of several expanded nodes can be shown at once. Only the windows of the most
+     * recently shown parents are kept.
+     */
+    protected void prefetch(CommandStream.Node parent, int from) {
+      CommandStream.Prefetch previous = prefetches.remove(parent);
+      if (previous != null) {
+        previous.cancel();
+      }
+      if (parent.isLoaded() && from < parent.getChildCount()) {
+        prefetches.put(parent, models.commands.prefetchChildren(parent, from, PREFETCH_AHEAD));
+        if (prefetches.size() > MAX_PREFETCH_WINDOWS) {
+          Iterator<CommandStream.Prefetch> eldest = prefetches.values().iterator();
+          eldest.next().cancel();
+          eldest.remove();
         }
+      }
+    }
 
-        @Override
-        protected void load(CommandStream.Node node, Runnable callback) {
-          models.commands.load(node, callback);
+    /**
+     * Cancels the prefetches of the children of the given node and of its descendants.
+     */
+    protected void cancelPrefetches(CommandStream.Node node) {
+      for (Iterator<CommandStream.Prefetch> it = prefetches.values().iterator(); it.hasNext(); ) {
+        CommandStream.Prefetch prefetch = it.next();
+        for (CommandStream.Node n = prefetch.parent; n != null; n = n.getParent()) {
+          if (n.equals(node)) {
+            prefetch.cancel();
+            it.remove();
+            break;
+          }
         }
-      };
+      }
+    }
+
+    protected void cancelPrefetches() {
+      for (CommandStream.Prefetch prefetch : prefetches.values()) {
+        prefetch.cancel();
+      }
+      prefetches.clear();
     }
 
     @Override
     protected <S extends StylingString> S format(
         CommandStream.Node element, S string, Follower.Prefetcher<String> follower) {
-      Service.CommandTreeNode data = element.getData();
-      if (data == null) {
+      if (!element.isLoaded()) {
         string.append("Loading...", string.structureStyle());
       } else {
-        if (data.getGroup().isEmpty() && data.hasCommands()) {
-          string.append(Formatter.lastIndex(data.getCommands()) + ": ", string.defaultStyle());
+        if (element.isCommand()) {
+          string.append(Formatter.lastIndex(element.getCommands()) + ": ", string.defaultStyle());
           API.Command cmd = element.getCommand();
           if (cmd == null) {
             string.append("Loading...", string.structureStyle());
@@ -355,9 +489,9 @@ public class CommandTree extends Composite
                 string, string.identifierStyle());
           }
         } else {
-          string.append(Formatter.firstIndex(data.getCommands()) + ": ", string.defaultStyle());
-          string.append(data.getGroup(), string.labelStyle());
-          long count = data.getNumCommands();
+          string.append(Formatter.firstIndex(element.getCommands()) + ": ", string.defaultStyle());
+          string.append(element.getGroup(), string.labelStyle());
+          long count = element.getNumCommands();
           string.append(
               " (" + count + " command" + (count != 1 ? "s" : "") + ")", string.structureStyle());
         }
@@ -365,6 +499,13 @@ public class CommandTree extends Composite
       return string;
     }
 
+    @Override
+    protected Object getLabelCacheKey(CommandStream.Node node) {
+      // Command labels are expensive to format and, with the command and its constant sets
+      // loaded, don't change. Nodes are only equal within the same tree.
+      return node.isCommand() ? node : null;
+    }
+
     @Override
     protected Color getBackgroundColor(CommandStream.Node node) {
       API.Command cmd = node.getCommand();
@@ -396,7 +537,7 @@ public class CommandTree extends Composite
     @Override
     protected boolean shouldShowImage(CommandStream.Node node) {
       return models.images.isReady() &&
-          node.getData() != null && !node.getData().getGroup().isEmpty();
+          node.isLoaded() && !node.getGroup().isEmpty();
     }
 
     @Override
@@ -443,10 +584,71 @@ public class CommandTree extends Composite
     @Override
     public void reset() {
       super.reset();
+      cancelPrefetches();
       for (Color color : threadBackgroundColors.values()) {
         color.dispose();
       }
       threadBackgroundColors.clear();
     }
+
+    /**
+     * Content provider that prefetches the children following the visible ones, moving the
+     * prefetch window along as the tree is scrolled.
+     */
+    private class CommandContentProvider extends ContentProvider<CommandStream.Node>
+        implements VisibilityTrackingTreeViewer.Listener {
+      public CommandContentProvider() {
+      }
+
+      @Override
+      protected boolean hasChildNodes(CommandStream.Node element) {
+        return element.getChildCount() > 0;
+      }
+
+      @Override
+      protected CommandStream.Node[] getChildNodes(CommandStream.Node node) {
+        return node.getChildren();
+      }
+
+      @Override
+      protected CommandStream.Node getParentNode(CommandStream.Node child) {
+        return child.getParent();
+      }
+
+      @Override
+      protected boolean isLoaded(CommandStream.Node element) {
+        return element.isLoaded();
+      }
+
+      @Override
+      protected void load(CommandStream.Node node, Runnable callback) {
+        models.commands.load(node, callback);
+      }
+
+      @Override
+      protected void cancelLoad(CommandStream.Node node) {
+        models.commands.cancelLoad(node);
+      }
+
+      @Override
+      public void onShow(TreeItem item) {
+        if (!(item.getData() instanceof CommandStream.Node)) {
+          return;
+        }
+        CommandStream.Node node = (CommandStream.Node)item.getData();
+        models.follower.prefetchWhenIdle(node);
+        CommandStream.Node parent = node.getParent();
+        int index = node.getIndexInParent();
+        // Move the window forward once the user has scrolled half way through it. Near the end of
+        // the children, the window is cut short, so the probe is clamped to the last child.
+        if (parent != null) {
+          int probe = Math.min(index + PREFETCH_AHEAD / 2, parent.getChildCount() - 1);
+          CommandStream.Prefetch prefetch = prefetches.get(parent);
+          if (prefetch == null || !prefetch.covers(parent, probe)) {
+            prefetch(parent, index);
+          }
+        }
+      }
+    }
   }
 }
@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2019 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.gapid.views;
+
+import static com.google.gapid.views.ErrorDialog.showErrorDialog;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.logging.Level.WARNING;
+
+import com.google.gapid.models.Analytics;
+import com.google.gapid.models.Analytics.View;
+import com.google.gapid.proto.service.Service.ClientAction;
+import com.google.gapid.server.Client;
+import com.google.gapid.server.RpcStats;
+import com.google.gapid.util.Messages;
+import com.google.gapid.widgets.DialogBase;
+import com.google.gapid.widgets.Theme;
+
+import org.eclipse.jface.dialogs.IDialogConstants;
+import org.eclipse.swt.SWT;
+import org.eclipse.swt.layout.GridData;
+import org.eclipse.swt.widgets.Composite;
+import org.eclipse.swt.widgets.Control;
+import org.eclipse.swt.widgets.FileDialog;
+import org.eclipse.swt.widgets.Shell;
+import org.eclipse.swt.widgets.Text;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.logging.Logger;
+
+/**
+ * Dialog showing the RPC latency and payload statistics collected by the {@link Client}.
+ */
+public class DiagnosticsDialog {
+  private static final Logger LOG = Logger.getLogger(DiagnosticsDialog.class.getName());
+
+  private static final int RESET_ID = IDialogConstants.CLIENT_ID;
+  private static final int EXPORT_ID = IDialogConstants.CLIENT_ID + 1;
+  private static final int REFRESH_ID = IDialogConstants.CLIENT_ID + 2;
+
+  private DiagnosticsDialog() {
+  }
+
+  public static void showDiagnosticsDialog(
+      Shell shell, Analytics analytics, Client client, Theme theme) {
+    analytics.postInteraction(View.Diagnostics, ClientAction.Show);
+    RpcStats stats = client.getStats();
+    new DialogBase(shell, theme) {
+      private Text text;
+
+      @Override
+      public String getTitle() {
+        return Messages.DIAGNOSTICS_TITLE;
+      }
+
+      @Override
+      protected Control createDialogArea(Composite parent) {
+        Composite area = (Composite)super.createDialogArea(parent);
+
+        text = new Text(area, SWT.MULTI | SWT.READ_ONLY | SWT.BORDER | SWT.H_SCROLL | SWT.V_SCROLL);
+        text.setFont(theme.monoSpaceFont());
+        GridData data = new GridData(SWT.FILL, SWT.FILL, true, true);
+        data.widthHint = 900;
+        data.heightHint = 400;
+        text.setLayoutData(data);
+        refresh();
+
+        return area;
+      }
+
+      @Override
+      protected void createButtonsForButtonBar(Composite parent) {
+        createButton(parent, RESET_ID, "Reset", false);
+        createButton(parent, EXPORT_ID, "Export JSON...", false);
+        createButton(parent, REFRESH_ID, "Refresh", false);
+        createButton(parent, IDialogConstants.OK_ID, IDialogConstants.OK_LABEL, true);
+      }
+
+      @Override
+      protected void buttonPressed(int buttonId) {
+        switch (buttonId) {
+          case RESET_ID:
+            stats.reset();
+            refresh();
+            break;
+          case EXPORT_ID:
+            export();
+            break;
+          case REFRESH_ID:
+            refresh();
+            break;
+          default:
+            super.buttonPressed(buttonId);
+        }
+      }
+
+      private void refresh() {
+        text.setText(format(stats));
+      }
+
+      private void export() {
+        FileDialog dialog = new FileDialog(getShell(), SWT.SAVE);
+        dialog.setText("Export RPC statistics to...");
+        dialog.setFilterNames(new String[] { "JSON Files (*.json)" });
+        dialog.setFilterExtensions(new String[] { "*.json" });
+        dialog.setOverwrite(true);
+        String file = dialog.open();
+        if (file != null) {
+          try (Writer out = new OutputStreamWriter(new FileOutputStream(file), UTF_8)) {
+            out.write(stats.toJson());
+          } catch (IOException e) {
+            LOG.log(WARNING, "Failed to export RPC statistics", e);
+            showErrorDialog(getShell(), analytics,
+                "Failed to export RPC statistics:\n  " + e.getMessage(), e);
+          }
+        }
+      }
+    }.open();
+  }
+
+  protected static String format(RpcStats stats) {
+    StringBuilder sb = new StringBuilder();
+    sb.append(String.format("%-40s %8s %6s %17s %17s %17s %17s\n", "Method", "Calls", "Err%",
+        "Queue p50/p99 ms", "Wire p50/p99 ms", "Client p50/p99 ms", "Size p50/max KB"));
+    for (RpcStats.Method method : stats.getMethods()) {
+      format(sb, method.name, method);
+      for (RpcStats.Method type : method.getPathTypes()) {
+        format(sb, "  " + type.name, type);
+      }
+    }
+    return sb.toString();
+  }
+
+  private static void format(StringBuilder sb, String label, RpcStats.Method method) {
+    sb.append(String.format("%-40s %8d %6.2f %17s %17s %17s %17s\n", label, method.calls.get(),
+        100 * method.getErrorRate(), millis(method.queueTime), millis(method.wireTime),
+        millis(method.clientTime), String.format("%.1f/%.1f",
+            method.responseSize.getPercentile(50) / 1024.0,
+            method.responseSize.getMax() / 1024.0)));
+  }
+
+  private static String millis(RpcStats.Histogram histogram) {
+    return String.format("%.1f/%.1f",
+        histogram.getPercentile(50) / 1000.0, histogram.getPercentile(99) / 1000.0);
+  }
+}
@@ -20,6 +20,7 @@ import static java.util.function.Function.identity;
 import com.google.common.collect.Lists;
 import com.google.common.primitives.UnsignedInts;
 import com.google.common.primitives.UnsignedLongs;
+import com.google.gapid.models.ConstantSets;
 import com.google.gapid.models.Follower;
 import com.google.gapid.proto.core.pod.Pod;
 import com.google.gapid.proto.service.Service;
@@ -41,6 +42,7 @@ import org.eclipse.jface.viewers.StyledString.Styler;
 import java.util.Collections;
 import java.util.List;
 import java.util.function.Function;
+import java.util.regex.Pattern;
 
 /**
  * Formats varies values to {@link StylingString StylingStrings}.
@@ -122,17 +124,15 @@ public class Formatter {
     if (constants == null || !Pods.mayBeConstant(value)) {
       format(value, isComplete, string, style);
     } else if (constants.getIsBitfield()) {
-      long bits = Pods.getConstant(value);
+      List<Service.Constant> flags = Lists.newArrayList();
+      long bits = ConstantSets.index(constants).decompose(Pods.getConstant(value), flags);
       boolean first = true;
-      for (Service.Constant constant : constants.getConstantsList()) {
-        if ((bits & constant.getValue()) == constant.getValue()) {
-          if (!first) {
-            string.append(" | ", string.structureStyle());
-          }
-          string.append(constant.getName(), style);
-          first = false;
-          bits &= ~(constant.getValue());
+      for (Service.Constant constant : flags) {
+        if (!first) {
+          string.append(" | ", string.structureStyle());
         }
+        string.append(constant.getName(), style);
+        first = false;
       }
       if (bits != 0) {
         // Uh-oh left over bits, probably an invalid value was passed by the app.
@@ -148,12 +148,10 @@ public class Formatter {
         }
       }
     } else {
-      long search = Pods.getConstant(value);
-      for (Service.Constant constant : constants.getConstantsList()) {
-        if (search == constant.getValue()) {
-          string.append(constant.getName(), style);
-          return;
-        }
+      Service.Constant constant = ConstantSets.index(constants).find(Pods.getConstant(value));
+      if (constant != null) {
+        string.append(constant.getName(), style);
+        return;
       }
       // Uh-oh value not found in constant set, probably an invalid value was passed by the app.
       format(value, isComplete, string, style);
@@ -302,10 +300,10 @@ public class Formatter {
   }
 
   private static String byteToString(byte b) {
-    String s = Integer.toHexString(b & 0xFF);
-    return (s.length() == 1) ? "0x0" + s : "0x" + s;
+    return new String(new char[] { '0', 'x', HEX_DIGITS[(b >> 4) & 0xF], HEX_DIGITS[b & 0xF] });
   }
 
+  private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
   private static final int MAX_DISPLAY = 4;
   private static <T> void formatArray(List<T> list, Function<T, String> formatter,
       boolean isComplete, StylingString string, Style style) {
@@ -376,11 +374,14 @@ public class Formatter {
   }
 
   private static String toPointerString(long pointer) {
-    String hex = "0000000" + Long.toHexString(pointer);
-    if (hex.length() > 15) {
-      return "0x" + hex.substring(hex.length() - 16, hex.length());
+    // 32 bit pointers are shown with 8 digits, larger ones with 16.
+    char[] chars = new char[((pointer >>> 32) == 0) ? 10 : 18];
+    chars[0] = '0';
+    chars[1] = 'x';
+    for (int i = chars.length - 1; i >= 2; i--, pointer >>>= 4) {
+      chars[i] = HEX_DIGITS[(int)(pointer & 0xF)];
     }
-    return "0x" + hex.substring(hex.length() - 8, hex.length());
+    return new String(chars);
   }
 
   private static void format(
@@ -728,8 +729,14 @@ public class Formatter {
 
     public static class IgnoringLinkableStyledString extends ThemedStylingString
     implements LinkableStyledString {
-      protected final StyledString string = new StyledString();
+      private static final Pattern NEW_LINES = Pattern.compile("[\n\r]+");
+
+      private final StyledString string = new StyledString();
       private final boolean ignoreEllipsis;
+      // Consecutive segments with the same style are collected here and only added to the
+      // string once the style changes, so they share a single style range.
+      private final StringBuilder pending = new StringBuilder();
+      private Styler pendingStyler;
 
       IgnoringLinkableStyledString(Theme theme, boolean ignoreEllipsis) {
         super(theme);
@@ -739,26 +746,52 @@ public class Formatter {
       @Override
       public StylingString append(String text, Style style) {
         if (!ignoreEllipsis) {
-          text = text.replaceAll("[\n\r]+", "[\\\\n]");
+          text = escapeNewLines(text);
         }
-        string.append(text, ((StylerStyle)style).styler);
+        appendPending(text, ((StylerStyle)style).styler);
         return this;
       }
 
       @Override
       public StylingString appendWithEllipsis(String text, Style style) {
         if (ignoreEllipsis) {
-          string.append(text, ((StylerStyle)style).styler);
+          appendPending(text, ((StylerStyle)style).styler);
           return this;
         }
-        text = text.replaceAll("[\n\r]+", "[\\\\n]");
+        text = escapeNewLines(text);
         if (text.length() < MAX_STR_LEN + 3) {
-          return append(text, style);
+          appendPending(text, ((StylerStyle)style).styler);
         } else {
-          return append(text.substring(0, MAX_STR_LEN) + "...", style);
+          appendPending(text.substring(0, MAX_STR_LEN), ((StylerStyle)style).styler);
+          pending.append("...");
+        }
+        return this;
+      }
+
+      private static String escapeNewLines(String text) {
+        return (text.indexOf('\n') < 0 && text.indexOf('\r') < 0) ? text :
+            NEW_LINES.matcher(text).replaceAll("[\\\\n]");
+      }
+
+      private void appendPending(String text, Styler styler) {
+        if (styler != pendingStyler) {
+          flush();
+          pendingStyler = styler;
+        }
+        pending.append(text);
+      }
+
+      private void flush() {
+        if (pending.length() > 0) {
+          string.append(pending.toString(), pendingStyler);
+          pending.setLength(0);
         }
       }
 
+      protected int length() {
+        return string.length() + pending.length();
+      }
+
       @Override
       public void startLink(Object target) {
         // Ignore.
@@ -776,6 +809,7 @@ public class Formatter {
 
       @Override
       public StyledString getString() {
+        flush();
         return string;
       }
     }
@@ -792,14 +826,14 @@ public class Formatter {
       @Override
       public void startLink(Object target) {
         endLink();
-        currentStart = string.length();
+        currentStart = length();
         currentTarget = target;
       }
 
       @Override
       public void endLink() {
         if (currentTarget != null) {
-          int end = string.length();
+          int end = length();
           if (end > currentStart) {
             entries.add(new Entry(new IntRange(currentStart, end - 1), currentTarget));
           }
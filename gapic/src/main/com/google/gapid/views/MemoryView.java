@@ -21,9 +21,13 @@ import static com.google.gapid.util.Loadable.Message.info;
 import static com.google.gapid.util.Loadable.MessageType.Error;
 import static com.google.gapid.util.Loadable.MessageType.Info;
 import static com.google.gapid.util.Logging.throttleLogRpcError;
+import static com.google.gapid.views.ErrorDialog.showErrorDialog;
+import static com.google.gapid.widgets.Widgets.createButton;
+import static com.google.gapid.widgets.Widgets.createCheckbox;
 import static com.google.gapid.widgets.Widgets.createDropDown;
 import static com.google.gapid.widgets.Widgets.createDropDownViewer;
 import static com.google.gapid.widgets.Widgets.createLabel;
+import static com.google.gapid.widgets.Widgets.createMenuItem;
 import static com.google.gapid.widgets.Widgets.createStandardTabFolder;
 import static com.google.gapid.widgets.Widgets.createStandardTabItem;
 import static com.google.gapid.widgets.Widgets.createTreeColumn;
@@ -32,10 +36,10 @@ import static com.google.gapid.widgets.Widgets.ifNotDisposed;
 import static com.google.gapid.widgets.Widgets.packColumns;
 import static com.google.gapid.widgets.Widgets.scheduleIfNotDisposed;
 import static java.util.Collections.emptyList;
+import static java.util.logging.Level.WARNING;
 
 import com.google.common.collect.Lists;
 import com.google.common.primitives.UnsignedLong;
-import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.MoreExecutors;
 import com.google.gapid.models.Analytics;
@@ -48,6 +52,9 @@ import com.google.gapid.models.Memory;
 import com.google.gapid.models.Memory.Observation;
 import com.google.gapid.models.Memory.StructNode;
 import com.google.gapid.models.Memory.StructObservation;
+import com.google.gapid.models.MemoryDiff;
+import com.google.gapid.models.MemoryPageCache;
+import com.google.gapid.models.MemorySearch;
 import com.google.gapid.models.Models;
 import com.google.gapid.proto.service.Service;
 import com.google.gapid.proto.service.Service.ClientAction;
@@ -65,8 +72,8 @@ import com.google.gapid.util.IntRange;
 import com.google.gapid.util.Loadable;
 import com.google.gapid.util.LongPoint;
 import com.google.gapid.util.Messages;
-import com.google.gapid.util.MoreFutures;
 import com.google.gapid.util.MouseAdapter;
+import com.google.gapid.util.Ranges;
 import com.google.gapid.widgets.CopyPaste;
 import com.google.gapid.widgets.CopyPaste.CopyData;
 import com.google.gapid.widgets.CopyPaste.CopySource;
@@ -75,6 +82,10 @@ import com.google.gapid.widgets.LoadablePanel;
 import com.google.gapid.widgets.Theme;
 import com.google.gapid.widgets.Widgets;
 
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.NullProgressMonitor;
+import org.eclipse.jface.dialogs.ProgressMonitorDialog;
+import org.eclipse.jface.operation.IRunnableWithProgress;
 import org.eclipse.jface.viewers.ArrayContentProvider;
 import org.eclipse.jface.viewers.ComboViewer;
 import org.eclipse.jface.viewers.ITreeContentProvider;
@@ -91,22 +102,36 @@ import org.eclipse.swt.events.SelectionEvent;
 import org.eclipse.swt.graphics.Color;
 import org.eclipse.swt.graphics.Font;
 import org.eclipse.swt.graphics.GC;
-import org.eclipse.swt.graphics.Point;
 import org.eclipse.swt.graphics.Rectangle;
 import org.eclipse.swt.layout.GridData;
 import org.eclipse.swt.layout.GridLayout;
+import org.eclipse.swt.widgets.Button;
 import org.eclipse.swt.widgets.Combo;
 import org.eclipse.swt.widgets.Composite;
 import org.eclipse.swt.widgets.Control;
 import org.eclipse.swt.widgets.Display;
+import org.eclipse.swt.widgets.FileDialog;
 import org.eclipse.swt.widgets.Label;
+import org.eclipse.swt.widgets.Menu;
+import org.eclipse.swt.widgets.MenuItem;
+import org.eclipse.swt.widgets.Shell;
 import org.eclipse.swt.widgets.TabFolder;
+import org.eclipse.swt.widgets.Text;
 import org.eclipse.swt.widgets.TreeItem;
 
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.reflect.InvocationTargetException;
 import java.math.BigInteger;
 import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.util.ArrayDeque;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.Iterator;
 import java.util.List;
 import java.util.NoSuchElementException;
@@ -114,6 +139,7 @@ import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.function.Consumer;
+import java.util.function.LongConsumer;
 import java.util.logging.Logger;
 
 /**
@@ -235,6 +261,8 @@ public class MemoryView extends Composite
    */
   private class BlockMemoryPanel extends Composite{
     protected final Selections selections;
+    private final SearchBar search;
+    private final ChangesBar changes;
     private final BlockMemoryScrollable memoryPanel;
     protected final InfiniteScrolledComposite memoryScroll;
     private final State uiState = new State();
@@ -245,10 +273,17 @@ public class MemoryView extends Composite
 
       memoryPanel = new BlockMemoryScrollable(this, widgets);
       selections = new Selections(this, this::setDataType, this::setObservation);
+      search = new SearchBar(this, models.analytics, this::goToObservation);
+      changes = new ChangesBar(this, models.analytics, models.memory.getPageCache(), ranges -> {
+        memoryPanel.setChanges(ranges);
+        memoryScroll.redraw();
+      }, this::goToObservation);
       memoryScroll = new InfiniteScrolledComposite(this, SWT.H_SCROLL | SWT.V_SCROLL, memoryPanel);
       memoryPanel.registerMouseEvents(memoryScroll, models.analytics);
 
       selections.setLayoutData(new GridData(SWT.FILL, SWT.TOP, true, false));
+      search.setLayoutData(new GridData(SWT.FILL, SWT.TOP, true, false));
+      changes.setLayoutData(new GridData(SWT.FILL, SWT.TOP, true, false));
       memoryScroll.setLayoutData(new GridData(SWT.FILL, SWT.FILL, true, true));
     }
 
@@ -270,6 +305,8 @@ public class MemoryView extends Composite
       selections.setPool(memory.getPool());
       selections.setDataType(uiState.dataType);
       selections.setObservations(memory.getObservations());
+      search.setData(memory);
+      changes.setData(memory);
 
       memoryPanel.setModel(uiState.getMemoryModel(memory, new Loadable() {
         @Override
@@ -424,6 +461,310 @@ public class MemoryView extends Composite
     }
   }
 
+  /**
+   * Search bar finding values in the observed memory, see {@link MemorySearch}.
+   */
+  private static class SearchBar extends Composite {
+    private final Analytics analytics;
+    private final LongConsumer goToAddress;
+    private final Combo typeCombo;
+    private final Text text;
+    private final Label status;
+
+    private Memory.Data data;
+    private MemorySearch search;
+    private HitListener listener;
+    private String query;
+    // Only accessed on the UI thread.
+    private final List<MemorySearch.Hit> hits = Lists.newArrayList();
+    private int current = -1;
+
+    public SearchBar(Composite parent, Analytics analytics, LongConsumer goToAddress) {
+      super(parent, SWT.NONE);
+      this.analytics = analytics;
+      this.goToAddress = goToAddress;
+      setLayout(new GridLayout(4, false));
+
+      createLabel(this, "Find:").setLayoutData(new GridData(SWT.LEFT, SWT.CENTER, false, false));
+      typeCombo = createDropDown(this);
+      for (MemorySearch.Type type : MemorySearch.Type.values()) {
+        typeCombo.add(type.label);
+      }
+      typeCombo.select(0);
+      text = new Text(this, SWT.SINGLE | SWT.SEARCH | SWT.ICON_SEARCH | SWT.ICON_CANCEL);
+      status = createLabel(this, "");
+
+      typeCombo.setLayoutData(new GridData(SWT.LEFT, SWT.CENTER, false, false));
+      text.setLayoutData(new GridData(SWT.FILL, SWT.CENTER, true, false));
+      GridData statusData = new GridData(SWT.LEFT, SWT.CENTER, false, false);
+      statusData.widthHint = 250;
+      status.setLayoutData(statusData);
+
+      text.setMessage("Hex bytes, text or value, e.g. \"de ad be ef\" or \"1.5 +- 0.01\"");
+      text.addListener(SWT.DefaultSelection, e -> {
+        if (e.detail == SWT.ICON_CANCEL) {
+          cancel();
+          setStatus("");
+        } else {
+          find((e.stateMask & SWT.SHIFT) != 0);
+        }
+      });
+      typeCombo.addListener(SWT.Selection, e -> {
+        cancel();
+        setStatus("");
+      });
+      addListener(SWT.Dispose, e -> cancel());
+    }
+
+    public void setData(Memory.Data newData) {
+      if (data != newData) {
+        data = newData;
+        cancel();
+        setStatus("");
+      }
+    }
+
+    private void find(boolean backwards) {
+      String newQuery = typeCombo.getSelectionIndex() + ":" + text.getText();
+      if (search != null && newQuery.equals(query)) {
+        goToHit(backwards ? current - 1 : current + 1);
+        return;
+      }
+
+      cancel();
+      if (data == null || text.getText().trim().isEmpty()) {
+        return;
+      }
+
+      MemorySearch.Matcher matcher;
+      try {
+        matcher = MemorySearch.parse(
+            MemorySearch.Type.values()[typeCombo.getSelectionIndex()], text.getText());
+      } catch (IllegalArgumentException e) {
+        setStatus("Invalid query: " + e.getMessage());
+        return;
+      }
+
+      analytics.postInteraction(View.Memory, ClientAction.Search);
+      query = newQuery;
+      listener = new HitListener();
+      search = MemorySearch.start(data, matcher, listener);
+      setStatus("Searching...");
+    }
+
+    private void cancel() {
+      if (search != null) {
+        search.cancel();
+        search = null;
+      }
+      listener = null;
+      query = null;
+      hits.clear();
+      current = -1;
+    }
+
+    private void goToHit(int index) {
+      if (hits.isEmpty()) {
+        return;
+      }
+      current = (index + hits.size()) % hits.size();
+      goToAddress.accept(hits.get(current).address);
+      updateStatus(null);
+    }
+
+    private void setStatus(String message) {
+      status.setText(message);
+      status.requestLayout();
+    }
+
+    private void updateStatus(String state) {
+      String count = hits.size() + ((hits.size() == 1) ? " hit" : " hits");
+      String position = (current < 0) ? "" : (current + 1) + " of ";
+      setStatus(position + count + ((state == null) ? "" : " " + state));
+    }
+
+    /**
+     * Receives the results of a search, ignoring them once a new search has started.
+     */
+    private class HitListener implements MemorySearch.Listener {
+      @Override
+      public void onHits(List<MemorySearch.Hit> newHits, long searchedBytes) {
+        scheduleIfNotDisposed(SearchBar.this, () -> {
+          if (listener == this) {
+            hits.addAll(newHits);
+            if (current < 0 && !hits.isEmpty()) {
+              goToHit(0);
+            }
+            updateStatus(String.format("(searching, %d%%)",
+                (int)(100 * searchedBytes / Math.max(1, search.getTotalBytes()))));
+          }
+        });
+      }
+
+      @Override
+      public void onSearchDone(int hitCount, boolean truncated) {
+        scheduleIfNotDisposed(SearchBar.this, () -> {
+          if (listener == this) {
+            updateStatus(truncated ? "(stopped, too many hits)" : null);
+          }
+        });
+      }
+
+      @Override
+      public void onSearchFailed(Throwable error) {
+        LOG.log(WARNING, "Memory search failed", error);
+        scheduleIfNotDisposed(SearchBar.this, () -> {
+          if (listener == this) {
+            setStatus("Search failed: " + error.getMessage());
+          }
+        });
+      }
+    }
+  }
+
+  /**
+   * Bar highlighting the bytes changed by the current command, see {@link MemoryDiff}.
+   */
+  private static class ChangesBar extends Composite {
+    private final Analytics analytics;
+    private final MemoryPageCache pages;
+    private final Consumer<List<MemoryRange>> changesListener;
+    private final LongConsumer goToAddress;
+    private final Button show;
+    private final Label status;
+
+    private Memory.Data data;
+    private MemoryDiff diff;
+    private DiffListener listener;
+    // Only accessed on the UI thread.
+    private final List<MemoryRange> changes = Lists.newArrayList();
+    private int current = -1;
+
+    public ChangesBar(Composite parent, Analytics analytics, MemoryPageCache pages,
+        Consumer<List<MemoryRange>> changesListener, LongConsumer goToAddress) {
+      super(parent, SWT.NONE);
+      this.analytics = analytics;
+      this.pages = pages;
+      this.changesListener = changesListener;
+      this.goToAddress = goToAddress;
+      setLayout(new GridLayout(4, false));
+
+      show = createCheckbox(this, "Highlight changes since the previous command", false,
+          e -> restart());
+      createButton(this, "Previous", e -> goToChange(current - 1));
+      createButton(this, "Next", e -> goToChange(current + 1));
+      status = createLabel(this, "");
+
+      GridData statusData = new GridData(SWT.LEFT, SWT.CENTER, false, false);
+      statusData.widthHint = 250;
+      status.setLayoutData(statusData);
+      addListener(SWT.Dispose, e -> {
+        if (diff != null) {
+          diff.cancel();
+        }
+      });
+    }
+
+    public void setData(Memory.Data newData) {
+      if (data != newData) {
+        data = newData;
+        restart();
+      }
+    }
+
+    private void restart() {
+      cancel();
+      if (!show.getSelection() || data == null) {
+        setStatus("");
+        return;
+      }
+
+      CommandIndex previous = MemoryPageCache.getPrevious(data.getCommand());
+      if (previous == null) {
+        setStatus("No previous command");
+        return;
+      }
+
+      List<MemoryRange> ranges = Lists.newArrayList();
+      for (Observation obs : data.getObservations()) {
+        ranges.add(obs.getRange());
+      }
+
+      analytics.postInteraction(View.Memory, ClientAction.Show);
+      listener = new DiffListener();
+      diff = MemoryDiff.start(pages, data.device, previous, data.getCommand(), data.getPool(),
+          ranges, listener);
+      setStatus("Comparing...");
+    }
+
+    private void cancel() {
+      if (diff != null) {
+        diff.cancel();
+        diff = null;
+      }
+      listener = null;
+      changes.clear();
+      current = -1;
+      changesListener.accept(changes);
+    }
+
+    private void goToChange(int index) {
+      if (changes.isEmpty()) {
+        return;
+      }
+      current = (index + changes.size()) % changes.size();
+      goToAddress.accept(changes.get(current).getBase());
+      updateStatus(null);
+    }
+
+    private void setStatus(String message) {
+      status.setText(message);
+      status.requestLayout();
+    }
+
+    private void updateStatus(String state) {
+      String count = changes.size() + ((changes.size() == 1) ? " change" : " changes");
+      String position = (current < 0) ? "" : (current + 1) + " of ";
+      setStatus(position + count + ((state == null) ? "" : " " + state));
+    }
+
+    /**
+     * Receives the results of a diff, ignoring them once a new diff has started.
+     */
+    private class DiffListener implements MemoryDiff.Listener {
+      @Override
+      public void onChanges(List<MemoryRange> newChanges, long comparedPages) {
+        scheduleIfNotDisposed(ChangesBar.this, () -> {
+          if (listener == this) {
+            changes.addAll(newChanges);
+            changesListener.accept(changes);
+            updateStatus(String.format("(comparing, %d%%)",
+                (int)(100 * comparedPages / Math.max(1, diff.getTotalPages()))));
+          }
+        });
+      }
+
+      @Override
+      public void onDiffDone(int changeCount, boolean truncated) {
+        scheduleIfNotDisposed(ChangesBar.this, () -> {
+          if (listener == this) {
+            updateStatus(truncated ? "(stopped, too many changes)" : null);
+          }
+        });
+      }
+
+      @Override
+      public void onDiffFailed(Throwable error) {
+        LOG.log(WARNING, "Memory diff failed", error);
+        scheduleIfNotDisposed(ChangesBar.this, () -> {
+          if (listener == this) {
+            setStatus("Compare failed: " + error.getMessage());
+          }
+        });
+      }
+    }
+  }
+
   /**
    * Bookkeeping of the current UI state.
    */
@@ -527,6 +868,7 @@ public class MemoryView extends Composite
     private final Font font;
     protected MemoryModel model;
     protected Selection selection;
+    private List<MemoryRange> changes = Collections.emptyList();
 
     public BlockMemoryScrollable(Composite parent, Widgets widgets) {
       this.theme = widgets.theme;
@@ -643,15 +985,91 @@ public class MemoryView extends Composite
       parent.registerContentAsCopySource(copyPaste, new CopySource() {
         @Override
         public boolean hasCopyData() {
-          return selection != null && !selection.isEmpty();
+          return hasSelection();
         }
 
         @Override
         public CopyData[] getCopyData() {
           analytics.postInteraction(View.Memory, ClientAction.Copy);
-          return model.getCopyData(selection);
+          StringBuilder buffer = new StringBuilder();
+          if (!export(parent.getShell(), analytics, "Copying memory...", buffer)) {
+            return new CopyData[0];
+          }
+          return new CopyData[] { CopyData.text(buffer.toString()) };
         }
       });
+
+      Menu popup = new Menu(parent);
+      MenuItem save = createMenuItem(popup, "&Save Selection...", 0, e -> {
+        analytics.postInteraction(View.Memory, ClientAction.Save);
+        saveSelection(parent.getShell(), analytics);
+      });
+      parent.addContentListener(SWT.MenuDetect, e -> save.setEnabled(hasSelection()));
+      parent.setContentMenu(popup);
+    }
+
+    protected boolean hasSelection() {
+      return model != null && selection != null && !selection.isEmpty();
+    }
+
+    protected void saveSelection(Shell shell, Analytics analytics) {
+      FileDialog dialog = new FileDialog(shell, SWT.SAVE);
+      dialog.setText("Save memory to...");
+      dialog.setFilterNames(new String[] { "Text Files (*.txt)", "All Files" });
+      dialog.setFilterExtensions(new String[] { "*.txt", "*" });
+      dialog.setOverwrite(true);
+      String path = dialog.open();
+      if (path == null) {
+        return;
+      }
+
+      File file = new File(path);
+      boolean done = false;
+      try (Writer out = new BufferedWriter(new FileWriter(file))) {
+        done = export(shell, analytics, "Saving memory to " + file.getName() + "...", out);
+      } catch (IOException e) {
+        done = false;
+        LOG.log(WARNING, "Failed to save memory", e);
+        showErrorDialog(shell, analytics, "Failed to save memory:\n  " + e.getMessage(), e);
+      }
+      if (!done) {
+        file.delete();
+      }
+    }
+
+    /**
+     * Exports the current selection to the given output in the background, showing a cancelable
+     * progress dialog while the memory is loaded. Returns whether the export completed.
+     */
+    protected boolean export(Shell shell, Analytics analytics, String task, Appendable out) {
+      MemoryModel exportModel = model;
+      Selection exportSelection = selection;
+      IRunnableWithProgress job = monitor -> {
+        try {
+          exportModel.export(exportSelection, task, out, monitor);
+        } catch (IOException | ExecutionException e) {
+          throw new InvocationTargetException(e);
+        }
+      };
+
+      try {
+        if (exportModel.isExportReady(exportSelection)) {
+          // Small and already loaded, no need to show the dialog.
+          job.run(new NullProgressMonitor());
+        } else {
+          new ProgressMonitorDialog(shell).run(true, true, job);
+        }
+        return true;
+      } catch (InvocationTargetException e) {
+        Throwable cause = (e.getCause() instanceof ExecutionException) ?
+            e.getCause().getCause() : e.getCause();
+        LOG.log(WARNING, "Failed to export memory", cause);
+        showErrorDialog(
+            shell, analytics, "Failed to export memory:\n  " + cause.getMessage(), cause);
+        return false;
+      } catch (InterruptedException e) {
+        return false; // The export was canceled.
+      }
     }
 
     public void setModel(MemoryModel model) {
@@ -659,6 +1077,13 @@ public class MemoryView extends Composite
       selection = null;
     }
 
+    /**
+     * Sets the sorted, absolute memory ranges to highlight as changed.
+     */
+    public void setChanges(List<MemoryRange> changes) {
+      this.changes = changes;
+    }
+
     @Override
     public BigInteger getWidth() {
       return (model == null) ?
@@ -697,6 +1122,13 @@ public class MemoryView extends Composite
         highlight(gc, yOffset, write);
       }
 
+      if (!changes.isEmpty()) {
+        gc.setBackground(theme.memoryChangeHighlight());
+        for (Selection change : model.getSelections(changes, startRow, endRow)) {
+          highlight(gc, yOffset, change);
+        }
+      }
+
       if (selection != null && selection.isSelectionVisible(startRow, endRow)) {
         gc.setBackground(theme.memorySelectionHighlight());
         highlight(gc, yOffset, selection);
@@ -807,11 +1239,6 @@ public class MemoryView extends Composite
             }
           }
           for (TreeItem item : treeViewer.getTree().getItems()) {
-            // Give visual hint to the clickable large array.
-            if (item.getData() instanceof StructNode &&
-                ((StructNode)item.getData()).isLargeArray()) {
-              item.setForeground(0, widgets.theme.memoryLinkColor());
-            }
             // Give visual hint to the elements of level 1.
             item.setBackground(widgets.theme.memoryFirstLevelBackground());
           }
@@ -868,22 +1295,18 @@ public class MemoryView extends Composite
       });
       tree.addDoubleClickListener(e -> Display.getDefault().asyncExec(() -> packColumns(tree.getTree())));
 
-      // Add link action for the nodes with hidden large array.
-      tree.getTree().addListener(SWT.MouseUp, e -> {
-        if (isOnLargeArray(tree, new Point(e.x, e.y))) {
-          StructNode node = ((StructNode)tree.getTree().getItem(new Point(e.x, e.y)).getData());
-          long address = node.getRootAddress();
-          blockPanel.goToObservation(address);
+      // Large arrays are expanded in place, their raw memory is shown on request.
+      Menu popup = new Menu(tree.getTree());
+      MenuItem show = createMenuItem(popup, "Show in &Memory", 0, e -> {
+        StructNode node = getSelectedNode(tree);
+        if (node != null) {
+          blockPanel.goToObservation(node.getRootAddress());
           folder.setSelection(0);
         }
       });
-      tree.getTree().addListener(SWT.MouseMove, e -> {
-        if (isOnLargeArray(tree, new Point(e.x, e.y))) {
-          setCursor(getDisplay().getSystemCursor(SWT.CURSOR_HAND));
-        } else {
-          setCursor(null);
-        }
-      });
+      tree.getTree().addListener(
+          SWT.MenuDetect, e -> show.setEnabled(getSelectedNode(tree) != null));
+      tree.getTree().setMenu(popup);
 
       createTreeColumn(tree, "Type", e -> ((StructNode)e).getTypeFormatted());
       createTreeColumn(tree, "Name", e -> ((StructNode)e).getStructName());
@@ -891,12 +1314,9 @@ public class MemoryView extends Composite
       return tree;
     }
 
-    // Return true if the cursor is on the first column of a large array.
-    private boolean isOnLargeArray(TreeViewer tree, Point point) {
-      TreeItem item = tree.getTree().getItem(point);
-      return item != null && item.getData() instanceof StructNode
-          && ((StructNode)item.getData()).isLargeArray()
-          && item.getBounds(0).contains(point);
+    private static StructNode getSelectedNode(TreeViewer tree) {
+      Object selected = tree.getStructuredSelection().getFirstElement();
+      return (selected instanceof StructNode) ? (StructNode)selected : null;
     }
   }
 
@@ -935,9 +1355,23 @@ public class MemoryView extends Composite
     public List<Selection> getWrites(long startRow, long endRow);
 
     /**
-     * @return the given selected memory area as copy-paste content.
+     * @return the selections of the given sorted, absolute memory ranges within the given range of
+     * rows.
+     */
+    public List<Selection> getSelections(List<MemoryRange> ranges, long startRow, long endRow);
+
+    /**
+     * @return whether the given selected memory area can be exported immediately, without having
+     * to wait for any memory to be loaded.
      */
-    public CopyData[] getCopyData(Selection selection);
+    public boolean isExportReady(Selection selection);
+
+    /**
+     * Writes the given selected memory area as text to the given output. The memory is loaded and
+     * written a chunk at a time, so the amount of memory held is independent of the selection size.
+     */
+    public void export(Selection selection, String task, Appendable out, IProgressMonitor monitor)
+        throws IOException, ExecutionException, InterruptedException;
   }
 
   private static class SegmentLoader {
@@ -991,6 +1425,10 @@ public class MemoryView extends Composite
   private static abstract class FixedMemoryModel implements MemoryModel {
     protected static final char UNKNOWN_CHAR = '?';
     protected static final int BYTES_PER_ROW = 16;
+    // Exports load a page of memory at a time, with a few pages loading ahead of the output.
+    private static final int EXPORT_CHUNK_ROWS = MemoryPageCache.PAGE_SIZE / BYTES_PER_ROW;
+    private static final int EXPORT_CHUNKS_IN_FLIGHT = 4;
+    private static final int EXPORT_CANCEL_POLL_MS = 100;
 
     protected final Memory.Data data;
     private final SegmentLoader loader;
@@ -1068,6 +1506,78 @@ public class MemoryView extends Composite
 
     protected abstract void getLine(Segment segment, Memory.Segment memory, long line);
 
+    @Override
+    public boolean isExportReady(Selection selection) {
+      long rows = selection.endRow - selection.startRow + 1;
+      return rows <= EXPORT_CHUNK_ROWS &&
+          data.loadPages(getAddress(selection.startRow), (int)rows * BYTES_PER_ROW).isDone();
+    }
+
+    @Override
+    public void export(Selection selection, String task, Appendable out, IProgressMonitor monitor)
+        throws IOException, ExecutionException, InterruptedException {
+      long chunks = (selection.endRow - selection.startRow + EXPORT_CHUNK_ROWS) / EXPORT_CHUNK_ROWS;
+      monitor.beginTask(task, (int)Math.min(chunks, Integer.MAX_VALUE));
+
+      Deque<ListenableFuture<Memory.Segment>> loads = new ArrayDeque<>();
+      long nextLoad = selection.startRow;
+      try {
+        for (long row = selection.startRow; row <= selection.endRow; ) {
+          while (loads.size() < EXPORT_CHUNKS_IN_FLIGHT && nextLoad <= selection.endRow) {
+            int count = getExportChunkRows(selection, nextLoad);
+            loads.add(data.loadPages(getAddress(nextLoad), count * BYTES_PER_ROW));
+            nextLoad += count;
+          }
+
+          int count = getExportChunkRows(selection, row);
+          exportRows(selection, row, row + count, await(loads.remove(), monitor), out);
+          row += count;
+          monitor.worked(1);
+        }
+      } finally {
+        for (ListenableFuture<Memory.Segment> load : loads) {
+          load.cancel(true);
+        }
+        monitor.done();
+      }
+    }
+
+    private static int getExportChunkRows(Selection selection, long row) {
+      return (int)Math.min(EXPORT_CHUNK_ROWS, selection.endRow - row + 1);
+    }
+
+    private static Memory.Segment await(
+        ListenableFuture<Memory.Segment> load, IProgressMonitor monitor)
+        throws ExecutionException, InterruptedException {
+      while (true) {
+        if (monitor.isCanceled()) {
+          throw new InterruptedException();
+        }
+        try {
+          return load.get(EXPORT_CANCEL_POLL_MS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+          // Check for cancellation and keep waiting.
+        }
+      }
+    }
+
+    /**
+     * Writes the selected part of the given rows, [fromRow, toRow), to the given output.
+     */
+    protected void exportRows(Selection selection, long fromRow, long toRow,
+        Memory.Segment memory, Appendable out) throws IOException {
+      Iterator<Segment> lines = getLines(fromRow, toRow, memory);
+      for (long line = fromRow; lines.hasNext(); line++) {
+        Segment segment = lines.next();
+        int from = (line == selection.startRow) ? selection.startCol : selection.range.from;
+        int to = (line == selection.endRow) ? selection.endCol : selection.range.to;
+        out.append(CharBuffer.wrap(segment.array, segment.offset + from, to - from));
+        if (line != selection.endRow || selection.startRow != selection.endRow) {
+          out.append('\n');
+        }
+      }
+    }
+
     protected abstract IntRange[] getDataRanges();
 
     @Override
@@ -1084,6 +1594,29 @@ public class MemoryView extends Composite
           getSelections(memory.getWrites(), startRow);
     }
 
+    @Override
+    public List<Selection> getSelections(List<MemoryRange> ranges, long startRow, long endRow) {
+      long start = getAddress(startRow), size = (endRow - startRow) * BYTES_PER_ROW;
+      // Find the first range ending after the first visible byte.
+      int lo = 0, hi = ranges.size();
+      while (lo < hi) {
+        int mid = (lo + hi) >>> 1;
+        MemoryRange range = ranges.get(mid);
+        if (range.getBase() + range.getSize() <= start) {
+          lo = mid + 1;
+        } else {
+          hi = mid;
+        }
+      }
+
+      List<MemoryRange> visible = Lists.newArrayList();
+      for (int i = lo; i < ranges.size() && ranges.get(i).getBase() < start + size; i++) {
+        visible.add(Ranges.relative(start, size, ranges.get(i)));
+      }
+      return visible.isEmpty() ? Collections.emptyList() :
+          getSelections(visible.iterator(), startRow);
+    }
+
     private List<Selection> getSelections(Iterator<Service.MemoryRange> ranges, long startRow) {
       List<Selection> result = Lists.newArrayList();
       //IntRange[] ranges = getDataRanges();
@@ -1177,40 +1710,6 @@ public class MemoryView extends Composite
     public IntRange[] getDataRanges() {
       return new IntRange[] { memoryRange };
     }
-
-    @Override
-    public CopyData[] getCopyData(Selection selection) {
-      return Futures.getUnchecked(MoreFutures.transform(data.load(selection.startRow * BYTES_PER_ROW + alignOffset,
-          (int)(selection.endRow - selection.startRow + 1) * BYTES_PER_ROW), memory -> {
-            StringBuilder buffer = new StringBuilder();
-            Iterator<Segment> lines = getLines(selection.startRow, selection.endRow + 1, memory);
-            if (lines.hasNext()) {
-              Segment segment = lines.next();
-              if (selection.startRow == selection.endRow) {
-                buffer.append(segment.array,
-                    segment.offset + selection.startCol, selection.endCol - selection.startCol);
-              } else {
-                buffer.append(segment.array,
-                    segment.offset + selection.startCol, selection.range.to - selection.startCol)
-                    .append('\n');
-              }
-            }
-            int rangeWidth = selection.range.to - selection.range.from;
-            for (long line = selection.startRow + 1;
-                lines.hasNext() && line < selection.endRow; line++) {
-              Segment segment = lines.next();
-              buffer.append(segment.array, segment.offset + selection.range.from, rangeWidth)
-                  .append('\n');
-            }
-            if (lines.hasNext()) {
-              Segment segment = lines.next();
-              buffer.append(segment.array,
-                  segment.offset + selection.range.from, selection.endCol - selection.range.from)
-                  .append('\n');
-            }
-            return new CopyData[] { CopyData.text(buffer.toString()) };
-          }));
-    }
   }
 
   /**
@@ -1245,20 +1744,18 @@ public class MemoryView extends Composite
     }
 
     @Override
-    public CopyData[] getCopyData(Selection selection) {
-      if (selection.range == ASCII_RANGE) {
-        // Copy the actual data, rather than the display.
-        return Futures.getUnchecked(MoreFutures.transform(
-            data.load(selection.startRow * BYTES_PER_ROW,
-                (int)(selection.endRow - selection.startRow + 1) * BYTES_PER_ROW),
-                s -> new CopyData[] {
-                  CopyData.text(s.asString(selection.startCol - ASCII_RANGE.from,
-                      s.length() - selection.startCol + ASCII_RANGE.from -
-                      ASCII_RANGE.to + selection.endCol))
-                  }));
-      } else {
-        return super.getCopyData(selection);
+    protected void exportRows(Selection selection, long fromRow, long toRow,
+        Memory.Segment memory, Appendable out) throws IOException {
+      if (selection.range != ASCII_RANGE) {
+        super.exportRows(selection, fromRow, toRow, memory, out);
+        return;
       }
+
+      // Export the actual data, rather than the display.
+      int start = (fromRow == selection.startRow) ? selection.startCol - ASCII_RANGE.from : 0;
+      int end = (toRow > selection.endRow) ? (int)(selection.endRow - fromRow) * BYTES_PER_ROW +
+          selection.endCol - ASCII_RANGE.from : memory.length();
+      out.append(memory.asString(start, end - start));
     }
 
     @Override
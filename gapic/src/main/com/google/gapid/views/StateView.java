@@ -220,6 +220,11 @@ public class StateView extends Composite
     updateExpansionState(scheduledExpandedPaths, scheduledExpandedPaths.size());
   }
 
+  @Override
+  public void onStateUpdated(List<ApiState.Node> changed, List<ApiState.Node> restructured) {
+    tree.update(changed, restructured);
+  }
+
   @Override
   public void onStateSelected(Path.Any path) {
     if (!models.state.isLoaded()) {
@@ -367,6 +372,11 @@ public class StateView extends Composite
         protected void load(ApiState.Node node, Runnable callback) {
           models.state.load(node, callback);
         }
+
+        @Override
+        protected void cancelLoad(ApiState.Node node) {
+          models.state.cancelLoad(node);
+        }
       };
     }
 
@@ -35,6 +35,7 @@ import static com.google.gapid.widgets.Widgets.withSpans;
 import static java.util.concurrent.TimeUnit.MINUTES;
 
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.gapid.models.Analytics;
 import com.google.gapid.models.Analytics.View;
 import com.google.gapid.models.Devices;
@@ -63,7 +64,9 @@ import com.google.gapid.widgets.LoadingIndicator;
 import com.google.gapid.widgets.Theme;
 import com.google.gapid.widgets.Widgets;
 
+import org.eclipse.core.runtime.IProgressMonitor;
 import org.eclipse.jface.dialogs.IDialogConstants;
+import org.eclipse.jface.dialogs.ProgressMonitorDialog;
 import org.eclipse.jface.viewers.ArrayContentProvider;
 import org.eclipse.jface.viewers.ComboViewer;
 import org.eclipse.jface.viewers.IStructuredSelection;
@@ -90,6 +93,7 @@ import org.eclipse.swt.widgets.Spinner;
 import org.eclipse.swt.widgets.Text;
 
 import java.io.File;
+import java.lang.reflect.InvocationTargetException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Arrays;
@@ -97,7 +101,10 @@ import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -106,6 +113,7 @@ import java.util.logging.Logger;
  */
 public class TracerDialog {
   protected static final Logger LOG = Logger.getLogger(TracerDialog.class.getName());
+  private static final long SAVE_PROGRESS_UPDATE_MS = 100;
 
   private TracerDialog() {
   }
@@ -143,7 +151,35 @@ public class TracerDialog {
     dialog.setFilterPath(models.settings.files().getLastOpenDir());
     String result = dialog.open();
     if (result != null) {
-      models.capture.saveCapture(new File(result));
+      saveCapture(shell, models, new File(result));
+    }
+  }
+
+  /**
+   * Saves the capture, showing a cancelable progress dialog while it's being written.
+   */
+  private static void saveCapture(Shell shell, Models models, File file) {
+    AtomicLong written = new AtomicLong();
+    ListenableFuture<Void> save = models.capture.saveCapture(file, written::set);
+    try {
+      new ProgressMonitorDialog(shell).run(true, true, monitor -> {
+        monitor.beginTask("Saving " + file.getName() + "...", IProgressMonitor.UNKNOWN);
+        while (!save.isDone()) {
+          if (monitor.isCanceled()) {
+            save.cancel(true);
+            break;
+          }
+          monitor.subTask(String.format("%.1f MB written", written.get() / (1024.0 * 1024.0)));
+          try {
+            save.get(SAVE_PROGRESS_UPDATE_MS, TimeUnit.MILLISECONDS);
+          } catch (ExecutionException | TimeoutException e) {
+            // Errors are reported by the capture model, timeouts update the progress.
+          }
+        }
+        monitor.done();
+      });
+    } catch (InvocationTargetException | InterruptedException e) {
+      LOG.log(Level.WARNING, "Failed to wait for the trace to be saved", e);
     }
   }
 
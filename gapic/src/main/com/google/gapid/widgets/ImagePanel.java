@@ -15,10 +15,10 @@
  */
 package com.google.gapid.widgets;
 
-import static com.google.gapid.util.Caches.getUnchecked;
 import static com.google.gapid.util.Caches.softCache;
 import static com.google.gapid.util.Loadable.MessageType.Error;
 import static com.google.gapid.util.Loadable.MessageType.Info;
+import static com.google.gapid.util.Scheduler.EXECUTOR;
 import static com.google.gapid.widgets.Widgets.centered;
 import static com.google.gapid.widgets.Widgets.createBaloonToolItem;
 import static com.google.gapid.widgets.Widgets.createCheckbox;
@@ -27,7 +27,9 @@ import static com.google.gapid.widgets.Widgets.createLabel;
 import static com.google.gapid.widgets.Widgets.createSeparator;
 import static com.google.gapid.widgets.Widgets.createToggleToolItem;
 import static com.google.gapid.widgets.Widgets.createToolItem;
+import static com.google.gapid.widgets.Widgets.scheduleIfNotDisposed;
 import static com.google.gapid.widgets.Widgets.withSpans;
+import static java.util.logging.Level.WARNING;
 import static org.eclipse.swt.widgets.SwtUtil.disableAutoHideScrollbars;
 
 import com.google.common.cache.Cache;
@@ -48,6 +50,7 @@ import com.google.gapid.image.Image;
 import com.google.gapid.image.Image.PixelInfo;
 import com.google.gapid.image.Image.PixelValue;
 import com.google.gapid.image.MultiLayerAndLevelImage;
+import com.google.gapid.image.PlaceholderImage;
 import com.google.gapid.models.Analytics;
 import com.google.gapid.models.Analytics.View;
 import com.google.gapid.proto.service.Service.ClientAction;
@@ -97,6 +100,7 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
 import java.util.function.Consumer;
 import java.util.function.DoubleConsumer;
@@ -126,6 +130,9 @@ public class ImagePanel extends Composite implements Loadable {
   private final Analytics analytics;
   private final Widgets widgets;
   private final SingleInFlight imageRequestController = new SingleInFlight();
+  private ListenableFuture<Histogram> exactHistogram;
+  // Incremented for every level load, so stale placeholders are not shown.
+  private int placeholderRequest = 0;
   protected final LoadablePanel<ImageComponent> loading;
   private final StatusBar status;
   protected final ImageComponent imageComponent;
@@ -491,6 +498,8 @@ public class ImagePanel extends Composite implements Loadable {
   }
 
   public void clearImage() {
+    cancelExactHistogram();
+    placeholderRequest++;
     this.image = MultiLayerAndLevelImage.EMPTY;
     this.layers = NO_LAYERS;
     if (saveItem != null) {
@@ -512,17 +521,41 @@ public class ImagePanel extends Composite implements Loadable {
 
     int level = Math.min(image.getLevelCount() - 1, requestedLecel);
     startLoading();
+    // The shown layers are stale until the level has loaded.
+    if (saveItem != null) {
+      saveItem.setEnabled(false);
+    }
 
     List<ListenableFuture<Image>> layerFutures = Lists.newArrayList();
     for (int layer = 0; layer < image.getLayerCount(); layer++) {
       layerFutures.add(image.getImage(layer, level));
     }
-    ListenableFuture<LevelData> future = MoreFutures.transform(Futures.allAsList(layerFutures), imageList -> {
+    ListenableFuture<List<Image>> allLayers = Futures.allAsList(layerFutures);
+    int request = ++placeholderRequest;
+    if (!allLayers.isDone()) {
+      loadPlaceholder(level, request);
+    }
+
+    Image.Key key = image.getLevelKey(level);
+    ListenableFuture<LevelData> future = MoreFutures.transform(allLayers, imageList -> {
       Image[] images = imageList.toArray(new Image[imageList.size()]);
 
-      Histogram histogram = getUnchecked(HISTOGRAM_CACHE, image.getLevelKey(level),
-          () -> new Histogram(images, NUM_HISTOGRAM_BINS));
-      return new LevelData(images, histogram);
+      // Show a histogram of a sample of the pixels, while the exact one is computed.
+      Histogram histogram = HISTOGRAM_CACHE.getIfPresent(key);
+      ListenableFuture<Histogram> exactHistogram = null;
+      if (histogram == null) {
+        histogram = Histogram.sample(images, NUM_HISTOGRAM_BINS);
+        if (histogram.isApproximate()) {
+          exactHistogram = MoreFutures.transform(
+              Histogram.computeAsync(images, NUM_HISTOGRAM_BINS), exact -> {
+                HISTOGRAM_CACHE.put(key, exact);
+                return exact;
+              });
+        } else {
+          HISTOGRAM_CACHE.put(key, histogram);
+        }
+      }
+      return new LevelData(images, histogram, exactHistogram);
     });
 
     imageRequestController.start().listen(future,
@@ -552,10 +585,59 @@ public class ImagePanel extends Composite implements Loadable {
     });
   }
 
+  /**
+   * Shows a low resolution placeholder of the given level, if the image has one, until the level
+   * itself has loaded.
+   */
+  private void loadPlaceholder(int level, int request) {
+    List<ListenableFuture<Image>> placeholderFutures = Lists.newArrayList();
+    for (int layer = 0; layer < image.getLayerCount(); layer++) {
+      ListenableFuture<Image> placeholder = image.getPlaceholder(layer, level);
+      if (placeholder == null) {
+        return;
+      }
+      placeholderFutures.add(placeholder);
+    }
+
+    ListenableFuture<LevelData> future =
+        MoreFutures.transform(Futures.allAsList(placeholderFutures), imageList -> {
+          Image[] images = imageList.toArray(new Image[imageList.size()]);
+          Image[] sources = new Image[images.length];
+          for (int i = 0; i < images.length; i++) {
+            sources[i] = ((PlaceholderImage)images[i]).getSource();
+          }
+          return new LevelData(images, new Histogram(sources, NUM_HISTOGRAM_BINS), null);
+        });
+    future.addListener(() -> scheduleIfNotDisposed(imageComponent, () -> {
+      if (request != placeholderRequest) {
+        return; // The level has loaded, or another level has been requested.
+      }
+      try {
+        showPlaceholder(Futures.getDone(future));
+      } catch (ExecutionException | CancellationException e) {
+        // Ignore, errors are reported when the level itself fails to load.
+      }
+    }), EXECUTOR);
+  }
+
+  private void showPlaceholder(LevelData data) {
+    if (!data.valid) {
+      return;
+    }
+    // Reveal the placeholder, but keep indicating in the status bar that the level is loading.
+    stopLoading();
+    status.setLevelSize(data.layers[0].getWidth(), data.layers[0].getHeight(), true);
+    imageComponent.setImages(data.images);
+    imageComponent.setHistogram(data.histogram);
+  }
+
   protected void updateLayers(LevelData data) {
+    placeholderRequest++;
     layers = data.layers;
     if (data.valid) {
-      status.setLevelSize(layers[0].getWidth(), layers[0].getHeight());
+      status.setLevelSize(layers[0].getWidth(), layers[0].getHeight(), false);
+    } else {
+      status.clearLevelSize();
     }
     stopLoading();
 
@@ -564,6 +646,30 @@ public class ImagePanel extends Composite implements Loadable {
     }
     imageComponent.setImages(data.images);
     imageComponent.setHistogram(data.histogram);
+
+    cancelExactHistogram();
+    if (data.exactHistogram != null) {
+      ListenableFuture<Histogram> future = data.exactHistogram;
+      exactHistogram = future;
+      future.addListener(() -> scheduleIfNotDisposed(imageComponent, () -> {
+        if (future != exactHistogram || future.isCancelled()) {
+          return;
+        }
+        exactHistogram = null;
+        try {
+          imageComponent.updateHistogram(Futures.getDone(future));
+        } catch (ExecutionException e) {
+          LOG.log(WARNING, "Failed to compute the image histogram", e.getCause());
+        }
+      }), EXECUTOR);
+    }
+  }
+
+  private void cancelExactHistogram() {
+    if (exactHistogram != null) {
+      exactHistogram.cancel(true);
+      exactHistogram = null;
+    }
   }
 
   private static final class LevelData {
@@ -571,11 +677,15 @@ public class ImagePanel extends Composite implements Loadable {
     public final Image[] layers;
     public final Image[] images;
     public final Histogram histogram;
+    // The exact histogram, if the histogram is approximate.
+    public final ListenableFuture<Histogram> exactHistogram;
 
-    public LevelData(Image[] layers, Histogram histogram) {
+    public LevelData(
+        Image[] layers, Histogram histogram, ListenableFuture<Histogram> exactHistogram) {
       this.valid = layers != null && layers.length > 0;
       this.layers = valid ? layers : NO_LAYERS;
       this.histogram = histogram;
+      this.exactHistogram = exactHistogram;
       this.images = valid ? getImages(layers) : NO_LAYERS;
     }
 
@@ -807,6 +917,21 @@ public class ImagePanel extends Composite implements Loadable {
       refresh();
     }
 
+    /**
+     * Replaces the current, approximate, histogram with the given exact histogram of the same
+     * images. The display range is only updated if the user has not changed it.
+     */
+    public void updateHistogram(Histogram histogram) {
+      Range initial = data.histogram.getInitialRange(HISTOGRAM_SNAP_THRESHOLD);
+      boolean isInitial =
+          data.displayRange.min == initial.min && data.displayRange.max == initial.max;
+      data.histogram = histogram;
+      if (isInitial) {
+        data.displayRange = histogram.getInitialRange(HISTOGRAM_SNAP_THRESHOLD);
+      }
+      refresh();
+    }
+
     protected void refresh() {
       data.images = images;
       data.transforms = calcTransforms();
@@ -1525,8 +1650,13 @@ public class ImagePanel extends Composite implements Loadable {
       levelComposite.requestLayout();
     }
 
-    public void setLevelSize(int width, int height) {
-      levelSize.setText("W: " + width + " H: " + height);
+    public void setLevelSize(int width, int height, boolean loading) {
+      levelSize.setText("W: " + width + " H: " + height + (loading ? " (Loading...)" : ""));
+      levelSize.requestLayout();
+    }
+
+    public void clearLevelSize() {
+      levelSize.setText("");
       levelSize.requestLayout();
     }
 
@@ -33,6 +33,7 @@ import org.eclipse.swt.widgets.Composite;
 import org.eclipse.swt.widgets.Display;
 import org.eclipse.swt.widgets.Event;
 import org.eclipse.swt.widgets.Listener;
+import org.eclipse.swt.widgets.Menu;
 import org.eclipse.swt.widgets.ScrollBar;
 
 import java.math.BigInteger;
@@ -131,6 +132,10 @@ public class InfiniteScrolledComposite extends ScrolledComposite {
     copyPaste.registerCopySource(canvas, source);
   }
 
+  public void setContentMenu(Menu menu) {
+    canvas.setMenu(menu);
+  }
+
   public void updateMinSize() {
     BigInteger w = contents.getWidth(), h = contents.getHeight();
     Rectangle size = getClientArea();
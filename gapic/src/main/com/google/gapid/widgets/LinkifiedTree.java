@@ -20,6 +20,9 @@ import static com.google.gapid.util.Arrays.last;
 import static com.google.gapid.widgets.Widgets.createTreeViewer;
 import static com.google.gapid.widgets.Widgets.withAsyncRefresh;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Maps;
 import com.google.gapid.models.Follower;
 import com.google.gapid.proto.service.path.Path;
 import com.google.gapid.util.Events;
@@ -30,6 +33,7 @@ import com.google.gapid.views.Formatter.StylingString;
 import com.google.gapid.widgets.CopySources.ColumnTextProvider;
 
 import org.eclipse.jface.viewers.ITreeContentProvider;
+import org.eclipse.jface.viewers.ITreeViewerListener;
 import org.eclipse.jface.viewers.OwnerDrawLabelProvider;
 import org.eclipse.jface.viewers.StyledString;
 import org.eclipse.jface.viewers.TreePath;
@@ -54,6 +58,8 @@ import org.eclipse.swt.widgets.Tree;
 import org.eclipse.swt.widgets.TreeItem;
 import org.eclipse.swt.widgets.Widget;
 
+import java.util.Collection;
+import java.util.Map;
 import java.util.function.Predicate;
 
 /**
@@ -61,6 +67,9 @@ import java.util.function.Predicate;
  * {@link com.google.gapid.views.Formatter.StylingString}), links, and custom background color.
  */
 public abstract class LinkifiedTree<T, F> extends Composite {
+  // Memory budget of the cache of formatted labels, see getLabelCacheKey.
+  private static final long LABEL_CACHE_BYTES = 8 << 20;
+
   private final TreeViewer viewer;
   protected final Widgets.Refresher refresher;
   protected final ContentProvider<T> contentProvider;
@@ -150,6 +159,7 @@ public abstract class LinkifiedTree<T, F> extends Composite {
     // don't want JFace's selection preserving, as it appears to be broken on input
     // change (see https://github.com/google/gapid/issues/1264)
     setSelection(null);
+    labelProvider.clearCache();
     viewer.setInput(root);
     if (root != null && viewer.getTree().getItemCount() > 0) {
       viewer.getTree().setSelection(viewer.getTree().getItem(0));
@@ -157,6 +167,24 @@ public abstract class LinkifiedTree<T, F> extends Composite {
     }
   }
 
+  /**
+   * Updates the tree after its input has been modified in place. The labels of the changed
+   * elements are re-rendered, while the restructured elements, whose children have been replaced,
+   * are refreshed including their sub-trees. All other items are left untouched.
+   */
+  public void update(Collection<T> changed, Collection<T> restructured) {
+    for (T element : restructured) {
+      viewer.refresh(element);
+    }
+    for (T element : changed) {
+      Widget item = viewer.testFindItem(element);
+      if (item instanceof TreeItem && !item.isDisposed()) {
+        labelProvider.update((TreeItem)item);
+      }
+    }
+    refresher.refresh();
+  }
+
   public Control getControl() {
     return viewer.getControl();
   }
@@ -188,6 +216,10 @@ public abstract class LinkifiedTree<T, F> extends Composite {
     viewer.setExpandedState(path, state);
   }
 
+  public void addTreeListener(ITreeViewerListener listener) {
+    viewer.addTreeListener(listener);
+  }
+
   public Point getScrollPos() {
     TreeItem topItem = viewer.getTree().getTopItem();
     return (topItem == null) ? null : GeoUtils.center(topItem.getBounds());
@@ -223,6 +255,16 @@ public abstract class LinkifiedTree<T, F> extends Composite {
   protected abstract Follower.Prefetcher<F> prepareFollower(T node, Runnable callback);
   protected abstract void follow(Path.Any path);
 
+  /**
+   * Returns the key under which the formatted label of the given, loaded, node is cached, or
+   * {@code null} if it should not be cached. Labels are only cached if formatting them is
+   * expensive and their formatting doesn't change once the node is loaded. The cache is cleared
+   * whenever the input changes.
+   */
+  protected Object getLabelCacheKey(@SuppressWarnings("unused") T node) {
+    return null;
+  }
+
   protected void reset() {
     labelProvider.reset();
   }
@@ -265,6 +307,15 @@ public abstract class LinkifiedTree<T, F> extends Composite {
     protected abstract T getParentNode(T child);
     protected abstract boolean isLoaded(T element);
     protected abstract void load(T node, Runnable callback);
+
+    /**
+     * Called when a node, whose load was started by {@link #load}, is hidden before it has
+     * finished loading.
+     */
+    @SuppressWarnings("unused")
+    protected void cancelLoad(T node) {
+      // Do nothing by default.
+    }
   }
 
   /**
@@ -277,6 +328,15 @@ public abstract class LinkifiedTree<T, F> extends Composite {
     private final TextLayout layout;
     private TreeItem lastHovered;
     private Follower.Prefetcher<F> lastPrefetcher = nullPrefetcher();
+    // The label of the hovered item, including its links.
+    private LinkableStyledString lastHoveredLinks;
+    private RenderedText lastHoveredText;
+    private final Cache<Object, RenderedText> cache = CacheBuilder.newBuilder()
+        .maximumWeight(LABEL_CACHE_BYTES)
+        .weigher((Object key, RenderedText text) -> text.getSize())
+        .build();
+    // Items whose load has been started when they were shown, but has not yet finished.
+    private final Map<TreeItem, T> loading = Maps.newHashMap();
 
     public LabelProvider(Theme theme) {
       this.theme = theme;
@@ -286,7 +346,12 @@ public abstract class LinkifiedTree<T, F> extends Composite {
     @Override
     public void onShow(TreeItem item) {
       T element = getElement(item);
+      if (element == null || contentProvider.isLoaded(element)) {
+        return;
+      }
+      loading.put(item, element);
       contentProvider.load(element, () -> {
+        loading.remove(item);
         if (!item.isDisposed()) {
           update(item);
           refresher.refresh();
@@ -294,6 +359,14 @@ public abstract class LinkifiedTree<T, F> extends Composite {
       });
     }
 
+    @Override
+    public void onHide(TreeItem item) {
+      T element = loading.remove(item);
+      if (element != null) {
+        contentProvider.cancelLoad(element);
+      }
+    }
+
     @Override
     protected void erase(Event event, Object element) {
       Label label = getLabel(event);
@@ -312,7 +385,7 @@ public abstract class LinkifiedTree<T, F> extends Composite {
     protected void measure(Event event, Object element) {
       Label label = getLabel(event);
       if (label.bounds == null) {
-        updateLayout(label.string, false);
+        updateLayout(label.text, false);
         label.bounds = layout.getBounds();
       }
 
@@ -353,7 +426,7 @@ public abstract class LinkifiedTree<T, F> extends Composite {
 
     protected void drawText(@SuppressWarnings("unused") T node, GC gc, Rectangle bounds,
         Label label, boolean ignoreColors) {
-      updateLayout(label.string, ignoreColors);
+      updateLayout(label.text, ignoreColors);
       Rectangle clip = gc.getClipping();
       gc.setClipping(bounds);
       layout.draw(gc, bounds.x, bounds.y + (bounds.height - label.bounds.height) / 2);
@@ -365,9 +438,9 @@ public abstract class LinkifiedTree<T, F> extends Composite {
       event.gc.drawFocus(focusBounds.x, focusBounds.y, focusBounds.width, focusBounds.height);
     }
 
-    private void updateLayout(StyledString string, boolean ignoreColors) {
-      layout.setText(string.getString());
-      for (StyleRange range : string.getStyleRanges()) {
+    private void updateLayout(RenderedText text, boolean ignoreColors) {
+      layout.setText(text.text);
+      for (StyleRange range : text.ranges) {
         if (ignoreColors && (range.foreground != null || range.background != null)) {
           range = (StyleRange)range.clone();
           range.foreground = null;
@@ -388,23 +461,44 @@ public abstract class LinkifiedTree<T, F> extends Composite {
     private void update(TreeItem item) {
       Label label = getLabelNoUpdate(item);
       T element = getElement(item);
+      if (item == lastHovered) {
+        lastHoveredLinks = null;
+      }
 
       label.background = getBackgroundColor(element);
       updateText(item, label, element);
       label.bounds = null;
       label.loaded = contentProvider.isLoaded(element);
-      item.setText(label.string.getString());
+      item.setText(label.text.text);
     }
 
     private void updateText(TreeItem item, Label label, T element) {
-      label.string = format(element, LinkableStyledString.ignoring(theme),
-          (item == lastHovered) ? lastPrefetcher : nullPrefetcher()).getString();
+      if (item == lastHovered) {
+        label.text = render(element, lastPrefetcher);
+        return;
+      }
+
+      Object key = contentProvider.isLoaded(element) ? getLabelCacheKey(element) : null;
+      RenderedText text = (key == null) ? null : cache.getIfPresent(key);
+      if (text == null) {
+        text = render(element, nullPrefetcher());
+        if (key != null) {
+          cache.put(key, text);
+        }
+      }
+      label.text = text;
+    }
+
+    private RenderedText render(T element, Follower.Prefetcher<F> follower) {
+      return new RenderedText(
+          format(element, LinkableStyledString.ignoring(theme), follower).getString());
     }
 
     public boolean hoverItem(TreeItem item, @SuppressWarnings("unused") Point location) {
       if (item != lastHovered) {
         TreeItem tmp = lastHovered;
         lastHovered = item;
+        lastHoveredLinks = null;
         lastPrefetcher.cancel();
 
         if (tmp != null && !tmp.isDisposed()) {
@@ -416,6 +510,9 @@ public abstract class LinkifiedTree<T, F> extends Composite {
         } else {
           lastPrefetcher = prepareFollower(getElement(item), () -> {
             Widgets.scheduleIfNotDisposed(item, () -> {
+              if (item == lastHovered) {
+                lastHoveredLinks = null;
+              }
               updateText(item, getLabelNoUpdate(item), getElement(item));
               refresher.refresh();
             });
@@ -435,11 +532,14 @@ public abstract class LinkifiedTree<T, F> extends Composite {
         return null;
       }
 
-      LinkableStyledString string =
-          format(getElement(item), LinkableStyledString.create(theme), lastPrefetcher);
-      string.endLink();
-      string.append("dummy", string.defaultStyle());
-      updateLayout(string.getString(), false);
+      if (lastHoveredLinks == null) {
+        lastHoveredLinks =
+            format(getElement(item), LinkableStyledString.create(theme), lastPrefetcher);
+        lastHoveredLinks.endLink();
+        lastHoveredLinks.append("dummy", lastHoveredLinks.defaultStyle());
+        lastHoveredText = new RenderedText(lastHoveredLinks.getString());
+      }
+      updateLayout(lastHoveredText, false);
 
       Rectangle textBounds = layout.getBounds();
       textBounds.x = bounds.x;
@@ -449,7 +549,7 @@ public abstract class LinkifiedTree<T, F> extends Composite {
       }
 
       int offset = layout.getOffset(location.x - textBounds.x, location.y - textBounds.y, null);
-      return (Path.Any)string.getLinkTarget(offset);
+      return (Path.Any)lastHoveredLinks.getLinkTarget(offset);
     }
 
     private Label getLabel(Event event) {
@@ -475,8 +575,34 @@ public abstract class LinkifiedTree<T, F> extends Composite {
       return result;
     }
 
+    public void clearCache() {
+      cache.invalidateAll();
+    }
+
     public void reset() {
       layout.dispose();
+      loading.clear();
+      cache.invalidateAll();
+    }
+  }
+
+  /**
+   * A formatted label, rendered to its text and style ranges.
+   */
+  protected static class RenderedText {
+    public final String text;
+    public final StyleRange[] ranges;
+
+    public RenderedText(StyledString string) {
+      this.text = string.getString();
+      this.ranges = string.getStyleRanges();
+    }
+
+    /**
+     * @return an estimate of the memory used by this text in bytes.
+     */
+    public int getSize() {
+      return 64 + 2 * text.length() + 80 * ranges.length;
     }
   }
 
@@ -487,13 +613,13 @@ public abstract class LinkifiedTree<T, F> extends Composite {
     public static String KEY = Label.class.getName();
 
     public Color background;
-    public StyledString string;
+    public RenderedText text;
     public Rectangle bounds;
     public boolean loaded;
 
     public Label(Theme theme) {
       this.background = null;
-      this.string = new StyledString("Loading...", theme.structureStyler());
+      this.text = new RenderedText(new StyledString("Loading...", theme.structureStyler()));
       this.bounds = null;
       this.loaded = false;
     }
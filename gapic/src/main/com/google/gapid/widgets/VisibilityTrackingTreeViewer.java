@@ -16,6 +16,7 @@
 package com.google.gapid.widgets;
 
 import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
 import com.google.gapid.util.Trees;
 
 import org.eclipse.jface.viewers.IBaseLabelProvider;
@@ -31,27 +32,48 @@ import java.util.Set;
 /**
  * A {@link TreeViewer} that notifies the bound {@link IContentProvider} and
  * {@link IBaseLabelProvider} of visibility changes if they also implement
- * the {@link Listener} interface.
+ * the {@link Listener} interface. Newly visible items are reported nearest to the center of the
+ * viewport first and, while the tree is scrolled by more than a page at a time, show events are
+ * held back until the scrolling settles, so items that are only briefly visible are not loaded.
  */
 public class VisibilityTrackingTreeViewer extends TreeViewer {
+  // Scrolling by more than a page within this interval is considered fast scrolling.
+  private static final int DEBOUNCE_MS = 100;
+
   private Set<TreeItem> visible = Collections.emptySet();
+  private Set<TreeItem> lastSeen = Collections.emptySet();
+  private long lastUpdate = 0;
+  private final Runnable settle = () -> {
+    if (!getTree().isDisposed()) {
+      updateVisibility(true);
+    }
+  };
   private Listener[] listeners;
 
   public VisibilityTrackingTreeViewer(Tree tree) {
     super(tree);
     updateListeners();
-    tree.addPaintListener(e -> updateVisibility());
+    tree.addPaintListener(e -> updateVisibility(false));
   }
 
-  private void updateVisibility() {
+  private void updateVisibility(boolean settled) {
     if (listeners == null) {
       return;
     }
 
-    Set<TreeItem> seen = Trees.getVisibleItems(getTree());
-    if (seen == null) {
+    List<TreeItem> seenInOrder = Trees.getVisibleItems(getTree());
+    if (seenInOrder == null) {
       return; // No reliable data.
     }
+    Set<TreeItem> seen = Sets.newIdentityHashSet();
+    seen.addAll(seenInOrder);
+
+    long now = System.currentTimeMillis();
+    boolean fast = !settled && !seen.isEmpty() && !lastSeen.isEmpty() &&
+        now - lastUpdate < DEBOUNCE_MS && Collections.disjoint(lastSeen, seen);
+    lastSeen = seen;
+    lastUpdate = now;
+
     for (TreeItem item : visible) {
       if (!seen.contains(item) && !item.isDisposed()) {
         for (Listener listener : listeners) {
@@ -59,7 +81,21 @@ public class VisibilityTrackingTreeViewer extends TreeViewer {
         }
       }
     }
-    for (TreeItem item : seen) {
+
+    if (fast) {
+      // Hold back the show events until the scrolling settles.
+      Set<TreeItem> stillVisible = Sets.newIdentityHashSet();
+      for (TreeItem item : visible) {
+        if (seen.contains(item)) {
+          stillVisible.add(item);
+        }
+      }
+      visible = stillVisible;
+      getTree().getDisplay().timerExec(DEBOUNCE_MS, settle);
+      return;
+    }
+
+    for (TreeItem item : byDistanceFromCenter(seenInOrder)) {
       if (!visible.contains(item)) {
         for (Listener listener : listeners) {
           listener.onShow(item);
@@ -69,10 +105,31 @@ public class VisibilityTrackingTreeViewer extends TreeViewer {
     visible = seen;
   }
 
+  /**
+   * @return the given items, ordered by their distance from the center of the list.
+   */
+  private static List<TreeItem> byDistanceFromCenter(List<TreeItem> items) {
+    List<TreeItem> result = Lists.newArrayListWithCapacity(items.size());
+    int center = items.size() / 2;
+    if (!items.isEmpty()) {
+      result.add(items.get(center));
+    }
+    for (int i = 1; result.size() < items.size(); i++) {
+      if (center + i < items.size()) {
+        result.add(items.get(center + i));
+      }
+      if (center - i >= 0) {
+        result.add(items.get(center - i));
+      }
+    }
+    return result;
+  }
+
   @Override
   protected void inputChanged(Object input, Object oldInput) {
     // Cause all visible items to receive a show event.
     visible = Collections.emptySet();
+    lastSeen = Collections.emptySet();
     super.inputChanged(input, oldInput);
   }
 
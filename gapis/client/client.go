@@ -311,6 +311,30 @@ func (c *client) ExportCapture(ctx context.Context, p *path.Capture) ([]byte, er
 	return res.GetData(), nil
 }
 
+func (c *client) ExportCaptureTo(ctx context.Context, p *path.Capture, w io.Writer) error {
+	stream, err := c.client.ExportCaptureStream(ctx, &service.ExportCaptureRequest{
+		Capture: p,
+	})
+	if err != nil {
+		return err
+	}
+	for {
+		res, err := stream.Recv()
+		if err == io.EOF {
+			return nil
+		}
+		if err != nil {
+			return err
+		}
+		if err := res.GetError(); err != nil {
+			return err.Get()
+		}
+		if _, err := w.Write(res.GetData()); err != nil {
+			return err
+		}
+	}
+}
+
 func (c *client) LoadCapture(ctx context.Context, path string) (*path.Capture, error) {
 	res, err := c.client.LoadCapture(ctx, &service.LoadCaptureRequest{
 		Path: path,
@@ -15,6 +15,7 @@
 package server
 
 import (
+	"bufio"
 	"bytes"
 	"context"
 	"fmt"
@@ -448,6 +449,29 @@ func (s *grpcServer) ImportCapture(ctx xctx.Context, req *service.ImportCaptureR
 	return &service.ImportCaptureResponse{Res: &service.ImportCaptureResponse_Capture{Capture: capture}}, nil
 }
 
+func (s *grpcServer) ImportCaptureStream(stream service.Gapid_ImportCaptureStreamServer) error {
+	defer s.inRPC()()
+	name, data := "", []byte{}
+	for first := true; ; first = false {
+		req, err := stream.Recv()
+		if err == io.EOF {
+			break
+		}
+		if err != nil {
+			return err
+		}
+		if first {
+			name = req.Name
+		}
+		data = append(data, req.Data...)
+	}
+	capture, err := s.handler.ImportCapture(s.bindCtx(stream.Context()), name, data)
+	if err := service.NewError(err); err != nil {
+		return stream.SendAndClose(&service.ImportCaptureResponse{Res: &service.ImportCaptureResponse_Error{Error: err}})
+	}
+	return stream.SendAndClose(&service.ImportCaptureResponse{Res: &service.ImportCaptureResponse_Capture{Capture: capture}})
+}
+
 func (s *grpcServer) ExportCapture(ctx xctx.Context, req *service.ExportCaptureRequest) (*service.ExportCaptureResponse, error) {
 	defer s.inRPC()()
 	data, err := s.handler.ExportCapture(s.bindCtx(ctx), req.Capture)
@@ -457,6 +481,43 @@ func (s *grpcServer) ExportCapture(ctx xctx.Context, req *service.ExportCaptureR
 	return &service.ExportCaptureResponse{Res: &service.ExportCaptureResponse_Data{Data: data}}, nil
 }
 
+// exportChunkSize is the maximum size of the data chunks sent by
+// ExportCaptureStream.
+const exportChunkSize = 1024 * 1024
+
+// chunkSender is an io.Writer that sends the written data as a sequence of
+// chunks of at most exportChunkSize bytes.
+type chunkSender func(data []byte) error
+
+// Write implements the io.Writer interface.
+func (s chunkSender) Write(p []byte) (int, error) {
+	for i := 0; i < len(p); i += exportChunkSize {
+		end := i + exportChunkSize
+		if end > len(p) {
+			end = len(p)
+		}
+		if err := s(p[i:end]); err != nil {
+			return i, err
+		}
+	}
+	return len(p), nil
+}
+
+func (s *grpcServer) ExportCaptureStream(req *service.ExportCaptureRequest, server service.Gapid_ExportCaptureStreamServer) error {
+	defer s.inRPC()()
+	w := bufio.NewWriterSize(chunkSender(func(data []byte) error {
+		return server.Send(&service.ExportCaptureResponse{Res: &service.ExportCaptureResponse_Data{Data: data}})
+	}), exportChunkSize)
+	err := s.handler.ExportCaptureTo(s.bindCtx(server.Context()), req.Capture, w)
+	if err == nil {
+		err = w.Flush()
+	}
+	if err := service.NewError(err); err != nil {
+		return server.Send(&service.ExportCaptureResponse{Res: &service.ExportCaptureResponse_Error{Error: err}})
+	}
+	return nil
+}
+
 func (s *grpcServer) LoadCapture(ctx xctx.Context, req *service.LoadCaptureRequest) (*service.LoadCaptureResponse, error) {
 	defer s.inRPC()()
 	capture, err := s.handler.LoadCapture(s.bindCtx(ctx), req.Path)
@@ -235,6 +235,13 @@ func (s *server) ExportCapture(ctx context.Context, c *path.Capture) ([]byte, er
 	return b.Bytes(), nil
 }
 
+func (s *server) ExportCaptureTo(ctx context.Context, c *path.Capture, w io.Writer) error {
+	ctx = status.Start(ctx, "RPC ExportCaptureTo")
+	defer status.Finish(ctx)
+	ctx = log.Enter(ctx, "ExportCaptureTo")
+	return capture.Export(ctx, c, w)
+}
+
 // ReadFile exists because ioutil.ReadFile is broken on Windows.
 // https://github.com/golang/go/issues/26923
 func ReadFile(f *os.File) ([]byte, error) {
@@ -75,6 +75,10 @@ type Service interface {
 	// ImportCapture or LoadCapture.
 	ExportCapture(ctx context.Context, c *path.Capture) ([]byte, error)
 
+	// ExportCaptureTo writes a capture's data that can be consumed by
+	// ImportCapture or LoadCapture to the given writer.
+	ExportCaptureTo(ctx context.Context, c *path.Capture, w io.Writer) error
+
 	// LoadCapture imports capture data from a local file, returning the new
 	// capture identifier.
 	LoadCapture(ctx context.Context, path string) (*path.Capture, error)